@@ -3,11 +3,18 @@ package multitypetree.distributions;
 import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.alignment.TaxonSet;
-import beast.base.evolution.tree.TreeUtils;
+import beast.base.evolution.tree.Node;
 import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.MultiTypeNode;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
+ * Prior on the type of the most recent common ancestor of a set of taxa.
+ * The taxa are resolved to leaf node numbers once, and the MRCA is
+ * located again only when the topology of the tree has changed.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class MRCATypePrior extends MultiTypeTreeDistribution {
@@ -30,6 +37,15 @@ public class MRCATypePrior extends MultiTypeTreeDistribution {
 
     protected int type;
 
+    // Node numbers of leaves in taxon set and of their MRCA:
+    private int[] leafNrs;
+    private String[] leafIDs;
+    private int mrcaNr = -1, storedMrcaNr = -1;
+
+    // Per-node marks used when locating the MRCA:
+    private int[] marks;
+    private int markStamp;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -61,8 +77,23 @@ public class MRCATypePrior extends MultiTypeTreeDistribution {
     @Override
     public double calculateLogP() {
 
-        MultiTypeNode mrca = (MultiTypeNode)TreeUtils.getCommonAncestorNode(
-                mtTree, taxonSetInput.get().getTaxaNames());
+        // Discard cached MRCA, which may not be located again below:
+        if (mtTree.topologyChanged())
+            mrcaNr = -1;
+
+        // No internal node has the required type.  (The MRCA of a single
+        // taxon is the leaf itself, so this only applies to larger sets.)
+        if (typeProbsInput.get() == null
+                && taxonSetInput.get().getTaxonCount() > 1
+                && mtTree.getTypeInternalNodeCount(type) == 0) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        if (mrcaNr < 0)
+            mrcaNr = findMRCA().getNr();
+
+        MultiTypeNode mrca = (MultiTypeNode)mtTree.getNode(mrcaNr);
 
         if (typeProbsInput.get() != null)
             logP = Math.log(typeProbsInput.get().getValue(mrca.getNodeType()));
@@ -72,5 +103,84 @@ public class MRCATypePrior extends MultiTypeTreeDistribution {
         return logP;
     }
 
+    /**
+     * Resolve the taxon names to leaf node numbers.
+     */
+    private void findLeaves() {
+        Set<String> remaining = new HashSet<>(taxonSetInput.get().getTaxaNames());
+        if (remaining.isEmpty())
+            throw new IllegalArgumentException("Taxon set of MRCATypePrior "
+                    + "is empty.");
+
+        leafNrs = new int[remaining.size()];
+        leafIDs = new String[remaining.size()];
+        int i = 0;
+        for (Node leaf : mtTree.getExternalNodes()) {
+            if (remaining.remove(leaf.getID())) {
+                leafNrs[i] = leaf.getNr();
+                leafIDs[i] = leaf.getID();
+                i += 1;
+            }
+        }
+
+        if (!remaining.isEmpty())
+            throw new IllegalArgumentException("Taxa " + remaining
+                    + " of MRCATypePrior are not present in tree.");
+
+        marks = new int[mtTree.getNodeCount()];
+        markStamp = 0;
+    }
+
+    /**
+     * Locate the MRCA of the taxon set by marking the ancestors of the
+     * MRCA of the leaves seen so far and walking up from the next leaf
+     * until a marked node is reached.
+     *
+     * @return MRCA node
+     */
+    private Node findMRCA() {
+        if (leafNrs == null || marks.length != mtTree.getNodeCount()
+                || !leavesValid())
+            findLeaves();
+
+        Node mrca = mtTree.getNode(leafNrs[0]);
+        for (int i=1; i<leafNrs.length; i++) {
+            markStamp += 1;
+            for (Node node = mrca; node != null; node = node.getParent())
+                marks[node.getNr()] = markStamp;
+
+            mrca = mtTree.getNode(leafNrs[i]);
+            while (marks[mrca.getNr()] != markStamp)
+                mrca = mrca.getParent();
+        }
+
+        return mrca;
+    }
+
+    /**
+     * @return true if the cached leaf numbers still refer to the taxa,
+     * which may not be the case if the tree has been reinitialised
+     */
+    private boolean leavesValid() {
+        for (int i=0; i<leafNrs.length; i++) {
+            if (!leafIDs[i].equals(mtTree.getNode(leafNrs[i]).getID()))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void store() {
+        storedMrcaNr = mrcaNr;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        mrcaNr = storedMrcaNr;
+        super.restore();
+    }
+
 
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+import multitypetree.evolution.tree.CompactMultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TreeEventList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates the structured coalescent density of many typed trees under
+ * many sets of migration model parameters.  The sufficient statistics
+ * used by StructuredCoalescentTreeDensity are extracted from each tree
+ * once as it is added.  The log density of a tree under a parameter set
+ * is then a dot product between the tree's statistics and coefficients
+ * derived from the parameters, so evaluating every combination reduces
+ * to a tight loop over primitive arrays, divided between threads by
+ * blocks of trees.
+ *
+ * A parameter set is a vector whose first nTypes elements are the
+ * effective population sizes and whose remaining nTypes*nTypes elements
+ * are the backward-time migration rates in row-major order, with the
+ * diagonal elements ignored.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class StructuredCoalescentBatchDensity {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private final int nTypes, nThreads;
+
+    // Length of statistics and coefficient vectors.  Statistics are
+    // stored as pair integrals, coalescence counts, lineage integrals
+    // and migration counts, nStats per tree:
+    private final int nStats;
+    private double[] stats = new double[0];
+    private int nTrees;
+
+    private final TreeEventList eventList;
+
+    /**
+     * Create empty batch.
+     *
+     * @param nTypes number of types
+     * @param nThreads number of threads used by evaluate()
+     */
+    public StructuredCoalescentBatchDensity(int nTypes, int nThreads) {
+        if (nTypes < 1 || nThreads < 1)
+            throw new IllegalArgumentException("StructuredCoalescentBatchDensity "
+                    + "requires at least one type and one thread.");
+
+        this.nTypes = nTypes;
+        this.nThreads = nThreads;
+        nStats = nTypes*(nTypes + 3);
+        eventList = new TreeEventList(nTypes);
+    }
+
+    /**
+     * @param nTypes number of types
+     * @return length of parameter set vectors
+     */
+    public static int getParameterCount(int nTypes) {
+        return nTypes*(nTypes + 1);
+    }
+
+    /**
+     * Write the current parameters of a migration model to a parameter
+     * set vector.
+     *
+     * @param migModel migration model
+     * @param params vector of length getParameterCount(nTypes)
+     */
+    public static void getParameters(SCMigrationModel migModel, double[] params) {
+        int n = migModel.getNTypes();
+        for (int c=0; c<n; c++) {
+            params[c] = migModel.getPopSize(c);
+            for (int cp=0; cp<n; cp++)
+                params[n + c*n + cp] = migModel.getBackwardRate(c, cp);
+        }
+    }
+
+    /**
+     * @return number of trees added
+     */
+    public int getTreeCount() {
+        return nTrees;
+    }
+
+    /**
+     * Discard all trees.
+     */
+    public void clear() {
+        nTrees = 0;
+    }
+
+    /**
+     * Extract the sufficient statistics of a tree and add them to the
+     * batch.  The tree is not retained, so the same object may be reused
+     * for subsequent trees.
+     *
+     * @param tree tree to add
+     */
+    public void addTree(CompactMultiTypeTree tree) {
+        if ((nTrees+1)*nStats > stats.length)
+            stats = Arrays.copyOf(stats, Math.max(2*stats.length, (nTrees+1)*nStats));
+
+        eventList.build(tree);
+
+        int offset = nTrees*nStats;
+        Arrays.fill(stats, offset, offset + nStats, 0.0);
+
+        for (int i=0; i<eventList.getSize(); i++) {
+            if (i > 0) {
+                double dt = eventList.getTime(i) - eventList.getTime(i-1);
+                for (int c=0; c<nTypes; c++) {
+                    int k = eventList.getLineageCount(i, c);
+                    stats[offset + c] += k*(k-1)*dt;
+                    stats[offset + 2*nTypes + c] += k*dt;
+                }
+            }
+
+            int type = eventList.getType(i);
+            if (type >= nTypes || eventList.getDestType(i) >= nTypes)
+                throw new IllegalArgumentException("Tree contains type "
+                        + "outside range of batch.");
+
+            switch (eventList.getKind(i)) {
+                case TreeEventList.COALESCE:
+                    stats[offset + nTypes + type] += 1;
+                    break;
+
+                case TreeEventList.MIGRATE:
+                    stats[offset + 3*nTypes + type*nTypes
+                            + eventList.getDestType(i)] += 1;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        nTrees += 1;
+    }
+
+    /**
+     * Evaluate the log density of every tree under every parameter set.
+     *
+     * @param params parameter set vectors
+     * @return log densities indexed by tree then parameter set
+     */
+    public double[][] evaluate(double[][] params) {
+        double[][] result = new double[nTrees][params.length];
+        evaluate(params, result);
+
+        return result;
+    }
+
+    /**
+     * Evaluate the log density of every tree under every parameter set.
+     *
+     * @param params parameter set vectors
+     * @param result array indexed by tree then parameter set to write log
+     * densities to
+     */
+    public void evaluate(double[][] params, double[][] result) {
+
+        // Step 1: convert parameter sets to coefficients
+
+        int nSets = params.length;
+        double[] coefs = new double[nSets*nStats];
+        boolean[][] forbidden = new boolean[nSets][];
+        for (int p=0; p<nSets; p++)
+            forbidden[p] = computeCoefficients(params[p], coefs, p*nStats);
+
+        // Step 2: evaluate blocks of trees
+
+        forEachBlock((start, end) -> evaluateBlock(start, end, coefs, forbidden, result));
+    }
+
+    /**
+     * Evaluate the log density of each tree under its own parameter set,
+     * as when comparing trees to the parameters sampled alongside them.
+     *
+     * @param params parameter set vectors, one for each tree
+     * @param result array to write the log density of each tree to
+     */
+    public void evaluatePaired(double[][] params, double[] result) {
+        if (params.length < nTrees || result.length < nTrees)
+            throw new IllegalArgumentException("Paired evaluation requires "
+                    + "a parameter set and result for each of the "
+                    + nTrees + " trees.");
+
+        forEachBlock((start, end) -> {
+            double[] coefs = new double[nStats];
+            for (int t=start; t<end; t++) {
+                boolean[] forbidden = computeCoefficients(params[t], coefs, 0);
+                result[t] = dotProduct(t, coefs, 0, forbidden);
+            }
+        });
+    }
+
+    /**
+     * Task applied to a contiguous block of trees.
+     */
+    private interface BlockTask {
+        void run(int start, int end);
+    }
+
+    /**
+     * Apply a task to all trees, dividing them into blocks which are
+     * distributed between threads.
+     *
+     * @param task task to apply
+     */
+    private void forEachBlock(BlockTask task) {
+        if (nThreads == 1 || nTrees <= BLOCK_SIZE) {
+            task.run(0, nTrees);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start=0; start<nTrees; start += BLOCK_SIZE) {
+                int blockStart = start;
+                int blockEnd = Math.min(start + BLOCK_SIZE, nTrees);
+                futures.add(executor.submit(() -> task.run(blockStart, blockEnd)));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Batch evaluation interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error in batch evaluation: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compute the coefficients by which the statistics of a tree are
+     * multiplied to give its log density under a parameter set.
+     *
+     * @param params parameter set vector
+     * @param coefs array to write coefficients to
+     * @param offset position of first coefficient in coefs
+     * @return flags indicating type pairs with zero migration rate, or
+     * null if there are none
+     */
+    private boolean[] computeCoefficients(double[] params, double[] coefs, int offset) {
+        if (params.length != getParameterCount(nTypes))
+            throw new IllegalArgumentException("Parameter set has length "
+                    + params.length + " but " + getParameterCount(nTypes)
+                    + " parameters are required for " + nTypes + " types.");
+
+        boolean[] forbidden = null;
+        for (int c=0; c<nTypes; c++) {
+            double Nc = params[c];
+            if (!(Nc > 0.0))
+                throw new IllegalArgumentException("Population sizes must be "
+                        + "positive.");
+
+            coefs[offset + c] = -1.0/(2.0*Nc);
+            coefs[offset + nTypes + c] = Math.log(1.0/Nc);
+
+            double exitRate = 0.0;
+            for (int cp=0; cp<nTypes; cp++) {
+                int idx = offset + 3*nTypes + c*nTypes + cp;
+                double m = cp == c ? 0.0 : params[nTypes + c*nTypes + cp];
+                if (m < 0.0)
+                    throw new IllegalArgumentException("Migration rates must "
+                            + "be non-negative.");
+
+                exitRate += m;
+                if (m > 0.0)
+                    coefs[idx] = Math.log(m);
+                else {
+                    // Migrations with zero rate are handled separately to
+                    // avoid multiplying zero counts by -infinity:
+                    coefs[idx] = 0.0;
+                    if (cp != c) {
+                        if (forbidden == null)
+                            forbidden = new boolean[nTypes*nTypes];
+                        forbidden[c*nTypes + cp] = true;
+                    }
+                }
+            }
+            coefs[offset + 2*nTypes + c] = -exitRate;
+        }
+
+        return forbidden;
+    }
+
+    private void evaluateBlock(int start, int end, double[] coefs,
+            boolean[][] forbidden, double[][] result) {
+
+        for (int p=0; p<forbidden.length; p++) {
+            for (int t=start; t<end; t++)
+                result[t][p] = dotProduct(t, coefs, p*nStats, forbidden[p]);
+        }
+    }
+
+    /**
+     * @param t index of tree
+     * @param coefs coefficient array
+     * @param coefOffset position of first coefficient of parameter set
+     * @param forbidden zero-rate flags of parameter set, or null
+     * @return log density of tree under parameter set
+     */
+    private double dotProduct(int t, double[] coefs, int coefOffset,
+            boolean[] forbidden) {
+        int statOffset = t*nStats;
+
+        double logP = 0.0;
+        for (int i=0; i<nStats; i++)
+            logP += stats[statOffset + i]*coefs[coefOffset + i];
+
+        if (forbidden != null) {
+            for (int i=0; i<nTypes*nTypes; i++) {
+                if (forbidden[i] && stats[statOffset + 3*nTypes + i] > 0)
+                    return Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        return logP;
+    }
+}
@@ -20,27 +20,34 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.evolution.tree.Node;
-import multitypetree.evolution.tree.MultiTypeNode;
+import multitypetree.evolution.tree.AffectedRegion;
+import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TreeEventList;
 
-import com.google.common.collect.Lists;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
+ * The density is evaluated from a small set of per-deme sufficient
+ * statistics (integrated lineage counts and event counts) accumulated
+ * over the time-ordered event list of the tree.  When the operator which
+ * proposed the current tree has described the region it modified (see
+ * MultiTypeTree.getAffectedRegion()), only the events and statistics
+ * within that region's time window are recalculated.
+ *
+ * For migration models with several epochs, the statistics are kept
+ * separately for each epoch, with intervals spanning epoch boundaries
+ * divided between the epochs, so that each epoch's statistics are
+ * combined with its own rates and population sizes.
  *
  * @author Tim Vaughan
  */
 @Description("Likelihood of ColouredTree under structured coalescent.")
 public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
 
-    public Input<SCMigrationModel> migrationModelInput = new Input<>(
+    public Input<MigrationModel> migrationModelInput = new Input<>(
             "migrationModel", "Model of migration between demes.",
             Validate.REQUIRED);
     public Input<Boolean> checkValidityInput = new Input<>(
@@ -48,23 +55,43 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
             +"(Default false.)  "
             +"Useful if operators are in danger of proposing invalid trees.",
             false);
+    public Input<Boolean> localUpdatesInput = new Input<>(
+            "localUpdates", "Recalculate only the part of the density "
+            + "affected by operators which describe the region of the tree "
+            + "they modify.  (Default true.)", true);
     
-    protected SCMigrationModel migrationModel;
+    protected MigrationModel migrationModel;
     protected MultiTypeTree mtTree;
-    protected boolean checkValidity;
-
-    private enum SCEventKind {
-        COALESCE, MIGRATE, SAMPLE
-    };
-
-    private class SCEvent {
-        double time;
-        int type, destType;
-        SCEventKind kind;
-        Node node;
-    }
-    private List<SCEvent> eventList;
-    private List<Integer[]> lineageCountList;
+    protected boolean checkValidity, localUpdates;
+
+    // Number of local updates between full recalculations, limiting the
+    // accumulation of rounding errors in the statistics:
+    private static final int FULL_UPDATE_INTERVAL = 1000;
+
+    // Event lists for the current and stored states, and the modification
+    // count of the tree each was built from (see
+    // MultiTypeTree.getModificationCount()):
+    private final TreeEventList[] eventLists = new TreeEventList[2];
+    private final boolean[] eventListValid = new boolean[2];
+    private final long[] eventListStamps = new long[2];
+    private int currentList, storedList;
+    private int updatesSinceFull;
+
+    // Constant-rate models of each epoch and the times at which all but
+    // the last epoch end, as used to divide the current statistics:
+    private int nEpochs;
+    private SCMigrationModel[] epochModels;
+    private double[] epochEnds, storedEpochEnds;
+
+    // Sufficient statistics: integrals of k(k-1) and k over time for each
+    // deme, coalescence counts for each deme and migration counts for
+    // each (source, destination) pair, with those of epoch e following
+    // those of epoch e-1:
+    private int nTypes;
+    private double[] pairIntegrals, lineageIntegrals;
+    private double[] storedPairIntegrals, storedLineageIntegrals;
+    private int[] coalCounts, migCounts;
+    private int[] storedCoalCounts, storedMigCounts;
 
     // Empty constructor as required:
     public StructuredCoalescentTreeDensity() { };
@@ -74,9 +101,38 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
         migrationModel = migrationModelInput.get();
         mtTree = mtTreeInput.get();
         checkValidity = checkValidityInput.get();
-
-        eventList = new ArrayList<>();
-        lineageCountList = new ArrayList<>();
+        localUpdates = localUpdatesInput.get();
+
+        nTypes = migrationModel.getNTypes();
+        nEpochs = migrationModel.getEpochCount();
+        epochModels = new SCMigrationModel[nEpochs];
+        for (int e = 0; e<nEpochs; e++) {
+            if (!(migrationModel.getEpochModel(e) instanceof SCMigrationModel))
+                throw new IllegalArgumentException("Structured coalescent "
+                        + "density requires migration models with population "
+                        + "sizes.");
+            epochModels[e] = (SCMigrationModel)migrationModel.getEpochModel(e);
+        }
+        epochEnds = new double[nEpochs-1];
+        storedEpochEnds = new double[nEpochs-1];
+        for (int e = 0; e<nEpochs-1; e++)
+            epochEnds[e] = migrationModel.getEpochEndTime(e);
+
+        eventLists[0] = new TreeEventList(nTypes);
+        eventLists[1] = new TreeEventList(nTypes);
+        eventListValid[0] = false;
+        eventListValid[1] = false;
+        currentList = 0;
+        storedList = 0;
+
+        pairIntegrals = new double[nEpochs*nTypes];
+        lineageIntegrals = new double[nEpochs*nTypes];
+        storedPairIntegrals = new double[nEpochs*nTypes];
+        storedLineageIntegrals = new double[nEpochs*nTypes];
+        coalCounts = new int[nEpochs*nTypes];
+        migCounts = new int[nEpochs*nTypes*nTypes];
+        storedCoalCounts = new int[nEpochs*nTypes];
+        storedMigCounts = new int[nEpochs*nTypes*nTypes];
 
         // Ensure tree and migration model are compatible
         if (mtTree.hasTypeTrait() && !mtTree.getTypeSet().equals(migrationModel.getTypeSet()))
@@ -90,161 +146,221 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
         if (checkValidity && !mtTree.isValid())
             return Double.NEGATIVE_INFINITY;
 
-        // Ensure sequence of events is up-to-date:
-        updateEventSequence();
+        // Statistics must be divided afresh if epoch boundaries have moved:
+        int epochStatus = checkEpochEnds();
+        if (epochStatus < 0) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
 
-        // Start from the tips of the tree, working up.
-        logP = 0;
+        // Ensure sequence of events and statistics are up-to-date:
+        AffectedRegion region = mtTree.getAffectedRegion();
+        if (epochStatus == 0 && localUpdates && region.isKnown()
+                && eventListValid[currentList]
+                && eventListStamps[currentList] == mtTree.getModificationCount()
+                && updatesSinceFull < FULL_UPDATE_INTERVAL) {
 
-        // Note that the first event is always a sample. We begin at the first
-        // _interval_ and the event following that interval.
-        for (int eventIdx = 1; eventIdx<eventList.size(); eventIdx++) {
+            double tmin = region.getStartTime();
+            double tmax = region.getEndTime();
+            TreeEventList eventList = getWritableEventList();
 
-            SCEvent event = eventList.get(eventIdx);
-            Integer[] lineageCount = lineageCountList.get(eventIdx);
-            double delta_t = event.time-eventList.get(eventIdx-1).time;
+            accumulateStatistics(eventList, tmin, tmax, -1);
+            if (eventList.update(mtTree, region)) {
+                accumulateStatistics(eventList, tmin, tmax, 1);
+                updatesSinceFull += 1;
+            } else
+                updateEventSequence();
 
-            // Interval contribution:
-            if (delta_t>0) {
-                double lambda = 0.0;
-                for (int c = 0; c<lineageCount.length; c++) {
-                    int k = lineageCount[c];
-                    double Nc = migrationModel.getPopSize(c);
-                    lambda += k*(k-1)/(2.0*Nc);
+        } else
+            updateEventSequence();
 
-                    for (int cp = 0; cp<lineageCount.length; cp++) {
-                        if (cp==c)
-                            continue;
+        // Share event list with anything else needing it (e.g. operators):
+        mtTree.setCachedEventList(eventLists[currentList]);
 
-                        double m = migrationModel.getBackwardRate(c, cp);
-                        lambda += k*m;
-                    }
+        // Assemble density from statistics:
+        logP = 0;
+        for (int e = 0; e<nEpochs; e++) {
+            SCMigrationModel epochModel = epochModels[e];
+            int offset = e*nTypes;
+
+            for (int c = 0; c<nTypes; c++) {
+                double Nc = epochModel.getPopSize(c);
+                logP += -pairIntegrals[offset+c]/(2.0*Nc);
+                if (coalCounts[offset+c]>0)
+                    logP += coalCounts[offset+c]*Math.log(1.0/Nc);
+
+                for (int cp = 0; cp<nTypes; cp++) {
+                    if (cp==c)
+                        continue;
+
+                    double m = epochModel.getBackwardRate(c, cp);
+                    int migIdx = offset*nTypes + c*nTypes + cp;
+                    logP += -lineageIntegrals[offset+c]*m;
+                    if (migCounts[migIdx]>0)
+                        logP += migCounts[migIdx]*Math.log(m);
                 }
-                logP += -delta_t*lambda;
             }
+        }
 
-            // Event contribution:
-            switch (event.kind) {
-                case COALESCE:
-                    double N = migrationModel.getPopSize(event.type);
-                    logP += Math.log(1.0/N);
-                    break;
+        return logP;
+    }
 
-                case MIGRATE:
-                    double m = migrationModel
-                            .getBackwardRate(event.type, event.destType);
-                    logP += Math.log(m);
-                    break;
+    /**
+     * Compare the epoch boundaries of the migration model with those used
+     * to divide the statistics, adopting the new boundaries if they have
+     * changed.
+     *
+     * @return 0 if the boundaries are unchanged, 1 if they have changed,
+     * or -1 if the new boundaries are not in increasing order
+     */
+    private int checkEpochEnds() {
+        boolean changed = false;
+        double prevEnd = Double.NEGATIVE_INFINITY;
+        for (int e = 0; e<nEpochs-1; e++) {
+            double end = migrationModel.getEpochEndTime(e);
+            if (!(end > prevEnd))
+                return -1;
+            if (end != epochEnds[e])
+                changed = true;
+            prevEnd = end;
+        }
 
-                case SAMPLE:
-                    // Do nothing here: only effect of sampling event is
-                    // to change the lineage counts in subsequent intervals.
-                    break;
-            }
+        if (!changed)
+            return 0;
+
+        for (int e = 0; e<nEpochs-1; e++)
+            epochEnds[e] = migrationModel.getEpochEndTime(e);
+
+        return 1;
+    }
+
+    /**
+     * @param t time
+     * @return index of epoch containing t, according to the boundaries
+     * used to divide the statistics
+     */
+    private int getEpoch(double t) {
+        int lo = 0, hi = nEpochs-1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (epochEnds[mid] <= t)
+                lo = mid + 1;
+            else
+                hi = mid;
         }
 
-        return logP;
+        return lo;
     }
 
     /**
      * Determines the sequence of migration, coalescence and sampling events
-     * which make up the coloured tree.
+     * which make up the coloured tree, and the corresponding statistics.
      */
     protected void updateEventSequence() {
 
-        // Clean up previous list:
-        eventList.clear();
-        lineageCountList.clear();
-        Node rootNode = mtTree.getRoot();
+        if (currentList == storedList)
+            currentList = 1 - storedList;
 
-        // Initialise map of active nodes to active change indices:
-        Map<Node, Integer> changeIdx = new HashMap<>();
-        changeIdx.put(rootNode, -1);
+        TreeEventList eventList = eventLists[currentList];
+        eventList.build(mtTree);
+        eventListValid[currentList] = true;
+        eventListStamps[currentList] = mtTree.getModificationCount();
 
-        // Initialise lineage count per colour array:
-        Integer[] lineageCount = new Integer[migrationModel.getNTypes()];
-        for (int c = 0; c<migrationModel.getNTypes(); c++)
-            if (c==((MultiTypeNode)rootNode).getNodeType())
-                lineageCount[c] = 1;
-            else
-                lineageCount[c] = 0;
-
-        // Calculate event sequence:
-        while (!changeIdx.isEmpty()) {
-
-            SCEvent nextEvent = new SCEvent();
-            nextEvent.time = Double.NEGATIVE_INFINITY;
-            nextEvent.node = rootNode; // Initial assignment not significant
-
-            // Determine next event
-            for (Node node : changeIdx.keySet())
-                if (changeIdx.get(node)<0) {
-                    if (node.isLeaf()) {
-                        // Next event is a sample
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SCEventKind.SAMPLE;
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                            nextEvent.node = node;
-                        }
-                    } else {
-                        // Next event is a coalescence
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SCEventKind.COALESCE;
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                            nextEvent.node = node;
+        Arrays.fill(pairIntegrals, 0.0);
+        Arrays.fill(lineageIntegrals, 0.0);
+        Arrays.fill(coalCounts, 0);
+        Arrays.fill(migCounts, 0);
+
+        accumulateStatistics(eventList,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 1);
+        updatesSinceFull = 0;
+    }
+
+    /**
+     * @return event list which may be modified without disturbing the
+     * stored state
+     */
+    private TreeEventList getWritableEventList() {
+        if (currentList == storedList) {
+            int other = 1 - storedList;
+            eventLists[other].assignFrom(eventLists[storedList]);
+            eventListValid[other] = true;
+            eventListStamps[other] = eventListStamps[storedList];
+            currentList = other;
+        }
+
+        return eventLists[currentList];
+    }
+
+    /**
+     * Add (sign=1) or subtract (sign=-1) the contributions of the intervals
+     * and events between tmin and tmax to the sufficient statistics.
+     *
+     * @param eventList event list
+     * @param tmin start of time window
+     * @param tmax end of time window
+     * @param sign sign of contribution
+     */
+    private void accumulateStatistics(TreeEventList eventList,
+            double tmin, double tmax, int sign) {
+
+        int lo = eventList.firstIndexAtOrAfter(tmin);
+        int hi = eventList.firstIndexAfter(tmax);
+        int last = Math.min(hi, eventList.getSize()-1);
+
+        // Interval contributions (the first event is always a sample, so
+        // the lineage counts preceding it are zero):
+        for (int i = Math.max(lo, 1); i<=last; i++) {
+            double start = Math.max(eventList.getTime(i-1), tmin);
+            double end = i<hi ? eventList.getTime(i) : tmax;
+            if (end - start<=0)
+                continue;
+
+            // Divide interval between the epochs it overlaps:
+            int e = nEpochs>1 ? getEpoch(start) : 0;
+            while (true) {
+                double segmentEnd = e<nEpochs-1
+                        ? Math.min(end, epochEnds[e])
+                        : end;
+                double delta_t = segmentEnd - start;
+
+                if (delta_t>0) {
+                    for (int c = 0; c<nTypes; c++) {
+                        int k = eventList.getLineageCount(i, c);
+                        if (k>0) {
+                            pairIntegrals[e*nTypes+c] += sign*k*(k-1)*delta_t;
+                            lineageIntegrals[e*nTypes+c] += sign*k*delta_t;
                         }
                     }
-                } else {
-                    // Next event is a migration
-                    double thisChangeTime = ((MultiTypeNode)node).getChangeTime(changeIdx.get(node));
-                    if (thisChangeTime>nextEvent.time) {
-                        nextEvent.time = thisChangeTime;
-                        nextEvent.kind = SCEventKind.MIGRATE;
-                        nextEvent.destType = ((MultiTypeNode)node).getChangeType(changeIdx.get(node));
-                        if (changeIdx.get(node)>0)
-                            nextEvent.type = ((MultiTypeNode)node).getChangeType(changeIdx.get(node)-1);
-                        else
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                        nextEvent.node = node;
-                    }
                 }
 
-            // Update active node list (changeIdx) and lineage count appropriately:
-            switch (nextEvent.kind) {
-                case COALESCE:
-                    Node leftChild = nextEvent.node.getLeft();
-                    Node rightChild = nextEvent.node.getRight();
+                if (segmentEnd>=end)
+                    break;
 
-                    changeIdx.remove(nextEvent.node);
-                    changeIdx.put(leftChild, ((MultiTypeNode)leftChild).getChangeCount()-1);
-                    changeIdx.put(rightChild, ((MultiTypeNode)rightChild).getChangeCount()-1);
-                    lineageCount[nextEvent.type]++;
+                start = segmentEnd;
+                e += 1;
+            }
+        }
+
+        // Event contributions:
+        for (int i = lo; i<hi; i++) {
+            int e = nEpochs>1 ? getEpoch(eventList.getTime(i)) : 0;
+            switch (eventList.getKind(i)) {
+                case TreeEventList.COALESCE:
+                    coalCounts[e*nTypes + eventList.getType(i)] += sign;
                     break;
 
-                case SAMPLE:
-                    changeIdx.remove(nextEvent.node);
-                    lineageCount[nextEvent.type]--;
+                case TreeEventList.MIGRATE:
+                    migCounts[(e*nTypes + eventList.getType(i))*nTypes
+                            + eventList.getDestType(i)] += sign;
                     break;
 
-                case MIGRATE:
-                    lineageCount[nextEvent.destType]--;
-                    lineageCount[nextEvent.type]++;
-                    int oldIdx = changeIdx.get(nextEvent.node);
-                    changeIdx.put(nextEvent.node, oldIdx-1);
+                default:
+                    // Only effect of sampling event is to change the
+                    // lineage counts in subsequent intervals.
                     break;
             }
-
-            // Add event to list:
-            eventList.add(nextEvent);
-            lineageCountList.add(Arrays.copyOf(lineageCount, lineageCount.length));
         }
-
-        // Reverse event and lineage count lists (order them from tips to root):
-        eventList = Lists.reverse(eventList);
-        lineageCountList = Lists.reverse(lineageCountList);
-
     }
 
     @Override
@@ -252,6 +368,33 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
         return true;
     }
 
+    @Override
+    protected void store() {
+        super.store();
+
+        storedList = currentList;
+        System.arraycopy(pairIntegrals, 0, storedPairIntegrals, 0, pairIntegrals.length);
+        System.arraycopy(lineageIntegrals, 0, storedLineageIntegrals, 0, lineageIntegrals.length);
+        System.arraycopy(coalCounts, 0, storedCoalCounts, 0, coalCounts.length);
+        System.arraycopy(migCounts, 0, storedMigCounts, 0, migCounts.length);
+        System.arraycopy(epochEnds, 0, storedEpochEnds, 0, epochEnds.length);
+    }
+
+    @Override
+    protected void restore() {
+        super.restore();
+
+        currentList = storedList;
+        if (eventListValid[currentList]
+                && eventListStamps[currentList] == mtTree.getModificationCount())
+            mtTree.setCachedEventList(eventLists[currentList]);
+        System.arraycopy(storedPairIntegrals, 0, pairIntegrals, 0, pairIntegrals.length);
+        System.arraycopy(storedLineageIntegrals, 0, lineageIntegrals, 0, lineageIntegrals.length);
+        System.arraycopy(storedCoalCounts, 0, coalCounts, 0, coalCounts.length);
+        System.arraycopy(storedMigCounts, 0, migCounts, 0, migCounts.length);
+        System.arraycopy(storedEpochEnds, 0, epochEnds, 0, epochEnds.length);
+    }
+
     /**
      * Test likelihood result. Duplicate of JUnit test for debugging purposes.
      *
@@ -6,9 +6,10 @@ import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.inference.parameter.IntegerParameter;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
 
 import org.jblas.MatrixFunctions;
 
@@ -32,10 +33,16 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
             "typeLabel",
             "Label for type traits (default 'type')", "type");
 
+    public Input<RandomStream> randomStreamInput = new Input<>(
+            "randomStream",
+            "Stream of random numbers used to simulate particles. "
+                    + "(Default is the BEAST random.)");
+
     int nParticles;
     double[] logParticleWeights;
     Tree tree;
     SCMigrationModel migrationModel;
+    RandomSource random;
 
     private enum SCEventKind {
         COALESCE, MIGRATE, SAMPLE
@@ -81,6 +88,9 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         nParticles = nParticlesInput.get();
         tree = (Tree) treeInput.get();
         migrationModel = migrationModelInput.get();
+        random = randomStreamInput.get() != null
+                ? randomStreamInput.get()
+                : RandomSource.RANDOMIZER;
         lineageCount = new int[migrationModel.getNTypes()];
         logParticleWeights = new double[nParticles];
         nodeTypes = new int[tree.getNodeCount()];
@@ -128,7 +138,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
                 nodeTypes[i] = -1;
 
             // Choose random order in which to colour lineages:
-            int leafNrs[] = Randomizer.shuffled(tree.getLeafNodeCount());
+            int leafNrs[] = random.shuffled(tree.getLeafNodeCount());
 
             boolean isFirst = true;
             for (int leafNr : leafNrs) {
@@ -239,7 +249,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
                 aTot += migrationModel.getBackwardRate(type, c);
             }
 
-            double newTime = time + Randomizer.nextExponential(aTot);
+            double newTime = time + random.nextExponential(aTot);
 
             while (nextNode != null && nextNode.getHeight() < newTime) {
                 nodeTypes[nextNode.getNr()] = type;
@@ -262,7 +272,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
             thisLogP += -aTot*(newTime - time);
             time = newTime;
 
-            double u = Randomizer.nextDouble()*aTot;
+            double u = random.nextDouble()*aTot;
 
             int newType;
             for (newType=0; newType<migrationModel.getNTypes(); newType++) {
@@ -347,7 +357,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
 
         int nVirt = 0;
 
-        double u = Randomizer.nextDouble();
+        double u = random.nextDouble();
         double P_low_given_ab = 0.0;
         double acc = - muL - Math.log(Pba);
         double log_muL = Math.log(muL);
@@ -369,7 +379,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         // P_n_given_ab constant for n>= thresh: only need
         // to sample P(n|n>=thresh)
         do {
-            nVirt = (int) Randomizer.nextPoisson(muL);
+            nVirt = random.nextPoisson(muL);
         } while (nVirt < thresh);
 
         return nVirt;
@@ -413,7 +423,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         // Select times of virtual events:
         double[] times = new double[nVirt];
         for (int i = 0; i<nVirt; i++)
-            times[i] = Randomizer.nextDouble()*L+startTime;
+            times[i] = random.nextDouble()*L+startTime;
         Arrays.sort(times);
 
         // Sample type changes along branch using FB algorithm:
@@ -422,7 +432,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
 
         for (int i = 1; i<=nVirt; i++) {
 
-            double u2 = Randomizer.nextDouble()
+            double u2 = random.nextDouble()
                     *migrationModel.getRpowN(nVirt-i+1, false).get(prevType, endType);
             int c;
             boolean fellThrough = true;
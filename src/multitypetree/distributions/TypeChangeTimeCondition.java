@@ -4,15 +4,17 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.evolution.tree.Node;
-import multitypetree.evolution.tree.MultiTypeNode;
 
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
+ * Forbids type changes between given types within a height range.  The
+ * changes of each forbidden kind within the range are counted using the
+ * tree's time-sorted index of type changes, so the cost of evaluation
+ * does not grow with the size of the tree.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Conditions AGAINST specific type changes in given region.")
@@ -48,6 +50,7 @@ public class TypeChangeTimeCondition extends MultiTypeTreeDistribution {
             Input.Validate.XOR, toTypesInput);
 
     protected Set<Integer> fromTypes, toTypes;
+    private int[] fromTypeArray, toTypeArray;
     protected boolean needsUpdate;
 
     protected RealParameter h1, h2;
@@ -67,35 +70,31 @@ public class TypeChangeTimeCondition extends MultiTypeTreeDistribution {
 
     @Override
     public double calculateLogP() {
-        update();
-
-        logP = 0.0;
-
-        for (Node node : mtTree.getNodesAsArray()) {
-            if (node.isRoot())
-                continue;
-
-            if (node.getHeight()>h2.getValue()
-                || node.getParent().getHeight()<h1.getValue())
-                continue;
+        logP = isViolated() ? Double.NEGATIVE_INFINITY : 0.0;
+        return logP;
+    }
 
-            MultiTypeNode mtNode = (MultiTypeNode)node;
+    /**
+     * Determine whether the tree contains a forbidden type change strictly
+     * within the height range.  Types are specified in forward time, so
+     * the type below a change on the tree is its destination.
+     *
+     * @return true if a forbidden change is present
+     */
+    public boolean isViolated() {
+        update();
 
-            int lastType = mtNode.getNodeType();
-            for (int i=0; i<mtNode.getChangeCount(); i++) {
-                if (mtNode.getChangeTime(i)>h1.getValue()
-                        && mtNode.getChangeTime(i)<h2.getValue()
-                        && toTypes.contains(lastType)
-                        && fromTypes.contains(mtNode.getChangeType(i))) {
-                    logP = Double.NEGATIVE_INFINITY;
-                    return logP;
-                }
+        double start = h1.getValue();
+        double end = h2.getValue();
 
-                lastType = mtNode.getChangeType(i);
+        for (int toType : toTypeArray) {
+            for (int fromType : fromTypeArray) {
+                if (mtTree.getTypeChangeCount(toType, fromType, start, end) > 0)
+                    return true;
             }
-       }
+        }
 
-        return logP;
+        return false;
     }
 
     private void update() {
@@ -130,9 +129,21 @@ public class TypeChangeTimeCondition extends MultiTypeTreeDistribution {
             }
         }
 
+        fromTypeArray = toArray(fromTypes);
+        toTypeArray = toArray(toTypes);
+
         needsUpdate = false;
     }
 
+    private static int[] toArray(Set<Integer> types) {
+        int[] array = new int[types.size()];
+        int i = 0;
+        for (int type : types)
+            array[i++] = type;
+
+        return array;
+    }
+
     @Override
     protected boolean requiresRecalculation() {
         if ((fromTypesInput.get() != null && fromTypesInput.get().somethingIsDirty())
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a collection of type change time conditions on the same tree
+ * in a single pass, stopping at the first violated condition.  The
+ * condition found to be violated most recently is checked first, since
+ * a violation usually persists across several proposals.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Conditions against several sets of type changes, each in "
+        + "its own height range, evaluating all conditions in one pass.")
+public class TypeChangeTimeConditionSet extends MultiTypeTreeDistribution {
+
+    public Input<List<TypeChangeTimeCondition>> conditionInput = new Input<>(
+            "condition",
+            "Type change time condition to evaluate.",
+            new ArrayList<>());
+
+    private List<TypeChangeTimeCondition> conditions;
+    private int lastViolated;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        conditions = conditionInput.get();
+        for (TypeChangeTimeCondition condition : conditions) {
+            if (condition.mtTreeInput.get() != mtTree)
+                throw new IllegalArgumentException("Conditions in "
+                        + "TypeChangeTimeConditionSet must refer to the "
+                        + "same multi-type tree as the set.");
+        }
+
+        lastViolated = -1;
+    }
+
+    @Override
+    public double calculateLogP() {
+        logP = 0.0;
+
+        if (lastViolated >= 0 && conditions.get(lastViolated).isViolated()) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        for (int i=0; i<conditions.size(); i++) {
+            if (i != lastViolated && conditions.get(i).isViolated()) {
+                lastViolated = i;
+                logP = Double.NEGATIVE_INFINITY;
+                return logP;
+            }
+        }
+
+        return logP;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Description of the part of a multi-type tree modified by the most recent
+ * proposal: a time window together with the nodes whose heights, types or
+ * type changes were edited.  The promise made by whoever sets the region is
+ * that no event (node or type change) outside the window was added,
+ * removed or modified, and that the only events inside the window which
+ * may have been modified are the node events of the listed nodes and the
+ * type changes on the branches above them.
+ *
+ * The region is unknown unless explicitly set, in which case densities
+ * must assume that the entire tree may have changed.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class AffectedRegion {
+
+    private boolean known = false;
+    private double startTime, endTime;
+    private int[] nodeNrs = new int[4];
+    private int nodeCount = 0;
+
+    /**
+     * Mark region as unknown.
+     */
+    public void clear() {
+        known = false;
+        nodeCount = 0;
+    }
+
+    /**
+     * Set region.
+     *
+     * @param startTime lower bound of window
+     * @param endTime upper bound of window
+     * @param nodes nodes whose events may have changed
+     */
+    public void set(double startTime, double endTime, Node... nodes) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+
+        nodeCount = 0;
+        for (Node node : nodes)
+            addNode(node);
+
+        known = true;
+    }
+
+    /**
+     * Add a node to an already-set region.  Nodes already present are
+     * ignored.
+     *
+     * @param node node whose events may have changed
+     */
+    public void addNode(Node node) {
+        int nr = node.getNr();
+        for (int i=0; i<nodeCount; i++)
+            if (nodeNrs[i] == nr)
+                return;
+
+        if (nodeCount == nodeNrs.length) {
+            int[] newNrs = new int[2*nodeNrs.length];
+            System.arraycopy(nodeNrs, 0, newNrs, 0, nodeCount);
+            nodeNrs = newNrs;
+        }
+        nodeNrs[nodeCount++] = nr;
+    }
+
+    /**
+     * @return true if region has been set since it was last cleared
+     */
+    public boolean isKnown() {
+        return known;
+    }
+
+    /**
+     * @return lower bound of window
+     */
+    public double getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return upper bound of window
+     */
+    public double getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return number of nodes in region
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param i index of node in region
+     * @return number of i'th node in region
+     */
+    public int getNodeNr(int i) {
+        return nodeNrs[i];
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+/**
+ * Prefix-sum (Fenwick) tree over the type change counts of the branches
+ * above each node of a multi-type tree, indexed by node number.  Allows
+ * the changes on the tree to be enumerated in node number order and the
+ * k-th change located in O(log n) time.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+final class ChangeIndex {
+
+    private int size;
+    private int[] counts, sums;
+    private int total;
+
+    // Largest power of two not exceeding size, used by find():
+    private int topBit;
+
+    ChangeIndex() {
+        counts = new int[0];
+        sums = new int[1];
+    }
+
+    /**
+     * Rebuild index from the change counts of the given nodes.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     */
+    void rebuild(MultiTypeNode[] nodes) {
+        resize(nodes.length);
+
+        total = 0;
+        for (int i=0; i<size; i++) {
+            counts[i] = nodes[i].getChangeCount();
+            sums[i+1] = counts[i];
+            total += counts[i];
+        }
+
+        for (int i=1; i<=size; i++) {
+            int j = i + (i & -i);
+            if (j <= size)
+                sums[j] += sums[i];
+        }
+    }
+
+    private void resize(int newSize) {
+        size = newSize;
+        if (counts.length != size) {
+            counts = new int[size];
+            sums = new int[size+1];
+        } else
+            sums[0] = 0;
+
+        topBit = Integer.highestOneBit(Math.max(size, 1));
+    }
+
+    /**
+     * Copy the contents of another index into this one.
+     *
+     * @param other index to copy
+     */
+    void assignFrom(ChangeIndex other) {
+        resize(other.size);
+        System.arraycopy(other.counts, 0, counts, 0, size);
+        System.arraycopy(other.sums, 0, sums, 0, size+1);
+        total = other.total;
+    }
+
+    /**
+     * @return number of nodes covered by index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adjust the change count recorded for a node.
+     *
+     * @param nodeNr number of node
+     * @param delta change in count
+     */
+    void add(int nodeNr, int delta) {
+        counts[nodeNr] += delta;
+        total += delta;
+        for (int i=nodeNr+1; i<=size; i += i & -i)
+            sums[i] += delta;
+    }
+
+    /**
+     * @param nodeNr number of node
+     * @return change count recorded for node
+     */
+    int get(int nodeNr) {
+        return counts[nodeNr];
+    }
+
+    /**
+     * @return total number of changes recorded
+     */
+    int getTotal() {
+        return total;
+    }
+
+    /**
+     * @param nodeNr number of node
+     * @return number of changes above nodes with numbers below nodeNr
+     */
+    int getPrefix(int nodeNr) {
+        int res = 0;
+        for (int i=nodeNr; i>0; i -= i & -i)
+            res += sums[i];
+        return res;
+    }
+
+    /**
+     * Find the node above which the given change lies.
+     *
+     * @param changeNr index of change, in [0, getTotal())
+     * @return number of node with getPrefix(nr) <= changeNr < getPrefix(nr+1)
+     */
+    int find(int changeNr) {
+        int pos = 0;
+        int remaining = changeNr;
+        for (int step=topBit; step>0; step >>= 1) {
+            int next = pos + step;
+            if (next <= size && sums[next] <= remaining) {
+                pos = next;
+                remaining -= sums[next];
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import java.util.Arrays;
+
+/**
+ * Index of the type changes on a multi-type tree, excluding any above the
+ * root, sorted by time separately for each ordered pair of types.  Each
+ * entry records the number of the node below the change, so that the
+ * changes of a given kind falling within a time window can be counted or
+ * located by binary search.
+ *
+ * The index is built on first use.  As with TypeSummary, edits mark the
+ * affected branches as dirty and the entries of dirty branches are
+ * replaced when the index is next queried, with replaced branches
+ * journaled so that restore() reverts only those entries.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+final class ChangeTimeIndex {
+
+    private boolean active, rebuiltSinceStore;
+    private int size, nTypes;
+
+    // Changes on the branch above each node at the time it was last
+    // indexed, with pairs encoded as fromType*nTypes + toType:
+    private double[][] nodeTimes, storedNodeTimes;
+    private int[][] nodePairs, storedNodePairs;
+    private int[] nodeCounts, storedNodeCounts;
+
+    // Change times of each type pair in ascending order, together with
+    // the numbers of the nodes below the changes:
+    private double[][] pairTimes;
+    private int[][] pairNodes;
+    private int[] pairCounts;
+
+    // Branches whose entries are out of date:
+    private boolean[] dirty;
+    private int[] dirtyNodes;
+    private int nDirty;
+
+    // Branches whose entries have been replaced since last store:
+    private boolean[] edited;
+    private int[] editedNodes;
+    private int nEdited;
+
+    /**
+     * @return true if the index has been built and is being maintained
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Build index from the given nodes and begin maintaining it.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     * @param minTypes minimum number of types to allow for
+     */
+    void rebuild(MultiTypeNode[] nodes, int minTypes) {
+        nTypes = Math.max(minTypes, 1);
+        for (MultiTypeNode node : nodes) {
+            nTypes = Math.max(nTypes, node.nodeType+1);
+            for (int i=0; i<node.nTypeChanges; i++)
+                nTypes = Math.max(nTypes, node.changeTypes.get(i)+1);
+        }
+        size = nodes.length;
+
+        nodeTimes = new double[size][];
+        storedNodeTimes = new double[size][];
+        nodePairs = new int[size][];
+        storedNodePairs = new int[size][];
+        nodeCounts = new int[size];
+        storedNodeCounts = new int[size];
+
+        pairTimes = new double[nTypes*nTypes][8];
+        pairNodes = new int[nTypes*nTypes][8];
+        pairCounts = new int[nTypes*nTypes];
+
+        dirty = new boolean[size];
+        dirtyNodes = new int[size];
+        nDirty = 0;
+        edited = new boolean[size];
+        editedNodes = new int[size];
+        nEdited = 0;
+
+        for (int nr=0; nr<size; nr++) {
+            nodeTimes[nr] = new double[4];
+            nodePairs[nr] = new int[4];
+            record(nr, nodes[nr]);
+            insertEntries(nr);
+
+            storedNodeTimes[nr] = nodeTimes[nr].clone();
+            storedNodePairs[nr] = nodePairs[nr].clone();
+            storedNodeCounts[nr] = nodeCounts[nr];
+        }
+
+        active = true;
+        rebuiltSinceStore = true;
+    }
+
+    /**
+     * @return number of nodes covered by index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Mark the branch above a node as requiring an update.  Does nothing
+     * if the index is not active.
+     *
+     * @param nodeNr number of node
+     */
+    void markDirty(int nodeNr) {
+        if (!active || nodeNr >= size || dirty[nodeNr])
+            return;
+
+        dirty[nodeNr] = true;
+        dirtyNodes[nDirty++] = nodeNr;
+    }
+
+    /**
+     * Replace the entries of all dirty branches.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     * @return false if a node has a type outside the range covered by the
+     * index or the number of nodes has changed, in which case the index
+     * must be rebuilt.
+     */
+    boolean update(MultiTypeNode[] nodes) {
+        if (nodes.length != size)
+            return false;
+
+        for (int i=0; i<nDirty; i++) {
+            MultiTypeNode node = nodes[dirtyNodes[i]];
+            if (node.nodeType >= nTypes)
+                return false;
+            for (int j=0; j<node.nTypeChanges; j++) {
+                if (node.changeTypes.get(j) >= nTypes)
+                    return false;
+            }
+        }
+
+        for (int i=0; i<nDirty; i++) {
+            int nr = dirtyNodes[i];
+            dirty[nr] = false;
+
+            if (!edited[nr]) {
+                edited[nr] = true;
+                editedNodes[nEdited++] = nr;
+            }
+
+            removeEntries(nr);
+            record(nr, nodes[nr]);
+            insertEntries(nr);
+        }
+        nDirty = 0;
+
+        return true;
+    }
+
+    /**
+     * Record the changes on the branch above a node.  The root branch
+     * has no recorded changes.
+     *
+     * @param nr number of node
+     * @param node node
+     */
+    private void record(int nr, MultiTypeNode node) {
+        int n = node.isRoot() ? 0 : node.nTypeChanges;
+        if (nodeTimes[nr].length < n) {
+            nodeTimes[nr] = new double[2*n];
+            nodePairs[nr] = new int[2*n];
+        }
+
+        int lastType = node.nodeType;
+        for (int i=0; i<n; i++) {
+            int nextType = node.changeTypes.get(i);
+            nodeTimes[nr][i] = node.changeTimes.get(i);
+            nodePairs[nr][i] = lastType*nTypes + nextType;
+            lastType = nextType;
+        }
+        nodeCounts[nr] = n;
+    }
+
+    private void insertEntries(int nr) {
+        for (int i=0; i<nodeCounts[nr]; i++) {
+            int pair = nodePairs[nr][i];
+            double time = nodeTimes[nr][i];
+            int n = pairCounts[pair];
+
+            if (pairTimes[pair].length == n) {
+                pairTimes[pair] = Arrays.copyOf(pairTimes[pair], 2*n);
+                pairNodes[pair] = Arrays.copyOf(pairNodes[pair], 2*n);
+            }
+
+            int idx = upperBound(pair, time);
+            System.arraycopy(pairTimes[pair], idx, pairTimes[pair], idx+1, n-idx);
+            System.arraycopy(pairNodes[pair], idx, pairNodes[pair], idx+1, n-idx);
+            pairTimes[pair][idx] = time;
+            pairNodes[pair][idx] = nr;
+            pairCounts[pair] += 1;
+        }
+    }
+
+    private void removeEntries(int nr) {
+        for (int i=0; i<nodeCounts[nr]; i++) {
+            int pair = nodePairs[nr][i];
+            double time = nodeTimes[nr][i];
+            int n = pairCounts[pair];
+
+            // Entries with equal times are adjacent:
+            int idx = lowerBound(pair, time);
+            while (pairNodes[pair][idx] != nr)
+                idx += 1;
+
+            System.arraycopy(pairTimes[pair], idx+1, pairTimes[pair], idx, n-idx-1);
+            System.arraycopy(pairNodes[pair], idx+1, pairNodes[pair], idx, n-idx-1);
+            pairCounts[pair] -= 1;
+        }
+    }
+
+    /**
+     * @param pair type pair
+     * @param time time
+     * @return index of first entry of pair with time not less than time
+     */
+    private int lowerBound(int pair, double time) {
+        double[] times = pairTimes[pair];
+        int lo = 0, hi = pairCounts[pair];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * @param pair type pair
+     * @param time time
+     * @return index of first entry of pair with time greater than time
+     */
+    private int upperBound(int pair, double time) {
+        double[] times = pairTimes[pair];
+        int lo = 0, hi = pairCounts[pair];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Make the current entries the stored entries.  The index must be up
+     * to date.
+     */
+    void store() {
+        if (!active)
+            return;
+
+        rebuiltSinceStore = false;
+
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            if (storedNodeTimes[nr].length < nodeCounts[nr]) {
+                storedNodeTimes[nr] = new double[nodeTimes[nr].length];
+                storedNodePairs[nr] = new int[nodePairs[nr].length];
+            }
+            System.arraycopy(nodeTimes[nr], 0, storedNodeTimes[nr], 0, nodeCounts[nr]);
+            System.arraycopy(nodePairs[nr], 0, storedNodePairs[nr], 0, nodeCounts[nr]);
+            storedNodeCounts[nr] = nodeCounts[nr];
+        }
+        nEdited = 0;
+    }
+
+    /**
+     * Revert to the stored entries.
+     */
+    void restore() {
+        if (!active)
+            return;
+
+        // Stored entries are those of the tree the index was rebuilt
+        // from, so the index must be rebuilt again when next used:
+        if (rebuiltSinceStore) {
+            active = false;
+            return;
+        }
+
+        for (int i=0; i<nDirty; i++)
+            dirty[dirtyNodes[i]] = false;
+        nDirty = 0;
+
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            removeEntries(nr);
+
+            if (nodeTimes[nr].length < storedNodeCounts[nr]) {
+                nodeTimes[nr] = new double[storedNodeTimes[nr].length];
+                nodePairs[nr] = new int[storedNodePairs[nr].length];
+            }
+            System.arraycopy(storedNodeTimes[nr], 0, nodeTimes[nr], 0, storedNodeCounts[nr]);
+            System.arraycopy(storedNodePairs[nr], 0, nodePairs[nr], 0, storedNodeCounts[nr]);
+            nodeCounts[nr] = storedNodeCounts[nr];
+
+            insertEntries(nr);
+        }
+        nEdited = 0;
+    }
+
+    /**
+     * Count the changes of a given kind occurring strictly between two
+     * times.
+     *
+     * @param fromType type below change
+     * @param toType type above change
+     * @param startTime lower bound of window
+     * @param endTime upper bound of window
+     * @return number of changes
+     */
+    int getChangeCount(int fromType, int toType, double startTime, double endTime) {
+        if (fromType < 0 || toType < 0 || fromType >= nTypes || toType >= nTypes
+                || !(startTime < endTime))
+            return 0;
+
+        int pair = fromType*nTypes + toType;
+        return Math.max(0, lowerBound(pair, endTime) - upperBound(pair, startTime));
+    }
+
+    /**
+     * Locate the earliest change of a given kind occurring strictly
+     * between two times.
+     *
+     * @param fromType type below change
+     * @param toType type above change
+     * @param startTime lower bound of window
+     * @param endTime upper bound of window
+     * @return number of node below change, or -1 if there is no such
+     * change
+     */
+    int findChange(int fromType, int toType, double startTime, double endTime) {
+        if (getChangeCount(fromType, toType, startTime, endTime) == 0)
+            return -1;
+
+        int pair = fromType*nTypes + toType;
+        return pairNodes[pair][upperBound(pair, startTime)];
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lightweight array-based representation of a binary multi-type tree,
+ * intended for producing, storing and serialising large numbers of trees
+ * without the overhead of Node objects.  Type changes are held in
+ * compressed form: the changes on the branch above node nr occupy
+ * positions changeOffsets[nr] to changeOffsets[nr+1]-1 of the change
+ * arrays, in order of increasing time.
+ *
+ * Storage grows as required and is never released, so a single instance
+ * may be refilled repeatedly.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class CompactMultiTypeTree {
+
+    private int nLeaves, nNodes, rootNr;
+
+    private int[] parents = new int[0];
+    private int[] leftChildren = new int[0];
+    private int[] rightChildren = new int[0];
+    private int[] nodeTypes = new int[0];
+    private double[] heights = new double[0];
+
+    private int[] changeOffsets = new int[1];
+    private int[] changeTypes = new int[0];
+    private double[] changeTimes = new double[0];
+
+    // Scratch space used to order children when writing Newick strings:
+    private int[] maxLeafNrs = new int[0];
+
+    // Scratch space holding the flattened tree while parsing Newick
+    // strings, with nodes in order of appearance:
+    private int[] flatParents = new int[0];
+    private int[] flatChildCounts = new int[0];
+    private int[] flatLabels = new int[0];
+    private int[] flatTypes = new int[0];
+    private double[] flatLengths = new double[0];
+    private double[] flatHeights = new double[0];
+    private int[] flatNrs = new int[0];
+    private int[] flatChangeNrs = new int[0];
+    private int[] flatChangeTypes = new int[0];
+    private double[] flatChangeTimes = new double[0];
+
+    public CompactMultiTypeTree() { }
+
+    /**
+     * Prepare storage for a tree with the given dimensions.  Existing
+     * contents become undefined.
+     *
+     * @param nLeaves number of leaves
+     * @param nChanges total number of type changes
+     */
+    void resize(int nLeaves, int nChanges) {
+        this.nLeaves = nLeaves;
+        this.nNodes = 2*nLeaves - 1;
+
+        if (parents.length < nNodes) {
+            parents = new int[nNodes];
+            leftChildren = new int[nNodes];
+            rightChildren = new int[nNodes];
+            nodeTypes = new int[nNodes];
+            heights = new double[nNodes];
+            changeOffsets = new int[nNodes + 1];
+        }
+
+        if (changeTypes.length < nChanges) {
+            changeTypes = new int[nChanges];
+            changeTimes = new double[nChanges];
+        }
+    }
+
+    /**
+     * Fill the node arrays from the given parent/child relationships.
+     * Called by producers after resize().
+     */
+    void setNode(int nr, int parent, int left, int right,
+            double height, int type) {
+        parents[nr] = parent;
+        leftChildren[nr] = left;
+        rightChildren[nr] = right;
+        heights[nr] = height;
+        nodeTypes[nr] = type;
+
+        if (parent < 0)
+            rootNr = nr;
+    }
+
+    /**
+     * Fill the change arrays from an unordered list of changes, each of
+     * which is associated with the node below it.  Changes on the same
+     * branch must be supplied in order of increasing time.
+     *
+     * @param nChanges number of changes
+     * @param nodeNrs node below each change
+     * @param types type above each change
+     * @param times time of each change
+     */
+    void setChanges(int nChanges, int[] nodeNrs, int[] types, double[] times) {
+
+        // Count changes on each branch, then convert counts to offsets:
+        Arrays.fill(changeOffsets, 0, nNodes + 1, 0);
+        for (int c=0; c<nChanges; c++)
+            changeOffsets[nodeNrs[c] + 1] += 1;
+        for (int nr=0; nr<nNodes; nr++)
+            changeOffsets[nr + 1] += changeOffsets[nr];
+
+        // Place changes, using the offsets as insertion cursors:
+        for (int c=0; c<nChanges; c++) {
+            int idx = changeOffsets[nodeNrs[c]]++;
+            changeTypes[idx] = types[c];
+            changeTimes[idx] = times[c];
+        }
+
+        // Cursors now point to the end of each branch, so shift back:
+        for (int nr=nNodes; nr>0; nr--)
+            changeOffsets[nr] = changeOffsets[nr - 1];
+        changeOffsets[0] = 0;
+    }
+
+    /**
+     * Replace the contents of this object with a copy of the given tree.
+     *
+     * @param tree multi-type tree to copy
+     */
+    public void assignFrom(MultiTypeTree tree) {
+        resize(tree.getLeafNodeCount(), tree.getTotalNumberOfChanges());
+
+        int idx = 0;
+        for (Node node : tree.getNodesAsArray()) {
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            int nr = node.getNr();
+
+            setNode(nr,
+                    node.isRoot() ? -1 : node.getParent().getNr(),
+                    node.isLeaf() ? -1 : node.getLeft().getNr(),
+                    node.isLeaf() ? -1 : node.getRight().getNr(),
+                    node.getHeight(), mtNode.getNodeType());
+        }
+
+        for (int nr=0; nr<nNodes; nr++) {
+            MultiTypeNode mtNode = (MultiTypeNode)tree.getNode(nr);
+            changeOffsets[nr] = idx;
+            for (int i=0; i<mtNode.getChangeCount(); i++) {
+                changeTypes[idx] = mtNode.getChangeType(i);
+                changeTimes[idx] = mtNode.getChangeTime(i);
+                idx += 1;
+            }
+        }
+        changeOffsets[nNodes] = idx;
+    }
+
+    /*
+     * Accessors
+     */
+
+    public int getLeafCount() {
+        return nLeaves;
+    }
+
+    public int getNodeCount() {
+        return nNodes;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    public int getParent(int nr) {
+        return parents[nr];
+    }
+
+    public int getLeft(int nr) {
+        return leftChildren[nr];
+    }
+
+    public int getRight(int nr) {
+        return rightChildren[nr];
+    }
+
+    public double getHeight(int nr) {
+        return heights[nr];
+    }
+
+    public int getNodeType(int nr) {
+        return nodeTypes[nr];
+    }
+
+    public int getChangeCount(int nr) {
+        return changeOffsets[nr + 1] - changeOffsets[nr];
+    }
+
+    public int getChangeType(int nr, int idx) {
+        return changeTypes[changeOffsets[nr] + idx];
+    }
+
+    public double getChangeTime(int nr, int idx) {
+        return changeTimes[changeOffsets[nr] + idx];
+    }
+
+    /**
+     * @return total number of type changes on the tree
+     */
+    public int getTotalChangeCount() {
+        return changeOffsets[nNodes];
+    }
+
+    /**
+     * @return type of lineage at top of branch above node
+     */
+    public int getFinalType(int nr) {
+        int count = getChangeCount(nr);
+        return count > 0 ? getChangeType(nr, count - 1) : nodeTypes[nr];
+    }
+
+    public double getRootHeight() {
+        return heights[rootNr];
+    }
+
+    public int getRootType() {
+        return nodeTypes[rootNr];
+    }
+
+    /**
+     * @return total length of all branches in tree
+     */
+    public double getTreeLength() {
+        double length = 0.0;
+        for (int nr=0; nr<nNodes; nr++) {
+            if (nr != rootNr)
+                length += heights[parents[nr]] - heights[nr];
+        }
+
+        return length;
+    }
+
+    /*
+     * Newick output
+     */
+
+    /**
+     * Append Newick representation of tree to the given buffer.  Leaves
+     * are labelled by their node number plus one, matching the translate
+     * tables produced by MultiTypeTree.  If typeSet is non-null, type
+     * changes are written as single-child nodes annotated with type
+     * names, as in the flattened trees written by MultiTypeTree.  As in
+     * Node.toSortedNewick(), the child clade containing the smaller
+     * maximum leaf number is written first.
+     *
+     * @param sb buffer to append to
+     * @param typeSet type set used to name types, or null for untyped output
+     * @param typeLabel label used for type annotations
+     */
+    public void toNewick(StringBuilder sb, TypeSet typeSet, String typeLabel) {
+        if (maxLeafNrs.length < nNodes)
+            maxLeafNrs = new int[nNodes];
+        computeMaxLeafNrs(rootNr);
+
+        appendSubtree(sb, rootNr, typeSet, typeLabel);
+    }
+
+    private int computeMaxLeafNrs(int nr) {
+        if (leftChildren[nr] < 0)
+            maxLeafNrs[nr] = nr;
+        else
+            maxLeafNrs[nr] = Math.max(
+                    computeMaxLeafNrs(leftChildren[nr]),
+                    computeMaxLeafNrs(rightChildren[nr]));
+
+        return maxLeafNrs[nr];
+    }
+
+    private void appendSubtree(StringBuilder sb, int nr,
+            TypeSet typeSet, String typeLabel) {
+
+        int nBranchChanges = typeSet != null ? getChangeCount(nr) : 0;
+        for (int i=0; i<nBranchChanges; i++)
+            sb.append("(");
+
+        if (leftChildren[nr] < 0) {
+            sb.append(nr + 1);
+        } else {
+            int first = leftChildren[nr];
+            int second = rightChildren[nr];
+            if (maxLeafNrs[first] > maxLeafNrs[second]) {
+                first = rightChildren[nr];
+                second = leftChildren[nr];
+            }
+
+            sb.append("(");
+            appendSubtree(sb, first, typeSet, typeLabel);
+            sb.append(",");
+            appendSubtree(sb, second, typeSet, typeLabel);
+            sb.append(")");
+        }
+
+        if (typeSet != null)
+            appendType(sb, nodeTypes[nr], typeSet, typeLabel);
+
+        double lowerTime = heights[nr];
+        for (int i=0; i<nBranchChanges; i++) {
+            double changeTime = getChangeTime(nr, i);
+            sb.append(":").append(changeTime - lowerTime).append(")");
+            appendType(sb, getChangeType(nr, i), typeSet, typeLabel);
+            lowerTime = changeTime;
+        }
+
+        double upperTime = parents[nr] < 0 ? heights[nr] : heights[parents[nr]];
+        sb.append(":").append(upperTime - lowerTime);
+    }
+
+    private void appendType(StringBuilder sb, int type,
+            TypeSet typeSet, String typeLabel) {
+        sb.append("[&").append(typeLabel).append("=\"")
+                .append(typeSet.getTypeName(type)).append("\"]");
+    }
+
+    /*
+     * Newick input
+     */
+
+    /**
+     * Replace the contents of this object with a tree parsed from a
+     * flattened Newick string, as written by MultiTypeTree and by
+     * toNewick().  Single-child nodes are interpreted as type changes.
+     * Leaves must be labelled by the numbers 1 to n, as in translated
+     * NEXUS tree logs, and leaf i is given node number i-1.  Types are
+     * read from typeLabel annotations, either as names from typeSet or as
+     * type indices.  Nodes without a type annotation are assigned type 0.
+     * Heights are measured from the most distant leaf.
+     *
+     * @param newick flattened Newick string, optionally terminated by ';'
+     * @param typeSet type set used to interpret type names, or null
+     * @param typeLabel label used for type annotations
+     */
+    public void parseNewick(String newick, TypeSet typeSet, String typeLabel) {
+
+        // Step 1: read flattened tree into scratch arrays
+
+        int nFlat = 0, current = -1, last = -1;
+        int pos = 0, len = newick.length();
+        while (pos < len) {
+            char c = newick.charAt(pos);
+
+            if (Character.isWhitespace(c)) {
+                pos += 1;
+            } else if (c == '(') {
+                current = addFlatNode(nFlat++, current);
+                last = -1;
+                pos += 1;
+            } else if (c == ')') {
+                if (current < 0)
+                    throw new IllegalArgumentException("Unbalanced "
+                            + "parentheses in Newick string.");
+                last = current;
+                current = flatParents[current];
+                pos += 1;
+            } else if (c == ',') {
+                last = -1;
+                pos += 1;
+            } else if (c == ':') {
+                int end = scanToken(newick, pos + 1);
+                if (last < 0)
+                    throw new IllegalArgumentException("Branch length "
+                            + "without node in Newick string.");
+                flatLengths[last] = Double.parseDouble(newick.substring(pos + 1, end));
+                pos = end;
+            } else if (c == '[') {
+                int end = newick.indexOf(']', pos);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unterminated "
+                            + "annotation in Newick string.");
+                if (last >= 0 && pos + 1 < end && newick.charAt(pos + 1) == '&')
+                    flatTypes[last] = parseType(newick, pos + 2, end,
+                            typeSet, typeLabel, flatTypes[last]);
+                pos = end + 1;
+            } else if (c == ';') {
+                break;
+            } else {
+                int end = scanToken(newick, pos);
+                last = addFlatNode(nFlat++, current);
+                try {
+                    flatLabels[last] = Integer.parseInt(newick.substring(pos, end));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Leaf label '"
+                            + newick.substring(pos, end) + "' is not a number.");
+                }
+                pos = end;
+            }
+        }
+
+        if (nFlat == 0 || current >= 0)
+            throw new IllegalArgumentException("Incomplete Newick string.");
+
+        // Step 2: compute heights from distances to the root, which
+        // precedes all other nodes
+
+        double maxDepth = 0.0;
+        flatHeights[0] = 0.0;
+        for (int f=1; f<nFlat; f++) {
+            flatHeights[f] = flatHeights[flatParents[f]] + flatLengths[f];
+            if (flatChildCounts[f] == 0)
+                maxDepth = Math.max(maxDepth, flatHeights[f]);
+        }
+        for (int f=0; f<nFlat; f++)
+            flatHeights[f] = maxDepth - flatHeights[f];
+
+        // Step 3: number leaves by label and internal nodes in reverse
+        // order of appearance, so that the root has the largest number
+
+        int leafCount = 0, nChanges = 0;
+        for (int f=0; f<nFlat; f++) {
+            if (flatChildCounts[f] == 0)
+                leafCount += 1;
+            else if (flatChildCounts[f] == 1)
+                nChanges += 1;
+        }
+
+        resize(leafCount, nChanges);
+        Arrays.fill(parents, 0, nNodes, -2);
+        Arrays.fill(leftChildren, 0, nNodes, -1);
+        Arrays.fill(rightChildren, 0, nNodes, -1);
+        if (flatChangeNrs.length < nChanges) {
+            flatChangeNrs = new int[nChanges];
+            flatChangeTypes = new int[nChanges];
+            flatChangeTimes = new double[nChanges];
+        }
+
+        int nextInternalNr = nNodes;
+        for (int f=nFlat-1; f>=0; f--) {
+            switch (flatChildCounts[f]) {
+                case 0:
+                    int nr = flatLabels[f] - 1;
+                    if (nr < 0 || nr >= leafCount || parents[nr] != -2)
+                        throw new IllegalArgumentException("Leaf labels must "
+                                + "be the distinct numbers 1 to " + leafCount + ".");
+                    flatNrs[f] = nr;
+                    parents[nr] = -1;
+                    break;
+
+                case 1:
+                    flatNrs[f] = -1;
+                    break;
+
+                default:
+                    flatNrs[f] = --nextInternalNr;
+                    break;
+            }
+        }
+
+        // Step 4: connect nodes, collecting the changes between each node
+        // and its parent in order of increasing time
+
+        int changeIdx = 0;
+        for (int f=0; f<nFlat; f++) {
+            int nr = flatNrs[f];
+            if (nr < 0)
+                continue;
+
+            int p = flatParents[f];
+            while (p >= 0 && flatChildCounts[p] == 1) {
+                flatChangeNrs[changeIdx] = nr;
+                flatChangeTypes[changeIdx] = flatTypes[p];
+                flatChangeTimes[changeIdx] = flatHeights[p];
+                changeIdx += 1;
+                p = flatParents[p];
+            }
+
+            int parentNr = p < 0 ? -1 : flatNrs[p];
+            if (parentNr >= 0) {
+                if (leftChildren[parentNr] < 0)
+                    leftChildren[parentNr] = nr;
+                else
+                    rightChildren[parentNr] = nr;
+            }
+
+            setNode(nr, parentNr, leftChildren[nr], rightChildren[nr],
+                    flatHeights[f], flatTypes[f]);
+        }
+
+        setChanges(nChanges, flatChangeNrs, flatChangeTypes, flatChangeTimes);
+    }
+
+    /**
+     * Add a node to the flattened tree being parsed.
+     *
+     * @param f index of new node
+     * @param parent index of parent, or -1 for the root
+     * @return index of new node
+     */
+    private int addFlatNode(int f, int parent) {
+        if (f == flatParents.length) {
+            int newLength = Math.max(16, 2*f);
+            flatParents = Arrays.copyOf(flatParents, newLength);
+            flatChildCounts = Arrays.copyOf(flatChildCounts, newLength);
+            flatLabels = Arrays.copyOf(flatLabels, newLength);
+            flatTypes = Arrays.copyOf(flatTypes, newLength);
+            flatLengths = Arrays.copyOf(flatLengths, newLength);
+            flatHeights = Arrays.copyOf(flatHeights, newLength);
+            flatNrs = Arrays.copyOf(flatNrs, newLength);
+        }
+
+        if (parent < 0 && f > 0)
+            throw new IllegalArgumentException("Newick string contains "
+                    + "more than one root.");
+
+        flatParents[f] = parent;
+        flatChildCounts[f] = 0;
+        flatLabels[f] = 0;
+        flatTypes[f] = 0;
+        flatLengths[f] = 0.0;
+
+        if (parent >= 0) {
+            flatChildCounts[parent] += 1;
+            if (flatChildCounts[parent] > 2)
+                throw new IllegalArgumentException("Newick string contains "
+                        + "a node with more than two children.");
+        }
+
+        return f;
+    }
+
+    /**
+     * @return position of first character at or after pos which ends a
+     * label or branch length
+     */
+    private static int scanToken(String newick, int pos) {
+        while (pos < newick.length()
+                && "(),:;[".indexOf(newick.charAt(pos)) < 0
+                && !Character.isWhitespace(newick.charAt(pos)))
+            pos += 1;
+
+        return pos;
+    }
+
+    /**
+     * Extract the type from the annotation occupying the given range of
+     * a Newick string.
+     *
+     * @return type index, or defaultType if the annotation does not
+     * contain typeLabel
+     */
+    private static int parseType(String newick, int start, int end,
+            TypeSet typeSet, String typeLabel, int defaultType) {
+
+        int keyStart = start;
+        while (keyStart < end) {
+            int eq = newick.indexOf('=', keyStart);
+            if (eq < 0 || eq >= end)
+                break;
+
+            // Locate end of value, skipping over any quoted section:
+            int valueEnd = eq + 1;
+            boolean quoted = false;
+            while (valueEnd < end && (quoted || newick.charAt(valueEnd) != ',')) {
+                if (newick.charAt(valueEnd) == '"')
+                    quoted = !quoted;
+                valueEnd += 1;
+            }
+
+            if (newick.substring(keyStart, eq).trim().equals(typeLabel)) {
+                String value = newick.substring(eq + 1, valueEnd).trim();
+                if (value.length() >= 2 && value.startsWith("\"")
+                        && value.endsWith("\""))
+                    value = value.substring(1, value.length() - 1);
+
+                if (typeSet != null && typeSet.containsTypeWithName(value))
+                    return typeSet.getTypeIndex(value);
+
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unknown type '"
+                            + value + "' in Newick string.");
+                }
+            }
+
+            keyStart = valueEnd + 1;
+        }
+
+        return defaultType;
+    }
+
+    /*
+     * Binary serialisation
+     */
+
+    /**
+     * Write tree to the given output.  Each node is written as its parent
+     * number, height and, if includeTypes is true, its type followed by
+     * the number, types and times of changes on the branch above it.
+     *
+     * @param out destination of data
+     * @param includeTypes if false, types and changes are omitted
+     * @throws IOException on write error
+     */
+    public void writeTo(DataOutput out, boolean includeTypes) throws IOException {
+        out.writeInt(nLeaves);
+        for (int nr=0; nr<nNodes; nr++) {
+            out.writeInt(parents[nr]);
+            out.writeDouble(heights[nr]);
+
+            if (!includeTypes)
+                continue;
+
+            out.writeInt(nodeTypes[nr]);
+            out.writeInt(getChangeCount(nr));
+            for (int i=changeOffsets[nr]; i<changeOffsets[nr+1]; i++) {
+                out.writeInt(changeTypes[i]);
+                out.writeDouble(changeTimes[i]);
+            }
+        }
+    }
+
+    /**
+     * Replace the contents of this object with a tree read from the given
+     * input, in the form produced by writeTo().  When includeTypes is
+     * false all nodes are assigned type 0.
+     *
+     * @param in source of data
+     * @param includeTypes whether types and changes are present
+     * @throws IOException on read error
+     */
+    public void readFrom(DataInput in, boolean includeTypes) throws IOException {
+        int leafCount = in.readInt();
+        if (leafCount < 1)
+            throw new IOException("Invalid leaf count " + leafCount
+                    + " in tree record.");
+
+        resize(leafCount, 0);
+        Arrays.fill(leftChildren, 0, nNodes, -1);
+        Arrays.fill(rightChildren, 0, nNodes, -1);
+
+        int idx = 0;
+        for (int nr=0; nr<nNodes; nr++) {
+            parents[nr] = in.readInt();
+            heights[nr] = in.readDouble();
+            nodeTypes[nr] = 0;
+            changeOffsets[nr] = idx;
+
+            if (includeTypes) {
+                nodeTypes[nr] = in.readInt();
+                int count = in.readInt();
+                if (changeTypes.length < idx + count) {
+                    int newLength = Math.max(2*changeTypes.length, idx + count);
+                    changeTypes = Arrays.copyOf(changeTypes, newLength);
+                    changeTimes = Arrays.copyOf(changeTimes, newLength);
+                }
+
+                for (int i=0; i<count; i++) {
+                    changeTypes[idx] = in.readInt();
+                    changeTimes[idx] = in.readDouble();
+                    idx += 1;
+                }
+            }
+        }
+        changeOffsets[nNodes] = idx;
+
+        // Reconstruct child arrays from parents:
+        for (int nr=0; nr<nNodes; nr++) {
+            int parent = parents[nr];
+            if (parent < 0) {
+                rootNr = nr;
+                continue;
+            }
+
+            if (parent >= nNodes)
+                throw new IOException("Invalid parent " + parent
+                        + " in tree record.");
+
+            if (leftChildren[parent] < 0)
+                leftChildren[parent] = nr;
+            else
+                rightChildren[parent] = nr;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.inference.CalculationNode;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Migration model whose rates and population sizes are piecewise constant
+ * in time.  Each epoch is described by its own SCMigrationModel, which
+ * holds that epoch's rate matrices, uniformized matrix powers and
+ * transition matrix cache.  Since these are invalidated only when the
+ * parameters of the epoch change, a proposal touching a single epoch
+ * leaves the cached matrices of all other epochs intact.
+ *
+ * The time-independent methods of MigrationModel describe the first
+ * (most recent) epoch.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Migration model with rates and population sizes which are "
+        + "piecewise constant in time.")
+public class EpochMigrationModel extends CalculationNode implements MigrationModel {
+
+    public Input<List<SCMigrationModel>> epochInput = new Input<>(
+            "epoch",
+            "Constant migration model describing each epoch, in order of "
+                    + "increasing age starting from the present.",
+            new ArrayList<>());
+
+    public Input<Function> epochTimesInput = new Input<>(
+            "epochTimes",
+            "Times before the present at which each epoch but the last "
+                    + "ends, in increasing order.");
+
+    private List<SCMigrationModel> epochs;
+    private Function epochTimes;
+    private int nTypes;
+
+    @Override
+    public void initAndValidate() {
+        epochs = epochInput.get();
+        epochTimes = epochTimesInput.get();
+
+        if (epochs.isEmpty())
+            throw new IllegalArgumentException("EpochMigrationModel requires "
+                    + "at least one epoch.");
+
+        nTypes = epochs.get(0).getNTypes();
+        for (SCMigrationModel epoch : epochs) {
+            if (epoch.getNTypes() != nTypes
+                    || !epoch.getTypeSet().equals(epochs.get(0).getTypeSet()))
+                throw new IllegalArgumentException("All epochs of "
+                        + "EpochMigrationModel must share the same type set.");
+        }
+
+        int nTimes = epochTimes != null ? epochTimes.getDimension() : 0;
+        if (nTimes != epochs.size() - 1)
+            throw new IllegalArgumentException("EpochMigrationModel with "
+                    + epochs.size() + " epochs requires " + (epochs.size() - 1)
+                    + " epoch times but " + nTimes + " were given.");
+
+        for (int e=0; e<nTimes; e++) {
+            double time = epochTimes.getArrayValue(e);
+            if (!(time > (e > 0 ? epochTimes.getArrayValue(e-1) : 0.0)))
+                throw new IllegalArgumentException("Epoch times must be "
+                        + "positive and strictly increasing.");
+        }
+    }
+
+    /*
+     * Epoch structure
+     */
+
+    @Override
+    public int getEpochCount() {
+        return epochs.size();
+    }
+
+    @Override
+    public double getEpochEndTime(int epoch) {
+        return epoch < epochs.size() - 1
+                ? epochTimes.getArrayValue(epoch)
+                : Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public int getEpochIndex(double time) {
+        int lo = 0, hi = epochs.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (epochTimes.getArrayValue(mid) <= time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    @Override
+    public SCMigrationModel getEpochModel(int epoch) {
+        return epochs.get(epoch);
+    }
+
+    /*
+     * Time-independent methods, referring to the first epoch
+     */
+
+    @Override
+    public int getNTypes() {
+        return nTypes;
+    }
+
+    @Override
+    public TypeSet getTypeSet() {
+        return epochs.get(0).getTypeSet();
+    }
+
+    @Override
+    public double getBackwardRate(int i, int j) {
+        return epochs.get(0).getBackwardRate(i, j);
+    }
+
+    @Override
+    public double getForwardRate(int i, int j) {
+        return epochs.get(0).getForwardRate(i, j);
+    }
+
+    @Override
+    public double getMu(boolean symmetric) {
+        return epochs.get(0).getMu(symmetric);
+    }
+
+    @Override
+    public DoubleMatrix getR(boolean symmetric) {
+        return epochs.get(0).getR(symmetric);
+    }
+
+    @Override
+    public DoubleMatrix getQ(boolean symmetric) {
+        return epochs.get(0).getQ(symmetric);
+    }
+
+    @Override
+    public DoubleMatrix getRpowN(int n, boolean symmetric) {
+        return epochs.get(0).getRpowN(n, symmetric);
+    }
+
+    @Override
+    public int RpowSteadyN(boolean symmetric) {
+        return epochs.get(0).RpowSteadyN(symmetric);
+    }
+
+    @Override
+    public DoubleMatrix getTransitionMatrix(double t, boolean symmetric) {
+        return epochs.get(0).getTransitionMatrix(t, symmetric);
+    }
+}
@@ -2,6 +2,7 @@ package multitypetree.evolution.tree;
 
 import beast.base.core.BEASTInterface;
 import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -25,4 +26,90 @@ public interface MigrationModel extends BEASTInterface {
 
     int RpowSteadyN(boolean symmetric);
 
+    /**
+     * Obtain matrix of probabilities of type transitions over a time
+     * interval, exp(Qt).
+     *
+     * @param t length of time interval
+     * @param symmetric if true, use symmetrized rate matrix
+     * @return transition probability matrix, which must not be modified
+     */
+    default DoubleMatrix getTransitionMatrix(double t, boolean symmetric) {
+        return MatrixFunctions.expm(getQ(symmetric).mul(t));
+    }
+
+    /*
+     * Time-inhomogeneous models divide time into epochs, within each of
+     * which rates are constant.  Epoch 0 begins at time 0 and epoch e
+     * covers times from the end of epoch e-1 up to, but excluding, its
+     * own end time.  Models with constant rates consist of a single
+     * epoch, and the time-independent methods above describe the first
+     * epoch of other models.
+     */
+
+    /**
+     * @return number of epochs
+     */
+    default int getEpochCount() {
+        return 1;
+    }
+
+    /**
+     * @param epoch index of epoch
+     * @return time at which epoch ends, or infinity for the last epoch
+     */
+    default double getEpochEndTime(int epoch) {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param time time (age) before present
+     * @return index of epoch containing time
+     */
+    default int getEpochIndex(double time) {
+        int epoch = 0;
+        while (epoch < getEpochCount() - 1 && getEpochEndTime(epoch) <= time)
+            epoch += 1;
+
+        return epoch;
+    }
+
+    /**
+     * @param epoch index of epoch
+     * @return constant-rate model describing migration during epoch
+     */
+    default MigrationModel getEpochModel(int epoch) {
+        return this;
+    }
+
+    /**
+     * Obtain matrix of probabilities of type transitions between two
+     * times, as the product of the transition matrices of the portions
+     * of the interval falling within each epoch.
+     *
+     * @param startTime lower (more recent) end of interval
+     * @param endTime upper end of interval
+     * @param symmetric if true, use symmetrized rate matrices
+     * @return transition probability matrix, which must not be modified
+     */
+    default DoubleMatrix getTransitionMatrix(double startTime, double endTime,
+            boolean symmetric) {
+        int epoch = getEpochIndex(startTime);
+        if (epoch == getEpochCount() - 1 || getEpochEndTime(epoch) >= endTime)
+            return getEpochModel(epoch).getTransitionMatrix(endTime - startTime, symmetric);
+
+        DoubleMatrix P = null;
+        double time = startTime;
+        while (time < endTime) {
+            double segmentEnd = Math.min(getEpochEndTime(epoch), endTime);
+            DoubleMatrix Pseg = getEpochModel(epoch)
+                    .getTransitionMatrix(segmentEnd - time, symmetric);
+            P = P == null ? Pseg : P.mmul(Pseg);
+
+            time = segmentEnd;
+            epoch += 1;
+        }
+
+        return P;
+    }
 }
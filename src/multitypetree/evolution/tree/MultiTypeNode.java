@@ -18,6 +18,7 @@ package multitypetree.evolution.tree;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +36,55 @@ public class MultiTypeNode extends Node {
     List<Double> changeTimes = new ArrayList<Double>();
     int nodeType = 0;
 
+    // Tree whose indices must be told of changes to type metadata:
+    MultiTypeTree mtTree = null;
+
+    @Override
+    public void setTree(Tree tree) {
+        super.setTree(tree);
+        mtTree = tree instanceof MultiTypeTree ? (MultiTypeTree)tree : null;
+    }
+
+    /**
+     * Notify owning tree of a change to the number of type changes.
+     *
+     * @param delta change in count
+     */
+    private void changeCountEdited(int delta) {
+        if (mtTree != null && delta != 0)
+            mtTree.changeCountEdited(this, delta);
+    }
+
+    /**
+     * Notify owning tree of the addition or removal of segments of a given
+     * type on the branch above this node.
+     *
+     * @param type type of segments
+     * @param delta change in number of segments
+     */
+    private void typeSegmentsEdited(int type, int delta) {
+        if (mtTree != null)
+            mtTree.typeSegmentsEdited(this, type, delta);
+    }
+
+    @Override
+    public void setHeight(double height) {
+        super.setHeight(height);
+        if (mtTree != null)
+            mtTree.heightEdited(this);
+    }
+
+    @Override
+    public void setParent(Node parent, boolean inOperator) {
+        Node oldParent = getParent();
+        super.setParent(parent, inOperator);
+        if (mtTree != null) {
+            mtTree.branchEdited(this);
+            if (parent != oldParent)
+                mtTree.parentEdited(this);
+        }
+    }
+
     /**
      * Retrieve the total number of changes on the branch above this node.
      *
@@ -108,7 +158,10 @@ public class MultiTypeNode extends Node {
      */
     public void setNodeType(int nodeType) {
         startEditing();
+        int oldType = this.nodeType;
         this.nodeType = nodeType;
+        if (mtTree != null)
+            mtTree.nodeTypeEdited(this, oldType, nodeType);
     }
 
     /**
@@ -122,6 +175,8 @@ public class MultiTypeNode extends Node {
         changeTypes.add(newType);
         changeTimes.add(time);
         nTypeChanges += 1;
+        changeCountEdited(1);
+        typeSegmentsEdited(newType, 1);
     }
 
     /**
@@ -129,8 +184,11 @@ public class MultiTypeNode extends Node {
      */
     public void clearChanges() {
         startEditing();
+        for (int type : changeTypes)
+            typeSegmentsEdited(type, -1);
         changeTypes.clear();
         changeTimes.clear();
+        changeCountEdited(-nTypeChanges);
         nTypeChanges = 0;
     }
 
@@ -143,6 +201,8 @@ public class MultiTypeNode extends Node {
     public void setChangeTime(int idx, double newTime) {
         startEditing();
         changeTimes.set(idx, newTime);
+        if (mtTree != null)
+            mtTree.branchEdited(this);
     }
 
     /**
@@ -153,7 +213,9 @@ public class MultiTypeNode extends Node {
      */
     public void setChangeType(int idx, int newType) {
         startEditing();
-        changeTypes.set(idx, newType);
+        int oldType = changeTypes.set(idx, newType);
+        typeSegmentsEdited(oldType, -1);
+        typeSegmentsEdited(newType, 1);
     }
 
     /**
@@ -165,8 +227,11 @@ public class MultiTypeNode extends Node {
     public void truncateChanges(int newNChanges) {
         startEditing();
 
+        if (nTypeChanges>newNChanges)
+            changeCountEdited(newNChanges-nTypeChanges);
+
         while (nTypeChanges>newNChanges) {
-            changeTypes.remove(nTypeChanges-1);
+            typeSegmentsEdited(changeTypes.remove(nTypeChanges-1), -1);
             changeTimes.remove(nTypeChanges-1);
             nTypeChanges -= 1;
         }
@@ -189,6 +254,8 @@ public class MultiTypeNode extends Node {
         changeTimes.add(idx, newTime);
         changeTypes.add(idx, newType);
         nTypeChanges += 1;
+        changeCountEdited(1);
+        typeSegmentsEdited(newType, 1);
     }
 
     /**
@@ -203,9 +270,10 @@ public class MultiTypeNode extends Node {
             throw new IllegalArgumentException("Index to removeChange() out of range.");
 
         changeTimes.remove(idx);
-        changeTypes.remove(idx);
+        int oldType = changeTypes.remove(idx);
         nTypeChanges -= 1;
-
+        changeCountEdited(-1);
+        typeSegmentsEdited(oldType, -1);
     }
     
     /**
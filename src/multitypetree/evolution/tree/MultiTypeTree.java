@@ -67,6 +67,37 @@ public class MultiTypeTree extends Tree {
     protected TraitSet typeTraitSet;
     protected TypeSet typeSet;
 
+    // Indices of type changes on the current and stored trees:
+    private ChangeIndex changeIndex = new ChangeIndex();
+    private ChangeIndex storedChangeIndex = new ChangeIndex();
+
+    // Per-type indices of branches and internal nodes:
+    private final TypeIndex typeIndex = new TypeIndex();
+
+    // Totals of type changes and lengths in each type:
+    private final TypeSummary typeSummary = new TypeSummary();
+
+    // Type changes sorted by time, built on first use:
+    private final ChangeTimeIndex changeTimeIndex = new ChangeTimeIndex();
+
+    // Region modified by the most recent proposal:
+    private final AffectedRegion affectedRegion = new AffectedRegion();
+
+    // Event list known to describe the current tree, if any:
+    private TreeEventList cachedEventList = null;
+
+    // Identifies the contents of the tree (and of its stored state) as of
+    // the last time they were replaced wholesale rather than modified by
+    // a proposal.  Values are never reused:
+    private long modificationCount, storedModificationCount;
+    private long lastModificationCount = 0;
+
+    // Running totals of type changes added to and removed from the tree:
+    private long changesAddedCount, changesRemovedCount;
+
+    // Whether any node's parent has changed since last store or restore:
+    private boolean topologyChanged = true;
+
     public MultiTypeTree() { };
     
     public MultiTypeTree(Node rootNode) {
@@ -261,6 +292,21 @@ public class MultiTypeTree extends Tree {
         m_storedNodes = new MultiTypeNode[nodeCount];
         Node copy = root.copy();
         listNodes((MultiTypeNode)copy, (MultiTypeNode[])m_storedNodes);
+
+        changeIndex.rebuild((MultiTypeNode[])m_nodes);
+        storedChangeIndex.assignFrom(changeIndex);
+        rebuildTypeIndex();
+        typeIndex.store();
+        rebuildTypeSummary();
+        if (changeTimeIndex.isActive())
+            rebuildChangeTimeIndex();
+        affectedRegion.clear();
+        cachedEventList = null;
+        topologyChanged = true;
+
+        // Stored state is also replaced:
+        modificationCount = ++lastModificationCount;
+        storedModificationCount = modificationCount;
     }
 
     /**
@@ -357,6 +403,16 @@ public class MultiTypeTree extends Tree {
             root.setRight(null);
         }
         assignFromFragileHelper(iRoot + 1, nodeCount, otherNodes);
+
+        changeIndex.rebuild((MultiTypeNode[])m_nodes);
+        rebuildTypeIndex();
+        rebuildTypeSummary();
+        if (changeTimeIndex.isActive())
+            rebuildChangeTimeIndex();
+        affectedRegion.clear();
+        cachedEventList = null;
+        topologyChanged = true;
+        modificationCount = ++lastModificationCount;
     }
 
     /**
@@ -692,16 +748,445 @@ public class MultiTypeTree extends Tree {
      * @return total change count
      */
     public int getTotalNumberOfChanges() {
-        int count = 0;        
+        return changeIndex.getTotal() - changeIndex.get(root.getNr());
+    }
 
-        for (Node node : m_nodes) {
-            if (node.isRoot())
-                continue;
-            
-            count += ((MultiTypeNode)node).getChangeCount();
+    /**
+     * Locate a type change on the tree.  Changes are enumerated branch by
+     * branch in node number order, skipping the root, and then from the
+     * bottom to the top of each branch.
+     *
+     * @param changeNr index of change, in [0, getTotalNumberOfChanges())
+     * @return node on whose branch the change lies
+     */
+    public MultiTypeNode getChangeNode(int changeNr) {
+        int rootNr = root.getNr();
+        if (changeNr >= changeIndex.getPrefix(rootNr))
+            changeNr += changeIndex.get(rootNr);
+
+        return (MultiTypeNode)m_nodes[changeIndex.find(changeNr)];
+    }
+
+    /**
+     * Obtain the number of type changes enumerated before those on the
+     * branch above the given node, so that change idx on that branch has
+     * index getChangeOffset(node) + idx.
+     *
+     * @param node non-root node
+     * @return number of changes on non-root branches above lower-numbered nodes
+     */
+    public int getChangeOffset(MultiTypeNode node) {
+        int offset = changeIndex.getPrefix(node.getNr());
+        if (root.getNr() < node.getNr())
+            offset -= changeIndex.get(root.getNr());
+
+        return offset;
+    }
+
+    /**
+     * Obtain the number of type changes from one type to another on the
+     * tree, excluding any on the branch above the root.  Maintained
+     * incrementally as the tree is edited.
+     *
+     * @param fromType type below change
+     * @param toType type above change
+     * @return number of changes
+     */
+    public int getTypeChangeCount(int fromType, int toType) {
+        updateTypeSummary();
+        return typeSummary.getChangeCount(fromType, toType);
+    }
+
+    /**
+     * Obtain the number of type changes from one type to another occurring
+     * strictly between two times, excluding any on the branch above the
+     * root.  The changes are indexed by time when this or
+     * getTypeChangeNode() is first called, after which the index is
+     * maintained incrementally and each query takes O(log n) time.
+     *
+     * @param fromType type below change
+     * @param toType type above change
+     * @param startTime lower bound of time window
+     * @param endTime upper bound of time window
+     * @return number of changes
+     */
+    public int getTypeChangeCount(int fromType, int toType,
+            double startTime, double endTime) {
+        updateChangeTimeIndex();
+        return changeTimeIndex.getChangeCount(fromType, toType,
+                startTime, endTime);
+    }
+
+    /**
+     * Locate the earliest type change from one type to another occurring
+     * strictly between two times, excluding any on the branch above the
+     * root.
+     *
+     * @param fromType type below change
+     * @param toType type above change
+     * @param startTime lower bound of time window
+     * @param endTime upper bound of time window
+     * @return node on whose branch the change lies, or null if there is
+     * no such change
+     */
+    public MultiTypeNode getTypeChangeNode(int fromType, int toType,
+            double startTime, double endTime) {
+        updateChangeTimeIndex();
+        int nr = changeTimeIndex.findChange(fromType, toType,
+                startTime, endTime);
+
+        return nr >= 0 ? (MultiTypeNode)m_nodes[nr] : null;
+    }
+
+    /**
+     * Obtain the total length of the branches of the tree spent in a given
+     * type, excluding the branch above the root.  Maintained incrementally
+     * as the tree is edited.
+     *
+     * @param type type
+     * @return total length of tree in type
+     */
+    public double getTypeLength(int type) {
+        updateTypeSummary();
+        return typeSummary.getLength(type);
+    }
+
+    /**
+     * Obtain the total length of the branches of the tree.  Maintained
+     * incrementally as the tree is edited.
+     *
+     * @return total branch length
+     */
+    public double getTotalLength() {
+        updateTypeSummary();
+        return typeSummary.getTotalLength();
+    }
+
+    /**
+     * Obtain the number of nodes whose branches pass through a given type.
+     * The root is included if it has this type.
+     *
+     * @param type type index
+     * @return number of nodes
+     */
+    public int getTypeBranchCount(int type) {
+        return typeIndex.getBranchCount(type);
+    }
+
+    /**
+     * Select a node whose branch passes through a given type.  The order
+     * in which nodes are enumerated is arbitrary and changes as the tree
+     * is edited.
+     *
+     * @param type type index
+     * @param i index of node, in [0, getTypeBranchCount(type))
+     * @return node
+     */
+    public MultiTypeNode getTypeBranchNode(int type, int i) {
+        return (MultiTypeNode)m_nodes[typeIndex.getBranchNodeNr(type, i)];
+    }
+
+    /**
+     * Obtain the number of segments of the branch above a node which lie
+     * in a given type.  (For the root, this is 1 if the root has this
+     * type and 0 otherwise.)
+     *
+     * @param node node
+     * @param type type index
+     * @return number of segments
+     */
+    public int getTypeSegmentCount(MultiTypeNode node, int type) {
+        return typeIndex.getSegmentCount(node.getNr(), type);
+    }
+
+    /**
+     * Obtain the number of internal nodes (including the root) having a
+     * given type.
+     *
+     * @param type type index
+     * @return number of internal nodes
+     */
+    public int getTypeInternalNodeCount(int type) {
+        return typeIndex.getInternalNodeCount(type);
+    }
+
+    /**
+     * Select an internal node having a given type.  The order in which
+     * nodes are enumerated is arbitrary and changes as the tree is edited.
+     *
+     * @param type type index
+     * @param i index of node, in [0, getTypeInternalNodeCount(type))
+     * @return internal node
+     */
+    public MultiTypeNode getTypeInternalNode(int type, int i) {
+        return (MultiTypeNode)m_nodes[typeIndex.getInternalNodeNr(type, i)];
+    }
+
+    /**
+     * Obtain the description of the part of the tree modified by the
+     * current proposal.  Operators which know the extent of their
+     * modifications set this region so that densities can avoid
+     * recalculating contributions from unmodified parts of the tree.  The
+     * region is cleared whenever the tree is stored, restored or
+     * reassigned.
+     *
+     * @return affected region
+     */
+    public AffectedRegion getAffectedRegion() {
+        return affectedRegion;
+    }
+
+    /**
+     * Determine whether the topology of the tree may have been modified
+     * since the tree was last stored or restored, allowing quantities
+     * which depend only on the topology to be cached between proposals.
+     *
+     * @return true if the parent of any node has changed
+     */
+    public boolean topologyChanged() {
+        return topologyChanged;
+    }
+
+    /**
+     * Record an event list which describes the current state of the tree,
+     * allowing it to be shared by anything needing the event sequence.
+     * The record is discarded when the tree is restored or reassigned, and
+     * after every proposal made by a MultiTypeTreeOperator.
+     *
+     * @param eventList event list describing current tree, or null
+     */
+    public void setCachedEventList(TreeEventList eventList) {
+        cachedEventList = eventList;
+    }
+
+    /**
+     * @return event list describing current tree, or null if none is known
+     */
+    public TreeEventList getCachedEventList() {
+        return cachedEventList;
+    }
+
+    /**
+     * Obtain a value identifying the contents of the tree as of the last
+     * time they were replaced wholesale, by initialisation, assignment or
+     * restoration, rather than modified by a proposal.  Anything caching
+     * information about the tree between proposals (such as an event
+     * list updated within each proposal's affected region) must discard
+     * it when this value changes.  Restoring the tree returns the value
+     * it had when the tree was stored.
+     *
+     * @return modification count
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * @return total number of type changes added to branches of this tree
+     * since it was created, counting each change added individually
+     * rather than the net change in the number of type changes
+     */
+    public long getChangesAddedCount() {
+        return changesAddedCount;
+    }
+
+    /**
+     * @return total number of type changes removed from branches of this
+     * tree since it was created
+     */
+    public long getChangesRemovedCount() {
+        return changesRemovedCount;
+    }
+
+    /**
+     * Setting the root may renumber nodes so that the root has the
+     * largest number, so the affected change index entries are updated.
+     *
+     * @param root new root node
+     */
+    @Override
+    public void setRoot(Node root) {
+        int oldNr = root.getNr();
+        super.setRoot(root);
+        cachedEventList = null;
+        topologyChanged = true;
+
+        if (m_nodes != null && changeIndex.size() == m_nodes.length
+                && root.getNr() != oldNr) {
+            reindexNode(oldNr);
+            reindexNode(root.getNr());
+            typeIndex.reindex(oldNr, (MultiTypeNode)m_nodes[oldNr]);
+            typeIndex.reindex(root.getNr(), (MultiTypeNode)root);
+            typeSummary.markDirty(oldNr);
+            typeSummary.markDirty(root.getNr());
+            changeTimeIndex.markDirty(oldNr);
+            changeTimeIndex.markDirty(root.getNr());
+        }
+    }
+
+    /**
+     * Bring the change index entry for a node number up to date.
+     *
+     * @param nr node number
+     */
+    private void reindexNode(int nr) {
+        int delta = ((MultiTypeNode)m_nodes[nr]).getChangeCount()
+                - changeIndex.get(nr);
+        if (delta != 0)
+            changeIndex.add(nr, delta);
+    }
+
+    /**
+     * Called by nodes when the number of type changes above them is
+     * modified, so that the change index can be kept up to date.  Edits
+     * to nodes not currently part of this tree are ignored.
+     *
+     * @param node node which was edited
+     * @param delta change in type change count
+     */
+    void changeCountEdited(MultiTypeNode node, int delta) {
+        if (!isIndexed(node))
+            return;
+
+        if (delta > 0)
+            changesAddedCount += delta;
+        else
+            changesRemovedCount -= delta;
+
+        changeIndex.add(node.getNr(), delta);
+    }
+
+    /**
+     * Called by nodes when segments of a given type are added to or
+     * removed from the branch above them, after the edit has been made.
+     * Edits to nodes not currently part of this tree are ignored.
+     *
+     * @param node node which was edited
+     * @param type type of segments
+     * @param delta change in number of segments of this type
+     */
+    void typeSegmentsEdited(MultiTypeNode node, int type, int delta) {
+        if (!isIndexed(node))
+            return;
+
+        typeSummary.markDirty(node.getNr());
+        changeTimeIndex.markDirty(node.getNr());
+
+        if (typeIndex.needsRebuild(type))
+            rebuildTypeIndex();
+        else
+            typeIndex.addSegments(node.getNr(), type, delta);
+    }
+
+    /**
+     * Called by nodes when their type is modified, after the edit has been
+     * made.  Edits to nodes not currently part of this tree are ignored.
+     *
+     * @param node node which was edited
+     * @param oldType previous node type
+     * @param newType new node type
+     */
+    void nodeTypeEdited(MultiTypeNode node, int oldType, int newType) {
+        if (!isIndexed(node))
+            return;
+
+        typeSummary.markDirty(node.getNr());
+        changeTimeIndex.markDirty(node.getNr());
+
+        if (typeIndex.needsRebuild(newType))
+            rebuildTypeIndex();
+        else
+            typeIndex.nodeTypeChanged(node.getNr(), oldType, newType);
+    }
+
+    /**
+     * Called by nodes when the times of type changes above them or the
+     * node's parent are modified.  Edits to nodes not currently part of
+     * this tree are ignored.
+     *
+     * @param node node which was edited
+     */
+    void branchEdited(MultiTypeNode node) {
+        if (!isIndexed(node))
+            return;
+
+        typeSummary.markDirty(node.getNr());
+        changeTimeIndex.markDirty(node.getNr());
+    }
+
+    /**
+     * Called by nodes when their parent is replaced.  Edits to nodes not
+     * currently part of this tree are ignored.
+     *
+     * @param node node which was edited
+     */
+    void parentEdited(MultiTypeNode node) {
+        if (!isIndexed(node))
+            return;
+
+        topologyChanged = true;
+    }
+
+    /**
+     * Called by nodes when their height is modified.  This alters the
+     * branch above the node and those above its children.  Edits to nodes
+     * not currently part of this tree are ignored.
+     *
+     * @param node node which was edited
+     */
+    void heightEdited(MultiTypeNode node) {
+        if (!isIndexed(node))
+            return;
+
+        typeSummary.markDirty(node.getNr());
+        for (Node child : node.getChildren()) {
+            if (isIndexed((MultiTypeNode)child))
+                typeSummary.markDirty(child.getNr());
         }
-        
-        return count;
+    }
+
+    /**
+     * @param node node
+     * @return true if node is covered by this tree's indices
+     */
+    private boolean isIndexed(MultiTypeNode node) {
+        int nr = node.getNr();
+        return m_nodes != null && nr >= 0 && nr < changeIndex.size()
+                && nr < typeIndex.size() && nr < typeSummary.size()
+                && m_nodes[nr] == node;
+    }
+
+    private void rebuildTypeIndex() {
+        typeIndex.rebuild((MultiTypeNode[])m_nodes,
+                typeSet != null ? typeSet.getNTypes() : 0);
+    }
+
+    private void rebuildTypeSummary() {
+        typeSummary.rebuild((MultiTypeNode[])m_nodes,
+                typeSet != null ? typeSet.getNTypes() : 0);
+    }
+
+    /**
+     * Bring type change and length totals up to date with edits.
+     */
+    private void updateTypeSummary() {
+        if (!typeSummary.update((MultiTypeNode[])m_nodes))
+            rebuildTypeSummary();
+    }
+
+    private void rebuildChangeTimeIndex() {
+        changeTimeIndex.rebuild((MultiTypeNode[])m_nodes,
+                typeSet != null ? typeSet.getNTypes() : 0);
+    }
+
+    /**
+     * Bring type change time index up to date with edits, building it if
+     * this is the first use.
+     */
+    private void updateChangeTimeIndex() {
+        if (!changeTimeIndex.isActive()
+                || !changeTimeIndex.update((MultiTypeNode[])m_nodes))
+            rebuildChangeTimeIndex();
     }
 
     /**
@@ -757,6 +1242,36 @@ public class MultiTypeTree extends Tree {
         mtStoredRoot.nodeType = ((MultiTypeNode)m_nodes[iRoot]).nodeType;
         
         storeNodes(iRoot+1, nodeCount);
+
+        storedChangeIndex.assignFrom(changeIndex);
+        typeIndex.store();
+        updateTypeSummary();
+        typeSummary.store();
+        if (changeTimeIndex.isActive()) {
+            updateChangeTimeIndex();
+            changeTimeIndex.store();
+        }
+        affectedRegion.clear();
+        topologyChanged = false;
+        storedModificationCount = modificationCount;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+
+        ChangeIndex tmp = changeIndex;
+        changeIndex = storedChangeIndex;
+        storedChangeIndex = tmp;
+
+        typeIndex.restore();
+        typeSummary.restore();
+        changeTimeIndex.restore();
+
+        affectedRegion.clear();
+        cachedEventList = null;
+        topologyChanged = false;
+        modificationCount = storedModificationCount;
     }
 
     /**
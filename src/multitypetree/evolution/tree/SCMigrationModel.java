@@ -25,7 +25,9 @@ import beast.base.inference.parameter.BooleanParameter;
 import beast.base.inference.parameter.RealParameter;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.jblas.DoubleMatrix;
 import org.jblas.MatrixFunctions;
 
@@ -77,6 +79,10 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     protected List<DoubleMatrix> RpowN, RsymPowN;
     protected DoubleMatrix RpowMax, RsymPowMax;
     protected boolean RpowSteady, RsymPowSteady;
+
+    // Recently used transition probability matrices, keyed by time:
+    protected static final int TRANSITION_CACHE_SIZE = 64;
+    protected TransitionMatrixCache transitionCache, transitionSymCache;
     
     protected boolean rateMatrixIsSquare, symmetricRateMatrix;
     
@@ -88,6 +94,9 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         // transition matrix:
         RpowN = new ArrayList<>();
         RsymPowN = new ArrayList<>();
+
+        transitionCache = new TransitionMatrixCache();
+        transitionSymCache = new TransitionMatrixCache();
     }
 
     @Override
@@ -197,6 +206,10 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         RpowMax = DoubleMatrix.eye(nTypes);
         RsymPowMax = DoubleMatrix.eye(nTypes);
 
+        // Clear cached transition probability matrices:
+        transitionCache.clear();
+        transitionSymCache.clear();
+
         dirty = false;
     }
 
@@ -451,6 +464,21 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         return matPowerList.get(n);
     }
 
+    @Override
+    public DoubleMatrix getTransitionMatrix(double t, boolean symmetric) {
+        updateMatrices();
+
+        TransitionMatrixCache cache = symmetric ? transitionSymCache : transitionCache;
+
+        DoubleMatrix P = cache.get(t);
+        if (P == null) {
+            P = MatrixFunctions.expm(getQ(symmetric).mul(t));
+            cache.put(t, P);
+        }
+
+        return P;
+    }
+
     /**
      * Power above which R is known to be steady.
      * 
@@ -507,4 +535,20 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         Q.print();
         
     }
+
+    /**
+     * Least-recently-used cache of transition probability matrices.
+     */
+    protected static class TransitionMatrixCache
+            extends LinkedHashMap<Double, DoubleMatrix> {
+
+        TransitionMatrixCache() {
+            super(2*TRANSITION_CACHE_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Double, DoubleMatrix> eldest) {
+            return size() > TRANSITION_CACHE_SIZE;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch simulation of trees under the structured coalescent.  The migration
+ * model and sampling configuration are supplied once, after which
+ * replicates are divided into fixed-size blocks and distributed across a
+ * pool of worker threads.  Each worker reuses a single simulator, and each
+ * block draws from its own random number stream split from a master seed,
+ * so results depend only on the seed and not on the number of threads.
+ *
+ * Only the requested summary statistics are retained; full trees are
+ * constructed only when explicitly asked for.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class StructuredCoalescentEnsemble {
+
+    /**
+     * Summary statistics which may be recorded for each replicate.
+     */
+    public enum Statistic {
+        ROOT_HEIGHT, ROOT_TYPE, MIGRATION_COUNT, TREE_LENGTH
+    }
+
+    private static final int BLOCK_SIZE = 1000;
+
+    private final MigrationModel migModel;
+    private final int[] leafTypes;
+    private final double[] leafTimes;
+    private final int nThreads;
+
+    /**
+     * Create a new ensemble simulator.
+     *
+     * @param migModel migration model
+     * @param leafTypes types of sampled lineages
+     * @param leafTimes ages of sampled lineages
+     * @param nThreads number of worker threads to use
+     */
+    public StructuredCoalescentEnsemble(MigrationModel migModel,
+            int[] leafTypes, double[] leafTimes, int nThreads) {
+
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Ensemble simulation requires "
+                    + "at least one thread.");
+
+        this.migModel = migModel;
+        this.leafTypes = leafTypes.clone();
+        this.leafTimes = leafTimes.clone();
+        this.nThreads = nThreads;
+
+        // Check sampling configuration up front rather than in each worker:
+        new StructuredCoalescentSimulator(migModel, leafTypes, leafTimes);
+    }
+
+    /**
+     * Summary statistics (and optionally trees) produced by an ensemble
+     * simulation.  Arrays corresponding to statistics which were not
+     * requested are null.
+     */
+    public static class Result {
+        private final double[] rootHeights, treeLengths;
+        private final int[] rootTypes, migrationCounts;
+        private final MultiTypeTree[] trees;
+
+        Result(int nReps, EnumSet<Statistic> statistics, boolean keepTrees) {
+            rootHeights = statistics.contains(Statistic.ROOT_HEIGHT) ? new double[nReps] : null;
+            rootTypes = statistics.contains(Statistic.ROOT_TYPE) ? new int[nReps] : null;
+            migrationCounts = statistics.contains(Statistic.MIGRATION_COUNT) ? new int[nReps] : null;
+            treeLengths = statistics.contains(Statistic.TREE_LENGTH) ? new double[nReps] : null;
+            trees = keepTrees ? new MultiTypeTree[nReps] : null;
+        }
+
+        public double[] getRootHeights() {
+            return rootHeights;
+        }
+
+        public int[] getRootTypes() {
+            return rootTypes;
+        }
+
+        public int[] getMigrationCounts() {
+            return migrationCounts;
+        }
+
+        public double[] getTreeLengths() {
+            return treeLengths;
+        }
+
+        public MultiTypeTree[] getTrees() {
+            return trees;
+        }
+    }
+
+    /**
+     * Simulate an ensemble of trees.
+     *
+     * @param nReps number of replicates
+     * @param seed seed from which all random number streams are derived
+     * @param statistics summary statistics to record
+     * @param keepTrees if true, construct and retain each simulated tree
+     * @return result object holding the requested statistics
+     */
+    public Result simulate(int nReps, long seed,
+            EnumSet<Statistic> statistics, boolean keepTrees) {
+
+        Result result = new Result(nReps, statistics, keepTrees);
+
+        List<String> leafNames = new ArrayList<>();
+        for (int l=0; l<leafTypes.length; l++)
+            leafNames.add(String.valueOf(l));
+
+        ThreadLocal<StructuredCoalescentSimulator> simulators =
+                ThreadLocal.withInitial(() -> new StructuredCoalescentSimulator(
+                        migModel, leafTypes, leafTimes));
+
+        // Streams are split from the master in block order so that the
+        // stream used by each block is independent of thread scheduling.
+        RandomSource master = new RandomStream(seed);
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start=0; start<nReps; start += BLOCK_SIZE) {
+                int blockStart = start;
+                int blockEnd = Math.min(start + BLOCK_SIZE, nReps);
+                RandomSource blockRandom = master.split();
+
+                futures.add(executor.submit(() -> {
+                    StructuredCoalescentSimulator simulator = simulators.get();
+                    simulator.setRandom(blockRandom);
+
+                    for (int i=blockStart; i<blockEnd; i++) {
+                        simulator.simulate();
+                        recordReplicate(simulator, result, i, leafNames);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Ensemble simulation interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error during ensemble simulation: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Record requested statistics of most recently simulated tree.
+     */
+    private void recordReplicate(StructuredCoalescentSimulator simulator,
+            Result result, int rep, List<String> leafNames) {
+
+        if (result.rootHeights != null)
+            result.rootHeights[rep] = simulator.getRootHeight();
+
+        if (result.rootTypes != null)
+            result.rootTypes[rep] = simulator.getRootType();
+
+        if (result.migrationCounts != null)
+            result.migrationCounts[rep] = simulator.getChangeCount();
+
+        if (result.treeLengths != null)
+            result.treeLengths[rep] = simulator.getTreeLength();
+
+        if (result.trees != null)
+            result.trees[rep] = new MultiTypeTree(simulator.getMultiTypeRoot(leafNames));
+    }
+}
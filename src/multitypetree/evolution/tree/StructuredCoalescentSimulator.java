@@ -0,0 +1,1022 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import multitypetree.util.RandomSource;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simulation engine for the structured coalescent shared by the tree
+ * initialisers.  All lineage bookkeeping is done using primitive arrays:
+ * per-deme propensities are updated only for the demes touched by each
+ * event, samples are activated from a pre-sorted index and lineages are
+ * removed from their deme using constant-time swap-removal.
+ *
+ * Events may be generated using Gillespie's direct method (the default),
+ * the next reaction method, or by uniformizing the migration process.
+ * All three are exact.  The latter two are intended for models with many
+ * demes and high migration rates, where nearly all events are migrations.
+ *
+ * Migration models with several epochs are simulated by treating epoch
+ * boundaries like sampling times: on reaching a boundary the rates of
+ * the next epoch are read and the propensities of all demes recomputed.
+ *
+ * A single instance may be used to generate many trees with the same
+ * sampling configuration; storage is allocated once and reused by each
+ * call to simulate().  By default random numbers are drawn from the BEAST
+ * Randomizer; simulators used concurrently should each be given their own
+ * stream using setRandom().
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class StructuredCoalescentSimulator {
+
+    /**
+     * Number of events between exact re-summations of the total
+     * propensity, bounding accumulated round-off error.
+     */
+    private static final int RESUM_INTERVAL = 1024;
+
+    /**
+     * Algorithms available for generating events.
+     */
+    public enum Method {
+        /** Gillespie's direct method. */
+        DIRECT,
+        /** Gibson and Bruck's next reaction method. */
+        NEXT_REACTION,
+        /** Uniformized migration with exact coalescence hazard. */
+        UNIFORMIZED
+    }
+
+    private final MigrationModel migModel;
+    private final int nTypes, nLeaves, nNodes;
+
+    // Constant-rate models of each epoch, the times at which all but the
+    // last epoch end and the epoch containing the current time:
+    private final SCMigrationModel[] epochModels;
+    private final double[] epochEnds;
+    private int epoch;
+
+    // Sampling configuration:
+    private final int[] leafTypes;
+    private final double[] leafTimes;
+    private final int[] leafOrder;
+
+    // Simulated tree:
+    private final double[] heights;
+    private final int[] nodeTypes, parents, leftChildren, rightChildren;
+    private int rootNr, nextNodeNr;
+
+    // Type changes in order of occurrence:
+    private int nChanges;
+    private int[] changeNodeNrs, changeTypes;
+    private double[] changeTimes;
+
+    // Active lineages, grouped by deme:
+    private final int[][] activeLineages;
+    private final int[] activeCounts;
+    private final int[] positions;
+    private int nActive, nextLeaf;
+
+    // All active lineages, in no particular order, and current demes:
+    private final int[] allActive, allPositions, lineageDemes;
+
+    // Rates and propensities:
+    private final double[] popSizes, totalMigRates;
+    private final double[][] backwardRates, cumulativeRates;
+    private final double[] coalesceProp, migrateProp;
+    private double totalProp;
+    private int eventsSinceResum;
+
+    // Next reaction method: channel d is coalescence in deme d, channel
+    // nTypes+d is migration away from deme d.
+    private final double[] channelTimes, scheduledProps;
+    private final int[] heap, heapPositions;
+
+    // Sum of coalescence propensities, used by uniformized simulation:
+    private double totalCoalesceProp;
+
+    private Method method = Method.DIRECT;
+
+    // Source of random numbers:
+    private RandomSource random = RandomSource.RANDOMIZER;
+
+    /**
+     * Create a new simulator for the given migration model and sampling
+     * configuration.
+     *
+     * @param migModel migration model providing rates and population sizes
+     * @param leafTypes types of the sampled lineages
+     * @param leafTimes ages of the sampled lineages
+     */
+    public StructuredCoalescentSimulator(MigrationModel migModel,
+            int[] leafTypes, double[] leafTimes) {
+
+        if (leafTypes.length == 0)
+            throw new IllegalArgumentException("Structured coalescent "
+                    + "simulation requires at least one sample.");
+
+        if (leafTypes.length != leafTimes.length)
+            throw new IllegalArgumentException("Number of leaf types and "
+                    + "leaf times supplied to simulator differ.");
+
+        this.migModel = migModel;
+        this.nTypes = migModel.getNTypes();
+        this.nLeaves = leafTypes.length;
+        this.nNodes = 2*nLeaves - 1;
+
+        epochModels = new SCMigrationModel[migModel.getEpochCount()];
+        for (int e=0; e<epochModels.length; e++) {
+            if (!(migModel.getEpochModel(e) instanceof SCMigrationModel))
+                throw new IllegalArgumentException("Structured coalescent "
+                        + "simulation requires migration models with "
+                        + "population sizes.");
+            epochModels[e] = (SCMigrationModel)migModel.getEpochModel(e);
+        }
+        epochEnds = new double[epochModels.length - 1];
+
+        this.leafTypes = Arrays.copyOf(leafTypes, nLeaves);
+        this.leafTimes = Arrays.copyOf(leafTimes, nLeaves);
+
+        for (int type : this.leafTypes) {
+            if (type < 0 || type >= nTypes)
+                throw new IllegalArgumentException("Leaf type " + type
+                        + " is not among the " + nTypes
+                        + " types included in the migration model.");
+        }
+
+        // Sort leaves in order of increasing age.  (Stable, so ties are
+        // activated in the order the leaves were given.)
+        Integer[] order = new Integer[nLeaves];
+        for (int l=0; l<nLeaves; l++)
+            order[l] = l;
+        Arrays.sort(order, (l1, l2) -> Double.compare(
+                this.leafTimes[l1], this.leafTimes[l2]));
+        leafOrder = new int[nLeaves];
+        for (int l=0; l<nLeaves; l++)
+            leafOrder[l] = order[l];
+
+        heights = new double[nNodes];
+        nodeTypes = new int[nNodes];
+        parents = new int[nNodes];
+        leftChildren = new int[nNodes];
+        rightChildren = new int[nNodes];
+
+        changeNodeNrs = new int[16];
+        changeTypes = new int[16];
+        changeTimes = new double[16];
+
+        activeLineages = new int[nTypes][];
+        for (int d=0; d<nTypes; d++)
+            activeLineages[d] = new int[Math.min(nLeaves, 16)];
+        activeCounts = new int[nTypes];
+        positions = new int[nNodes];
+
+        allActive = new int[nLeaves];
+        allPositions = new int[nNodes];
+        lineageDemes = new int[nNodes];
+
+        popSizes = new double[nTypes];
+        totalMigRates = new double[nTypes];
+        backwardRates = new double[nTypes][nTypes];
+        cumulativeRates = new double[nTypes][nTypes];
+        coalesceProp = new double[nTypes];
+        migrateProp = new double[nTypes];
+
+        channelTimes = new double[2*nTypes];
+        scheduledProps = new double[2*nTypes];
+        heap = new int[2*nTypes];
+        heapPositions = new int[2*nTypes];
+    }
+
+    /**
+     * Use the given stream of random numbers in place of the BEAST
+     * Randomizer.
+     *
+     * @param random random number stream, or null to use the Randomizer
+     */
+    public void setRandom(RandomSource random) {
+        this.random = random != null ? random : RandomSource.RANDOMIZER;
+    }
+
+    /**
+     * Select the algorithm used by subsequent calls to simulate().
+     *
+     * @param method simulation method
+     */
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    /**
+     * Simulate a new tree, replacing any previously simulated tree held
+     * by this object.  Rates are read from the migration model at the
+     * start of each simulation.
+     */
+    public void simulate() {
+
+        // Step 1: Initialise rates, lineage lists and the tree arrays.
+        for (int e=0; e<epochEnds.length; e++)
+            epochEnds[e] = migModel.getEpochEndTime(e);
+
+        epoch = 0;
+        while (epoch < epochEnds.length
+                && epochEnds[epoch] <= leafTimes[leafOrder[0]])
+            epoch += 1;
+
+        updateRates();
+
+        Arrays.fill(activeCounts, 0);
+        Arrays.fill(coalesceProp, 0.0);
+        Arrays.fill(migrateProp, 0.0);
+        totalProp = 0.0;
+        totalCoalesceProp = 0.0;
+        eventsSinceResum = 0;
+        nActive = 0;
+        nChanges = 0;
+
+        Arrays.fill(parents, -1);
+        Arrays.fill(leftChildren, -1);
+        Arrays.fill(rightChildren, -1);
+        for (int l=0; l<nLeaves; l++) {
+            heights[l] = leafTimes[l];
+            nodeTypes[l] = leafTypes[l];
+        }
+
+        nextNodeNr = nLeaves;
+        nextLeaf = 0;
+
+        // Step 2: Generate events using the selected algorithm.
+        switch (method) {
+            case NEXT_REACTION:
+                simulateNextReaction();
+                break;
+
+            case UNIFORMIZED:
+                simulateUniformized();
+                break;
+
+            default:
+                simulateDirect();
+        }
+
+        for (int d=0; d<nTypes; d++) {
+            if (activeCounts[d] > 0) {
+                rootNr = activeLineages[d][0];
+                return;
+            }
+        }
+
+        // Should not fall through.
+        throw new RuntimeException("No active nodes remaining end of "
+                + "structured coalescent simulation!");
+    }
+
+    /**
+     * Generate events using Gillespie's direct method.
+     */
+    private void simulateDirect() {
+
+        double t = leafTimes[leafOrder[0]];
+
+        while (true) {
+
+            // Activate samples present at the current time:
+            while (nextSampleTime() <= t)
+                activateNextSample();
+
+            if (nextLeaf == nLeaves && nActive == 1)
+                break;
+
+            // Determine time of next event:
+            double nextEventTime = totalProp > 0.0
+                    ? t + random.nextExponential(totalProp)
+                    : Double.POSITIVE_INFINITY;
+
+            if (nextEpochTime() < nextEventTime
+                    && nextEpochTime() <= nextSampleTime()) {
+                t = nextEpochTime();
+                advanceEpoch();
+                resumPropensities();
+                continue;
+            }
+
+            if (nextSampleTime() < nextEventTime) {
+                t = nextSampleTime();
+                continue;
+            }
+
+            if (nextEventTime == Double.POSITIVE_INFINITY)
+                throw disconnectedDemesException();
+
+            t = nextEventTime;
+
+            // Select event and place it on the tree:
+            performEvent(t);
+
+            if (++eventsSinceResum >= RESUM_INTERVAL)
+                resumPropensities();
+        }
+    }
+
+    /**
+     * Generate events using the next reaction method of Gibson and Bruck
+     * (J. Phys. Chem. A 104:1876, 2000).  Each deme contributes a
+     * coalescence channel and a channel for all migrations away from it.
+     * Putative firing times are kept in an indexed priority queue and,
+     * following each event, only the channels belonging to the demes
+     * involved are rescheduled.
+     */
+    private void simulateNextReaction() {
+
+        double t = leafTimes[leafOrder[0]];
+
+        Arrays.fill(channelTimes, Double.POSITIVE_INFINITY);
+        Arrays.fill(scheduledProps, 0.0);
+        for (int c=0; c<2*nTypes; c++) {
+            heap[c] = c;
+            heapPositions[c] = c;
+        }
+
+        while (true) {
+
+            // Activate samples present at the current time:
+            while (nextSampleTime() <= t)
+                rescheduleDeme(activateNextSample(), t, -1);
+
+            if (nextLeaf == nLeaves && nActive == 1)
+                break;
+
+            int channel = heap[0];
+            double nextEventTime = channelTimes[channel];
+
+            if (nextEpochTime() < nextEventTime
+                    && nextEpochTime() <= nextSampleTime()) {
+                t = nextEpochTime();
+                advanceEpoch();
+                for (int d=0; d<nTypes; d++)
+                    rescheduleDeme(d, t, -1);
+                continue;
+            }
+
+            if (nextSampleTime() < nextEventTime) {
+                t = nextSampleTime();
+                continue;
+            }
+
+            if (nextEventTime == Double.POSITIVE_INFINITY)
+                throw disconnectedDemesException();
+
+            t = nextEventTime;
+
+            if (channel < nTypes) {
+                coalesce(channel, t);
+                rescheduleDeme(channel, t, channel);
+            } else {
+                int deme = channel - nTypes;
+                int toType = chooseDestination(deme,
+                        random.nextDouble()*totalMigRates[deme]);
+                migrate(deme, toType, t);
+                rescheduleDeme(deme, t, channel);
+                rescheduleDeme(toType, t, -1);
+            }
+        }
+    }
+
+    /**
+     * Update the putative firing times of both channels belonging to a
+     * deme following a change in its propensities.  The fired channel
+     * receives a fresh waiting time, while the remaining waiting times of
+     * other channels are rescaled by the ratio of old to new propensity.
+     *
+     * @param deme deme whose propensities may have changed
+     * @param t current time
+     * @param firedChannel channel which has just fired, or -1
+     */
+    private void rescheduleDeme(int deme, double t, int firedChannel) {
+        for (int channel = deme; channel < 2*nTypes; channel += nTypes) {
+            double newProp = channel < nTypes
+                    ? coalesceProp[deme]
+                    : migrateProp[deme];
+            double oldProp = scheduledProps[channel];
+
+            if (channel != firedChannel && newProp == oldProp)
+                continue;
+
+            double newTime;
+            if (newProp <= 0.0)
+                newTime = Double.POSITIVE_INFINITY;
+            else if (channel == firedChannel || oldProp <= 0.0)
+                newTime = t + random.nextExponential(newProp);
+            else
+                newTime = t + (oldProp/newProp)*(channelTimes[channel] - t);
+
+            scheduledProps[channel] = newProp;
+            updateChannelTime(channel, newTime);
+        }
+    }
+
+    /**
+     * Change the firing time of a channel, restoring the heap ordering.
+     *
+     * @param channel channel index
+     * @param newTime new putative firing time
+     */
+    private void updateChannelTime(int channel, double newTime) {
+        double oldTime = channelTimes[channel];
+        channelTimes[channel] = newTime;
+
+        int pos = heapPositions[channel];
+        if (newTime < oldTime) {
+            // Sift up:
+            while (pos > 0) {
+                int parentPos = (pos - 1)/2;
+                if (channelTimes[heap[parentPos]] <= newTime)
+                    break;
+
+                placeInHeap(heap[parentPos], pos);
+                pos = parentPos;
+            }
+        } else {
+            // Sift down:
+            int size = 2*nTypes;
+            while (true) {
+                int childPos = 2*pos + 1;
+                if (childPos >= size)
+                    break;
+
+                if (childPos + 1 < size && channelTimes[heap[childPos + 1]]
+                        < channelTimes[heap[childPos]])
+                    childPos += 1;
+
+                if (channelTimes[heap[childPos]] >= newTime)
+                    break;
+
+                placeInHeap(heap[childPos], pos);
+                pos = childPos;
+            }
+        }
+        placeInHeap(channel, pos);
+    }
+
+    private void placeInHeap(int channel, int pos) {
+        heap[pos] = channel;
+        heapPositions[channel] = pos;
+    }
+
+    /**
+     * Generate events by uniformizing the migration process.  Between
+     * coalescences and samples, candidate migration times are generated
+     * as a Poisson process whose rate is the number of active lineages
+     * times the largest total migration rate from any deme.  At each
+     * candidate time a lineage is chosen uniformly from all active
+     * lineages and migrates with probability equal to the ratio of its
+     * own total migration rate to this bound.  Coalescences are found by
+     * integrating the coalescence hazard exactly along the resulting
+     * sequence of lineage configurations.
+     *
+     * This avoids any per-event search over demes, and no propensities
+     * other than those of the demes involved in a migration are touched.
+     */
+    private void simulateUniformized() {
+
+        double t = leafTimes[leafOrder[0]];
+
+        double maxMigRate = 0.0;
+        for (int d=0; d<nTypes; d++)
+            maxMigRate = Math.max(maxMigRate, totalMigRates[d]);
+
+        while (true) {
+
+            // Activate samples present at the current time:
+            while (nextSampleTime() <= t)
+                activateNextSample();
+
+            if (nextLeaf == nLeaves && nActive == 1)
+                break;
+
+            // Remove round-off accumulated since the last coalescence:
+            totalCoalesceProp = 0.0;
+            for (int d=0; d<nTypes; d++)
+                totalCoalesceProp += coalesceProp[d];
+
+            // Place migrations until the coalescence hazard accumulated
+            // since time t reaches its target or a sample or epoch
+            // boundary is reached:
+            double nextBreakTime = Math.min(nextSampleTime(), nextEpochTime());
+            double candidateRate = nActive*maxMigRate;
+            double hazardTarget = random.nextExponential(1.0);
+            double coalescenceTime = Double.POSITIVE_INFINITY;
+            double segmentStart = t;
+            double candidateTime = candidateRate > 0.0
+                    ? t + random.nextExponential(candidateRate)
+                    : Double.POSITIVE_INFINITY;
+
+            while (true) {
+                double segmentEnd = Math.min(candidateTime, nextBreakTime);
+                double hazard = totalCoalesceProp*(segmentEnd - segmentStart);
+                if (hazard >= hazardTarget) {
+                    coalescenceTime = segmentStart + hazardTarget/totalCoalesceProp;
+                    break;
+                }
+
+                if (candidateTime >= nextBreakTime)
+                    break;
+
+                hazardTarget -= hazard;
+                segmentStart = candidateTime;
+
+                int lineage = allActive[random.nextInt(nActive)];
+                int deme = lineageDemes[lineage];
+                if (random.nextDouble()*maxMigRate < totalMigRates[deme])
+                    migrateLineage(lineage, deme, chooseDestination(deme,
+                            random.nextDouble()*totalMigRates[deme]),
+                            candidateTime);
+
+                candidateTime += random.nextExponential(candidateRate);
+            }
+
+            if (coalescenceTime == Double.POSITIVE_INFINITY) {
+                if (nextBreakTime == Double.POSITIVE_INFINITY)
+                    throw disconnectedDemesException();
+
+                t = nextBreakTime;
+                if (t == nextEpochTime()) {
+                    advanceEpoch();
+
+                    maxMigRate = 0.0;
+                    for (int d=0; d<nTypes; d++)
+                        maxMigRate = Math.max(maxMigRate, totalMigRates[d]);
+                }
+                continue;
+            }
+
+            // Coalescence, in a deme chosen using the current configuration:
+            t = coalescenceTime;
+            double u = random.nextDouble()*totalCoalesceProp;
+            int deme = -1;
+            for (int d=0; d<nTypes; d++) {
+                if (coalesceProp[d] <= 0.0)
+                    continue;
+
+                deme = d;
+                if (u < coalesceProp[d])
+                    break;
+
+                u -= coalesceProp[d];
+            }
+            coalesce(deme, t);
+        }
+    }
+
+    /**
+     * @return age of next sample to be activated, or infinity if all
+     * samples have been activated
+     */
+    private double nextSampleTime() {
+        return nextLeaf < nLeaves
+                ? leafTimes[leafOrder[nextLeaf]]
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return time at which current epoch ends, or infinity during the
+     * last epoch
+     */
+    private double nextEpochTime() {
+        return epoch < epochEnds.length
+                ? epochEnds[epoch]
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Move to the next epoch, reading its rates and recomputing the
+     * propensities of all demes.
+     */
+    private void advanceEpoch() {
+        epoch += 1;
+        updateRates();
+        for (int d=0; d<nTypes; d++)
+            updatePropensity(d);
+    }
+
+    /**
+     * Add the next sample to the set of active lineages.
+     *
+     * @return deme of activated sample
+     */
+    private int activateNextSample() {
+        int leafNr = leafOrder[nextLeaf++];
+        addLineage(leafTypes[leafNr], leafNr);
+        allActive[nActive] = leafNr;
+        allPositions[leafNr] = nActive;
+        nActive += 1;
+        updatePropensity(leafTypes[leafNr]);
+
+        return leafTypes[leafNr];
+    }
+
+    private IllegalStateException disconnectedDemesException() {
+        return new IllegalStateException(
+                "Structured coalescent simulation cannot complete: "
+                + "remaining lineages occupy demes which are not "
+                + "connected by migration.");
+    }
+
+    /**
+     * Read current population sizes and backward migration rates of the
+     * current epoch from the migration model.
+     */
+    private void updateRates() {
+        SCMigrationModel epochModel = epochModels[epoch];
+        for (int i=0; i<nTypes; i++) {
+            popSizes[i] = epochModel.getPopSize(i);
+
+            totalMigRates[i] = 0.0;
+            for (int j=0; j<nTypes; j++) {
+                if (j == i) {
+                    backwardRates[i][j] = 0.0;
+                } else {
+                    backwardRates[i][j] = epochModel.getBackwardRate(i, j);
+                    totalMigRates[i] += backwardRates[i][j];
+                }
+
+                cumulativeRates[i][j] = totalMigRates[i];
+            }
+        }
+    }
+
+    /**
+     * Recompute the propensities of the given deme following a change in
+     * its lineage count, adjusting the total propensity accordingly.
+     *
+     * @param deme deme whose lineage count has changed
+     */
+    private void updatePropensity(int deme) {
+        int k = activeCounts[deme];
+
+        double oldProp = coalesceProp[deme] + migrateProp[deme];
+        double oldCoalesceProp = coalesceProp[deme];
+        coalesceProp[deme] = k*(k-1)/(2.0*popSizes[deme]);
+        migrateProp[deme] = k*totalMigRates[deme];
+
+        totalCoalesceProp += coalesceProp[deme] - oldCoalesceProp;
+
+        totalProp += coalesceProp[deme] + migrateProp[deme] - oldProp;
+    }
+
+    /**
+     * Recompute the total propensity exactly from the per-deme values.
+     */
+    private void resumPropensities() {
+        totalProp = 0.0;
+        for (int d=0; d<nTypes; d++)
+            totalProp += coalesceProp[d] + migrateProp[d];
+
+        eventsSinceResum = 0;
+    }
+
+    /**
+     * Select the next event using the direct method, update the lineage
+     * lists and record the event in the tree arrays.
+     *
+     * @param t time of event
+     */
+    private void performEvent(double t) {
+
+        // Select deme in which event occurs:
+        double u = random.nextDouble()*totalProp;
+        int deme = -1;
+        for (int d=0; d<nTypes; d++) {
+            double demeProp = coalesceProp[d] + migrateProp[d];
+            if (demeProp <= 0.0)
+                continue;
+
+            deme = d;
+            if (u < demeProp)
+                break;
+
+            u -= demeProp;
+        }
+
+        if (deme < 0)
+            throw disconnectedDemesException();
+
+        if (u < coalesceProp[deme] || migrateProp[deme] <= 0.0) {
+            coalesce(deme, t);
+        } else {
+            u = (u - coalesceProp[deme])/activeCounts[deme];
+            migrate(deme, chooseDestination(deme, u), t);
+        }
+    }
+
+    /**
+     * Choose the destination of a migration from the given deme.
+     *
+     * @param deme deme of migrating lineage
+     * @param u uniform variate on [0, total migration rate from deme)
+     * @return destination deme
+     */
+    private int chooseDestination(int deme, double u) {
+        return chooseCumulative(cumulativeRates[deme], nTypes, u);
+    }
+
+    /**
+     * Binary search for the first index whose cumulative weight exceeds
+     * u.  Indices with zero weight are never selected, even when u
+     * exceeds the total weight due to round-off.
+     *
+     * @param cumulative non-decreasing array of cumulative weights
+     * @param n number of weights
+     * @param u variate on [0, cumulative[n-1])
+     * @return selected index
+     */
+    private static int chooseCumulative(double[] cumulative, int n, double u) {
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > u)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        // Step back over trailing zero-weight indices:
+        while (lo > 0 && cumulative[lo] == cumulative[lo - 1])
+            lo -= 1;
+
+        return lo;
+    }
+
+    /**
+     * Coalesce two lineages chosen uniformly at random from the given
+     * deme.
+     *
+     * @param deme deme in which coalescence occurs
+     * @param t time of coalescence
+     */
+    private void coalesce(int deme, double t) {
+        int k = activeCounts[deme];
+        int i = random.nextInt(k);
+        int j = random.nextInt(k - 1);
+        if (j >= i)
+            j += 1;
+
+        int daughter = activeLineages[deme][i];
+        int son = activeLineages[deme][j];
+
+        int parent = nextNodeNr++;
+        heights[parent] = t;
+        nodeTypes[parent] = deme;
+        leftChildren[parent] = daughter;
+        rightChildren[parent] = son;
+        parents[daughter] = parent;
+        parents[son] = parent;
+
+        // Parent takes the place of daughter:
+        activeLineages[deme][i] = parent;
+        positions[parent] = i;
+        lineageDemes[parent] = deme;
+        removeLineage(deme, son);
+
+        allActive[allPositions[daughter]] = parent;
+        allPositions[parent] = allPositions[daughter];
+        int last = allActive[nActive - 1];
+        allActive[allPositions[son]] = last;
+        allPositions[last] = allPositions[son];
+
+        nActive -= 1;
+        updatePropensity(deme);
+    }
+
+    /**
+     * Move a lineage chosen uniformly at random from one deme to another.
+     *
+     * @param deme deme of migrating lineage
+     * @param toType destination deme
+     * @param t time of migration
+     */
+    private void migrate(int deme, int toType, double t) {
+        migrateLineage(activeLineages[deme][random.nextInt(activeCounts[deme])],
+                deme, toType, t);
+    }
+
+    /**
+     * Move the given lineage from one deme to another.
+     *
+     * @param migrator node number of migrating lineage
+     * @param deme deme of migrating lineage
+     * @param toType destination deme
+     * @param t time of migration
+     */
+    private void migrateLineage(int migrator, int deme, int toType, double t) {
+        removeLineage(deme, migrator);
+        addLineage(toType, migrator);
+        addChange(migrator, toType, t);
+
+        updatePropensity(deme);
+        updatePropensity(toType);
+    }
+
+    /**
+     * Add lineage to the end of the list for the given deme.
+     *
+     * @param deme deme of lineage
+     * @param nodeNr node number of lineage
+     */
+    private void addLineage(int deme, int nodeNr) {
+        if (activeCounts[deme] == activeLineages[deme].length)
+            activeLineages[deme] = Arrays.copyOf(activeLineages[deme],
+                    Math.min(2*activeCounts[deme], nLeaves));
+
+        lineageDemes[nodeNr] = deme;
+        activeLineages[deme][activeCounts[deme]] = nodeNr;
+        positions[nodeNr] = activeCounts[deme];
+        activeCounts[deme] += 1;
+    }
+
+    /**
+     * Remove lineage from the list for the given deme by swapping the last
+     * lineage in the list into its place.
+     *
+     * @param deme deme of lineage
+     * @param nodeNr node number of lineage
+     */
+    private void removeLineage(int deme, int nodeNr) {
+        int idx = positions[nodeNr];
+        int last = activeLineages[deme][activeCounts[deme] - 1];
+
+        activeLineages[deme][idx] = last;
+        positions[last] = idx;
+        activeCounts[deme] -= 1;
+    }
+
+    /**
+     * Record a type change on the branch above the given node.
+     *
+     * @param nodeNr node whose branch the change lies on
+     * @param toType type above the change
+     * @param time time of change
+     */
+    private void addChange(int nodeNr, int toType, double time) {
+        if (nChanges == changeNodeNrs.length) {
+            changeNodeNrs = Arrays.copyOf(changeNodeNrs, 2*nChanges);
+            changeTypes = Arrays.copyOf(changeTypes, 2*nChanges);
+            changeTimes = Arrays.copyOf(changeTimes, 2*nChanges);
+        }
+
+        changeNodeNrs[nChanges] = nodeNr;
+        changeTypes[nChanges] = toType;
+        changeTimes[nChanges] = time;
+        nChanges += 1;
+    }
+
+    /**
+     * Construct a typed tree from the most recent simulation.  Leaves are
+     * numbered in the order in which the sampling configuration was
+     * supplied, internal nodes in order of creation.
+     *
+     * @param leafNames IDs to assign to the leaves
+     * @return root node of typed tree
+     */
+    public MultiTypeNode getMultiTypeRoot(List<String> leafNames) {
+
+        MultiTypeNode[] nodes = new MultiTypeNode[nNodes];
+        for (int nr=0; nr<nNodes; nr++) {
+            MultiTypeNode node = new MultiTypeNode();
+            node.setNr(nr);
+            node.setID(nr < nLeaves ? leafNames.get(nr) : String.valueOf(nr));
+            node.setHeight(heights[nr]);
+            node.setNodeType(nodeTypes[nr]);
+            nodes[nr] = node;
+        }
+        connectNodes(nodes);
+
+        // Changes are recorded in order of increasing time:
+        for (int c=0; c<nChanges; c++)
+            nodes[changeNodeNrs[c]].addChange(changeTypes[c], changeTimes[c]);
+
+        return nodes[rootNr];
+    }
+
+    /**
+     * Construct an untyped tree from the most recent simulation.
+     *
+     * @param leafNames IDs to assign to the leaves
+     * @return root node of tree
+     */
+    public Node getRoot(List<String> leafNames) {
+
+        Node[] nodes = new Node[nNodes];
+        for (int nr=0; nr<nNodes; nr++) {
+            Node node = new Node();
+            node.setNr(nr);
+            node.setID(nr < nLeaves ? leafNames.get(nr) : String.valueOf(nr));
+            node.setHeight(heights[nr]);
+            nodes[nr] = node;
+        }
+        connectNodes(nodes);
+
+        return nodes[rootNr];
+    }
+
+    /**
+     * Copy the most recent simulation into the given compact tree.
+     *
+     * @param tree compact tree to fill, replacing any existing contents
+     */
+    public void getCompactTree(CompactMultiTypeTree tree) {
+        tree.resize(nLeaves, nChanges);
+
+        for (int nr=0; nr<nNodes; nr++)
+            tree.setNode(nr, parents[nr], leftChildren[nr], rightChildren[nr],
+                    heights[nr], nodeTypes[nr]);
+
+        tree.setChanges(nChanges, changeNodeNrs, changeTypes, changeTimes);
+    }
+
+    /**
+     * Link nodes according to the simulated topology.
+     *
+     * @param nodes array of nodes indexed by node number
+     */
+    private void connectNodes(Node[] nodes) {
+        for (int nr=nLeaves; nr<nNodes; nr++) {
+            Node parent = nodes[nr];
+            Node left = nodes[leftChildren[nr]];
+            Node right = nodes[rightChildren[nr]];
+
+            parent.setLeft(left);
+            parent.setRight(right);
+            left.setParent(parent);
+            right.setParent(parent);
+        }
+        nodes[rootNr].setParent(null);
+    }
+
+    /**
+     * @return number of leaves in simulated trees
+     */
+    public int getLeafCount() {
+        return nLeaves;
+    }
+
+    /**
+     * @return number of nodes in simulated trees
+     */
+    public int getNodeCount() {
+        return nNodes;
+    }
+
+    /**
+     * @return number of type changes in most recently simulated tree
+     */
+    public int getChangeCount() {
+        return nChanges;
+    }
+
+    /**
+     * @return root height of most recently simulated tree
+     */
+    public double getRootHeight() {
+        return heights[rootNr];
+    }
+
+    /**
+     * @return root type of most recently simulated tree
+     */
+    public int getRootType() {
+        return nodeTypes[rootNr];
+    }
+
+    /**
+     * @return total branch length of most recently simulated tree
+     */
+    public double getTreeLength() {
+        double length = 0.0;
+        for (int nr=0; nr<nNodes; nr++) {
+            if (nr != rootNr)
+                length += heights[parents[nr]] - heights[nr];
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+/**
+ * Time-ordered sequence of the sampling, coalescence and migration events
+ * making up a multi-type tree, together with the number of lineages of
+ * each type present in the interval preceding each event.  Stored in
+ * primitive arrays so that the list can be rebuilt, copied and partially
+ * updated cheaply.
+ *
+ * Events are ordered from the tips to the root.  Type changes on the
+ * branch above the root are ignored.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TreeEventList {
+
+    public static final int SAMPLE = 0, COALESCE = 1, MIGRATE = 2;
+
+    private final int nTypes;
+    private int size = 0;
+
+    private double[] times = new double[0];
+    private int[] kinds = new int[0];
+    private int[] types = new int[0];
+    private int[] destTypes = new int[0];
+    private int[] nodeNrs = new int[0];
+
+    // Lineage counts in interval preceding each event, nTypes per event:
+    private int[] lineageCounts = new int[0];
+
+    // Scratch space used when building and updating:
+    private double[] scratchTimes = new double[0];
+    private int[] scratchKinds = new int[0];
+    private int[] scratchTypes = new int[0];
+    private int[] scratchDestTypes = new int[0];
+    private int[] scratchNodeNrs = new int[0];
+    private int[] scratchOrder = new int[0], scratchTmp = new int[0];
+    private boolean[] nodeAffected = new boolean[0];
+    private final int[] counts;
+
+    /**
+     * Create empty event list.
+     *
+     * @param nTypes number of types (demes)
+     */
+    public TreeEventList(int nTypes) {
+        this.nTypes = nTypes;
+        counts = new int[nTypes];
+    }
+
+    /**
+     * @return number of types
+     */
+    public int getNTypes() {
+        return nTypes;
+    }
+
+    /**
+     * @return number of events
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param i event index
+     * @return time of event
+     */
+    public double getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * @param i event index
+     * @return kind of event (SAMPLE, COALESCE or MIGRATE)
+     */
+    public int getKind(int i) {
+        return kinds[i];
+    }
+
+    /**
+     * @param i event index
+     * @return type of node, or for migrations the type below the change
+     */
+    public int getType(int i) {
+        return types[i];
+    }
+
+    /**
+     * @param i event index
+     * @return for migrations the type above the change, otherwise -1
+     */
+    public int getDestType(int i) {
+        return destTypes[i];
+    }
+
+    /**
+     * @param i event index
+     * @return number of node at or above which the event occurs
+     */
+    public int getNodeNr(int i) {
+        return nodeNrs[i];
+    }
+
+    /**
+     * @param i event index
+     * @param type lineage type
+     * @return number of lineages of given type in interval preceding event
+     */
+    public int getLineageCount(int i, int type) {
+        return lineageCounts[i*nTypes + type];
+    }
+
+    /**
+     * @param t time
+     * @return index of first event occurring at or after t
+     */
+    public int firstIndexAtOrAfter(double t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @param t time
+     * @return index of first event occurring strictly after t
+     */
+    public int firstIndexAfter(double t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Copy contents of another event list into this one.
+     *
+     * @param other list to copy
+     */
+    public void assignFrom(TreeEventList other) {
+        if (other.nTypes != nTypes)
+            throw new IllegalArgumentException("Event lists have different "
+                    + "numbers of types.");
+
+        ensureCapacity(other.size);
+        size = other.size;
+        System.arraycopy(other.times, 0, times, 0, size);
+        System.arraycopy(other.kinds, 0, kinds, 0, size);
+        System.arraycopy(other.types, 0, types, 0, size);
+        System.arraycopy(other.destTypes, 0, destTypes, 0, size);
+        System.arraycopy(other.nodeNrs, 0, nodeNrs, 0, size);
+        System.arraycopy(other.lineageCounts, 0, lineageCounts, 0, size*nTypes);
+    }
+
+    /**
+     * Rebuild the list from scratch.
+     *
+     * @param tree tree to extract events from
+     */
+    public void build(MultiTypeTree tree) {
+
+        // Step 1: collect events from each node in turn
+
+        int nEvents = tree.getNodeCount() + tree.getTotalNumberOfChanges();
+        ensureScratchCapacity(nEvents);
+
+        int n = 0;
+        for (int nr=0; nr<tree.getNodeCount(); nr++)
+            n = addNodeEvents((MultiTypeNode)tree.getNode(nr),
+                    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, n);
+
+        finishBuild(n);
+    }
+
+    /**
+     * Rebuild the list from scratch using a compact tree.
+     *
+     * @param tree tree to extract events from
+     */
+    public void build(CompactMultiTypeTree tree) {
+
+        // Step 1: collect events from each node in turn
+
+        int nEvents = tree.getNodeCount() + tree.getTotalChangeCount();
+        ensureScratchCapacity(nEvents);
+
+        int n = 0;
+        for (int nr=0; nr<tree.getNodeCount(); nr++) {
+            scratchTimes[n] = tree.getHeight(nr);
+            scratchKinds[n] = tree.getLeft(nr) < 0 ? SAMPLE : COALESCE;
+            scratchTypes[n] = tree.getNodeType(nr);
+            scratchDestTypes[n] = -1;
+            scratchNodeNrs[n] = nr;
+            n += 1;
+
+            if (nr == tree.getRootNr())
+                continue;
+
+            int typeBelow = tree.getNodeType(nr);
+            for (int i=0; i<tree.getChangeCount(nr); i++) {
+                int typeAbove = tree.getChangeType(nr, i);
+                scratchTimes[n] = tree.getChangeTime(nr, i);
+                scratchKinds[n] = MIGRATE;
+                scratchTypes[n] = typeBelow;
+                scratchDestTypes[n] = typeAbove;
+                scratchNodeNrs[n] = nr;
+                n += 1;
+                typeBelow = typeAbove;
+            }
+        }
+
+        finishBuild(n);
+    }
+
+    /**
+     * Order the events collected in the scratch arrays and compute the
+     * lineage counts.
+     *
+     * @param n number of events collected
+     */
+    private void finishBuild(int n) {
+
+        // Step 2: order events by time
+
+        for (int i=0; i<n; i++)
+            scratchOrder[i] = i;
+        sortByTime(scratchTimes, scratchOrder, scratchTmp, n);
+
+        ensureCapacity(n);
+        size = n;
+        for (int i=0; i<n; i++) {
+            int j = scratchOrder[i];
+            times[i] = scratchTimes[j];
+            kinds[i] = scratchKinds[j];
+            types[i] = scratchTypes[j];
+            destTypes[i] = scratchDestTypes[j];
+            nodeNrs[i] = scratchNodeNrs[j];
+        }
+
+        // Step 3: compute lineage counts
+
+        for (int c=0; c<nTypes; c++)
+            counts[c] = 0;
+
+        for (int i=0; i<size; i++) {
+            System.arraycopy(counts, 0, lineageCounts, i*nTypes, nTypes);
+            applyEvent(kinds[i], types[i], destTypes[i], counts);
+        }
+    }
+
+    /**
+     * Update list following a modification of the tree confined to the
+     * given region.  Only the events inside the region's time window are
+     * regenerated.  The list is left unchanged and false is returned if
+     * the lineage counts following the window are inconsistent with the
+     * original list, indicating that the modification was not confined
+     * to the region.
+     *
+     * @param tree modified tree
+     * @param region region of tree modified
+     * @return true if update succeeded
+     */
+    public boolean update(MultiTypeTree tree, AffectedRegion region) {
+        double tmin = region.getStartTime();
+        double tmax = region.getEndTime();
+
+        int lo = firstIndexAtOrAfter(tmin);
+        int hi = firstIndexAfter(tmax);
+
+        // Step 1: collect new events belonging to the affected nodes
+
+        if (nodeAffected.length < tree.getNodeCount())
+            nodeAffected = new boolean[tree.getNodeCount()];
+
+        int nNew = 0;
+        for (int i=0; i<region.getNodeCount(); i++) {
+            MultiTypeNode node = (MultiTypeNode)tree.getNode(region.getNodeNr(i));
+            nNew += node.getChangeCount() + 1;
+        }
+        ensureScratchCapacity(2*nNew + hi - lo);
+
+        nNew = 0;
+        for (int i=0; i<region.getNodeCount(); i++) {
+            int nr = region.getNodeNr(i);
+            nodeAffected[nr] = true;
+            nNew = addNodeEvents((MultiTypeNode)tree.getNode(nr), tmin, tmax, nNew);
+        }
+
+        for (int i=0; i<nNew; i++)
+            scratchOrder[i] = i;
+        sortByTime(scratchTimes, scratchOrder, scratchTmp, nNew);
+
+        // Step 2: merge with unaffected events already in the window,
+        // placing the result at the end of the scratch arrays
+
+        int w = nNew;
+        int a = lo, b = 0;
+        while (true) {
+            while (a < hi && nodeAffected[nodeNrs[a]])
+                a += 1;
+
+            boolean takeOld;
+            if (a < hi && b < nNew)
+                takeOld = times[a] <= scratchTimes[scratchOrder[b]];
+            else if (a < hi)
+                takeOld = true;
+            else if (b < nNew)
+                takeOld = false;
+            else
+                break;
+
+            if (takeOld) {
+                scratchTimes[w] = times[a];
+                scratchKinds[w] = kinds[a];
+                scratchTypes[w] = types[a];
+                scratchDestTypes[w] = destTypes[a];
+                scratchNodeNrs[w] = nodeNrs[a];
+                a += 1;
+            } else {
+                int j = scratchOrder[b];
+                scratchTimes[w] = scratchTimes[j];
+                scratchKinds[w] = scratchKinds[j];
+                scratchTypes[w] = scratchTypes[j];
+                scratchDestTypes[w] = scratchDestTypes[j];
+                scratchNodeNrs[w] = scratchNodeNrs[j];
+                b += 1;
+            }
+            w += 1;
+        }
+
+        for (int i=0; i<region.getNodeCount(); i++)
+            nodeAffected[region.getNodeNr(i)] = false;
+
+        int newWindowSize = w - nNew;
+
+        // Step 3: check that the window leaves the lineage counts unchanged
+
+        countsBefore(lo, counts);
+        for (int i=nNew; i<w; i++)
+            applyEvent(scratchKinds[i], scratchTypes[i], scratchDestTypes[i], counts);
+
+        if (hi < size) {
+            for (int c=0; c<nTypes; c++)
+                if (counts[c] != lineageCounts[hi*nTypes + c])
+                    return false;
+        }
+
+        // Step 4: splice new window into list
+
+        int newSize = size - (hi - lo) + newWindowSize;
+        ensureCapacity(newSize);
+        if (hi < size && newWindowSize != hi - lo) {
+            int dest = lo + newWindowSize;
+            int len = size - hi;
+            System.arraycopy(times, hi, times, dest, len);
+            System.arraycopy(kinds, hi, kinds, dest, len);
+            System.arraycopy(types, hi, types, dest, len);
+            System.arraycopy(destTypes, hi, destTypes, dest, len);
+            System.arraycopy(nodeNrs, hi, nodeNrs, dest, len);
+            System.arraycopy(lineageCounts, hi*nTypes,
+                    lineageCounts, dest*nTypes, len*nTypes);
+        }
+
+        countsBefore(lo, counts);
+        for (int i=0; i<newWindowSize; i++) {
+            int j = nNew + i;
+            int k = lo + i;
+            times[k] = scratchTimes[j];
+            kinds[k] = scratchKinds[j];
+            types[k] = scratchTypes[j];
+            destTypes[k] = scratchDestTypes[j];
+            nodeNrs[k] = scratchNodeNrs[j];
+            System.arraycopy(counts, 0, lineageCounts, k*nTypes, nTypes);
+            applyEvent(kinds[k], types[k], destTypes[k], counts);
+        }
+        size = newSize;
+
+        return true;
+    }
+
+    /**
+     * Compute lineage counts immediately preceding the event with index i.
+     * If i equals the list size, the counts following the final event are
+     * computed.
+     *
+     * @param i event index
+     * @param res array in which to place counts
+     */
+    private void countsBefore(int i, int[] res) {
+        if (i < size) {
+            System.arraycopy(lineageCounts, i*nTypes, res, 0, nTypes);
+        } else if (size > 0) {
+            System.arraycopy(lineageCounts, (size-1)*nTypes, res, 0, nTypes);
+            applyEvent(kinds[size-1], types[size-1], destTypes[size-1], res);
+        } else {
+            for (int c=0; c<nTypes; c++)
+                res[c] = 0;
+        }
+    }
+
+    /**
+     * Update lineage counts to account for an event.
+     */
+    private static void applyEvent(int kind, int type, int destType, int[] counts) {
+        switch (kind) {
+            case SAMPLE:
+                counts[type] += 1;
+                break;
+
+            case COALESCE:
+                counts[type] -= 1;
+                break;
+
+            case MIGRATE:
+                counts[type] -= 1;
+                counts[destType] += 1;
+                break;
+        }
+    }
+
+    /**
+     * Append events belonging to a node that lie within a time window to
+     * the scratch arrays.
+     *
+     * @param node node
+     * @param tmin lower bound of window
+     * @param tmax upper bound of window
+     * @param n index at which to place first event
+     * @return index following final event added
+     */
+    private int addNodeEvents(MultiTypeNode node, double tmin, double tmax, int n) {
+        double h = node.getHeight();
+        if (h >= tmin && h <= tmax) {
+            scratchTimes[n] = h;
+            scratchKinds[n] = node.isLeaf() ? SAMPLE : COALESCE;
+            scratchTypes[n] = node.getNodeType();
+            scratchDestTypes[n] = -1;
+            scratchNodeNrs[n] = node.getNr();
+            n += 1;
+        }
+
+        if (node.isRoot())
+            return n;
+
+        int typeBelow = node.getNodeType();
+        for (int i=0; i<node.getChangeCount(); i++) {
+            double t = node.getChangeTime(i);
+            int typeAbove = node.getChangeType(i);
+            if (t >= tmin && t <= tmax) {
+                scratchTimes[n] = t;
+                scratchKinds[n] = MIGRATE;
+                scratchTypes[n] = typeBelow;
+                scratchDestTypes[n] = typeAbove;
+                scratchNodeNrs[n] = node.getNr();
+                n += 1;
+            }
+            typeBelow = typeAbove;
+        }
+
+        return n;
+    }
+
+    /**
+     * Stable merge sort of indices by the corresponding times.
+     *
+     * @param keys times
+     * @param idx indices to sort
+     * @param tmp scratch array at least as long as idx
+     * @param n number of indices
+     */
+    private static void sortByTime(double[] keys, int[] idx, int[] tmp, int n) {
+        int[] src = idx, dest = tmp;
+        for (int width=1; width<n; width *= 2) {
+            for (int left=0; left<n; left += 2*width) {
+                int mid = Math.min(left+width, n);
+                int right = Math.min(left+2*width, n);
+                int i = left, j = mid, k = left;
+                while (i < mid && j < right)
+                    dest[k++] = keys[src[j]] < keys[src[i]] ? src[j++] : src[i++];
+                while (i < mid)
+                    dest[k++] = src[i++];
+                while (j < right)
+                    dest[k++] = src[j++];
+            }
+            int[] t = src;
+            src = dest;
+            dest = t;
+        }
+
+        if (src != idx)
+            System.arraycopy(src, 0, idx, 0, n);
+    }
+
+    private void ensureCapacity(int n) {
+        if (times.length >= n)
+            return;
+
+        int cap = Math.max(n, 2*times.length);
+        double[] newTimes = new double[cap];
+        int[] newKinds = new int[cap];
+        int[] newTypes = new int[cap];
+        int[] newDestTypes = new int[cap];
+        int[] newNodeNrs = new int[cap];
+        int[] newCounts = new int[cap*nTypes];
+        System.arraycopy(times, 0, newTimes, 0, size);
+        System.arraycopy(kinds, 0, newKinds, 0, size);
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(destTypes, 0, newDestTypes, 0, size);
+        System.arraycopy(nodeNrs, 0, newNodeNrs, 0, size);
+        System.arraycopy(lineageCounts, 0, newCounts, 0, size*nTypes);
+        times = newTimes;
+        kinds = newKinds;
+        types = newTypes;
+        destTypes = newDestTypes;
+        nodeNrs = newNodeNrs;
+        lineageCounts = newCounts;
+    }
+
+    private void ensureScratchCapacity(int n) {
+        if (scratchTimes.length >= n)
+            return;
+
+        int cap = Math.max(n, 2*scratchTimes.length);
+        scratchTimes = new double[cap];
+        scratchKinds = new int[cap];
+        scratchTypes = new int[cap];
+        scratchDestTypes = new int[cap];
+        scratchNodeNrs = new int[cap];
+        scratchOrder = new int[cap];
+        scratchTmp = new int[cap];
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import java.util.Arrays;
+
+/**
+ * Per-type index of the nodes of a multi-type tree, indexed by node
+ * number.  For each type the index maintains the set of nodes whose
+ * branch passes through that type (the root counting as a branch of zero
+ * length) and the set of internal nodes having that type.  Both sets
+ * support O(1) insertion, removal and uniform selection of members.
+ *
+ * Branch membership is derived from a count, for each node and type, of
+ * the number of segments of the node's branch in that type, so that each
+ * edit to a node's type or type changes costs O(1).  Nodes edited since
+ * the last store are journaled so that store() and restore() only copy
+ * the entries of those nodes.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+final class TypeIndex {
+
+    private int size, nTypes;
+
+    // Number of segments of each branch in each type, indexed by
+    // nodeNr*nTypes + type:
+    private int[] segmentCounts, storedSegmentCounts;
+
+    // Type of each internal node, or -1 for leaves:
+    private int[] internalTypes, storedInternalTypes;
+
+    private final NodeSet branches = new NodeSet();
+    private final NodeSet internalNodes = new NodeSet();
+
+    // Nodes whose entries have been edited since last store:
+    private boolean[] edited;
+    private int[] editedNodes;
+    private int nEdited;
+
+    TypeIndex() {
+        resize(0, 1);
+    }
+
+    /**
+     * Rebuild index from the given nodes.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     * @param minTypes minimum number of types to allow for
+     */
+    void rebuild(MultiTypeNode[] nodes, int minTypes) {
+        int newNTypes = Math.max(minTypes, 1);
+        for (MultiTypeNode node : nodes) {
+            newNTypes = Math.max(newNTypes, node.nodeType+1);
+            for (int i=0; i<node.nTypeChanges; i++)
+                newNTypes = Math.max(newNTypes, node.changeTypes.get(i)+1);
+        }
+
+        // Stored entries survive a rebuild that leaves the dimensions of
+        // the index unchanged, so every node is journaled:
+        boolean resized = resize(nodes.length, newNTypes);
+
+        Arrays.fill(segmentCounts, 0);
+        branches.clear();
+        internalNodes.clear();
+
+        for (int nr=0; nr<size; nr++) {
+            internalTypes[nr] = nodes[nr].isLeaf() ? -1 : nodes[nr].nodeType;
+            addNode(nr, nodes[nr]);
+            markEdited(nr);
+        }
+
+        if (resized)
+            store();
+    }
+
+    /**
+     * @return true if the index was reallocated
+     */
+    private boolean resize(int newSize, int newNTypes) {
+        if (segmentCounts != null && newSize == size && newNTypes == nTypes)
+            return false;
+
+        size = newSize;
+        nTypes = newNTypes;
+
+        segmentCounts = new int[size*nTypes];
+        storedSegmentCounts = new int[size*nTypes];
+        internalTypes = new int[size];
+        storedInternalTypes = new int[size];
+
+        branches.resize(size, nTypes);
+        internalNodes.resize(size, nTypes);
+
+        edited = new boolean[size];
+        editedNodes = new int[size];
+        nEdited = 0;
+
+        return true;
+    }
+
+    private void markEdited(int nodeNr) {
+        if (edited[nodeNr])
+            return;
+
+        edited[nodeNr] = true;
+        editedNodes[nEdited++] = nodeNr;
+    }
+
+    /**
+     * Make the current entries the stored entries.
+     */
+    void store() {
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            System.arraycopy(segmentCounts, nr*nTypes,
+                    storedSegmentCounts, nr*nTypes, nTypes);
+            storedInternalTypes[nr] = internalTypes[nr];
+        }
+        nEdited = 0;
+    }
+
+    /**
+     * Revert to the stored entries.  Set membership is restored, though
+     * not necessarily the order of members within each set.
+     */
+    void restore() {
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            System.arraycopy(storedSegmentCounts, nr*nTypes,
+                    segmentCounts, nr*nTypes, nTypes);
+            for (int type=0; type<nTypes; type++) {
+                if (segmentCounts[nr*nTypes + type] > 0)
+                    branches.add(type, nr);
+                else
+                    branches.remove(type, nr);
+            }
+
+            if (internalTypes[nr] != storedInternalTypes[nr]) {
+                if (internalTypes[nr] >= 0)
+                    internalNodes.remove(internalTypes[nr], nr);
+                internalTypes[nr] = storedInternalTypes[nr];
+                if (internalTypes[nr] >= 0)
+                    internalNodes.add(internalTypes[nr], nr);
+            }
+        }
+        nEdited = 0;
+    }
+
+    /**
+     * @return number of nodes covered by index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of types covered by index
+     */
+    int getTypeCount() {
+        return nTypes;
+    }
+
+    /**
+     * @param type type
+     * @return true if type lies outside the range covered by the index
+     */
+    boolean needsRebuild(int type) {
+        return type >= nTypes;
+    }
+
+    /**
+     * Record the addition or removal of a segment of a given type on the
+     * branch above a node.
+     *
+     * @param nodeNr number of node
+     * @param type type of segment
+     * @param delta change in number of segments of this type
+     */
+    void addSegments(int nodeNr, int type, int delta) {
+        markEdited(nodeNr);
+
+        int idx = nodeNr*nTypes + type;
+        int oldCount = segmentCounts[idx];
+        segmentCounts[idx] += delta;
+
+        if (oldCount == 0 && segmentCounts[idx] > 0)
+            branches.add(type, nodeNr);
+        else if (oldCount > 0 && segmentCounts[idx] == 0)
+            branches.remove(type, nodeNr);
+    }
+
+    /**
+     * Record a change to the type of a node.
+     *
+     * @param nodeNr number of node
+     * @param oldType previous type
+     * @param newType new type
+     */
+    void nodeTypeChanged(int nodeNr, int oldType, int newType) {
+        if (oldType == newType)
+            return;
+
+        addSegments(nodeNr, oldType, -1);
+        addSegments(nodeNr, newType, 1);
+
+        if (internalTypes[nodeNr] >= 0) {
+            internalNodes.remove(oldType, nodeNr);
+            internalNodes.add(newType, nodeNr);
+            internalTypes[nodeNr] = newType;
+        }
+    }
+
+    /**
+     * Replace the entries for a node number with those describing the
+     * given node.  Used when nodes are renumbered.
+     *
+     * @param nodeNr number of node
+     * @param node node now having that number
+     */
+    void reindex(int nodeNr, MultiTypeNode node) {
+        markEdited(nodeNr);
+
+        for (int type=0; type<nTypes; type++) {
+            if (segmentCounts[nodeNr*nTypes + type] > 0) {
+                segmentCounts[nodeNr*nTypes + type] = 0;
+                branches.remove(type, nodeNr);
+            }
+        }
+        if (internalTypes[nodeNr] >= 0)
+            internalNodes.remove(internalTypes[nodeNr], nodeNr);
+
+        internalTypes[nodeNr] = node.isLeaf() ? -1 : node.nodeType;
+        addNode(nodeNr, node);
+    }
+
+    private void addNode(int nodeNr, MultiTypeNode node) {
+        addSegments(nodeNr, node.nodeType, 1);
+        for (int i=0; i<node.nTypeChanges; i++)
+            addSegments(nodeNr, node.changeTypes.get(i), 1);
+
+        if (internalTypes[nodeNr] >= 0)
+            internalNodes.add(internalTypes[nodeNr], nodeNr);
+    }
+
+    /**
+     * @param type type
+     * @return number of nodes whose branches pass through type
+     */
+    int getBranchCount(int type) {
+        return type < nTypes ? branches.size(type) : 0;
+    }
+
+    /**
+     * @param type type
+     * @param i index of node within set, in [0, getBranchCount(type))
+     * @return number of node
+     */
+    int getBranchNodeNr(int type, int i) {
+        return branches.get(type, i);
+    }
+
+    /**
+     * @param nodeNr number of node
+     * @param type type
+     * @return number of segments of branch above node in type
+     */
+    int getSegmentCount(int nodeNr, int type) {
+        return type < nTypes ? segmentCounts[nodeNr*nTypes + type] : 0;
+    }
+
+    /**
+     * @param type type
+     * @return number of internal nodes of type
+     */
+    int getInternalNodeCount(int type) {
+        return type < nTypes ? internalNodes.size(type) : 0;
+    }
+
+    /**
+     * @param type type
+     * @param i index of node within set, in [0, getInternalNodeCount(type))
+     * @return number of node
+     */
+    int getInternalNodeNr(int type, int i) {
+        return internalNodes.get(type, i);
+    }
+
+    /**
+     * Collection of sets of node numbers, one for each type, supporting
+     * constant time insertion, removal and indexed access.
+     */
+    private static final class NodeSet {
+        private int size, nTypes;
+
+        // Members of each set, stored in blocks of length size:
+        private int[] members = new int[0];
+
+        // Position of each node within each set, or -1 if absent:
+        private int[] positions = new int[0];
+
+        private int[] counts = new int[0];
+
+        void resize(int newSize, int newNTypes) {
+            if (newSize != size || newNTypes != nTypes) {
+                size = newSize;
+                nTypes = newNTypes;
+                members = new int[size*nTypes];
+                positions = new int[size*nTypes];
+                counts = new int[nTypes];
+            }
+        }
+
+        void clear() {
+            Arrays.fill(positions, -1);
+            Arrays.fill(counts, 0);
+        }
+
+        void add(int type, int nodeNr) {
+            if (positions[type*size + nodeNr] >= 0)
+                return;
+
+            members[type*size + counts[type]] = nodeNr;
+            positions[type*size + nodeNr] = counts[type];
+            counts[type] += 1;
+        }
+
+        void remove(int type, int nodeNr) {
+            int pos = positions[type*size + nodeNr];
+            if (pos < 0)
+                return;
+
+            counts[type] -= 1;
+            int last = members[type*size + counts[type]];
+            members[type*size + pos] = last;
+            positions[type*size + last] = pos;
+            positions[type*size + nodeNr] = -1;
+        }
+
+        int size(int type) {
+            return counts[type];
+        }
+
+        int get(int type, int i) {
+            return members[type*size + i];
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import java.util.Arrays;
+
+/**
+ * Running totals of the number of type changes between each pair of
+ * types and of the total branch length spent in each type on a multi-type
+ * tree, excluding the branch above the root.
+ *
+ * The contribution of each branch is recorded separately.  Edits mark the
+ * affected branches as dirty, and the contributions of dirty branches are
+ * replaced when the totals are next requested, so that the cost of an
+ * update is proportional to the size of the edit rather than of the tree.
+ * Contributions replaced since the last store are journaled so that
+ * restore() reverts only those entries.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+final class TypeSummary {
+
+    private int size, nTypes;
+
+    // Contributions of each branch, indexed by
+    // nodeNr*nTypes*nTypes + fromType*nTypes + toType and
+    // nodeNr*nTypes + type respectively:
+    private int[] counts, storedCounts;
+    private double[] lengths, storedLengths;
+
+    private int[] totalCounts, storedTotalCounts;
+    private double[] totalLengths, storedTotalLengths;
+
+    // Branches whose contributions are out of date:
+    private boolean[] dirty;
+    private int[] dirtyNodes;
+    private int nDirty;
+
+    // Branches whose contributions have been replaced since last store:
+    private boolean[] edited;
+    private int[] editedNodes;
+    private int nEdited;
+
+    // Number of branch updates since length totals were last summed
+    // from scratch, used to bound accumulated rounding error:
+    private int updatesSinceSum;
+
+    TypeSummary() {
+        resize(0, 1);
+    }
+
+    /**
+     * Rebuild summary from the given nodes.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     * @param minTypes minimum number of types to allow for
+     */
+    void rebuild(MultiTypeNode[] nodes, int minTypes) {
+        int newNTypes = Math.max(minTypes, 1);
+        for (MultiTypeNode node : nodes) {
+            newNTypes = Math.max(newNTypes, node.nodeType+1);
+            for (int i=0; i<node.nTypeChanges; i++)
+                newNTypes = Math.max(newNTypes, node.changeTypes.get(i)+1);
+        }
+
+        resize(nodes.length, newNTypes);
+        Arrays.fill(totalCounts, 0);
+        Arrays.fill(totalLengths, 0.0);
+
+        for (int nr=0; nr<size; nr++) {
+            computeContribution(nr, nodes[nr]);
+            addContribution(nr, 1);
+        }
+
+        System.arraycopy(counts, 0, storedCounts, 0, counts.length);
+        System.arraycopy(lengths, 0, storedLengths, 0, lengths.length);
+        System.arraycopy(totalCounts, 0, storedTotalCounts, 0, totalCounts.length);
+        System.arraycopy(totalLengths, 0, storedTotalLengths, 0, totalLengths.length);
+
+        Arrays.fill(dirty, false);
+        nDirty = 0;
+        Arrays.fill(edited, false);
+        nEdited = 0;
+        updatesSinceSum = 0;
+    }
+
+    private void resize(int newSize, int newNTypes) {
+        if (counts != null && newSize == size && newNTypes == nTypes)
+            return;
+
+        size = newSize;
+        nTypes = newNTypes;
+
+        counts = new int[size*nTypes*nTypes];
+        storedCounts = new int[size*nTypes*nTypes];
+        lengths = new double[size*nTypes];
+        storedLengths = new double[size*nTypes];
+
+        totalCounts = new int[nTypes*nTypes];
+        storedTotalCounts = new int[nTypes*nTypes];
+        totalLengths = new double[nTypes];
+        storedTotalLengths = new double[nTypes];
+
+        dirty = new boolean[size];
+        dirtyNodes = new int[size];
+        edited = new boolean[size];
+        editedNodes = new int[size];
+    }
+
+    /**
+     * @return number of nodes covered by summary
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Mark the branch above a node as requiring an update.
+     *
+     * @param nodeNr number of node
+     */
+    void markDirty(int nodeNr) {
+        if (dirty[nodeNr])
+            return;
+
+        dirty[nodeNr] = true;
+        dirtyNodes[nDirty++] = nodeNr;
+    }
+
+    /**
+     * Replace the contributions of all dirty branches.
+     *
+     * @param nodes array of tree nodes indexed by node number
+     * @return false if a node has a type outside the range covered by the
+     * summary, in which case the summary must be rebuilt.
+     */
+    boolean update(MultiTypeNode[] nodes) {
+        for (int i=0; i<nDirty; i++) {
+            if (!inRange(nodes[dirtyNodes[i]]))
+                return false;
+        }
+
+        for (int i=0; i<nDirty; i++) {
+            int nr = dirtyNodes[i];
+            dirty[nr] = false;
+
+            if (!edited[nr]) {
+                edited[nr] = true;
+                editedNodes[nEdited++] = nr;
+            }
+
+            addContribution(nr, -1);
+            computeContribution(nr, nodes[nr]);
+            addContribution(nr, 1);
+        }
+
+        updatesSinceSum += nDirty;
+        nDirty = 0;
+
+        if (updatesSinceSum > size)
+            sumLengths();
+
+        return true;
+    }
+
+    /**
+     * @param node node
+     * @return true if types on branch above node are covered by summary
+     */
+    private boolean inRange(MultiTypeNode node) {
+        if (node.nodeType >= nTypes)
+            return false;
+
+        for (int i=0; i<node.nTypeChanges; i++) {
+            if (node.changeTypes.get(i) >= nTypes)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record the contribution of the branch above a node.  The root branch
+     * contributes nothing.
+     *
+     * @param nr number of node
+     * @param node node
+     */
+    private void computeContribution(int nr, MultiTypeNode node) {
+        int countOffset = nr*nTypes*nTypes;
+        int lengthOffset = nr*nTypes;
+        Arrays.fill(counts, countOffset, countOffset + nTypes*nTypes, 0);
+        Arrays.fill(lengths, lengthOffset, lengthOffset + nTypes, 0.0);
+
+        if (node.isRoot())
+            return;
+
+        int lastType = node.nodeType;
+        double lastTime = node.getHeight();
+        for (int i=0; i<node.nTypeChanges; i++) {
+            int nextType = node.changeTypes.get(i);
+            double nextTime = node.changeTimes.get(i);
+
+            counts[countOffset + lastType*nTypes + nextType] += 1;
+            lengths[lengthOffset + lastType] += nextTime - lastTime;
+
+            lastType = nextType;
+            lastTime = nextTime;
+        }
+        lengths[lengthOffset + lastType] += node.getParent().getHeight() - lastTime;
+    }
+
+    private void addContribution(int nr, int sign) {
+        int countOffset = nr*nTypes*nTypes;
+        for (int i=0; i<nTypes*nTypes; i++)
+            totalCounts[i] += sign*counts[countOffset + i];
+
+        int lengthOffset = nr*nTypes;
+        for (int type=0; type<nTypes; type++)
+            totalLengths[type] += sign*lengths[lengthOffset + type];
+    }
+
+    /**
+     * Recompute length totals from branch contributions.
+     */
+    private void sumLengths() {
+        Arrays.fill(totalLengths, 0.0);
+        for (int nr=0; nr<size; nr++) {
+            for (int type=0; type<nTypes; type++)
+                totalLengths[type] += lengths[nr*nTypes + type];
+        }
+
+        updatesSinceSum = 0;
+    }
+
+    /**
+     * Make the current contributions the stored contributions.  The
+     * summary must be up to date.
+     */
+    void store() {
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            System.arraycopy(counts, nr*nTypes*nTypes,
+                    storedCounts, nr*nTypes*nTypes, nTypes*nTypes);
+            System.arraycopy(lengths, nr*nTypes,
+                    storedLengths, nr*nTypes, nTypes);
+        }
+        nEdited = 0;
+
+        System.arraycopy(totalCounts, 0, storedTotalCounts, 0, totalCounts.length);
+        System.arraycopy(totalLengths, 0, storedTotalLengths, 0, totalLengths.length);
+    }
+
+    /**
+     * Revert to the stored contributions.
+     */
+    void restore() {
+        for (int i=0; i<nEdited; i++) {
+            int nr = editedNodes[i];
+            edited[nr] = false;
+
+            System.arraycopy(storedCounts, nr*nTypes*nTypes,
+                    counts, nr*nTypes*nTypes, nTypes*nTypes);
+            System.arraycopy(storedLengths, nr*nTypes,
+                    lengths, nr*nTypes, nTypes);
+        }
+        nEdited = 0;
+
+        for (int i=0; i<nDirty; i++)
+            dirty[dirtyNodes[i]] = false;
+        nDirty = 0;
+
+        System.arraycopy(storedTotalCounts, 0, totalCounts, 0, totalCounts.length);
+        System.arraycopy(storedTotalLengths, 0, totalLengths, 0, totalLengths.length);
+    }
+
+    /**
+     * @param fromType type below change
+     * @param toType type above change
+     * @return number of changes from fromType to toType
+     */
+    int getChangeCount(int fromType, int toType) {
+        if (fromType >= nTypes || toType >= nTypes)
+            return 0;
+
+        return totalCounts[fromType*nTypes + toType];
+    }
+
+    /**
+     * @param type type
+     * @return total length of branches in type
+     */
+    double getLength(int type) {
+        return type < nTypes ? totalLengths[type] : 0.0;
+    }
+
+    /**
+     * @return total length of branches
+     */
+    double getTotalLength() {
+        double length = 0.0;
+        for (int type=0; type<nTypes; type++)
+            length += totalLengths[type];
+
+        return length;
+    }
+}
@@ -20,16 +20,9 @@ package multitypetree.operators;
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.SCMigrationModel;
-
-import com.google.common.collect.Lists;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import multitypetree.evolution.tree.TreeEventList;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -39,16 +32,18 @@ import java.util.Set;
 @Citation("Beerli and Felsenstein, Genetics 152:763 (1999).")
 public class BeerliFelsenstein extends MultiTypeTreeOperator {
     
-    private enum EventType {MIGRATION, COALESCENCE, SAMPLE};
-    private class Event {
-        EventType eventType;
-        double time;
-        private EventType type;
-        Node node;
-        int thisDeme, prevDeme;
-    }
     private SCMigrationModel migModelSC;
 
+    // Event list used when the tree has no up-to-date cached list:
+    private TreeEventList eventList;
+
+    // Total lineage migration propensities for each deme:
+    private double[] migProp;
+
+    // Numbers of the node whose edge is excluded from the partial tree and
+    // of its original parent:
+    private int excludedNr, excludedParentNr;
+
     public BeerliFelsenstein() { }
 
     @Override
@@ -61,6 +56,9 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
         }
 
         migModelSC = (SCMigrationModel)migModel;
+
+        eventList = new TreeEventList(migModel.getNTypes());
+        migProp = new double[migModel.getNTypes()];
     }
 
     @Override
@@ -68,28 +66,39 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
         double logHR = 0.0;
         
         // Select non-root node at random
-        Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount())-1);
+        Node node;
+        do {
+            node = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
+        } while (node.isRoot());
         MultiTypeNode mtNode = (MultiTypeNode)node;
         
         // Keep copies of node and its sister for reverse move prob calculation
         MultiTypeNode mtNodeOld = mtNode.shallowCopy();
         MultiTypeNode mtNodeOldSis = (MultiTypeNode)getOtherChild(node.getParent(), node);
 
-        // Assemble partial event list
-        List<Event> eventList = getPartialEventList(node);
+        // Obtain event list of full tree.  The partial tree lacks only the
+        // edge above node, so its lineage counts are those of the full
+        // tree less that edge's contribution.
+        TreeEventList events = getEventList();
         double oldRootHeight = mtTree.getRoot().getHeight();
+
+        Node nodeParent = node.getParent();
+        Node sister = getOtherChild(nodeParent, node);
+        boolean parentIsRoot = nodeParent.isRoot();
+        excludedNr = node.getNr();
+        excludedParentNr = nodeParent.getNr();
+
+        // Root of partial tree:
+        Node partialRoot = parentIsRoot ? sister : mtTree.getRoot();
+        double partialRootHeight = partialRoot.getHeight();
         
         // Topology changes to turn tree into partial tree
-        Node nodeParent = node.getParent();
-        if (!nodeParent.isRoot())
+        if (!parentIsRoot)
             disconnectBranch(node);
-        else {
-            Node sister = getOtherChild(nodeParent, node);
-            nodeParent.removeChild(sister);
-        }
+        else
+            disconnectBranchFromRoot(node);
         
         // Pre-calculate total lineage migration propensities
-        double [] migProp = new double[migModel.getNTypes()];
         for (int d=0; d<migModel.getNTypes(); d++) {
             migProp[d] = 0.0;
             for (int dp=0; dp<migModel.getNTypes(); dp++) {
@@ -98,66 +107,45 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                 migProp[d] += migModel.getBackwardRate(d, dp);
             }
         }
-        
-        List<Set<Node>> nodesOfType = Lists.newArrayList();
-        for (int i=0; i<migModel.getNTypes(); i++)
-            nodesOfType.add(new HashSet<Node>());
 
         mtNode.clearChanges();
 
+        // Type of the excluded edge within the current interval, or -1
+        // once the edge has ended:
+        int excludedType = mtNode.getNodeType();
+
+        int deme = mtNode.getNodeType();
+        double t = node.getHeight();
         double coalTime = Double.NaN;
-        for (int eidx=0; eidx<eventList.size(); eidx++) {
-            Event event = eventList.get(eidx);
-            double intervalEndTime;
-            if (eidx<eventList.size()-1)
-                intervalEndTime = eventList.get(eidx+1).time;
-            else
-                intervalEndTime = oldRootHeight;
-            
-            switch (event.type) {
-                case COALESCENCE:
-                    nodesOfType.get(event.thisDeme).removeAll(event.node.getChildren());
-                    nodesOfType.get(event.thisDeme).add(event.node);
-                    break;
-                    
-                case SAMPLE:
-                    nodesOfType.get(event.thisDeme).add(event.node);
-                    break;
-                    
-                case MIGRATION:
-                    nodesOfType.get(event.prevDeme).remove(event.node);
-                    nodesOfType.get(event.thisDeme).add(event.node);
-                    break;
-            }
-            
-            double t = Math.max(event.time, node.getHeight());
-            
-            // Early exit 
-            if (t >= intervalEndTime)
-                continue;
+        for (int eidx=events.firstIndexAfter(t);
+                eidx<events.getSize() && t<partialRootHeight; eidx++) {
+            double intervalEndTime = Math.min(events.getTime(eidx),
+                    partialRootHeight);
 
-            int deme = mtNode.getNodeType();
-            
-            while (true) {
+            while (t < intervalEndTime) {
                 
                 // Calculate coalescent propensity
-                double coalProp = nodesOfType.get(deme).size()/migModelSC.getPopSize(deme);
+                int k = getPartialLineageCount(events, eidx, deme, excludedType);
+                double coalProp = k/migModelSC.getPopSize(deme);
 
                 // Select event time
-                double dt = Randomizer.nextExponential(coalProp + migProp[deme]);
-                t += dt;
-                if (t > intervalEndTime)
+                double dt = random.nextExponential(coalProp + migProp[deme]);
+                if (t + dt > intervalEndTime) {
+                    t = intervalEndTime;
                     break;
+                }
+                t += dt;
             
                 // HR waiting time contribution
                 logHR += -(coalProp + migProp[deme])*dt;
                 
-                double u = Randomizer.nextDouble()*(coalProp + migProp[deme]);
+                double u = random.nextDouble()*(coalProp + migProp[deme]);
                 if (u<coalProp) {
                     // Coalescence
 
                     // Select edge to coalesce with
-                    Node coalNode = (Node)selectRandomElement(nodesOfType.get(deme));
+                    Node coalNode = selectLineage(deme, t, random.nextInt(k),
+                            node, nodeParent);
                     
                     // HR event contribution
                     logHR += Math.log(1.0/migModelSC.getPopSize(deme));
@@ -165,6 +153,8 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                     // Implement coalescence
                     coalTime = t;                    
                     connectBranch(node, coalNode, coalTime);
+                    if (parentIsRoot)
+                        mtTree.setRoot(sister);
 
                     break;
                 
@@ -194,15 +184,16 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
             // Continue to next interval if no coalescence has occurred
             if (!Double.isNaN(coalTime))
                 break;
+
+            excludedType = updateExcludedType(events, eidx, excludedType);
         }
      
         if (Double.isNaN(coalTime)) {
             
-            // Continue simulation beyond old root of tree
-            double t = oldRootHeight;
+            // Continue simulation beyond root of partial tree
+            t = Math.max(t, partialRootHeight);
             
-            int deme = mtNode.getFinalType();
-            MultiTypeNode mtNodeSis = (MultiTypeNode)eventList.get(eventList.size()-1).node;
+            MultiTypeNode mtNodeSis = (MultiTypeNode)partialRoot;
             int demeSis = mtNodeSis.getFinalType();
             
             while (true) {
@@ -215,14 +206,14 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                     coalProp = 0.0;
                 
                 double totalProp = coalProp + migProp[deme] + migProp[demeSis];
-                double dt = Randomizer.nextExponential(totalProp);
+                double dt = random.nextExponential(totalProp);
                 
                 // HR waiting time contribution
                 logHR += -totalProp*dt;
                 
                 t += dt;
                 
-                double u = Randomizer.nextDouble()*totalProp;
+                double u = random.nextDouble()*totalProp;
                 
                 if (u <coalProp) {
                     // Coalescence
@@ -230,7 +221,8 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                     logHR += Math.log(1.0/migModelSC.getPopSize(deme));
                     
                     coalTime = t;
-                    nodeParent.addChild(mtNodeSis);
+                    connectBranchToRoot(node, partialRoot, coalTime);
+                    ((MultiTypeNode)nodeParent).setNodeType(deme);
                     mtTree.setRoot(nodeParent);
                     
                     break;
@@ -260,7 +252,8 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                         deme = toDeme;
                     } else {
                         // Migration in sister lineage
-                        
+
+                        u -= migProp[deme];
                         int toDeme;
                         for (toDeme=0; toDeme<migModel.getNTypes(); toDeme++) {
                             if (toDeme == demeSis)
@@ -287,75 +280,106 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
     }
 
     /**
-     * Assemble and return list of events excluding those on the edge between
-     * node and its parent.
-     * 
-     * @param excludedNode Tree node indicating edge to exclude.
+     * Obtain the event list of the current tree, using the list cached by
+     * the tree when one is available.
+     *
      * @return event list
      */
-    private List<Event> getPartialEventList(Node excludedNode) {
-        List<Event> eventList = Lists.newArrayList();
-        
-        
-        // Collect all events
-        for (Node node : mtTree.getNodesAsArray()) {
-            
-            if (node == excludedNode)
+    private TreeEventList getEventList() {
+        TreeEventList cached = mtTree.getCachedEventList();
+        if (cached != null
+                && cached.getNTypes() == migModel.getNTypes()
+                && cached.getSize() == mtTree.getNodeCount()
+                        + mtTree.getTotalNumberOfChanges())
+            return cached;
+
+        eventList.build(mtTree);
+        return eventList;
+    }
+
+    /**
+     * Number of lineages of a given type in the partial tree during the
+     * interval preceding an event of the full tree.
+     *
+     * @param events event list of full tree
+     * @param eidx index of event ending interval
+     * @param type lineage type
+     * @param excludedType type of excluded edge in interval, or -1
+     * @return lineage count
+     */
+    private int getPartialLineageCount(TreeEventList events, int eidx,
+            int type, int excludedType) {
+        int k = events.getLineageCount(eidx, type);
+        if (type == excludedType)
+            k -= 1;
+
+        return k;
+    }
+
+    /**
+     * Update type of the excluded edge following an event of the full tree.
+     *
+     * @param events event list of full tree
+     * @param eidx index of event
+     * @param excludedType type of excluded edge preceding event, or -1
+     * @return type of excluded edge following event, or -1
+     */
+    private int updateExcludedType(TreeEventList events, int eidx,
+            int excludedType) {
+        if (events.getNodeNr(eidx) == excludedNr
+                && events.getKind(eidx) == TreeEventList.MIGRATE)
+            return events.getDestType(eidx);
+
+        if (events.getNodeNr(eidx) == excludedParentNr
+                && events.getKind(eidx) == TreeEventList.COALESCE)
+            return -1;
+
+        return excludedType;
+    }
+
+    /**
+     * Select a lineage of the partial tree present at a given time.
+     *
+     * @param type type of lineage
+     * @param t time
+     * @param idx index of lineage among those of the given type
+     * @param node node whose edge is excluded from partial tree
+     * @param nodeParent original parent of node
+     * @return node at base of selected lineage
+     */
+    private Node selectLineage(int type, double t, int idx,
+            Node node, Node nodeParent) {
+
+        for (Node thisNode : mtTree.getNodesAsArray()) {
+            if (thisNode == node || thisNode == nodeParent)
                 continue;
 
-            MultiTypeNode mtNode = (MultiTypeNode)node;
-            
-            Event event = new Event();
-            event.time = node.getHeight();
-            event.node = node;
-            event.thisDeme = mtNode.getNodeType();
-            if (node.isLeaf())
-                event.type = EventType.SAMPLE;
-            else {
-                if (!node.getChildren().contains(excludedNode))
-                    event.type = EventType.COALESCENCE;
-            }
-            eventList.add(event);
-            
-            int thisDeme = mtNode.getNodeType();
-            int prevDeme;
-            for (int i=0; i<mtNode.getChangeCount(); i++) {
-                prevDeme = thisDeme;
-                thisDeme = mtNode.getChangeType(i);
-                
-                Event changeEvent = new Event();
-                changeEvent.type = EventType.MIGRATION;
-                changeEvent.time = mtNode.getChangeTime(i);
-                changeEvent.node = node;
-                changeEvent.thisDeme = thisDeme;
-                changeEvent.prevDeme = prevDeme;
-                eventList.add(changeEvent);
-            }
-            
-        }
-        
-        // Sort events according to times
-        Collections.sort(eventList, new Comparator<Event>() {
+            if (thisNode.getHeight() > t
+                    || (!thisNode.isRoot() && thisNode.getParent().getHeight() <= t))
+                continue;
 
-            @Override
-            public int compare(Event e1, Event e2) {
-                if (e1.time < e2.time)
-                    return -1;
-                
-                if (e1.time > e2.time)
-                    return 1;
-                
-                return 0;
-            }
-        });
+            MultiTypeNode mtThisNode = (MultiTypeNode)thisNode;
+            int thisType = mtThisNode.getNodeType();
+            for (int i=0; i<mtThisNode.getChangeCount()
+                    && mtThisNode.getChangeTime(i) <= t; i++)
+                thisType = mtThisNode.getChangeType(i);
 
-        return eventList;
+            if (thisType != type)
+                continue;
+
+            if (idx == 0)
+                return thisNode;
+
+            idx -= 1;
+        }
+
+        throw new IllegalStateException("Event list inconsistent with tree.");
     }
     
     /**
      * Calculate probability with which the current state is proposed from
      * the new state.
-     * @param eventList List of events on partial genealogy
+     * @param events Event list of full tree
      * @param migProp Pre-calculated Migration propensities
      * @param node Node below edge which is modified during proposal
      * @param nodeSis Sister of node selected for proposal
@@ -363,65 +387,46 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
      * @param newRootHeight Height of tree following proposal
      * @return log of proposal density
      */
-    private double getReverseMoveProb(List<Event> eventList, double [] migProp,
+    private double getReverseMoveProb(TreeEventList events, double [] migProp,
             MultiTypeNode node, MultiTypeNode nodeSis,
             double oldCoalTime, double newRootHeight) {
         double logP = 0.0;
         
         MultiTypeNode mtNode = (MultiTypeNode)node;
 
-        // Number of lineages in each deme - needed for coalescence propensity
-        int[] lineageCounts = new int[migModel.getNTypes()];
-
         // Next change index
         int changeIdx = 0;
         
         // Current deme
         int deme = mtNode.getNodeType();
+
+        // Type of excluded edge
+        int excludedType = mtNode.getNodeType();
         
         // Flag to indicate this interval will terminate early due to
         // the start of a two-lineage simulation proposal phase
         boolean switchPhase = false;
-        
-        for (int eidx=0; (eidx<eventList.size()-1 && !switchPhase); eidx++) {
-            Event event = eventList.get(eidx);
-            double intervalEndTime = eventList.get(eidx+1).time;
+
+        double t = node.getHeight();
+        for (int eidx=events.firstIndexAfter(t);
+                (eidx<events.getSize() && !switchPhase); eidx++) {
+            double intervalEndTime = events.getTime(eidx);
             
             if (intervalEndTime>newRootHeight) {
                 intervalEndTime = newRootHeight;
                 switchPhase = true;
             }
-            
-            switch (event.type) {
-                case COALESCENCE:
-                    lineageCounts[event.thisDeme] -= 1;
-                    break;
-                    
-                case SAMPLE:
-                    lineageCounts[event.thisDeme] += 1;
-                    break;
-                    
-                case MIGRATION:
-                    lineageCounts[event.prevDeme] -= 1;
-                    lineageCounts[event.thisDeme] += 1;
-                    break;
-            }
-
-            if (node.getHeight()>intervalEndTime)
-                continue;
-            
-            double t = Math.max(event.time, node.getHeight());
 
-            
             // Loop over changes within this interval
             while (true) {
                 
                 // Calculate coalescence propensities
-                double coalProp = lineageCounts[deme]/migModelSC.getPopSize(deme);
+                double coalProp = getPartialLineageCount(events, eidx, deme,
+                        excludedType)/migModelSC.getPopSize(deme);
                 
                 double nextTime;
                 if (changeIdx<mtNode.getChangeCount())
-                    nextTime = mtNode.getChangeTime(eidx);
+                    nextTime = mtNode.getChangeTime(changeIdx);
                 else
                     nextTime = oldCoalTime;
                 
@@ -430,7 +435,7 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                 logP += -(coalProp + migProp[deme])*dt;
                 
                 t += dt;
-                if (t>intervalEndTime)
+                if (nextTime>intervalEndTime)
                     break;
                 
                 if (changeIdx<mtNode.getChangeCount()) {
@@ -438,15 +443,18 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
                     int toDeme = mtNode.getChangeType(changeIdx);
                     logP += Math.log(migModel.getBackwardRate(deme, toDeme));
                     deme = toDeme;
+                    changeIdx += 1;
                 } else {
                     // Coalescence
                     logP += Math.log(1.0/migModelSC.getPopSize(deme));
                     return logP;
                 }
             }
+
+            excludedType = updateExcludedType(events, eidx, excludedType);
         }
         
-        double t = newRootHeight;
+        t = newRootHeight;
         
         int sisChangeIdx=0;
         int demeSis = nodeSis.getNodeType();
@@ -469,14 +477,4 @@ public class BeerliFelsenstein extends MultiTypeTreeOperator {
         
 //        return logP;
     }
-
-    /**
-     * Select element at random from set.
-     * 
-     * @param set
-     * @return Object
-     */
-    public Object selectRandomElement(Set set) {
-        return set.toArray()[Randomizer.nextInt(set.size())];
-    }
-}
\ No newline at end of file
+}
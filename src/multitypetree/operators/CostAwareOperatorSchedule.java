@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Operator schedule which adjusts the weights of multi-type tree operators
+ * during burn-in according to the rate at which each operator achieves
+ * a chosen objective per unit of CPU time, as measured by the operator's
+ * telemetry.  Each adapted weight is confined to a user-specified range
+ * of multiples of its original value, and all weights are frozen once the
+ * adaptation period is over so that the chain sampled afterwards is a
+ * time-homogeneous Markov chain with the correct stationary distribution.
+ *
+ * Operators other than MultiTypeTreeOperators keep their original weights.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Operator schedule which adapts the weights of multi-type "
+        + "tree operators during burn-in to maximize accepted moves (or "
+        + "root height or root type changes) per CPU second.")
+public class CostAwareOperatorSchedule extends OperatorSchedule {
+
+    /**
+     * Quantities whose rate of change per CPU second the schedule attempts
+     * to maximize.
+     */
+    public enum Objective {
+        ACCEPTANCES("acceptances"),
+        ROOT_HEIGHT("rootHeight"),
+        ROOT_TYPE("rootType");
+
+        private final String label;
+
+        Objective(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public Input<Objective> objectiveInput = new Input<>("objective",
+            "Quantity to maximize per CPU second: accepted moves "
+            + "(acceptances), squared root height jumps (rootHeight) or "
+            + "root type changes (rootType).  (Default acceptances.)",
+            Objective.ACCEPTANCES, Objective.values());
+
+    public Input<Long> adaptationLengthInput = new Input<>(
+            "adaptationLength",
+            "Number of operator selections after which weights are "
+            + "frozen.  Should not exceed the burn-in.", 100000L);
+
+    public Input<Integer> updateIntervalInput = new Input<>(
+            "updateInterval",
+            "Number of operator selections between weight updates. "
+            + "(Default 1000.)", 1000);
+
+    public Input<Double> minWeightFactorInput = new Input<>(
+            "minWeightFactor",
+            "Smallest permitted multiple of each original weight. "
+            + "(Default 0.1.)", 0.1);
+
+    public Input<Double> maxWeightFactorInput = new Input<>(
+            "maxWeightFactor",
+            "Largest permitted multiple of each original weight. "
+            + "(Default 10.)", 10.0);
+
+    public Input<Integer> minProposalsInput = new Input<>(
+            "minProposals",
+            "Number of proposals an operator must make before its weight "
+            + "is adapted. (Default 100.)", 100);
+
+    public Input<RandomStream> randomStreamInput = new Input<>(
+            "randomStream",
+            "Stream of random numbers used to select operators. (Default "
+            + "is the BEAST Randomizer.)");
+
+    // Opening of the comment block holding the schedule's state in the
+    // MCMC state file:
+    private static final String STATE_HEADER = "<!--CostAwareOperatorSchedule";
+
+    private RandomSource random;
+    private String stateFileName;
+
+    private long selectionCount;
+    private boolean frozen;
+
+    private List<Operator> operators;
+    private double[] originalWeights, weights, cumulativeWeights;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (minWeightFactorInput.get() <= 0.0
+                || maxWeightFactorInput.get() < minWeightFactorInput.get())
+            throw new IllegalArgumentException("CostAwareOperatorSchedule "
+                    + "requires 0 < minWeightFactor <= maxWeightFactor.");
+
+        if (updateIntervalInput.get() < 1)
+            throw new IllegalArgumentException("CostAwareOperatorSchedule "
+                    + "requires a positive update interval.");
+
+        random = randomStreamInput.get() != null
+                ? randomStreamInput.get()
+                : RandomSource.RANDOMIZER;
+
+        selectionCount = 0;
+        frozen = adaptationLengthInput.get() <= 0;
+        operators = null;
+    }
+
+    @Override
+    public Operator selectOperator() {
+        if (operators == null || operators.size() != getOperators().size())
+            initWeights();
+
+        if (!frozen && selectionCount > 0
+                && selectionCount % updateIntervalInput.get() == 0)
+            updateWeights();
+
+        if (!frozen && selectionCount >= adaptationLengthInput.get()) {
+            frozen = true;
+            reportWeights(Log.info);
+        }
+
+        selectionCount += 1;
+
+        double u = random.nextDouble()*cumulativeWeights[cumulativeWeights.length-1];
+        for (int i=0; i<cumulativeWeights.length; i++) {
+            if (u < cumulativeWeights[i])
+                return operators.get(i);
+        }
+
+        return operators.get(operators.size()-1);
+    }
+
+    /**
+     * Replace the source of random numbers used to select operators.
+     * Used by runners which give each chain its own stream.
+     *
+     * @param random new source of random numbers
+     */
+    public void setRandomSource(RandomSource random) {
+        this.random = random;
+    }
+
+    /**
+     * Record original operator weights.
+     */
+    private void initWeights() {
+        operators = getOperators();
+
+        originalWeights = new double[operators.size()];
+        weights = new double[operators.size()];
+        cumulativeWeights = new double[operators.size()];
+
+        for (int i=0; i<operators.size(); i++) {
+            originalWeights[i] = operators.get(i).getWeight();
+            weights[i] = originalWeights[i];
+        }
+
+        updateCumulativeWeights();
+    }
+
+    /**
+     * Reweight the multi-type tree operators in proportion to the rate at
+     * which each achieves the objective per unit CPU time, relative to the
+     * mean rate of these operators.
+     */
+    private void updateWeights() {
+        double[] rates = new double[operators.size()];
+        Arrays.fill(rates, Double.NaN);
+        double totalWeight = 0.0, totalRateWeight = 0.0;
+
+        // Step 1: compute objective rates of operators with enough data
+
+        for (int i=0; i<operators.size(); i++) {
+            OperatorTelemetry telemetry = getTelemetry(i);
+            if (telemetry == null
+                    || telemetry.getProposalCount() < minProposalsInput.get()
+                    || telemetry.getTotalNanos() == 0)
+                continue;
+
+            rates[i] = getObjective(telemetry)/(telemetry.getTotalNanos()*1e-9);
+            totalWeight += originalWeights[i];
+            totalRateWeight += originalWeights[i]*rates[i];
+        }
+
+        if (totalRateWeight <= 0.0)
+            return;
+
+        // Step 2: scale weights by relative rates, subject to bounds
+
+        double meanRate = totalRateWeight/totalWeight;
+        for (int i=0; i<operators.size(); i++) {
+            if (Double.isNaN(rates[i]))
+                continue;
+
+            double factor = rates[i]/meanRate;
+            factor = Math.max(factor, minWeightFactorInput.get());
+            factor = Math.min(factor, maxWeightFactorInput.get());
+            weights[i] = originalWeights[i]*factor;
+        }
+
+        updateCumulativeWeights();
+    }
+
+    /**
+     * @param telemetry operator telemetry
+     * @return total value of objective achieved by operator
+     */
+    private double getObjective(OperatorTelemetry telemetry) {
+        switch (objectiveInput.get()) {
+            case ROOT_HEIGHT:
+                return telemetry.getSquaredRootHeightJumpSum();
+            case ROOT_TYPE:
+                return telemetry.getRootTypeChangeCount();
+            default:
+                return telemetry.getAcceptCount();
+        }
+    }
+
+    /**
+     * @param i operator index
+     * @return telemetry of operator, or null if operator is not a
+     * multi-type tree operator
+     */
+    private OperatorTelemetry getTelemetry(int i) {
+        Operator operator = operators.get(i);
+        if (operator instanceof MultiTypeTreeOperator)
+            return ((MultiTypeTreeOperator)operator).getTelemetry();
+        else
+            return null;
+    }
+
+    private void updateCumulativeWeights() {
+        double sum = 0.0;
+        for (int i=0; i<weights.length; i++) {
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+    }
+
+    /**
+     * @param i operator index
+     * @return current weight of operator
+     */
+    public double getAdaptedWeight(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return number of operators selected so far
+     */
+    public long getSelectionCount() {
+        return selectionCount;
+    }
+
+    /**
+     * @return true if weights have been frozen
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public void setStateFileName(String name) {
+        super.setStateFileName(name);
+        stateFileName = name;
+    }
+
+    /**
+     * Append the selection count, frozen flag and adapted weights to the
+     * state file after the operator state written by OperatorSchedule, so
+     * that a resumed run continues the adaptation where it left off.
+     */
+    @Override
+    public void storeToFile() {
+        super.storeToFile();
+
+        if (stateFileName == null || operators == null)
+            return;
+
+        try (PrintStream out = new PrintStream(
+                new FileOutputStream(stateFileName, true))) {
+            out.println(STATE_HEADER);
+            out.println(selectionCount + "\t" + frozen);
+            for (int i=0; i<operators.size(); i++)
+                out.println(operators.get(i).getID() + "\t" + weights[i]);
+            out.println("-->");
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing operator schedule "
+                    + "state to " + stateFileName + ".", e);
+        }
+    }
+
+    /**
+     * Restore the selection count, frozen flag and adapted weights written
+     * by storeToFile().  Weights are matched to operators by ID; operators
+     * absent from the state file keep their original weights.
+     */
+    @Override
+    public void restoreFromFile() {
+        super.restoreFromFile();
+
+        if (stateFileName == null)
+            return;
+
+        initWeights();
+
+        try (BufferedReader in = new BufferedReader(
+                new FileReader(stateFileName))) {
+            String line;
+            while ((line = in.readLine()) != null
+                    && !line.trim().equals(STATE_HEADER)) { }
+
+            if (line == null)
+                return;
+
+            String[] fields = in.readLine().trim().split("\t");
+            selectionCount = Long.parseLong(fields[0]);
+            frozen = Boolean.parseBoolean(fields[1]);
+
+            while ((line = in.readLine()) != null
+                    && !line.trim().equals("-->")) {
+                int split = line.lastIndexOf('\t');
+                String id = line.substring(0, split);
+                double weight = Double.parseDouble(line.substring(split+1));
+
+                for (int i=0; i<operators.size(); i++) {
+                    if (id.equals(String.valueOf(operators.get(i).getID()))) {
+                        weights[i] = weight;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Error reading operator "
+                    + "schedule state from " + stateFileName + ".", e);
+        }
+
+        updateCumulativeWeights();
+    }
+
+    /**
+     * Write original and adapted weights of each operator.
+     *
+     * @param out stream to write to
+     */
+    public void reportWeights(PrintStream out) {
+        out.println("Operator weights adapted for " + objectiveInput.get()
+                + " per CPU second" + (frozen ? " (now frozen)" : "") + ":");
+        for (int i=0; i<operators.size(); i++) {
+            Operator operator = operators.get(i);
+            String name = operator.getID() != null
+                    ? operator.getID()
+                    : operator.getClass().getSimpleName();
+            out.format("  %s: %.4g -> %.4g%n", name, originalWeights[i], weights[i]);
+        }
+    }
+}
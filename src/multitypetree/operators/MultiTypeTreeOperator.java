@@ -21,10 +21,13 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
+import beast.base.inference.Evaluator;
 import beast.base.inference.Operator;
 import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
 
 /**
  * Abstract base class for all operators on ColouredTree objects.
@@ -43,14 +46,109 @@ public abstract class MultiTypeTreeOperator extends Operator {
         "migrationModel",
         "Migration model for proposal distribution",
         Input.Validate.REQUIRED);
+
+    public Input<RandomStream> randomStreamInput = new Input<>(
+        "randomStream",
+        "Stream of random numbers used by operator. (Default is the "
+                + "BEAST Randomizer.)");
     
     protected MultiTypeTree mtTree;
     protected MigrationModel migModel;
+    protected RandomSource random = RandomSource.RANDOMIZER;
+
+    // Root of tree at the start of the current proposal:
+    private Node proposalRoot;
+
+    // Timing and outcome statistics:
+    protected final OperatorTelemetry telemetry = new OperatorTelemetry();
 
     @Override
     public void initAndValidate() {
         mtTree = multiTypeTreeInput.get();
         migModel = migrationModelInput.get();
+        random = randomStreamInput.get() != null
+                ? randomStreamInput.get()
+                : RandomSource.RANDOMIZER;
+    }
+
+    @Override
+    public double proposal(Evaluator evaluator) {
+        mtTree.getAffectedRegion().clear();
+        proposalRoot = mtTree.getRoot();
+
+        telemetry.beginProposal();
+        long changesAdded = mtTree.getChangesAddedCount();
+        long changesRemoved = mtTree.getChangesRemovedCount();
+        double rootHeight = proposalRoot.getHeight();
+        int rootType = ((MultiTypeNode)proposalRoot).getNodeType();
+        long startTime = System.nanoTime();
+
+        double logHR = super.proposal(evaluator);
+
+        long nanos = System.nanoTime() - startTime;
+        MultiTypeNode root = (MultiTypeNode)mtTree.getRoot();
+        telemetry.recordProposal(nanos, logHR,
+                mtTree.getChangesAddedCount() - changesAdded,
+                mtTree.getChangesRemovedCount() - changesRemoved,
+                root.getHeight() - rootHeight,
+                root.getNodeType() != rootType);
+
+        // Any cached event list no longer describes the tree:
+        mtTree.setCachedEventList(null);
+
+        return logHR;
+    }
+
+    @Override
+    public void accept() {
+        super.accept();
+        telemetry.recordOutcome(true);
+    }
+
+    @Override
+    public void reject(int reason) {
+        super.reject(reason);
+        telemetry.recordOutcome(false);
+    }
+
+    /**
+     * @return timing and outcome statistics for this operator
+     */
+    public OperatorTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Replace the source of random numbers used by this operator.  Used
+     * by runners which give each chain its own stream.
+     *
+     * @param random new source of random numbers
+     */
+    public void setRandomSource(RandomSource random) {
+        this.random = random;
+    }
+
+    /**
+     * Record the part of the tree modified by the current proposal, allowing
+     * densities to restrict their recalculation to the time window between
+     * tmin and tmax.  Should be called once the tree has been modified.  The
+     * listed nodes must include every node whose height or type was changed
+     * or whose branch gained, lost or had modified type changes, and no
+     * event outside the window may have been touched.
+     *
+     * Proposals which change the root of the tree cannot be described in
+     * this way (the node numbering changes), so the region is left unknown
+     * in that case.
+     *
+     * @param tmin lower bound of modified time window
+     * @param tmax upper bound of modified time window
+     * @param nodes nodes whose events may have changed
+     */
+    protected void setAffectedRegion(double tmin, double tmax, Node... nodes) {
+        if (mtTree.getRoot() != proposalRoot)
+            return;
+
+        mtTree.getAffectedRegion().set(tmin, tmax, nodes);
     }
 
     /* ***********************************************************************
@@ -21,7 +21,6 @@ import beast.base.core.Input;
 import beast.base.inference.parameter.BooleanParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 import java.util.ArrayList;
@@ -116,7 +115,7 @@ public class MultiTypeTreeScale extends MultiTypeTreeOperator {
     public double proposal() {
 
         // Choose scale factor:
-        double u = Randomizer.nextDouble();
+        double u = random.nextDouble();
         double f = u*scaleFactorInput.get()+(1.0-u)/scaleFactorInput.get();
 
         // Keep track of Hastings ratio:
@@ -19,8 +19,6 @@ package multitypetree.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -45,7 +43,7 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
     @Override
     public double proposal() {
         // Randomly select event on tree:
-        int event = Randomizer.nextInt(mtTree.getInternalNodeCount() + mtTree.getTotalNumberOfChanges());
+        int event = random.nextInt(mtTree.getInternalNodeCount() + mtTree.getTotalNumberOfChanges());
         
         
         MultiTypeNode node = null;
@@ -56,16 +54,8 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
                 return Double.NEGATIVE_INFINITY;
         } else {
             event -= mtTree.getInternalNodeCount();
-            for (Node thisNode : mtTree.getNodesAsArray()) {
-                if (thisNode.isRoot())
-                    continue;                
-                if (event<((MultiTypeNode)thisNode).getChangeCount()) {
-                    node = (MultiTypeNode)thisNode;
-                    changeIdx = event;
-                    break;
-                }
-                event -= ((MultiTypeNode)thisNode).getChangeCount();
-            }
+            node = mtTree.getChangeNode(event);
+            changeIdx = event - mtTree.getChangeOffset(node);
         }
         
         if (node == null)
@@ -77,13 +67,15 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
                 double tmin = Math.max(((MultiTypeNode)node.getLeft()).getFinalChangeTime(),
                         ((MultiTypeNode)node.getRight()).getFinalChangeTime());
                 
-                double u = Randomizer.nextDouble();
+                double u = random.nextDouble();
                 double f = u*rootScaleFactorInput.get()
                         + (1-u)/rootScaleFactorInput.get();
                 
-                double tnew = tmin + f*(node.getHeight()-tmin);
+                double told = node.getHeight();
+                double tnew = tmin + f*(told-tmin);
                 
                 node.setHeight(tnew);
+                setAffectedRegion(tmin, Math.max(told, tnew), node);
                 return -Math.log(f);
             } else {
                 // Reposition node randomly between closest events
@@ -94,10 +86,11 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
                         ? node.getChangeTime(0)
                         : node.getParent().getHeight();
                 
-                double u = Randomizer.nextDouble();
+                double u = random.nextDouble();
                 double tnew = u*tmin + (1.0-u)*tmax;
                 
                 node.setHeight(tnew);
+                setAffectedRegion(tmin, tmax, node);
                 return 0.0;
             }
         } else {
@@ -112,10 +105,11 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
             else
                 tmin = node.getChangeTime(changeIdx-1);
             
-            double u = Randomizer.nextDouble();
+            double u = random.nextDouble();
             double tnew = u*tmin + (1-u)*tmax;
             
             node.setChangeTime(changeIdx, tnew);
+            setAffectedRegion(tmin, tmax, node);
             return 0.0;
         }
         
@@ -18,7 +18,6 @@ package multitypetree.operators;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -34,7 +33,7 @@ public class NodeRetype extends UniformizationRetypeOperator {
         
         // Select node:
         Node node = mtTree.getNode(mtTree.getLeafNodeCount()
-                + Randomizer.nextInt(mtTree.getInternalNodeCount()));
+                + random.nextInt(mtTree.getInternalNodeCount()));
         
         // Record probability of current types along attached branches:
         if (!node.isRoot())
@@ -45,7 +44,7 @@ public class NodeRetype extends UniformizationRetypeOperator {
         
         // Select new node type:
         ((MultiTypeNode)node).setNodeType(
-            Randomizer.nextInt(migModel.getNTypes()));
+            random.nextInt(migModel.getNTypes()));
         
         // Retype attached branches:
         try {
@@ -57,7 +56,12 @@ public class NodeRetype extends UniformizationRetypeOperator {
         } catch (NoValidPathException e) {
             return Double.NEGATIVE_INFINITY;
         }
-        
+
+        // Only the node and its attached branches have changed:
+        setAffectedRegion(
+                Math.min(node.getLeft().getHeight(), node.getRight().getHeight()),
+                node.isRoot() ? node.getHeight() : node.getParent().getHeight(),
+                node, node.getLeft(), node.getRight());
         
         return logHR;
     }
@@ -19,7 +19,6 @@ package multitypetree.operators;
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -36,7 +35,7 @@ public class NodeRetypeRandom extends RandomRetypeOperator {
         // Select node:
         Node node;
         do {
-            node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            node = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
         } while (node.isLeaf());
         
         // Record probability of current types along attached branches:
@@ -47,7 +46,7 @@ public class NodeRetypeRandom extends RandomRetypeOperator {
                 + getBranchTypeProb(node.getRight());
         
         // Select new node type:
-        ((MultiTypeNode)node).setNodeType(Randomizer.nextInt(migModel.getNTypes()));
+        ((MultiTypeNode)node).setNodeType(random.nextInt(migModel.getNTypes()));
         
         // Retype attached branches, forcing reject if inconsistent:
         if (!node.isRoot()) {
@@ -19,7 +19,6 @@ package multitypetree.operators;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -59,7 +58,7 @@ public class NodeShiftRetypeRandom extends RandomRetypeOperator {
         else
             do {
                 node = mtTree.getNode(mtTree.getLeafNodeCount()
-                        + Randomizer.nextInt(mtTree.getInternalNodeCount()));
+                        + random.nextInt(mtTree.getInternalNodeCount()));
             } while (noRootInput.get() && node.isRoot());
         
                 
@@ -84,7 +83,7 @@ public class NodeShiftRetypeRandom extends RandomRetypeOperator {
                 + getBranchTypeProb(root.getRight());
         
         // Select new root height:
-        double u = Randomizer.nextDouble();
+        double u = random.nextDouble();
         double f = u*rootScaleFactorInput.get() + (1-u)/rootScaleFactorInput.get();
         double oldestChildHeight = Math.max(
                 root.getLeft().getHeight(),
@@ -93,7 +92,7 @@ public class NodeShiftRetypeRandom extends RandomRetypeOperator {
         logHR -= Math.log(f);
         
         // Select new root node colour:
-        ((MultiTypeNode)root).setNodeType(Randomizer.nextInt(migModel.getNTypes()));
+        ((MultiTypeNode)root).setNodeType(random.nextInt(migModel.getNTypes()));
         
         // Recolour branches below root:
         logHR -= retypeBranch(root.getLeft())
@@ -126,10 +125,10 @@ public class NodeShiftRetypeRandom extends RandomRetypeOperator {
         double lowerBound = Math.max(
                 node.getLeft().getHeight(),
                 node.getRight().getHeight());
-        node.setHeight(lowerBound+(upperBound-lowerBound)*Randomizer.nextDouble());
+        node.setHeight(lowerBound+(upperBound-lowerBound)*random.nextDouble());
         
         // Select new node colour:
-        ((MultiTypeNode)node).setNodeType(Randomizer.nextInt(migModel.getNTypes()));
+        ((MultiTypeNode)node).setNodeType(random.nextInt(migModel.getNTypes()));
         
         // Recolour branches connected to node:
         logHR -= retypeBranch(node)
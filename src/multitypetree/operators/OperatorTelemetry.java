@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import java.io.PrintStream;
+
+/**
+ * Running totals describing the cost and outcome of the proposals made by
+ * a single multi-type tree operator: time spent in the proposal itself and
+ * in the subsequent evaluation of the posterior, acceptance counts, early
+ * (-infinity) rejections broken down by reason, lengths of the migration
+ * paths drawn when retyping branches, and the numbers of type changes
+ * added to and removed from the tree.  Changes to the root height and type
+ * made by accepted proposals are also recorded, as a cheap indication of
+ * how well each operator mixes these quantities.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OperatorTelemetry {
+
+    /**
+     * Reasons for which a proposal may be abandoned before the posterior
+     * is evaluated.
+     */
+    public enum RejectReason {
+        NO_VALID_PATH("noValidPath"),
+        FB_FAILURE("fbFailure"),
+        MATRIX_EXP_FAILURE("matrixExpFailure"),
+        OTHER("other");
+
+        private final String label;
+
+        RejectReason(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return label used in logs and reports
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private long proposalCount, acceptCount, rejectCount;
+    private long proposalNanos, evaluationNanos;
+    private final long[] earlyRejectCounts = new long[RejectReason.values().length];
+    private long retypeCount, retypePathLengthSum;
+    private long changesAdded, changesRemoved;
+    private double sqRootHeightJumpSum;
+    private long rootTypeChangeCount;
+
+    // Reason noted during the current proposal, if any:
+    private RejectReason pendingReason = null;
+
+    // Root height and type changes made by the most recent proposal:
+    private double pendingRootHeightJump;
+    private boolean pendingRootTypeChange;
+
+    // Time at which the most recent proposal finished, or -1 if its
+    // outcome has already been recorded:
+    private long proposalEndTime = -1;
+
+    // True while moves which are not themselves proposals are being made:
+    private boolean suspended = false;
+
+    /**
+     * Record the reason the current proposal is about to be abandoned.
+     * Only the first reason noted during a proposal is kept.
+     *
+     * @param reason reason for rejection
+     */
+    public void noteRejectReason(RejectReason reason) {
+        if (!suspended && pendingReason == null)
+            pendingReason = reason;
+    }
+
+    /**
+     * Record the number of type changes on a newly drawn migration path.
+     *
+     * @param pathLength number of type changes on path
+     */
+    public void recordRetype(int pathLength) {
+        if (suspended)
+            return;
+
+        retypeCount += 1;
+        retypePathLengthSum += pathLength;
+    }
+
+    /**
+     * Ignore or resume recording retypes and rejection reasons.  Used
+     * by operators which apply their underlying moves to scratch trees
+     * while constructing a proposal.
+     *
+     * @param suspended true to ignore, false to resume
+     */
+    void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    /**
+     * Prepare to record a new proposal.
+     */
+    void beginProposal() {
+        pendingReason = null;
+    }
+
+    /**
+     * Record the completion of a proposal.
+     *
+     * @param nanos time taken by proposal
+     * @param logHR log Hastings ratio returned by proposal
+     * @param added number of type changes added to tree
+     * @param removed number of type changes removed from tree
+     * @param rootHeightJump change in root height
+     * @param rootTypeChange true if root type changed
+     */
+    void recordProposal(long nanos, double logHR, long added, long removed,
+            double rootHeightJump, boolean rootTypeChange) {
+        proposalCount += 1;
+        proposalNanos += nanos;
+
+        changesAdded += added;
+        changesRemoved += removed;
+
+        if (logHR == Double.NEGATIVE_INFINITY) {
+            RejectReason reason = pendingReason != null ? pendingReason : RejectReason.OTHER;
+            earlyRejectCounts[reason.ordinal()] += 1;
+        }
+        pendingReason = null;
+
+        pendingRootHeightJump = rootHeightJump;
+        pendingRootTypeChange = rootTypeChange;
+
+        proposalEndTime = System.nanoTime();
+    }
+
+    /**
+     * Record the outcome of the most recent proposal, attributing the time
+     * elapsed since it finished to evaluation of the posterior.
+     *
+     * @param accepted true if proposal was accepted
+     */
+    void recordOutcome(boolean accepted) {
+        if (accepted) {
+            acceptCount += 1;
+            sqRootHeightJumpSum += pendingRootHeightJump*pendingRootHeightJump;
+            if (pendingRootTypeChange)
+                rootTypeChangeCount += 1;
+        } else
+            rejectCount += 1;
+
+        if (proposalEndTime >= 0) {
+            evaluationNanos += System.nanoTime() - proposalEndTime;
+            proposalEndTime = -1;
+        }
+    }
+
+    /**
+     * @return number of proposals made
+     */
+    public long getProposalCount() {
+        return proposalCount;
+    }
+
+    /**
+     * @return number of proposals accepted
+     */
+    public long getAcceptCount() {
+        return acceptCount;
+    }
+
+    /**
+     * @return number of proposals rejected, including early rejections
+     */
+    public long getRejectCount() {
+        return rejectCount;
+    }
+
+    /**
+     * @return fraction of proposals accepted
+     */
+    public double getAcceptanceRate() {
+        long n = acceptCount + rejectCount;
+        return n > 0 ? acceptCount/(double)n : Double.NaN;
+    }
+
+    /**
+     * @return total time spent in proposals (ns)
+     */
+    public long getProposalNanos() {
+        return proposalNanos;
+    }
+
+    /**
+     * @return total time spent evaluating proposed states (ns)
+     */
+    public long getEvaluationNanos() {
+        return evaluationNanos;
+    }
+
+    /**
+     * @return total time spent in proposals and evaluation (ns)
+     */
+    public long getTotalNanos() {
+        return proposalNanos + evaluationNanos;
+    }
+
+    /**
+     * @return mean time per proposal, excluding evaluation (ns)
+     */
+    public double getMeanProposalNanos() {
+        return proposalCount > 0 ? proposalNanos/(double)proposalCount : Double.NaN;
+    }
+
+    /**
+     * @return mean time spent evaluating each proposed state (ns)
+     */
+    public double getMeanEvaluationNanos() {
+        long n = acceptCount + rejectCount;
+        return n > 0 ? evaluationNanos/(double)n : Double.NaN;
+    }
+
+    /**
+     * @return total proposal and evaluation time per accepted move (ns)
+     */
+    public double getNanosPerAccept() {
+        return acceptCount > 0
+                ? (proposalNanos + evaluationNanos)/(double)acceptCount
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param reason reason for rejection
+     * @return number of proposals abandoned for given reason
+     */
+    public long getEarlyRejectCount(RejectReason reason) {
+        return earlyRejectCounts[reason.ordinal()];
+    }
+
+    /**
+     * @return total number of proposals abandoned before evaluation
+     */
+    public long getEarlyRejectCount() {
+        long total = 0;
+        for (long count : earlyRejectCounts)
+            total += count;
+        return total;
+    }
+
+    /**
+     * @return mean number of type changes on newly drawn migration paths
+     */
+    public double getMeanRetypePathLength() {
+        return retypeCount > 0 ? retypePathLengthSum/(double)retypeCount : Double.NaN;
+    }
+
+    /**
+     * @return total number of type changes added to the tree by proposals
+     */
+    public long getChangesAdded() {
+        return changesAdded;
+    }
+
+    /**
+     * @return total number of type changes removed from the tree by proposals
+     */
+    public long getChangesRemoved() {
+        return changesRemoved;
+    }
+
+    /**
+     * @return sum of squared root height changes made by accepted proposals
+     */
+    public double getSquaredRootHeightJumpSum() {
+        return sqRootHeightJumpSum;
+    }
+
+    /**
+     * @return number of accepted proposals which changed the root type
+     */
+    public long getRootTypeChangeCount() {
+        return rootTypeChangeCount;
+    }
+
+    /**
+     * Write a human-readable summary.
+     *
+     * @param name name of operator
+     * @param out stream to write to
+     */
+    public void report(String name, PrintStream out) {
+        out.println(name + ":");
+        out.format("  proposals: %d, accepted: %d (%.4f)%n",
+                proposalCount, acceptCount, getAcceptanceRate());
+        out.format("  mean proposal time: %.3g us, mean evaluation time: %.3g us%n",
+                getMeanProposalNanos()/1e3, getMeanEvaluationNanos()/1e3);
+        out.format("  cost per accepted move: %.3g us%n", getNanosPerAccept()/1e3);
+
+        out.print("  early rejections: " + getEarlyRejectCount());
+        for (RejectReason reason : RejectReason.values()) {
+            if (getEarlyRejectCount(reason) > 0)
+                out.print(", " + reason.getLabel() + ": " + getEarlyRejectCount(reason));
+        }
+        out.println();
+
+        if (retypeCount > 0)
+            out.format("  mean retype path length: %.3g (%d paths)%n",
+                    getMeanRetypePathLength(), retypeCount);
+        out.println("  type changes added: " + changesAdded
+                + ", removed: " + changesRemoved);
+    }
+}
@@ -18,7 +18,6 @@ package multitypetree.operators;
 
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -57,12 +56,12 @@ public abstract class RandomRetypeOperator extends MultiTypeTreeOperator {
         while (t < t_srcNodeParent) {
 
             // Determine time to next migration event:
-            t += Randomizer.nextExponential(mu);
+            t += random.nextExponential(mu);
 
             if (t < t_srcNodeParent) {
 
                 // Select new colour:
-                int newType = Randomizer.nextInt(migModel.getNTypes() - 1);
+                int newType = random.nextInt(migModel.getNTypes() - 1);
                 if (newType >= lastType)
                     newType += 1;
                 ((MultiTypeNode)srcNode).addChange(newType, t);
@@ -71,6 +70,8 @@ public abstract class RandomRetypeOperator extends MultiTypeTreeOperator {
             }
         }
 
+        telemetry.recordRetype(((MultiTypeNode)srcNode).getChangeCount());
+
         // Return log of branch type probability:
         return -mu*(t_srcNodeParent - t_srcNode)
                 + ((MultiTypeNode)srcNode).getChangeCount()*Math.log(mu/(migModel.getNTypes()-1));
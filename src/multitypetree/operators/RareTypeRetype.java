@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import multitypetree.evolution.tree.MultiTypeNode;
+
+/**
+ * Retypes a branch selected by first choosing a type, with types visited
+ * by few branches favoured, and then choosing uniformly among the
+ * branches passing through that type.  The branches and their types are
+ * found using the per-type index maintained by the tree, so selection
+ * costs O(number of types) rather than O(number of nodes).
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Retypes a branch passing through a rarely visited type. "
+        + "Types are selected with probability proportional to "
+        + "n^(-exponent), where n is the number of branches passing "
+        + "through the type.  This variant uses the uniformization branch "
+        + "retyping procedure.")
+public class RareTypeRetype extends UniformizationRetypeOperator {
+
+    public Input<Double> exponentInput = new Input<>("exponent",
+            "Exponent controlling preference for rarely visited types. "
+            + "Zero selects visited types uniformly. (Default 1.)", 1.0);
+
+    private double[] typeWeights;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (exponentInput.get() < 0.0)
+            throw new IllegalArgumentException("RareTypeRetype exponent "
+                    + "must be non-negative.");
+
+        typeWeights = new double[migModel.getNTypes()];
+    }
+
+    @Override
+    public double proposal() {
+        double logHR = 0.0;
+
+        // Select type:
+        double totalWeight = computeTypeWeights();
+        if (totalWeight == 0.0)
+            return Double.NEGATIVE_INFINITY;
+
+        // (Only types with non-zero weight are candidates, so rounding
+        // in u can never select a type without non-root branches.)
+        int type = -1;
+        double u = random.nextDouble()*totalWeight;
+        for (int t=0; t<typeWeights.length; t++) {
+            if (typeWeights[t] == 0.0)
+                continue;
+
+            type = t;
+            u -= typeWeights[t];
+            if (u < 0)
+                break;
+        }
+
+        // Select non-root branch passing through type:
+        MultiTypeNode node;
+        do {
+            node = mtTree.getTypeBranchNode(type,
+                    random.nextInt(mtTree.getTypeBranchCount(type)));
+        } while (node.isRoot());
+
+        logHR -= Math.log(getSelectionProb(node, totalWeight));
+
+        // Retype branch:
+        logHR += getBranchTypeProb(node);
+        try {
+            logHR -= retypeBranch(node);
+        } catch (NoValidPathException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        setAffectedRegion(node.getHeight(), node.getParent().getHeight(), node);
+
+        // Probability of selecting the same branch in reverse move:
+        logHR += Math.log(getSelectionProb(node, computeTypeWeights()));
+
+        return logHR;
+    }
+
+    /**
+     * @param type type index
+     * @return number of non-root branches passing through type
+     */
+    private int getNonRootBranchCount(int type) {
+        int n = mtTree.getTypeBranchCount(type);
+        if (((MultiTypeNode)mtTree.getRoot()).getNodeType() == type)
+            n -= 1;
+
+        return n;
+    }
+
+    /**
+     * Compute unnormalized selection weights of each type.
+     *
+     * @return sum of weights
+     */
+    private double computeTypeWeights() {
+        double totalWeight = 0.0;
+        for (int type=0; type<typeWeights.length; type++) {
+            int n = getNonRootBranchCount(type);
+            typeWeights[type] = n > 0 ? Math.pow(n, -exponentInput.get()) : 0.0;
+            totalWeight += typeWeights[type];
+        }
+
+        return totalWeight;
+    }
+
+    /**
+     * Obtain probability of selecting the branch above a node, given
+     * current type weights.
+     *
+     * @param node non-root node
+     * @param totalWeight sum of type weights
+     * @return selection probability
+     */
+    private double getSelectionProb(MultiTypeNode node, double totalWeight) {
+        double prob = 0.0;
+        for (int type=0; type<typeWeights.length; type++) {
+            if (mtTree.getTypeSegmentCount(node, type) > 0)
+                prob += typeWeights[type]/totalWeight/getNonRootBranchCount(type);
+        }
+
+        return prob;
+    }
+}
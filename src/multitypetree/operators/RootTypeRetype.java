@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import multitypetree.evolution.tree.MultiTypeNode;
+import org.jblas.DoubleMatrix;
+
+/**
+ * Jointly resamples the type of the root and the type changes on both
+ * branches below it.  The new root type is drawn with probability
+ * proportional to the product of the probabilities of reaching it from
+ * the types of the two children under the migration process, obtained
+ * from the migration model's cached transition matrices, and the two
+ * branches are then retyped conditional on their end types.  This is the
+ * exact conditional distribution of the root typing under the migration
+ * process alone; the remaining structured coalescent terms enter through
+ * the acceptance probability.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Resamples the root type and the types of both branches "
+        + "below the root from their conditional distribution under the "
+        + "migration process.  This variant uses the uniformization branch "
+        + "retyping procedure.")
+public class RootTypeRetype extends UniformizationRetypeOperator {
+
+    private double[] rootTypeWeights;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        rootTypeWeights = new double[migModel.getNTypes()];
+    }
+
+    @Override
+    public double proposal() {
+        double logHR = 0.0;
+
+        MultiTypeNode root = (MultiTypeNode)mtTree.getRoot();
+        Node left = root.getLeft();
+        Node right = root.getRight();
+
+        // Step 1: compute conditional distribution of root type
+
+        double totalWeight = computeRootTypeWeights(root, left, right);
+        if (!(totalWeight > 0.0))
+            return Double.NEGATIVE_INFINITY;
+
+        // Step 2: record probability of current root typing
+
+        logHR += Math.log(rootTypeWeights[root.getNodeType()]/totalWeight)
+                + getBranchTypeProb(left) + getBranchTypeProb(right);
+
+        // Step 3: draw new root type
+
+        int newType;
+        double u = random.nextDouble()*totalWeight;
+        for (newType=0; newType<rootTypeWeights.length-1; newType++) {
+            u -= rootTypeWeights[newType];
+            if (u < 0)
+                break;
+        }
+        root.setNodeType(newType);
+
+        // Step 4: retype branches below root
+
+        logHR -= Math.log(rootTypeWeights[newType]/totalWeight);
+        try {
+            logHR -= retypeBranch(left) + retypeBranch(right);
+        } catch (NoValidPathException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        setAffectedRegion(Math.min(left.getHeight(), right.getHeight()),
+                root.getHeight(), root, left, right);
+
+        return logHR;
+    }
+
+    /**
+     * Compute unnormalized probabilities of each root type given the types
+     * of the root's children.  These are unaffected by the move, so the
+     * same weights apply to the reverse move.
+     *
+     * @param root root node
+     * @param left left child of root
+     * @param right right child of root
+     * @return sum of weights
+     */
+    private double computeRootTypeWeights(Node root, Node left, Node right) {
+        boolean sym = useSymmetrizedRatesInput.get();
+
+        DoubleMatrix Pleft = migModel.getTransitionMatrix(
+                left.getHeight(), root.getHeight(), sym);
+        DoubleMatrix Pright = migModel.getTransitionMatrix(
+                right.getHeight(), root.getHeight(), sym);
+
+        int leftType = ((MultiTypeNode)left).getNodeType();
+        int rightType = ((MultiTypeNode)right).getNodeType();
+
+        double totalWeight = 0.0;
+        for (int type=0; type<rootTypeWeights.length; type++) {
+            rootTypeWeights[type] = Pleft.get(leftType, type)
+                    *Pright.get(rightType, type);
+            totalWeight += rootTypeWeights[type];
+        }
+
+        return totalWeight;
+    }
+}
@@ -17,7 +17,6 @@
 package multitypetree.operators;
 
 import beast.base.core.Description;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 import java.util.HashSet;
@@ -46,7 +45,7 @@ public class SpecialTypeBirthDeath extends MultiTypeTreeOperator {
         MultiTypeNode right = (MultiTypeNode)root.getRight();
         
         // Select event:
-        int event = Randomizer.nextInt(mtTree.getTotalNumberOfChanges());
+        int event = random.nextInt(mtTree.getTotalNumberOfChanges());
         
         MultiTypeNode node, sister;
         int changeIdx;
@@ -62,13 +61,13 @@ public class SpecialTypeBirthDeath extends MultiTypeTreeOperator {
         
         // Implement birth or death
         double logHR;
-        boolean birth = Randomizer.nextBoolean();
+        boolean birth = random.nextBoolean();
         if (birth)
             logHR = birthProposal(node, changeIdx, sister);
         else
             logHR = deathProposal(node, changeIdx, sister);
         
-//        if (!birth && (logHR != Double.NEGATIVE_INFINITY) && (Randomizer.nextInt(10)==4)) {
+//        if (!birth && (logHR != Double.NEGATIVE_INFINITY) && (random.nextInt(10)==4)) {
 //            PrintStream outFile = null;
 //            try {
 //                outFile = new PrintStream("death_distrib.txt");
@@ -80,7 +79,7 @@ public class SpecialTypeBirthDeath extends MultiTypeTreeOperator {
 //                    left = (MultiTypeNode)root.getLeft();
 //                    right = (MultiTypeNode)root.getRight();
 //                    
-//                    //event = Randomizer.nextInt(mtTree.getTotalNumberOfChanges());
+//                    //event = random.nextInt(mtTree.getTotalNumberOfChanges());
 //                    if (event<left.getChangeCount()) {
 //                        node = left;
 //                        sister = right;
@@ -137,12 +136,12 @@ public class SpecialTypeBirthDeath extends MultiTypeTreeOperator {
         logHR -= Math.log(1.0/(Cbirth*mtTree.getTotalNumberOfChanges()*(tmax-tmin)));
 
         // Add new event:
-        double tnew = tmin + Randomizer.nextDouble()*(tmax-tmin);
+        double tnew = tmin + random.nextDouble()*(tmax-tmin);
         int aboveType = node.getChangeType(changeIdx);
         node.insertChange(changeIdx+1, aboveType, tnew);
         
         // Select and apply new type:
-        int n = Randomizer.nextInt(Cbirth);
+        int n = random.nextInt(Cbirth);
         int changeType;
         for (changeType = 0; changeType<migModel.getNTypes(); changeType++) {
             if (illegalTypesBirth.contains(changeType))
@@ -17,12 +17,10 @@
 package multitypetree.operators;
 
 import beast.base.core.Description;
-import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -32,13 +30,25 @@ import java.util.Set;
         + " in the published description by only recolouring on a birth.")
 public class TypeBirthDeath extends MultiTypeTreeOperator {
 
-    private Set<Integer> illegalTypes;
+    // Types which may not be assigned to the selected migration, and the
+    // remaining legal types:
+    private BitSet illegalTypes;
+    private int[] legalTypes;
+    
+    // Stack of (node, previous node) number pairs used when traversing
+    // regions of constant type:
+    private int[] nodeStack, prevNodeStack;
+    private int stackSize;
     
     @Override
     public void initAndValidate() {
         super.initAndValidate();
 
-        illegalTypes = new HashSet<>();
+        illegalTypes = new BitSet(migModel.getNTypes());
+        legalTypes = new int[migModel.getNTypes()];
+        
+        nodeStack = new int[mtTree.getNodeCount()];
+        prevNodeStack = new int[mtTree.getNodeCount()];
     }
     
     @Override
@@ -48,7 +58,7 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
             return Double.NEGATIVE_INFINITY;
         
         // Select event at random:
-        int event = Randomizer.nextInt(mtTree.getTotalNumberOfChanges()
+        int event = random.nextInt(mtTree.getTotalNumberOfChanges()
                 + mtTree.getInternalNodeCount()-1);
         
         MultiTypeNode node = null;
@@ -58,22 +68,12 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         
         else {
             event -= mtTree.getInternalNodeCount()-1;
-            for (Node thisNode : mtTree.getNodesAsArray()) {
-                if (thisNode.isRoot())
-                    continue;
-                
-                if (event < ((MultiTypeNode)thisNode).getChangeCount()) {
-                    node = (MultiTypeNode)thisNode;
-                    changeIdx = event;
-                    break;
-                }
-                
-                event -= ((MultiTypeNode)thisNode).getChangeCount();
-            }
+            node = mtTree.getChangeNode(event);
+            changeIdx = event - mtTree.getChangeOffset(node);
         }
 
         // Perform either birth or death move
-        if (Randomizer.nextBoolean())
+        if (random.nextBoolean())
             return birthMove(node, changeIdx);
         else
             return deathMove(node, changeIdx);
@@ -101,7 +101,7 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
                 : node.getChangeTime(changeIdx+1);
         
         // Draw new event time:
-        double tnew = tmin + (tmax-tmin)*Randomizer.nextDouble();
+        double tnew = tmin + (tmax-tmin)*random.nextDouble();
         
         // Get type above new change:
         int changeTypeAbove = changeIdx<0
@@ -112,14 +112,11 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         node.insertChange(changeIdx+1, changeTypeAbove, tnew);
         
         // Construct the set of illegal change types for the forward move:
-        try {
-            getIllegalTypes(changeIdx, node);
-        } catch (Exception ex) {
+        if (!getIllegalTypes(changeIdx, node))
             return Double.NEGATIVE_INFINITY;
-        }
         
         // Record number of legal change types in forward move for HR:
-        int Cbirth = migModel.getNTypes() - illegalTypes.size();
+        int Cbirth = migModel.getNTypes() - illegalTypes.cardinality();
         
         // No legal moves
         if (Cbirth == 0)
@@ -159,21 +156,19 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         // an edge below (node,changeIdx):
         illegalTypes.clear();
         if (changeIdx<0) {
-            try {
-                getIllegalTypesRecurse(illegalTypes, (MultiTypeNode)node, (MultiTypeNode)node.getParent());
-                if (illegalTypes.contains(changeTypeAbove))
-                    return Double.NEGATIVE_INFINITY;
-            } catch (Exception ex) {
-                // Subtree contains leaf
+            // Reject if subtree contains leaf:
+            if (!addRegionIllegalTypes(node, (MultiTypeNode)node.getParent()))
+                return Double.NEGATIVE_INFINITY;
+
+            if (illegalTypes.get(changeTypeAbove))
                 return Double.NEGATIVE_INFINITY;
-            }
         } else {
             if (changeIdx<1) {
-                illegalTypes.add(node.getNodeType());
+                illegalTypes.set(node.getNodeType());
                 if (node.getNodeType() == changeTypeAbove)
                     return Double.NEGATIVE_INFINITY;
             } else {
-                illegalTypes.add(node.getChangeType(changeIdx-1));
+                illegalTypes.set(node.getChangeType(changeIdx-1));
                 if (node.getChangeType(changeIdx-1) == changeTypeAbove)
                     return Double.NEGATIVE_INFINITY;
             }
@@ -181,10 +176,10 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         }
 
         // Ensure changeTypeAbove is in set of illegal change types for reverse move:
-        illegalTypes.add(changeTypeAbove);
+        illegalTypes.set(changeTypeAbove);
         
         // Record number of legal change types for reverse move HR
-        int Cbirth = migModel.getNTypes() - illegalTypes.size();
+        int Cbirth = migModel.getNTypes() - illegalTypes.cardinality();
         
         double tmin = changeIdx<0
                 ? node.getHeight()
@@ -214,14 +209,14 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
     }
     
     /**
-     * Populates illegalTypes set with types of subtree containing node and no
+     * Populates illegalTypes with types of subtree containing node and no
      * intervening migration events.
      * 
      * @param changeIdx Position of event r.
      * @param node Node on which event r sits.
-     * @throws Exception when subtree contains a leaf node.
+     * @return false if subtree contains a leaf node, true otherwise.
      */
-    public void getIllegalTypes(int changeIdx, MultiTypeNode node) throws Exception {
+    public boolean getIllegalTypes(int changeIdx, MultiTypeNode node) {
         illegalTypes.clear();
         
         if (changeIdx<0) {
@@ -229,86 +224,100 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
             
             if (startNode.getChangeCount()==0)
                 // Termiated at leaf: move would be irreversable
-                throw new Exception("Leaf in sub-tree.");
+                return false;
             
-            if (startNode.getChangeCount()==1)
-                illegalTypes.add(startNode.getNodeType());
-            else
-                illegalTypes.add(startNode.getChangeType(startNode.getChangeCount()-2));
+            illegalTypes.set(getTypeBelowFinalChange(startNode));
             
-            getIllegalTypesRecurse(illegalTypes,
-                    (MultiTypeNode)startNode.getParent(), startNode);
+            return addRegionIllegalTypes((MultiTypeNode)startNode.getParent(), startNode);
             
         } else {
             if (changeIdx==0) {
-                illegalTypes.add(node.getNodeType());
+                illegalTypes.set(node.getNodeType());
             } else {
-                illegalTypes.add(node.getChangeType(changeIdx-1));
+                illegalTypes.set(node.getChangeType(changeIdx-1));
             }
             
             if (changeIdx+1<node.getChangeCount()) {
-                illegalTypes.add(node.getChangeType(changeIdx+1));
+                illegalTypes.set(node.getChangeType(changeIdx+1));
+                return true;
             } else {
-                getIllegalTypesRecurse(illegalTypes,
-                        (MultiTypeNode)node.getParent(), node);
+                return addRegionIllegalTypes((MultiTypeNode)node.getParent(), node);
             }
         }
     }
     
     /**
-     * Recursive method used by getIllegalTypes.
+     * @return types found to be illegal by the last call to
+     * getIllegalTypes()
+     */
+    BitSet getIllegalTypeSet() {
+        return illegalTypes;
+    }
+    
+    /**
+     * Adds to illegalTypes the types immediately beyond the migration
+     * events bounding the region of constant type entered by moving from
+     * prevNode to node.  The region is traversed using an explicit stack.
      * 
-     * @param node
-     * @param prevNode 
+     * @param node first node in region
+     * @param prevNode node from which region is entered
+     * @return false if region contains a leaf node, true otherwise.
      */
-    private void getIllegalTypesRecurse(Set<Integer> illegalTypes,
-            MultiTypeNode node, MultiTypeNode prevNode) throws Exception {
+    private boolean addRegionIllegalTypes(MultiTypeNode node, MultiTypeNode prevNode) {
         
-        if (node.isLeaf())
-            throw new Exception("Leaf in sub-tree.");
+        stackSize = 0;
+        push(node, prevNode);
         
-        if (prevNode == node.getParent()) {
+        while (stackSize>0) {
+            stackSize -= 1;
+            node = (MultiTypeNode)mtTree.getNode(nodeStack[stackSize]);
+            prevNode = (MultiTypeNode)mtTree.getNode(prevNodeStack[stackSize]);
             
-            MultiTypeNode left = (MultiTypeNode)node.getLeft();
-            MultiTypeNode right = (MultiTypeNode)node.getRight();
+            if (node.isLeaf())
+                return false;
             
-            if (left.getChangeCount()>0) {
-                if (left.getChangeCount()>1)
-                    illegalTypes.add(left.getChangeType(left.getChangeCount()-2));
-                else
-                    illegalTypes.add(left.getNodeType());
+            if (prevNode == node.getParent()) {
+                addBranchIllegalType((MultiTypeNode)node.getLeft(), node);
+                addBranchIllegalType((MultiTypeNode)node.getRight(), node);
+            } else {
+                if (!node.isRoot()) {
+                    if (node.getChangeCount()>0)
+                        illegalTypes.set(node.getChangeType(0));
+                    else
+                        push((MultiTypeNode)node.getParent(), node);
+                }
                 
-            } else
-                getIllegalTypesRecurse(illegalTypes, left, node);
-            
-            if (right.getChangeCount()>0)
-                if (right.getChangeCount()>1)
-                    illegalTypes.add(right.getChangeType(right.getChangeCount()-2));
-                else
-                    illegalTypes.add(right.getNodeType());
-            else
-                getIllegalTypesRecurse(illegalTypes, right, node);
-            
-        } else {
-            
-            MultiTypeNode sister = (MultiTypeNode)getOtherChild(node, prevNode);
-            
-            if (!node.isRoot()) {
-                if (node.getChangeCount()>0)
-                    illegalTypes.add(node.getChangeType(0));
-                else
-                    getIllegalTypesRecurse(illegalTypes, (MultiTypeNode)node.getParent(), node);
+                addBranchIllegalType((MultiTypeNode)getOtherChild(node, prevNode), node);
             }
-
-            if (sister.getChangeCount()>0) {
-                if (sister.getChangeCount()>1)
-                    illegalTypes.add(sister.getChangeType(sister.getChangeCount()-2));
-                else
-                    illegalTypes.add(sister.getNodeType());
-            } else
-                getIllegalTypesRecurse(illegalTypes, sister, node);
         }
         
+        return true;
+    }
+    
+    /**
+     * Adds to illegalTypes the type below the final migration on the
+     * branch above child, or queues child for traversal if the branch
+     * contains no migrations.
+     * 
+     * @param child child node
+     * @param node parent of child
+     */
+    private void addBranchIllegalType(MultiTypeNode child, MultiTypeNode node) {
+        if (child.getChangeCount()>0)
+            illegalTypes.set(getTypeBelowFinalChange(child));
+        else
+            push(child, node);
+    }
+    
+    /**
+     * @param node node with at least one type change above it
+     * @return type on branch above node immediately below final change
+     */
+    private int getTypeBelowFinalChange(MultiTypeNode node) {
+        if (node.getChangeCount()>1)
+            return node.getChangeType(node.getChangeCount()-2);
+        else
+            return node.getNodeType();
     }
     
     /**
@@ -323,56 +332,80 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         if (changeIdx<0) {
             MultiTypeNode startNode = findDecendentNodeWithMigration((MultiTypeNode)node.getLeft());
             startNode.setChangeType(startNode.getChangeCount()-1, changeType);
-            retypeSubtreeRecurse(changeType, (MultiTypeNode)startNode.getParent(), startNode);
+            retypeRegion(changeType, (MultiTypeNode)startNode.getParent(), startNode);
         } else {
             node.setChangeType(changeIdx, changeType);
             if (changeIdx+1>=node.getChangeCount())
-                retypeSubtreeRecurse(changeType, (MultiTypeNode)node.getParent(), node);
+                retypeRegion(changeType, (MultiTypeNode)node.getParent(), node);
         }
     }
     
     /**
-     * Assigns a new type to all branches within the subtree attached to node.
+     * Assigns a new type to all branches within the region of constant
+     * type entered by moving from prevNode to node.  The region is
+     * traversed using an explicit stack.
      * 
      * @param type
      * @param node
      * @param prevNode 
      */
-    private void retypeSubtreeRecurse(int type, MultiTypeNode node, MultiTypeNode prevNode) {
-        if (node.isLeaf())
-            throw new IllegalArgumentException("Leaf attached to subtree: cannot retype!");
+    private void retypeRegion(int type, MultiTypeNode node, MultiTypeNode prevNode) {
         
-        node.setNodeType(type);
+        stackSize = 0;
+        push(node, prevNode);
         
-        if (prevNode == node.getParent()) {
-                        
-            MultiTypeNode left = (MultiTypeNode)node.getLeft();
-            MultiTypeNode right = (MultiTypeNode)node.getRight();
-            
-            if (left.getChangeCount()>0)
-                left.setChangeType(left.getChangeCount()-1, type);
-            else
-                retypeSubtreeRecurse(type, left, node);
-            
-            if (right.getChangeCount()>0)
-                right.setChangeType(right.getChangeCount()-1, type);
-            else
-                retypeSubtreeRecurse(type, right, node);
-            
-        } else {
+        while (stackSize>0) {
+            stackSize -= 1;
+            node = (MultiTypeNode)mtTree.getNode(nodeStack[stackSize]);
+            prevNode = (MultiTypeNode)mtTree.getNode(prevNodeStack[stackSize]);
             
-            MultiTypeNode sister = (MultiTypeNode)getOtherChild(node, prevNode);
+            if (node.isLeaf())
+                throw new IllegalArgumentException("Leaf attached to subtree: cannot retype!");
             
-            if (!node.isRoot() && node.getChangeCount()==0)
-                retypeSubtreeRecurse(type, (MultiTypeNode)node.getParent(), node);
-
-            if (sister.getChangeCount()>0)
-                sister.setChangeType(sister.getChangeCount()-1, type);
-            else
-                retypeSubtreeRecurse(type, sister, node);
+            node.setNodeType(type);
             
+            if (prevNode == node.getParent()) {
+                retypeBranchEnd((MultiTypeNode)node.getLeft(), node, type);
+                retypeBranchEnd((MultiTypeNode)node.getRight(), node, type);
+            } else {
+                if (!node.isRoot() && node.getChangeCount()==0)
+                    push((MultiTypeNode)node.getParent(), node);
+                
+                retypeBranchEnd((MultiTypeNode)getOtherChild(node, prevNode), node, type);
+            }
         }
-            
+    }
+    
+    /**
+     * Sets the type above the final migration on the branch above child,
+     * or queues child for retyping if the branch contains no migrations.
+     * 
+     * @param child child node
+     * @param node parent of child
+     * @param type new type
+     */
+    private void retypeBranchEnd(MultiTypeNode child, MultiTypeNode node, int type) {
+        if (child.getChangeCount()>0)
+            child.setChangeType(child.getChangeCount()-1, type);
+        else
+            push(child, node);
+    }
+    
+    /**
+     * Push a (node, previous node) pair onto the traversal stack.
+     * 
+     * @param node
+     * @param prevNode 
+     */
+    private void push(MultiTypeNode node, MultiTypeNode prevNode) {
+        if (stackSize == nodeStack.length) {
+            nodeStack = Arrays.copyOf(nodeStack, 2*stackSize+1);
+            prevNodeStack = Arrays.copyOf(prevNodeStack, 2*stackSize+1);
+        }
+        
+        nodeStack[stackSize] = node.getNr();
+        prevNodeStack[stackSize] = prevNode.getNr();
+        stackSize += 1;
     }
     
     /**
@@ -382,10 +415,10 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
      * @return leaf node or node with a migration event on it.
      */
     private MultiTypeNode findDecendentNodeWithMigration(MultiTypeNode node) {
-        if (node.isLeaf() || node.getChangeCount()>0)
-            return node;
-        else
-            return findDecendentNodeWithMigration((MultiTypeNode)node.getLeft());
+        while (!node.isLeaf() && node.getChangeCount()==0)
+            node = (MultiTypeNode)node.getLeft();
+        
+        return node;
     }
     
     
@@ -396,17 +429,12 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
      * @return chosen type
      */
     private int selectLegalChangeType() {
-        int n = Randomizer.nextInt(migModel.getNTypes()- illegalTypes.size());
-        int changeType;
-        for (changeType=0; changeType<migModel.getNTypes(); changeType++) {
-            if (illegalTypes.contains(changeType))
-                continue;
-            if (n==0)
-                break;
-            n -= 1;
-        }
+        int nLegal = 0;
+        for (int type=illegalTypes.nextClearBit(0); type<migModel.getNTypes();
+                type=illegalTypes.nextClearBit(type+1))
+            legalTypes[nLegal++] = type;
         
-        return changeType;
+        return legalTypes[random.nextInt(nLegal)];
     }
     
 }
@@ -19,7 +19,6 @@ package multitypetree.operators;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -37,11 +36,11 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         Node node;
         do {
             node = mtTree.getNode(mtTree.getLeafNodeCount()
-                    + Randomizer.nextInt(mtTree.getInternalNodeCount()));
+                    + random.nextInt(mtTree.getInternalNodeCount()));
         } while (!includeRootInput.get() && node.isRoot());
         
         // Randomly select a merge or split proposal:
-        if (Randomizer.nextDouble()<0.5) {
+        if (random.nextDouble()<0.5) {
             if (node.isRoot())
                 return splitProposalRoot();
             else
@@ -78,11 +77,11 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         // Select new change times:
         
         double tminLeft = ((MultiTypeNode)node.getLeft()).getFinalChangeTime();
-        double tnewLeft = (node.getHeight()-tminLeft)*Randomizer.nextDouble()
+        double tnewLeft = (node.getHeight()-tminLeft)*random.nextDouble()
                 + tminLeft;
         
         double tminRight = ((MultiTypeNode)node.getRight()).getFinalChangeTime();
-        double tnewRight = (node.getHeight()-tminRight)*Randomizer.nextDouble()
+        double tnewRight = (node.getHeight()-tminRight)*random.nextDouble()
                 + tminRight;
         
         // Record time of first migration or coalescence above node
@@ -96,6 +95,8 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         // Add new changes below node:
         ((MultiTypeNode)node.getLeft()).addChange(type, tnewLeft);
         ((MultiTypeNode)node.getRight()).addChange(type, tnewRight);
+        setAffectedRegion(Math.min(tminLeft, tminRight), tmax,
+                node, node.getLeft(), node.getRight());
         
         return Math.log((node.getHeight()-tminRight)*(node.getHeight()-tminLeft))
                 - Math.log(tmax-node.getHeight());
@@ -109,7 +110,7 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         int oldType = ((MultiTypeNode)root).getNodeType();
         int type;
         do {
-            type = Randomizer.nextInt(migModel.getNTypes());
+            type = random.nextInt(migModel.getNTypes());
         } while (type == oldType);
         
         // Update node type:
@@ -118,16 +119,18 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         // Select new change times:
         
         double tminLeft = ((MultiTypeNode)root.getLeft()).getFinalChangeTime();
-        double tnewLeft = (root.getHeight()-tminLeft)*Randomizer.nextDouble()
+        double tnewLeft = (root.getHeight()-tminLeft)*random.nextDouble()
                 + tminLeft;
         
         double tminRight = ((MultiTypeNode)root.getRight()).getFinalChangeTime();
-        double tnewRight = (root.getHeight()-tminRight)*Randomizer.nextDouble()
+        double tnewRight = (root.getHeight()-tminRight)*random.nextDouble()
                 + tminRight;
        
         // Add new changes below node:
         ((MultiTypeNode)root.getLeft()).addChange(type, tnewLeft);
         ((MultiTypeNode)root.getRight()).addChange(type, tnewRight);
+        setAffectedRegion(Math.min(tminLeft, tminRight), root.getHeight(),
+                root, root.getLeft(), root.getRight());
         
         return Math.log((root.getHeight()-tminRight)*(root.getHeight()-tminLeft)
                 *(migModel.getNTypes()-1));
@@ -192,10 +195,12 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         right.removeChange(rightIdx);        
         mtNode.setNodeType(leftTypeUnder);
         
-        double tnew = Randomizer.nextDouble()*(tmax-node.getHeight())
+        double tnew = random.nextDouble()*(tmax-node.getHeight())
                 + node.getHeight();
         
         mtNode.insertChange(0, leftType, tnew);
+        setAffectedRegion(Math.min(tminLeft, tminRight), tmax,
+                node, left, right);
         
         return Math.log(tmax-node.getHeight())
                 - Math.log((node.getHeight()-tminLeft)*(node.getHeight()-tminRight));
@@ -247,6 +252,8 @@ public class TypeMergeSplit extends MultiTypeTreeOperator {
         left.removeChange(leftIdx);
         right.removeChange(rightIdx);        
         root.setNodeType(leftTypeUnder);
+        setAffectedRegion(Math.min(tminLeft, tminRight), root.getHeight(),
+                root, left, right);
         
         return -Math.log((root.getHeight()-tminRight)*(root.getHeight()-tminLeft)
                 *(migModel.getNTypes()-1));
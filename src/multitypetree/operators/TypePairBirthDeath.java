@@ -18,7 +18,6 @@ package multitypetree.operators;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -34,7 +33,7 @@ public class TypePairBirthDeath extends MultiTypeTreeOperator {
         int m = mtTree.getTotalNumberOfChanges();
         
         // Select sub-edge at random:
-        int edgeNum = Randomizer.nextInt(2*n - 2 + m);
+        int edgeNum = random.nextInt(2*n - 2 + m);
         
         // Find edge that sub-edge lies on:
         Node selectedNode = null;
@@ -50,7 +49,7 @@ public class TypePairBirthDeath extends MultiTypeTreeOperator {
         }
         
         // Complete either pair birth or pair death proposal:
-        if (Randomizer.nextDouble()<0.5)
+        if (random.nextDouble()<0.5)
             return birthProposal(selectedNode, edgeNum, n, m);
         else
             return deathProposal(selectedNode, edgeNum, n, m);
@@ -90,16 +89,17 @@ public class TypePairBirthDeath extends MultiTypeTreeOperator {
 
         int newEdgeType;
         do {
-            newEdgeType = Randomizer.nextInt(migModel.getNTypes());
+            newEdgeType = random.nextInt(migModel.getNTypes());
         } while (newEdgeType == oldEdgeType);
         
-        double tau1 = Randomizer.nextDouble()*(tr-ts) + ts;
-        double tau2 = Randomizer.nextDouble()*(tr-ts) + ts;
+        double tau1 = random.nextDouble()*(tr-ts) + ts;
+        double tau2 = random.nextDouble()*(tr-ts) + ts;
         double tauMin = Math.min(tau1, tau2);
         double tauMax = Math.max(tau1, tau2);
         
         mtNode.insertChange(edgeNum, oldEdgeType, tauMax);
         mtNode.insertChange(edgeNum, newEdgeType, tauMin);
+        setAffectedRegion(ts, tr, node);
         
         return Math.log((migModel.getNTypes()-1)*(m + 2*n - 2)*(tr-ts)*(tr-ts))
                 - Math.log(2*(m + 2*n));
@@ -146,6 +146,7 @@ public class TypePairBirthDeath extends MultiTypeTreeOperator {
         
         mtNode.removeChange(idx);
         mtNode.removeChange(idx);
+        setAffectedRegion(ts, tr, node);
         
         return Math.log(2*(m + 2*n - 2))
                 - Math.log((migModel.getNTypes()-1)*(m+2*n-4)*(tr-ts)*(tr-ts));
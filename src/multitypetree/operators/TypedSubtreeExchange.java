@@ -19,7 +19,6 @@ package multitypetree.operators;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -44,7 +43,7 @@ public class TypedSubtreeExchange extends UniformizationRetypeOperator {
             
             // Narrow exchange selection:
             do {
-                srcNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+                srcNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
             } while (srcNode.isRoot() || srcNode.getParent().isRoot());
             srcNodeParent = srcNode.getParent();            
             destNode = getOtherChild(srcNodeParent.getParent(), srcNodeParent);
@@ -54,12 +53,12 @@ public class TypedSubtreeExchange extends UniformizationRetypeOperator {
             
             // Wide exchange selection:
             do {
-                srcNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+                srcNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
             } while (srcNode.isRoot());
             srcNodeParent = srcNode.getParent();
             
             do {
-                destNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+                destNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
             } while(destNode == srcNode
                     || destNode.isRoot()
                     || destNode.getParent() == srcNode.getParent());
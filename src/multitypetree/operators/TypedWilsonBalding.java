@@ -21,7 +21,6 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.State;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -60,8 +59,20 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
         // Select source node:
         Node srcNode;
         do {
-            srcNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            srcNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
         } while (invalidSrcNode(srcNode));
+
+        return moveSubtree(srcNode);
+    }
+
+    /**
+     * Detach the subtree below srcNode, reattach it to a randomly selected
+     * destination branch and retype the new branches.
+     *
+     * @param srcNode root of subtree to move
+     * @return log of Hastings ratio
+     */
+    protected double moveSubtree(Node srcNode) {
         Node srcNodeP = srcNode.getParent();
         Node srcNodeS = getOtherChild(srcNodeP, srcNode);
         double t_srcNode = srcNode.getHeight();
@@ -71,7 +82,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
         // Select destination branch node:
         Node destNode;
         do {
-            destNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            destNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
         } while (invalidDestNode(srcNode, destNode));
         Node destNodeP = destNode.getParent();
         double t_destNode = destNode.getHeight();
@@ -90,7 +101,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
             double t_srcNodeG = srcNodeP.getParent().getHeight();
 
             // Choose new root height:
-            double newTime = t_destNode+Randomizer.nextExponential(1.0/(alpha*t_destNode));
+            double newTime = t_destNode+random.nextExponential(1.0/(alpha*t_destNode));
 
             // Implement tree changes:
             disconnectBranch(srcNode);
@@ -127,7 +138,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
             double min_newTime = Math.max(t_srcNode, t_destNode);
             double t_destNodeP = destNodeP.getHeight();
             double span = t_destNodeP-min_newTime;
-            double newTime = min_newTime+span*Randomizer.nextDouble();
+            double newTime = min_newTime+span*random.nextDouble();
 
             // Implement tree changes:
             disconnectBranchFromRoot(srcNode);
@@ -164,7 +175,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
         double min_newTime = Math.max(t_destNode, t_srcNode);
         double t_destNodeP = destNodeP.getHeight();
         double span = t_destNodeP-min_newTime;
-        double newTime = min_newTime+span*Randomizer.nextDouble();
+        double newTime = min_newTime+span*random.nextDouble();
 
         // Implement tree changes:
         disconnectBranch(srcNode);
@@ -190,7 +201,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
      * @param srcNode
      * @return True if srcNode invalid.
      */
-    private boolean invalidSrcNode(Node srcNode) {
+    protected boolean invalidSrcNode(Node srcNode) {
 
         if (srcNode.isRoot())
             return true;
@@ -251,7 +262,7 @@ public class TypedWilsonBalding extends UniformizationRetypeOperator {
         Node srcNodeS = getOtherChild(srcNodeP, srcNode);
 
         // Select new root colour:
-        ((MultiTypeNode)srcNodeP).setNodeType(Randomizer.nextInt(migModel.getNTypes()));
+        ((MultiTypeNode)srcNodeP).setNodeType(random.nextInt(migModel.getNTypes()));
         
         // Incorporate probability of new root colour:
         logProb += Math.log(1.0/migModel.getNTypes());
@@ -19,7 +19,6 @@ package multitypetree.operators;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
 /**
@@ -55,7 +54,7 @@ public class TypedWilsonBaldingEasy extends MultiTypeTreeOperator {
         // Select source node:
         Node srcNode;
         do {
-            srcNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            srcNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
         } while (invalidSrcNode(srcNode));
         Node srcNodeP = srcNode.getParent();
         Node srcNodeS = getOtherChild(srcNodeP, srcNode);
@@ -66,7 +65,7 @@ public class TypedWilsonBaldingEasy extends MultiTypeTreeOperator {
         // Select destination branch node:
         Node destNode;
         do {
-            destNode = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            destNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
         } while (invalidDestNode(srcNode, destNode));
         Node destNodeP = destNode.getParent();
         double t_destNode = destNode.getHeight();
@@ -80,7 +79,7 @@ public class TypedWilsonBaldingEasy extends MultiTypeTreeOperator {
             double t_srcNodeG = srcNodeP.getParent().getHeight();
 
             // Choose new root height:
-            double newTime = t_destNode+Randomizer.nextExponential(1.0/(alpha*t_destNode));
+            double newTime = t_destNode+random.nextExponential(1.0/(alpha*t_destNode));
 
             // Implement tree changes:
             disconnectBranch(srcNode);
@@ -125,7 +124,7 @@ public class TypedWilsonBaldingEasy extends MultiTypeTreeOperator {
             double min_newTime = Math.max(t_srcNode, t_destNode);
             double t_destNodeP = destNodeP.getHeight();
             double span = t_destNodeP-min_newTime;
-            double newTime = min_newTime+span*Randomizer.nextDouble();
+            double newTime = min_newTime+span*random.nextDouble();
 
             // Implement tree changes:
             disconnectBranchFromRoot(srcNode);
@@ -159,7 +158,7 @@ public class TypedWilsonBaldingEasy extends MultiTypeTreeOperator {
         double min_newTime = Math.max(t_destNode, t_srcNode);
         double t_destNodeP = destNodeP.getHeight();
         double span = t_destNodeP-min_newTime;
-        double newTime = min_newTime+span*Randomizer.nextDouble();
+        double newTime = min_newTime+span*random.nextDouble();
 
         // Implement tree changes:
         disconnectBranch(srcNode);
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiple-try Metropolis version of the typed Wilson-Balding move.  Each
+ * proposal draws several candidate destinations and typings for the same
+ * subtree, weights them by the structured coalescent density, and selects
+ * one.  A matching set of reference states is drawn from the selected
+ * candidate so that the move satisfies detailed balance.
+ *
+ * Candidates are weighted using w(y,x) = pi(y) sqrt(q(y,x)/q(x,y)), where
+ * pi is the structured coalescent density and q the proposal density of
+ * the underlying move.  Because the weights use only the tree prior, the
+ * returned Hastings ratio divides out pi(y)/pi(x), leaving the full
+ * posterior ratio to be applied by the MCMC.
+ *
+ * Candidates are generated sequentially (so results depend only on the
+ * random number stream) and stored in scratch copies of the tree.  The
+ * density of each copy is then evaluated by a pool of worker threads.
+ * The pool is created when first needed and its threads exit after a
+ * short idle period, so an operator which is no longer used holds no
+ * threads.  shutdown() releases the pool immediately.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Multiple-try Metropolis version of TypedWilsonBalding, "
+        + "with candidates scored in parallel under the structured "
+        + "coalescent.")
+@Citation("Liu, Liang and Wong, JASA 95:121 (2000).")
+public class TypedWilsonBaldingMTM extends TypedWilsonBalding {
+
+    public Input<Integer> triesInput = new Input<>("tries",
+            "Number of candidate states drawn per proposal. (Default 4.)", 4);
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads used to score candidates. (Default 1.)", 1);
+
+    private int nTries;
+
+    // Scratch trees and densities.  Slots 0 to nTries-1 hold candidates
+    // and reference states, the final slot holds the current state:
+    private MultiTypeTree[] scratchTrees;
+    private StructuredCoalescentTreeDensity[] scratchDensities;
+    private double[] logHRs, logPs;
+    private boolean[] scoreSlot;
+    private long[] seeds;
+
+    // Seconds for which idle worker threads are kept:
+    private static final long THREAD_KEEP_ALIVE = 1;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        shutdown();
+
+        if (!(migModel instanceof SCMigrationModel))
+            throw new IllegalArgumentException("TypedWilsonBaldingMTM operator "
+                    + "only applies to structured coalescent migration models.");
+
+        nTries = triesInput.get();
+        if (nTries < 1)
+            throw new IllegalArgumentException("TypedWilsonBaldingMTM requires "
+                    + "at least one try per proposal.");
+
+        if (threadsInput.get() < 1)
+            throw new IllegalArgumentException("TypedWilsonBaldingMTM requires "
+                    + "at least one thread.");
+
+        scratchTrees = new MultiTypeTree[nTries+1];
+        scratchDensities = new StructuredCoalescentTreeDensity[nTries+1];
+        for (int i=0; i<=nTries; i++) {
+            scratchTrees[i] = new MultiTypeTree(mtTree.getRoot().copy());
+            scratchDensities[i] = new StructuredCoalescentTreeDensity();
+            scratchDensities[i].initByName(
+                    "migrationModel", migModel,
+                    "multiTypeTree", scratchTrees[i],
+                    "localUpdates", false);
+        }
+
+        logHRs = new double[nTries+1];
+        logPs = new double[nTries+1];
+        scoreSlot = new boolean[nTries+1];
+        seeds = new long[nTries];
+    }
+
+    /**
+     * Stop the threads used to score candidates.  Subsequent proposals
+     * start a new pool if one is required.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public double proposal() {
+        // Check that operator can be applied to tree:
+        if (mtTree.getLeafNodeCount()<3)
+            throw new IllegalStateException("Tree too small for"
+                    +" TypedWilsonBaldingMTM operator.");
+
+        // Select source node:
+        Node srcNode;
+        do {
+            srcNode = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
+        } while (invalidSrcNode(srcNode));
+        int srcNr = srcNode.getNr();
+
+        // Step 1: draw candidates from the current state and score them
+        // together with the current state itself
+
+        for (int i=0; i<nTries; i++) {
+            seeds[i] = random.nextLong();
+            scratchTrees[i].assignFromFragile(mtTree);
+            logHRs[i] = moveSubtree(scratchTrees[i], srcNr, seeds[i]);
+            scoreSlot[i] = logHRs[i] > Double.NEGATIVE_INFINITY;
+        }
+        scratchTrees[nTries].assignFromFragile(mtTree);
+        scoreSlot[nTries] = true;
+        scoreSlots();
+
+        double logPCurrent = logPs[nTries];
+        scoreSlot[nTries] = false;
+        double logWForward = logSumWeights();
+        if (logWForward == Double.NEGATIVE_INFINITY
+                || logPCurrent == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        // Step 2: select a candidate with probability proportional to its
+        // weight
+
+        int sel = 0;
+        double u = random.nextDouble();
+        for (int i=0; i<nTries; i++) {
+            if (!scoreSlot[i])
+                continue;
+
+            sel = i;
+            u -= Math.exp(logWeight(i) - logWForward);
+            if (u<0)
+                break;
+        }
+        double logHRSel = logHRs[sel];
+        double logPSel = logPs[sel];
+
+        // Step 3: draw reference states from the selected candidate.  The
+        // current state is the final reference state.
+
+        for (int i=0; i<nTries; i++) {
+            if (i == sel) {
+                scoreSlot[i] = false;
+                continue;
+            }
+
+            scratchTrees[i].assignFromFragile(scratchTrees[sel]);
+            logHRs[i] = moveSubtree(scratchTrees[i], srcNr, random.nextLong());
+            scoreSlot[i] = logHRs[i] > Double.NEGATIVE_INFINITY;
+        }
+        scoreSlots();
+
+        logHRs[nTries] = -logHRSel;
+        logPs[nTries] = logPCurrent;
+        scoreSlot[nTries] = true;
+        double logWReverse = logSumWeights();
+
+        // Step 4: apply selected candidate to the tree by replaying its
+        // random number stream
+
+        double logHR = moveSubtree(mtTree, srcNr, seeds[sel]);
+        if (logHR == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        return logWForward - logWReverse - logPSel + logPCurrent;
+    }
+
+    /**
+     * Apply the underlying Wilson-Balding move to a given tree using a
+     * random number stream with a given seed.
+     *
+     * @param tree tree to modify
+     * @param srcNr number of root of subtree to move
+     * @param seed seed of random number stream
+     * @return log of Hastings ratio of underlying move
+     */
+    private double moveSubtree(MultiTypeTree tree, int srcNr, long seed) {
+        MultiTypeTree origTree = mtTree;
+        RandomSource origRandom = random;
+
+        // Only the move applied to the tree itself is part of the proposal:
+        boolean scratch = tree != origTree;
+
+        mtTree = tree;
+        random = new RandomStream(seed);
+        if (scratch)
+            telemetry.setSuspended(true);
+        try {
+            return moveSubtree(tree.getNode(srcNr));
+        } finally {
+            mtTree = origTree;
+            random = origRandom;
+            if (scratch)
+                telemetry.setSuspended(false);
+        }
+    }
+
+    /**
+     * @param i slot index
+     * @return log of MTM weight of state in slot
+     */
+    private double logWeight(int i) {
+        return logPs[i] + 0.5*logHRs[i];
+    }
+
+    /**
+     * @return log of sum of MTM weights of scored slots
+     */
+    private double logSumWeights() {
+        double maxLogW = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<=nTries; i++) {
+            if (scoreSlot[i])
+                maxLogW = Math.max(maxLogW, logWeight(i));
+        }
+
+        if (maxLogW == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        double sum = 0.0;
+        for (int i=0; i<=nTries; i++) {
+            if (scoreSlot[i])
+                sum += Math.exp(logWeight(i) - maxLogW);
+        }
+
+        return maxLogW + Math.log(sum);
+    }
+
+    /**
+     * Evaluate the structured coalescent density of the scratch trees in
+     * each slot marked for scoring, in parallel if threads are available.
+     * Slots not marked are given a density of zero.
+     */
+    private void scoreSlots() {
+        if (threadsInput.get() == 1) {
+            for (int i=0; i<=nTries; i++)
+                logPs[i] = scoreSlot[i]
+                        ? scratchDensities[i].calculateLogP()
+                        : Double.NEGATIVE_INFINITY;
+            return;
+        }
+
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(threadsInput.get(), threadsInput.get(),
+                    THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i=0; i<=nTries; i++) {
+            if (!scoreSlot[i]) {
+                logPs[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+
+            int slot = i;
+            futures.add(executor.submit(() -> {
+                logPs[slot] = scratchDensities[slot].calculateLogP();
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Candidate scoring interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error during candidate scoring: "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -20,15 +20,15 @@ import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.operators.OperatorTelemetry.RejectReason;
+import org.jblas.DoubleMatrix;
 
 import java.io.PrintStream;
 import java.util.Arrays;
-import org.jblas.MatrixFunctions;
 
 /**
  * Abstract class of operators on MultiTypeTrees which use the Fearnhead-Sherlock
@@ -76,7 +76,7 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         
         int nVirt = 0;
 
-        double u = Randomizer.nextDouble();
+        double u = random.nextDouble();
         double P_low_given_ab = 0.0;
         double acc = - muL - Math.log(Pba);
         double log_muL = Math.log(muL);
@@ -98,7 +98,7 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         // P_n_given_ab constant for n>= thresh: only need
         // to sample P(n|n>=thresh)
         do {
-            nVirt = (int) Randomizer.nextPoisson(muL);
+            nVirt = random.nextPoisson(muL);
         } while (nVirt < thresh);
 
         return nVirt;
@@ -109,6 +109,12 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
      * uniformization/forward-backward approach of Fearnhead and Sherlock (2006)
      * to condition on both the beginning and end states.
      *
+     * Where the branch crosses epoch boundaries of the migration model,
+     * the types at the boundaries are first drawn from their distribution
+     * conditional on the types at both ends of the branch.  The portion
+     * of the branch within each epoch is then retyped separately using
+     * that epoch's rates.
+     *
      * @param srcNode
      * @return Probability of new state.
      * @throws multitypetree.operators.UniformizationRetypeOperator.NoValidPathException
@@ -121,31 +127,174 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         double t_srcNode = srcNode.getHeight();
         double t_srcNodeP = srcNodeP.getHeight();
 
-        double L = t_srcNodeP-t_srcNode;
-
         int type_srcNode = ((MultiTypeNode)srcNode).getNodeType();
         int type_srcNodeP = ((MultiTypeNode)srcNodeP).getNodeType();
 
+        int firstEpoch = migModel.getEpochIndex(t_srcNode);
+        int lastEpoch = migModel.getEpochIndex(t_srcNodeP);
+
         // Pre-calculate some stuff:
-        double muL = migModel.getMu(sym)*L;
-        
-        double Pba = MatrixFunctions.expm(
-                migModel.getQ(sym)
-                .mul(L)).get(type_srcNode,type_srcNodeP);
+        double Pba = migModel.getTransitionMatrix(t_srcNode, t_srcNodeP, sym)
+                .get(type_srcNode,type_srcNodeP);
 
         // Abort if transition is impossible.
-        if (Pba == 0.0)
+        if (Pba == 0.0) {
+            telemetry.noteRejectReason(RejectReason.NO_VALID_PATH);
             throw new NoValidPathException();
+        }
         
         // Catch for numerical errors
         if (Pba>1.0 || Pba<0.0) {
             System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
+            telemetry.noteRejectReason(RejectReason.MATRIX_EXP_FAILURE);
             return Double.NEGATIVE_INFINITY;
         }
+
+        ((MultiTypeNode)srcNode).clearChanges();
+
+        double logProb;
+        if (firstEpoch == lastEpoch) {
+            logProb = retypeSegment((MultiTypeNode)srcNode,
+                    type_srcNode, type_srcNodeP, t_srcNode, t_srcNodeP, Pba,
+                    migModel.getEpochModel(firstEpoch), sym);
+        } else {
+            logProb = 0.0;
+
+            // Select types at epoch boundaries:
+            int nSegments = lastEpoch - firstEpoch + 1;
+            double[] segmentEnds = new double[nSegments];
+            int[] segmentEndTypes = new int[nSegments];
+            DoubleMatrix[] Pseg = new DoubleMatrix[nSegments];
+            if (!drawBoundaryTypes(type_srcNode, type_srcNodeP,
+                    t_srcNode, t_srcNodeP, firstEpoch, sym,
+                    segmentEnds, segmentEndTypes, Pseg)) {
+                System.err.println("Warning: FB algorithm failure.  Aborting move.");
+                telemetry.noteRejectReason(RejectReason.FB_FAILURE);
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            // Retype portion of branch within each epoch:
+            int typeStart = type_srcNode;
+            double tStart = t_srcNode;
+            for (int s = 0; s<nSegments; s++) {
+                int typeEnd = segmentEndTypes[s];
+                logProb += retypeSegment((MultiTypeNode)srcNode,
+                        typeStart, typeEnd, tStart, segmentEnds[s],
+                        Pseg[s].get(typeStart, typeEnd),
+                        migModel.getEpochModel(firstEpoch + s), sym);
+
+                typeStart = typeEnd;
+                tStart = segmentEnds[s];
+            }
+        }
+
+        if (logProb == Double.NEGATIVE_INFINITY)
+            return logProb;
+
+        telemetry.recordRetype(((MultiTypeNode)srcNode).getChangeCount());
+
+        // Adjust probability to account for end condition:
+        logProb -= Math.log(Pba);
+
+        // Return probability of path given boundary conditions:
+        return logProb;
+    }
+
+    /**
+     * Draw types at the epoch boundaries crossed by a branch, conditional
+     * on the types at both ends of the branch.
+     *
+     * @param typeStart type at start (bottom) of branch
+     * @param typeEnd type at end (top) of branch
+     * @param tStart time at start of branch
+     * @param tEnd time at end of branch
+     * @param firstEpoch epoch containing start of branch
+     * @param sym whether to use symmetrized rates
+     * @param segmentEnds array to write end time of each segment to
+     * @param segmentEndTypes array to write type at end of each segment to
+     * @param Pseg array to write transition matrix of each segment to
+     * @return false if the boundary types could not be drawn
+     */
+    private boolean drawBoundaryTypes(int typeStart, int typeEnd,
+            double tStart, double tEnd, int firstEpoch, boolean sym,
+            double[] segmentEnds, int[] segmentEndTypes, DoubleMatrix[] Pseg) {
+
+        int nSegments = segmentEnds.length;
+
+        double segStart = tStart;
+        for (int s = 0; s<nSegments; s++) {
+            segmentEnds[s] = s<nSegments-1
+                    ? migModel.getEpochEndTime(firstEpoch + s)
+                    : tEnd;
+            Pseg[s] = migModel.getEpochModel(firstEpoch + s)
+                    .getTransitionMatrix(segmentEnds[s] - segStart, sym);
+            segStart = segmentEnds[s];
+        }
+
+        // Probabilities of reaching the end type from each type at the
+        // start of each segment:
+        int nTypes = migModel.getNTypes();
+        double[][] Pend = new double[nSegments][nTypes];
+        for (int c = 0; c<nTypes; c++)
+            Pend[nSegments-1][c] = Pseg[nSegments-1].get(c, typeEnd);
+        for (int s = nSegments-2; s>=0; s--) {
+            for (int c = 0; c<nTypes; c++) {
+                for (int cp = 0; cp<nTypes; cp++)
+                    Pend[s][c] += Pseg[s].get(c, cp)*Pend[s+1][cp];
+            }
+        }
+
+        // Draw boundary types in order of increasing age:
+        int prevType = typeStart;
+        for (int s = 0; s<nSegments-1; s++) {
+            double u = random.nextDouble()*Pend[s][prevType];
+            int c;
+            boolean fellThrough = true;
+            for (c = 0; c<nTypes; c++) {
+                u -= Pseg[s].get(prevType, c)*Pend[s+1][c];
+                if (u<0.0) {
+                    fellThrough = false;
+                    break;
+                }
+            }
+
+            if (fellThrough)
+                return false;
+
+            segmentEndTypes[s] = c;
+            prevType = c;
+        }
+        segmentEndTypes[nSegments-1] = typeEnd;
+
+        return true;
+    }
+
+    /**
+     * Add type changes to the portion of the branch above node lying
+     * within a single epoch, conditional on the types at both ends of
+     * that portion.
+     *
+     * @param node node at base of branch
+     * @param typeStart type at start (bottom) of segment
+     * @param typeEnd type at end (top) of segment
+     * @param tStart time at start of segment
+     * @param tEnd time at end of segment
+     * @param Pba probability of end type given start type
+     * @param epochModel migration model of epoch containing segment
+     * @param sym whether to use symmetrized rates
+     * @return probability of new changes conditional on start type only,
+     * or negative infinity if the changes could not be drawn
+     */
+    private double retypeSegment(MultiTypeNode node, int typeStart, int typeEnd,
+            double tStart, double tEnd, double Pba,
+            MigrationModel epochModel, boolean sym) {
+
+        double L = tEnd-tStart;
+        double muL = epochModel.getMu(sym)*L;
         
         // Select number of virtual events:
-        int nVirt = drawEventCount(type_srcNode, type_srcNodeP, muL, Pba,
-                migModel, sym);
+        int nVirt = drawEventCount(typeStart, typeEnd, muL, Pba,
+                epochModel, sym);
         
         if (nVirt<0)
             return Double.NEGATIVE_INFINITY;
@@ -153,22 +302,22 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         // Select times of virtual events:
         double[] times = new double[nVirt];
         for (int i = 0; i<nVirt; i++)
-            times[i] = Randomizer.nextDouble()*L+t_srcNode;
+            times[i] = random.nextDouble()*L+tStart;
         Arrays.sort(times);
 
         // Sample type changes along branch using FB algorithm:
         int[] types = new int[nVirt];
-        int prevType = type_srcNode;
+        int prevType = typeStart;
         
         for (int i = 1; i<=nVirt; i++) {
             
-            double u2 = Randomizer.nextDouble()
-                    *migModel.getRpowN(nVirt-i+1, sym).get(prevType, type_srcNodeP);
+            double u2 = random.nextDouble()
+                    *epochModel.getRpowN(nVirt-i+1, sym).get(prevType, typeEnd);
             int c;
             boolean fellThrough = true;
-            for (c = 0; c<migModel.getNTypes(); c++) {
-                u2 -= migModel.getR(sym).get(prevType,c)
-                        *migModel.getRpowN(nVirt-i, sym).get(c,type_srcNodeP);
+            for (c = 0; c<epochModel.getNTypes(); c++) {
+                u2 -= epochModel.getR(sym).get(prevType,c)
+                        *epochModel.getRpowN(nVirt-i, sym).get(c,typeEnd);
                 if (u2<0.0) {
                     fellThrough = false;
                     break;
@@ -177,15 +326,8 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
             
             // Check for FB algorithm error:
             if (fellThrough) {
-                
-                double sum1 = migModel.getRpowN(nVirt-i+1, sym).get(prevType, type_srcNodeP);
-                double sum2 = 0;
-                for (c = 0; c<migModel.getNTypes(); c++) {
-                    sum2 += migModel.getR(sym).get(prevType,c)
-                            *migModel.getRpowN(nVirt-i, sym).get(c,type_srcNodeP);
-                }
-                
                 System.err.println("Warning: FB algorithm failure.  Aborting move.");
+                telemetry.noteRejectReason(RejectReason.FB_FAILURE);
                 return Double.NEGATIVE_INFINITY;
             }
 
@@ -197,30 +339,25 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
 
         // Add non-virtual type changes to branch, calculating probability
         // of path conditional on start type:
-        ((MultiTypeNode)srcNode).clearChanges();
-        prevType = type_srcNode;
-        double prevTime = t_srcNode;
+        prevType = typeStart;
+        double prevTime = tStart;
         for (int i = 0; i<nVirt; i++) {
 
             if (types[i] != prevType) {
 
                 // Add change to branch:
-                ((MultiTypeNode)srcNode).addChange(types[i], times[i]);
+                node.addChange(types[i], times[i]);
 
                 // Add probability contribution:
-                logProb += migModel.getQ(sym).get(prevType, prevType)*(times[i]-prevTime)
-                        +Math.log(migModel.getQ(sym).get(prevType, types[i]));
+                logProb += epochModel.getQ(sym).get(prevType, prevType)*(times[i]-prevTime)
+                        +Math.log(epochModel.getQ(sym).get(prevType, types[i]));
 
                 prevType = types[i];
                 prevTime = times[i];
             }
         }
-        logProb += migModel.getQ(sym).get(prevType, prevType)*(t_srcNodeP-prevTime);
-
-        // Adjust probability to account for end condition:
-        logProb -= Math.log(Pba);
+        logProb += epochModel.getQ(sym).get(prevType, prevType)*(tEnd-prevTime);
 
-        // Return probability of path given boundary conditions:
         return logProb;
     }
     
@@ -240,32 +377,50 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         Node srcNodeP = srcNode.getParent();
         double t_srcNode = srcNode.getHeight();
         double t_srcNodeP = srcNodeP.getHeight();
-        double L = t_srcNodeP-t_srcNode;
         int col_srcNode = ((MultiTypeNode)srcNode).getNodeType();
         int col_srcNodeP = ((MultiTypeNode)srcNodeP).getNodeType();
 
-        // Probability of branch conditional on start type:
+        // Probability of branch conditional on start type, with the time
+        // spent in each type divided between the epochs it overlaps:
+        int epoch = migrationModel.getEpochIndex(t_srcNode);
+        MigrationModel epochModel = migrationModel.getEpochModel(epoch);
+        double epochEnd = migrationModel.getEpochEndTime(epoch);
+
         double lastTime = t_srcNode;
         int lastCol = col_srcNode;
-        for (int i = 0; i<((MultiTypeNode)srcNode).getChangeCount(); i++) {
-            double thisTime = ((MultiTypeNode)srcNode).getChangeTime(i);
-            int thisCol = ((MultiTypeNode)srcNode).getChangeType(i);
+        for (int i = 0; i<=((MultiTypeNode)srcNode).getChangeCount(); i++) {
+            boolean isChange = i<((MultiTypeNode)srcNode).getChangeCount();
+            double thisTime = isChange
+                    ? ((MultiTypeNode)srcNode).getChangeTime(i)
+                    : t_srcNodeP;
 
-            logProb += (thisTime-lastTime)*migrationModel.getQ(sym).get(lastCol, lastCol)
-                    +Math.log(migrationModel.getQ(sym).get(lastCol, thisCol));
+            while (epochEnd <= thisTime && epochEnd < t_srcNodeP) {
+                logProb += (epochEnd-lastTime)*epochModel.getQ(sym).get(lastCol, lastCol);
+                lastTime = epochEnd;
+
+                epoch += 1;
+                epochModel = migrationModel.getEpochModel(epoch);
+                epochEnd = migrationModel.getEpochEndTime(epoch);
+            }
+            logProb += (thisTime-lastTime)*epochModel.getQ(sym).get(lastCol, lastCol);
+
+            if (isChange) {
+                int thisCol = ((MultiTypeNode)srcNode).getChangeType(i);
+                logProb += Math.log(epochModel.getQ(sym).get(lastCol, thisCol));
+                lastCol = thisCol;
+            }
 
             lastTime = thisTime;
-            lastCol = thisCol;
         }
-        logProb += (t_srcNodeP-lastTime)*migrationModel.getQ(sym).get(lastCol, lastCol);
 
         // Adjust to account for end condition of path:
-        double Pba = MatrixFunctions.expm(
-                migrationModel.getQ(sym).mul(L)).get(col_srcNode, col_srcNodeP);
+        double Pba = migrationModel.getTransitionMatrix(t_srcNode, t_srcNodeP, sym)
+                .get(col_srcNode, col_srcNodeP);
         
         // Catch for numerical errors:
         if (Pba>1.0 || Pba < 0.0) {
             System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
+            telemetry.noteRejectReason(RejectReason.MATRIX_EXP_FAILURE);
             return Double.NEGATIVE_INFINITY;
         }
         
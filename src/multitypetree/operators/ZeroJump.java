@@ -22,6 +22,8 @@ import beast.base.core.Input.Validate;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import multitypetree.util.RandomSource;
+import multitypetree.util.RandomStream;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -36,14 +38,22 @@ public class ZeroJump extends Operator {
     public Input<Double> alphaInput = new Input<Double>("mean",
             "Mean of exponential from which non-zero values are drawn in the"
             + " reverse jump.", Validate.REQUIRED);
+
+    public Input<RandomStream> randomStreamInput = new Input<>(
+            "randomStream", "Stream of random numbers used by operator. "
+            + "(Default is the BEAST Randomizer.)");
     
     private RealParameter parameter;
     private double alpha;
+    private RandomSource random;
     
     @Override
     public void initAndValidate() {
         parameter = parameterInput.get();
         alpha = alphaInput.get();
+        random = randomStreamInput.get() != null
+                ? randomStreamInput.get()
+                : RandomSource.RANDOMIZER;
     }
     
     @Override
@@ -52,14 +62,14 @@ public class ZeroJump extends Operator {
         double logHR;
         
         // Select random element:
-        int idx = Randomizer.nextInt(parameter.getDimension());
+        int idx = random.nextInt(parameter.getDimension());
         
         double x = parameter.getValue(idx);
         if (x>0) {
             logHR = Math.log(Math.exp(-x/alpha)/alpha);
             x = 0.0;
         } else {
-            x = Randomizer.nextExponential(1.0/alpha);
+            x = random.nextExponential(1.0/alpha);
             logHR = -Math.log(Math.exp(-x/alpha)/alpha);
         }
         
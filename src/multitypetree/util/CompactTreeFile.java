@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import multitypetree.evolution.tree.CompactMultiTypeTree;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary file format for collections of trees.  A file consists of a
+ * header giving the number of trees, whether types are included, the
+ * leaf names and the type names, followed by one record per tree as
+ * written by CompactMultiTypeTree.writeTo().
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class CompactTreeFile {
+
+    /**
+     * Bytes "MTTB" identifying the format.
+     */
+    public static final int MAGIC = 0x4D545442;
+    public static final int VERSION = 1;
+
+    /**
+     * Write file header.
+     *
+     * @param out destination of header
+     * @param nTrees number of tree records which will follow
+     * @param includeTypes whether records include types and changes
+     * @param leafNames names of leaves, in order of node number
+     * @param typeNames names of types, in order of type index
+     * @throws IOException on write error
+     */
+    public static void writeHeader(DataOutput out, long nTrees,
+            boolean includeTypes, List<String> leafNames,
+            List<String> typeNames) throws IOException {
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(nTrees);
+        out.writeBoolean(includeTypes);
+
+        out.writeInt(leafNames.size());
+        for (String name : leafNames)
+            out.writeUTF(name);
+
+        out.writeInt(typeNames.size());
+        for (String name : typeNames)
+            out.writeUTF(name);
+    }
+
+    /**
+     * Sequential reader for tree files.  Trees are read one at a time
+     * into a caller-supplied object.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long nTrees;
+        private final boolean includeTypes;
+        private final List<String> leafNames, typeNames;
+        private long nRead;
+
+        public Reader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(fileName)));
+
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("File '" + fileName
+                            + "' is not a binary tree file.");
+
+                int version = in.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported tree file version "
+                            + version + ".");
+
+                nTrees = in.readLong();
+                includeTypes = in.readBoolean();
+
+                leafNames = readNames(in);
+                typeNames = readNames(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        private static List<String> readNames(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            List<String> names = new ArrayList<>(n);
+            for (int i=0; i<n; i++)
+                names.add(in.readUTF());
+
+            return Collections.unmodifiableList(names);
+        }
+
+        public long getTreeCount() {
+            return nTrees;
+        }
+
+        public boolean includesTypes() {
+            return includeTypes;
+        }
+
+        public List<String> getLeafNames() {
+            return leafNames;
+        }
+
+        public List<String> getTypeNames() {
+            return typeNames;
+        }
+
+        /**
+         * @return true if further trees remain to be read
+         */
+        public boolean hasNext() {
+            return nRead < nTrees;
+        }
+
+        /**
+         * Read the next tree.
+         *
+         * @param tree object to read tree into
+         * @throws IOException on read error
+         */
+        public void next(CompactMultiTypeTree tree) throws IOException {
+            if (!hasNext())
+                throw new IOException("No trees remain in file.");
+
+            tree.readFrom(in, includeTypes);
+            nRead += 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.MCMC;
+import multitypetree.evolution.tree.MultiTypeNode;
+import multitypetree.evolution.tree.MultiTypeTree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MCMC analysis which terminates once the monitored statistics have
+ * converged, rather than after a fixed number of steps.  Running
+ * statistics of each monitored quantity are accumulated in constant
+ * memory, and every checkEvery steps the chain is stopped if each
+ * quantity has reached the target effective sample size and its
+ * split-R-hat lies below the target.  The state is written to the state
+ * file before stopping so that the run may be resumed.
+ *
+ * The monitored quantities are the root height and root type indicators
+ * of a multi-type tree, together with every dimension of any additional
+ * functions such as TypeChangeCounts or TypeLengths.  A quantity which
+ * has not varied since accumulation began has no defined ESS or
+ * split-R-hat and so is treated as not yet converged.  Quantities which
+ * are constant by construction, such as the root type indicators of a
+ * tree whose root type is fixed, must therefore be excluded explicitly.
+ *
+ * chainLength becomes the maximum number of steps.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("MCMC which stops once the ESS and split-R-hat of selected "
+        + "multi-type tree statistics meet given targets.")
+public class ConvergenceControlledMCMC extends MCMC {
+
+    public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
+            "multiTypeTree",
+            "Multi-type tree whose root height and root type frequencies "
+            + "are to be monitored.");
+
+    public Input<List<Function>> functionInput = new Input<>("function",
+            "Additional function, such as TypeChangeCounts or TypeLengths, "
+            + "each dimension of which is to be monitored.",
+            new ArrayList<>());
+
+    public Input<Double> minESSInput = new Input<>("minESS",
+            "Minimum effective sample size of each monitored quantity. "
+            + "(Default 200.)", 200.0);
+
+    public Input<Double> maxRHatInput = new Input<>("maxRHat",
+            "Maximum split-R-hat of each monitored quantity. "
+            + "(Default 1.01.)", 1.01);
+
+    public Input<Integer> sampleEveryInput = new Input<>("sampleEvery",
+            "Number of steps between samples of the monitored quantities. "
+            + "(Default 1000.)", 1000);
+
+    public Input<Long> checkEveryInput = new Input<>("checkEvery",
+            "Number of steps between convergence checks.  Should be a "
+            + "multiple of the logEvery of each logger. (Default 100000.)",
+            100000L);
+
+    public Input<Long> convergenceBurninInput = new Input<>(
+            "convergenceBurnin",
+            "Number of steps to discard before accumulating statistics. "
+            + "(Default 0.)", 0L);
+
+    public Input<String> excludeInput = new Input<>("exclude",
+            "Comma-separated names of monitored quantities to leave out of "
+            + "the convergence check, such as quantities which cannot "
+            + "vary.  Names are as reported at the end of the run.");
+
+    private MultiTypeTree mtTree;
+    private List<Function> functions;
+
+    private final List<OnlineStatistic> statistics = new ArrayList<>();
+    private final List<String> statisticNames = new ArrayList<>();
+    private final List<Boolean> excluded = new ArrayList<>();
+
+    private boolean converged;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        mtTree = multiTypeTreeInput.get();
+        functions = functionInput.get();
+
+        if (mtTree == null && functions.isEmpty())
+            throw new IllegalArgumentException("ConvergenceControlledMCMC "
+                    + "requires a multi-type tree or at least one function "
+                    + "to monitor.");
+
+        if (sampleEveryInput.get() < 1 || checkEveryInput.get() < 1)
+            throw new IllegalArgumentException("ConvergenceControlledMCMC "
+                    + "requires positive sampleEvery and checkEvery.");
+
+        statistics.clear();
+        statisticNames.clear();
+        excluded.clear();
+
+        if (mtTree != null) {
+            addStatistic(mtTree.getID() + ".rootHeight");
+            if (mtTree.getTypeSet() != null) {
+                for (int type=0; type<mtTree.getTypeSet().getNTypes(); type++)
+                    addStatistic(mtTree.getID() + ".rootType_"
+                            + mtTree.getTypeSet().getTypeName(type));
+            }
+        }
+
+        for (Function function : functions) {
+            String name = function instanceof BEASTInterface
+                    ? ((BEASTInterface)function).getID()
+                    : null;
+            if (name == null || name.matches("\\s*"))
+                name = function.getClass().getSimpleName();
+            for (int i=0; i<function.getDimension(); i++)
+                addStatistic(name + "[" + i + "]");
+        }
+
+        if (excludeInput.get() != null) {
+            for (String name : excludeInput.get().split(",")) {
+                int idx = statisticNames.indexOf(name.trim());
+                if (idx < 0)
+                    throw new IllegalArgumentException("Excluded quantity '"
+                            + name.trim() + "' is not monitored by "
+                            + "ConvergenceControlledMCMC.");
+                excluded.set(idx, true);
+            }
+        }
+
+        converged = false;
+    }
+
+    private void addStatistic(String name) {
+        statistics.add(new OnlineStatistic());
+        statisticNames.add(name);
+        excluded.add(false);
+    }
+
+    @Override
+    protected void callUserFunction(long sample) {
+        if (sample < convergenceBurninInput.get())
+            return;
+
+        if (sample % sampleEveryInput.get() == 0)
+            sampleStatistics();
+
+        if (sample > 0 && sample % checkEveryInput.get() == 0
+                && targetsMet()) {
+            converged = true;
+            Log.info.println("Convergence targets met after " + sample
+                    + " steps: stopping.");
+            report();
+
+            // Final checkpoint:
+            state.storeToFile(sample);
+            operatorSchedule.storeToFile();
+
+            // Causes the main loop to exit after this step:
+            chainLength = sample;
+        }
+    }
+
+    /**
+     * Add the current values of all monitored quantities to their
+     * statistics.
+     */
+    private void sampleStatistics() {
+        int idx = 0;
+
+        if (mtTree != null) {
+            statistics.get(idx++).add(mtTree.getRoot().getHeight());
+
+            int rootType = ((MultiTypeNode)mtTree.getRoot()).getNodeType();
+            int nTypes = mtTree.getTypeSet() != null
+                    ? mtTree.getTypeSet().getNTypes()
+                    : 0;
+            for (int type=0; type<nTypes; type++)
+                statistics.get(idx++).add(type == rootType ? 1.0 : 0.0);
+        }
+
+        for (Function function : functions) {
+            for (int i=0; i<function.getDimension(); i++)
+                statistics.get(idx++).add(function.getArrayValue(i));
+        }
+    }
+
+    /**
+     * @return true if every monitored quantity not excluded meets the ESS
+     * and split-R-hat targets.  (A quantity which has not varied has an
+     * ESS of zero and an undefined split-R-hat, and therefore fails.)
+     */
+    private boolean targetsMet() {
+        for (int i=0; i<statistics.size(); i++) {
+            if (excluded.get(i))
+                continue;
+
+            OnlineStatistic statistic = statistics.get(i);
+            if (statistic.getCount() < 2)
+                return false;
+
+            if (!(statistic.getESS() >= minESSInput.get()
+                    && statistic.getSplitRHat() <= maxRHatInput.get()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write ESS and split-R-hat of each monitored quantity.
+     */
+    public void report() {
+        Log.info.println("Monitored quantity\tmean\tESS\tsplit-R-hat");
+        for (int i=0; i<statistics.size(); i++) {
+            OnlineStatistic statistic = statistics.get(i);
+            Log.info.println(statisticNames.get(i) + "\t"
+                    + statistic.getMean() + "\t"
+                    + statistic.getESS() + "\t"
+                    + statistic.getSplitRHat());
+        }
+    }
+
+    /**
+     * @return true if the run was stopped because the targets were met
+     */
+    public boolean hasConverged() {
+        return converged;
+    }
+
+    /**
+     * @param name name of monitored quantity
+     * @return running statistics of quantity, or null if no quantity
+     * with this name is monitored
+     */
+    public OnlineStatistic getStatistic(String name) {
+        int idx = statisticNames.indexOf(name);
+        return idx >= 0 ? statistics.get(idx) : null;
+    }
+
+    /**
+     * @return names of monitored quantities
+     */
+    public List<String> getStatisticNames() {
+        return new ArrayList<>(statisticNames);
+    }
+}
@@ -0,0 +1,930 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.inference.Runnable;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import multitypetree.distributions.StructuredCoalescentBatchDensity;
+import multitypetree.evolution.tree.CompactMultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reweights the samples of a completed structured coalescent analysis to
+ * obtain posterior summaries under alternative migration models or
+ * priors.  Each sample pairs a typed tree from the tree log with the
+ * parameters logged at the same state.  Under an alternative migration
+ * model with fixed parameters, the log weight of a sample is the log
+ * density of its tree under that model minus its log density under the
+ * logged parameters.  Under alternative priors, the log weight is the
+ * difference between the alternative and original log priors of the
+ * logged parameters.
+ *
+ * Samples are read in blocks, so memory use does not grow with the
+ * length of the logs.  Trees in each block are parsed by a pool of
+ * worker threads and their densities evaluated in batch.  Weighted means
+ * and standard deviations of tree and parameter summaries are reported
+ * for each scenario together with the effective sample size of the
+ * weights, (sum w)^2/(sum w^2).
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Reweights the samples of a completed structured coalescent "
+        + "analysis to summarise the posterior under alternative migration "
+        + "models or priors without repeating the analysis.")
+public class ImportanceReweighter extends Runnable {
+
+    public Input<String> treeFileInput = new Input<>(
+            "treeFile",
+            "Typed tree log, either a NEXUS log written by MultiTypeTree or "
+                    + "a binary tree file.",
+            Validate.REQUIRED);
+
+    public Input<String> logFileInput = new Input<>(
+            "logFile",
+            "Parameter log, either a tab-delimited trace log or a binary "
+                    + "migration model log.",
+            Validate.REQUIRED);
+
+    public Input<SCMigrationModel> migrationModelInput = new Input<>(
+            "migrationModel",
+            "Migration model used in the original analysis.  Elements not "
+                    + "found in the parameter log take their values from "
+                    + "this model.",
+            Validate.REQUIRED);
+
+    public Input<List<StateNode>> parameterInput = new Input<>(
+            "parameter",
+            "Parameter whose value is read from the parameter log for each "
+                    + "sample, from columns named by its ID.",
+            new ArrayList<>());
+
+    public Input<List<SCMigrationModel>> alternativeModelInput = new Input<>(
+            "alternativeModel",
+            "Alternative migration model under which to reweight samples.",
+            new ArrayList<>());
+
+    public Input<List<Distribution>> originalPriorInput = new Input<>(
+            "originalPrior",
+            "Prior on logged parameters used in the original analysis.",
+            new ArrayList<>());
+
+    public Input<List<Distribution>> alternativePriorInput = new Input<>(
+            "alternativePrior",
+            "Alternative prior on logged parameters under which to "
+                    + "reweight samples.",
+            new ArrayList<>());
+
+    public Input<String> typeLabelInput = new Input<>(
+            "typeLabel",
+            "Label used for type annotations in NEXUS tree logs.",
+            "type");
+
+    public Input<Integer> burninInput = new Input<>(
+            "burnin",
+            "Percentage of samples to discard as burn-in.",
+            10);
+
+    public Input<Integer> nThreadsInput = new Input<>(
+            "nThreads",
+            "Number of worker threads. (Default is number of available "
+                    + "processors.)");
+
+    public Input<String> outputFileNameInput = new Input<>(
+            "outputFileName",
+            "Name of file to write summaries to. (Default is standard "
+                    + "output.)");
+
+    public Input<String> weightsFileNameInput = new Input<>(
+            "weightsFileName",
+            "Name of file to write the log weight of each sample to.");
+
+    /**
+     * Number of samples read and evaluated together.
+     */
+    private static final int BLOCK_SIZE = 1000;
+
+    /**
+     * Relative effective sample size below which a warning is issued.
+     */
+    private static final double MIN_RELATIVE_ESS = 0.1;
+
+    private SCMigrationModel migModel;
+    private TypeSet typeSet;
+    private int nTypes, nThreads;
+    private List<StateNode> parameters;
+    private List<SCMigrationModel> altModels;
+    private boolean reweightPrior;
+
+    private List<String> scenarioNames, statNames;
+
+    @Override
+    public void initAndValidate() {
+        migModel = migrationModelInput.get();
+        typeSet = migModel.getTypeSet();
+        nTypes = migModel.getNTypes();
+
+        nThreads = nThreadsInput.get() != null
+                ? nThreadsInput.get()
+                : Runtime.getRuntime().availableProcessors();
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be positive.");
+
+        if (burninInput.get() < 0 || burninInput.get() >= 100)
+            throw new IllegalArgumentException("burnin must be a percentage "
+                    + "between 0 and 99.");
+
+        parameters = parameterInput.get();
+        for (StateNode param : parameters) {
+            if (!(param instanceof RealParameter
+                    || param instanceof IntegerParameter
+                    || param instanceof BooleanParameter))
+                throw new IllegalArgumentException("Parameter '"
+                        + param.getID() + "' is not a real, integer or "
+                        + "boolean parameter.");
+        }
+
+        altModels = alternativeModelInput.get();
+        for (SCMigrationModel altModel : altModels) {
+            if (altModel.getNTypes() != nTypes)
+                throw new IllegalArgumentException("Alternative migration "
+                        + "models must have the same number of types as "
+                        + "the original model.");
+        }
+
+        reweightPrior = !alternativePriorInput.get().isEmpty();
+        if (reweightPrior && originalPriorInput.get().isEmpty())
+            throw new IllegalArgumentException("An alternative prior "
+                    + "requires the original prior to be specified.");
+
+        if (altModels.isEmpty() && !reweightPrior)
+            throw new IllegalArgumentException("At least one alternative "
+                    + "model or prior must be specified.");
+
+        // Scenarios are reported in the order original, alternative
+        // models, alternative prior:
+        scenarioNames = new ArrayList<>();
+        scenarioNames.add("original");
+        for (int i=0; i<altModels.size(); i++) {
+            String id = altModels.get(i).getID();
+            scenarioNames.add(id == null || id.matches("\\s*")
+                    ? "alternativeModel" + (i+1)
+                    : id);
+        }
+        if (reweightPrior)
+            scenarioNames.add("alternativePrior");
+
+        statNames = new ArrayList<>();
+        statNames.add("rootHeight");
+        statNames.add("treeLength");
+        statNames.add("migrationCount");
+        for (int c=0; c<nTypes; c++)
+            statNames.add("popSize_" + typeSet.getTypeName(c));
+        for (int c=0; c<nTypes; c++) {
+            for (int cp=0; cp<nTypes; cp++) {
+                if (c != cp)
+                    statNames.add("rateMatrix_backward_"
+                            + typeSet.getTypeName(c) + "_"
+                            + typeSet.getTypeName(cp));
+            }
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        // Step 1: count logged samples to determine burn-in
+
+        long nRows = 0;
+        try (ParameterLog log = openParameterLog()) {
+            double[] row = new double[log.getColumnNames().size()];
+            while (log.hasNext()) {
+                log.next(row);
+                nRows += 1;
+            }
+        }
+        long burnin = nRows*burninInput.get()/100;
+
+        int nParams = StructuredCoalescentBatchDensity.getParameterCount(nTypes);
+        double[][] altParams = new double[altModels.size()][nParams];
+        for (int i=0; i<altModels.size(); i++)
+            StructuredCoalescentBatchDensity.getParameters(altModels.get(i), altParams[i]);
+
+        WeightedSummary[] summaries = new WeightedSummary[scenarioNames.size()];
+        for (int s=0; s<summaries.length; s++)
+            summaries[s] = new WeightedSummary(statNames.size());
+
+        StructuredCoalescentBatchDensity batch =
+                new StructuredCoalescentBatchDensity(nTypes, nThreads);
+
+        CompactMultiTypeTree[] trees = new CompactMultiTypeTree[BLOCK_SIZE];
+        for (int i=0; i<BLOCK_SIZE; i++)
+            trees[i] = new CompactMultiTypeTree();
+        String[] newicks = new String[BLOCK_SIZE];
+        long[] samples = new long[BLOCK_SIZE];
+        double[][] origParams = new double[BLOCK_SIZE][nParams];
+        double[][] stats = new double[BLOCK_SIZE][statNames.size()];
+        double[] priorLogWeights = new double[BLOCK_SIZE];
+        double[] origLogP = new double[BLOCK_SIZE];
+        double[][] altLogP = new double[BLOCK_SIZE][altModels.size()];
+        double[] logWeights = new double[scenarioNames.size()];
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try (ParameterLog log = openParameterLog();
+             TreeLog treeLog = new TreeLog(treeFileInput.get());
+             PrintStream weightsOut = weightsFileNameInput.get() != null
+                     ? new PrintStream(weightsFileNameInput.get())
+                     : null) {
+
+            ColumnMap columns = new ColumnMap(log.getColumnNames());
+            double[] row = new double[log.getColumnNames().size()];
+
+            if (weightsOut != null) {
+                weightsOut.print("Sample");
+                for (int s=1; s<scenarioNames.size(); s++)
+                    weightsOut.print("\t" + scenarioNames.get(s));
+                weightsOut.println();
+            }
+
+            // Step 2: skip burn-in, which for binary tree files is
+            // identified by position
+
+            for (long r=0; r<burnin && log.hasNext(); r++) {
+                log.next(row);
+                if (treeLog.isPositional())
+                    treeLog.advance();
+            }
+
+            // Step 3: read, evaluate and accumulate blocks of samples
+
+            boolean haveTree = treeLog.advance();
+            long nUsed = 0;
+            while (haveTree && log.hasNext()) {
+
+                int n = 0;
+                while (n < BLOCK_SIZE && haveTree && log.hasNext()) {
+                    long sample = log.next(row);
+
+                    // Align NEXUS tree log with parameter log by sample
+                    // number:
+                    if (!treeLog.isPositional()) {
+                        while (haveTree && treeLog.getSample() < sample)
+                            haveTree = treeLog.advance();
+                        if (!haveTree || treeLog.getSample() > sample)
+                            continue;
+                    }
+
+                    samples[n] = sample;
+                    if (treeLog.isPositional())
+                        trees[n] = treeLog.exchangeTree(trees[n]);
+                    else
+                        newicks[n] = treeLog.getNewick();
+
+                    readParameters(row, columns, origParams[n], stats[n]);
+                    if (reweightPrior)
+                        priorLogWeights[n] = getLogPrior(alternativePriorInput.get())
+                                - getLogPrior(originalPriorInput.get());
+
+                    n += 1;
+                    haveTree = treeLog.advance();
+                }
+
+                if (n == 0)
+                    break;
+
+                if (!treeLog.isPositional())
+                    parseTrees(executor, trees, newicks, n);
+
+                evaluateBlock(batch, trees, n, origParams, origLogP,
+                        altParams, altLogP, stats);
+
+                for (int t=0; t<n; t++) {
+                    if (!(origLogP[t] > Double.NEGATIVE_INFINITY))
+                        throw new IllegalArgumentException("Tree of sample "
+                                + samples[t] + " has zero density under its "
+                                + "logged parameters.  Check that the migration "
+                                + "model matches the original analysis.");
+
+                    logWeights[0] = 0.0;
+                    for (int i=0; i<altModels.size(); i++)
+                        logWeights[1+i] = altLogP[t][i] - origLogP[t];
+                    if (reweightPrior)
+                        logWeights[1+altModels.size()] = priorLogWeights[t];
+
+                    for (int s=0; s<summaries.length; s++)
+                        summaries[s].add(logWeights[s], stats[t]);
+
+                    if (weightsOut != null) {
+                        weightsOut.print(samples[t]);
+                        for (int s=1; s<logWeights.length; s++)
+                            weightsOut.print("\t" + logWeights[s]);
+                        weightsOut.println();
+                    }
+                }
+                nUsed += n;
+            }
+
+            if (nUsed == 0)
+                throw new IllegalArgumentException("No samples in the tree "
+                        + "log match samples in the parameter log after "
+                        + "burn-in.");
+
+            Log.info.println("Reweighted " + nUsed + " samples.");
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Reweighting interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error while reading trees: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Step 4: report summaries and diagnostics
+
+        writeSummaries(summaries);
+    }
+
+    /**
+     * Read the parameters of a sample from a row of the parameter log,
+     * setting the values of the logged parameters.
+     *
+     * @param row row of parameter log
+     * @param columns column indices
+     * @param params array to write density parameter vector to
+     * @param stats array to write parameter summaries to, following the
+     * tree summaries
+     */
+    private void readParameters(double[] row, ColumnMap columns,
+            double[] params, double[] stats) {
+
+        for (int i=0; i<parameters.size(); i++) {
+            StateNode param = parameters.get(i);
+            int[] cols = columns.parameterColumns[i];
+            for (int k=0; k<cols.length; k++) {
+                double value = row[cols[k]];
+                if (param instanceof RealParameter)
+                    ((RealParameter) param).setValue(k, value);
+                else if (param instanceof IntegerParameter)
+                    ((IntegerParameter) param).setValue(k, (int) Math.round(value));
+                else
+                    ((BooleanParameter) param).setValue(k, value != 0.0);
+            }
+        }
+
+        StructuredCoalescentBatchDensity.getParameters(migModel, params);
+        for (int i=0; i<params.length; i++) {
+            if (columns.densityColumns[i] >= 0)
+                params[i] = row[columns.densityColumns[i]];
+        }
+
+        // Logged population sizes are relative to the scale factor, which
+        // is taken from its own column or else from the model:
+        double popSizeScaleFactor = columns.popSizeScaleFactorColumn >= 0
+                ? row[columns.popSizeScaleFactorColumn]
+                : migModel.getPopSizeScaleFactor();
+        for (int c=0; c<nTypes; c++) {
+            if (columns.densityColumns[c] >= 0)
+                params[c] *= popSizeScaleFactor;
+        }
+
+        int idx = 3;
+        for (int c=0; c<nTypes; c++)
+            stats[idx++] = params[c];
+        for (int c=0; c<nTypes; c++) {
+            for (int cp=0; cp<nTypes; cp++) {
+                if (c != cp)
+                    stats[idx++] = params[nTypes + c*nTypes + cp];
+            }
+        }
+    }
+
+    /**
+     * @param priors prior distributions
+     * @return sum of log densities of priors at current parameter values
+     */
+    private double getLogPrior(List<Distribution> priors) {
+        double logP = 0.0;
+        for (Distribution prior : priors)
+            logP += prior.calculateLogP();
+
+        return logP;
+    }
+
+    /**
+     * Parse the Newick strings of a block of samples, dividing the block
+     * between worker threads.
+     */
+    private void parseTrees(ExecutorService executor,
+            CompactMultiTypeTree[] trees, String[] newicks, int n)
+            throws InterruptedException, ExecutionException {
+
+        int chunkSize = (n + nThreads - 1)/nThreads;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start=0; start<n; start += chunkSize) {
+            int chunkStart = start;
+            int chunkEnd = Math.min(start + chunkSize, n);
+            futures.add(executor.submit(() -> {
+                for (int t=chunkStart; t<chunkEnd; t++)
+                    trees[t].parseNewick(newicks[t], typeSet, typeLabelInput.get());
+            }));
+        }
+
+        for (Future<?> future : futures)
+            future.get();
+    }
+
+    /**
+     * Compute tree summaries and evaluate the densities of a block of
+     * trees under their logged parameters and under each alternative
+     * model.
+     */
+    private void evaluateBlock(StructuredCoalescentBatchDensity batch,
+            CompactMultiTypeTree[] trees, int n,
+            double[][] origParams, double[] origLogP,
+            double[][] altParams, double[][] altLogP, double[][] stats) {
+
+        batch.clear();
+        for (int t=0; t<n; t++) {
+            batch.addTree(trees[t]);
+            stats[t][0] = trees[t].getRootHeight();
+            stats[t][1] = trees[t].getTreeLength();
+            stats[t][2] = trees[t].getTotalChangeCount();
+        }
+
+        batch.evaluatePaired(origParams, origLogP);
+        if (altParams.length > 0)
+            batch.evaluate(altParams, altLogP);
+    }
+
+    /**
+     * Write weighted summaries of each scenario to the output file or
+     * standard output, warning of scenarios with few effective samples.
+     */
+    private void writeSummaries(WeightedSummary[] summaries) throws IOException {
+        PrintStream out = outputFileNameInput.get() != null
+                ? new PrintStream(outputFileNameInput.get())
+                : System.out;
+
+        try {
+            out.print("scenario\tESS\trelativeESS\tmaxWeight");
+            for (String statName : statNames)
+                out.print("\t" + statName + ".mean\t" + statName + ".sd");
+            out.println();
+
+            for (int s=0; s<summaries.length; s++) {
+                WeightedSummary summary = summaries[s];
+                out.print(scenarioNames.get(s)
+                        + "\t" + summary.getESS()
+                        + "\t" + summary.getESS()/summary.getCount()
+                        + "\t" + summary.getMaxWeight());
+                for (int k=0; k<statNames.size(); k++)
+                    out.print("\t" + summary.getMean(k) + "\t" + summary.getSD(k));
+                out.println();
+
+                if (!(summary.getESS() >= MIN_RELATIVE_ESS*summary.getCount()))
+                    Log.warning.println("Warning: reweighting under '"
+                            + scenarioNames.get(s) + "' leaves an effective "
+                            + "sample size of only " + summary.getESS()
+                            + ".  Its summaries may be unreliable.");
+            }
+        } finally {
+            if (out != System.out)
+                out.close();
+        }
+    }
+
+    /**
+     * Opens the parameter log, identifying binary migration model logs by
+     * their leading magic number.
+     */
+    private ParameterLog openParameterLog() throws IOException {
+        String fileName = logFileInput.get();
+        if (startsWithMagic(fileName, MigrationLogFile.MAGIC)) {
+            MigrationLogFile.Reader reader = new MigrationLogFile.Reader(fileName);
+            return new ParameterLog() {
+                @Override
+                public List<String> getColumnNames() {
+                    return reader.getColumnNames();
+                }
+
+                @Override
+                public boolean hasNext() throws IOException {
+                    return reader.hasNext();
+                }
+
+                @Override
+                public long next(double[] row) throws IOException {
+                    return reader.next(row);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+
+        return new TextParameterLog(fileName);
+    }
+
+    /**
+     * @return true if the file begins with the given magic number
+     */
+    private static boolean startsWithMagic(String fileName, int magic) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.available() >= 4 && in.readInt() == magic;
+        }
+    }
+
+    /**
+     * Sequential access to the rows of a parameter log.
+     */
+    private interface ParameterLog extends Closeable {
+        List<String> getColumnNames();
+        boolean hasNext() throws IOException;
+        long next(double[] row) throws IOException;
+    }
+
+    /**
+     * Reader for tab-delimited trace logs, in which lines beginning with
+     * '#' are comments, the first remaining line holds the column names
+     * and the first column holds sample numbers.  Boolean values may be
+     * written either as true/false or as 1/0.
+     */
+    private static class TextParameterLog implements ParameterLog {
+
+        private final BufferedReader reader;
+        private final List<String> columnNames;
+        private String nextLine;
+
+        TextParameterLog(String fileName) throws IOException {
+            reader = new BufferedReader(new FileReader(fileName));
+
+            String header = readLine();
+            if (header == null) {
+                reader.close();
+                throw new IOException("Parameter log '" + fileName
+                        + "' contains no header.");
+            }
+
+            String[] names = header.split("\t");
+            columnNames = new ArrayList<>(Arrays.asList(names).subList(1, names.length));
+            nextLine = readLine();
+        }
+
+        private String readLine() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && (line.startsWith("#") || line.trim().isEmpty()));
+
+            return line;
+        }
+
+        @Override
+        public List<String> getColumnNames() {
+            return columnNames;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public long next(double[] row) throws IOException {
+            if (nextLine == null)
+                throw new IOException("No rows remain in parameter log.");
+
+            String[] fields = nextLine.trim().split("\t");
+            if (fields.length != columnNames.size() + 1)
+                throw new IOException("Row of parameter log has "
+                        + fields.length + " fields but header has "
+                        + (columnNames.size() + 1) + ".");
+
+            long sample;
+            try {
+                sample = Long.parseLong(fields[0]);
+                for (int col=0; col<columnNames.size(); col++)
+                    row[col] = parseValue(fields[col + 1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid value in parameter log: "
+                        + e.getMessage());
+            }
+
+            nextLine = readLine();
+            return sample;
+        }
+
+        private static double parseValue(String field) {
+            switch (field) {
+                case "true":
+                    return 1.0;
+                case "false":
+                    return 0.0;
+                default:
+                    return Double.parseDouble(field);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Positions in a parameter log row of the logged parameters and of
+     * the elements of the density parameter vector, where present.
+     * Logged population sizes exclude the population size scale factor,
+     * whose column is located separately.
+     */
+    private class ColumnMap {
+
+        final int[][] parameterColumns;
+        final int[] densityColumns;
+        final int popSizeScaleFactorColumn;
+
+        ColumnMap(List<String> columnNames) {
+            parameterColumns = new int[parameters.size()][];
+            for (int i=0; i<parameters.size(); i++) {
+                StateNode param = parameters.get(i);
+                int dim = param.getDimension();
+                parameterColumns[i] = new int[dim];
+                for (int k=0; k<dim; k++) {
+                    String name = dim == 1
+                            ? param.getID()
+                            : param.getID() + "." + (k+1);
+                    parameterColumns[i][k] = columnNames.indexOf(name);
+                    if (parameterColumns[i][k] < 0)
+                        throw new IllegalArgumentException("Parameter log "
+                                + "has no column '" + name + "'.");
+                }
+            }
+
+            // Population sizes and backward rates may be present under the
+            // names used by MigrationModelLogger:
+            String prefix = migModel.getID() == null || migModel.getID().matches("\\s*")
+                    ? "migModel"
+                    : migModel.getID();
+
+            popSizeScaleFactorColumn = columnNames.indexOf(
+                    prefix + ".popSizeScaleFactor");
+
+            densityColumns = new int[StructuredCoalescentBatchDensity.getParameterCount(nTypes)];
+            Arrays.fill(densityColumns, -1);
+            for (int c=0; c<nTypes; c++) {
+                densityColumns[c] = findColumn(columnNames,
+                        prefix + ".popSize_", c, -1);
+                for (int cp=0; cp<nTypes; cp++) {
+                    if (c != cp)
+                        densityColumns[nTypes + c*nTypes + cp] = findColumn(
+                                columnNames, prefix + ".rateMatrix_backward_", c, cp);
+                }
+            }
+        }
+
+        /**
+         * Locate a migration model column, with types identified either
+         * by name or by index.
+         *
+         * @return column index, or -1 if absent
+         */
+        private int findColumn(List<String> columnNames, String prefix,
+                int type, int otherType) {
+            int idx = columnNames.indexOf(prefix + typeSet.getTypeName(type)
+                    + (otherType >= 0 ? "_" + typeSet.getTypeName(otherType) : ""));
+            if (idx < 0)
+                idx = columnNames.indexOf(prefix + type
+                        + (otherType >= 0 ? "_" + otherType : ""));
+
+            return idx;
+        }
+    }
+
+    /**
+     * Sequential access to the trees of a typed tree log.  NEXUS logs are
+     * read one record at a time with parsing deferred to the caller, and
+     * carry sample numbers in their tree names.  Binary tree files carry
+     * no sample numbers, so their trees are matched to the parameter log
+     * by position.
+     */
+    private static class TreeLog implements Closeable {
+
+        private final CompactTreeFile.Reader binaryReader;
+        private final BufferedReader nexusReader;
+
+        private CompactMultiTypeTree tree;
+        private String newick;
+        private long sample = -1;
+
+        TreeLog(String fileName) throws IOException {
+            if (startsWithMagic(fileName, CompactTreeFile.MAGIC)) {
+                binaryReader = new CompactTreeFile.Reader(fileName);
+                nexusReader = null;
+                tree = new CompactMultiTypeTree();
+
+                if (!binaryReader.includesTypes()) {
+                    binaryReader.close();
+                    throw new IOException("Binary tree file '" + fileName
+                            + "' does not include types.");
+                }
+            } else {
+                binaryReader = null;
+                nexusReader = new BufferedReader(new FileReader(fileName));
+            }
+        }
+
+        boolean isPositional() {
+            return binaryReader != null;
+        }
+
+        /**
+         * Read the next tree record.
+         *
+         * @return false if no records remain
+         * @throws IOException on read error
+         */
+        boolean advance() throws IOException {
+            if (binaryReader != null) {
+                if (!binaryReader.hasNext())
+                    return false;
+
+                binaryReader.next(tree);
+                sample += 1;
+                return true;
+            }
+
+            String line;
+            while ((line = nexusReader.readLine()) != null) {
+                line = line.trim();
+                if (line.regionMatches(true, 0, "End;", 0, 4))
+                    return false;
+                if (!line.regionMatches(true, 0, "tree ", 0, 5))
+                    continue;
+
+                int eq = line.indexOf('=');
+                if (eq < 0)
+                    throw new IOException("Malformed tree record in NEXUS log.");
+
+                String name = line.substring(5, eq).trim();
+                try {
+                    sample = Long.parseLong(name.substring(name.lastIndexOf('_') + 1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Tree name '" + name
+                            + "' does not end with a sample number.");
+                }
+                newick = line.substring(eq + 1);
+
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * @return sample number of current record, or its position in a
+         * binary tree file
+         */
+        long getSample() {
+            return sample;
+        }
+
+        /**
+         * @return Newick string of current NEXUS record
+         */
+        String getNewick() {
+            return newick;
+        }
+
+        /**
+         * Take the current tree read from a binary tree file, leaving the
+         * given object to receive the next tree.
+         *
+         * @param spare object to read subsequent trees into
+         * @return current tree
+         */
+        CompactMultiTypeTree exchangeTree(CompactMultiTypeTree spare) {
+            CompactMultiTypeTree current = tree;
+            tree = spare;
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (binaryReader != null)
+                binaryReader.close();
+            else
+                nexusReader.close();
+        }
+    }
+
+    /**
+     * Weighted mean and standard deviation of a stream of vectors, given
+     * log weights.  Weights are held relative to the largest seen so far
+     * and rescaled when it increases, so that extreme log weights do not
+     * overflow.  Means and variances use the weighted update of West
+     * (1979).
+     */
+    private static class WeightedSummary {
+
+        private long count;
+        private double maxLogWeight = Double.NEGATIVE_INFINITY;
+        private double sumW, sumW2;
+        private final double[] means, sumSqDevs;
+
+        WeightedSummary(int dim) {
+            means = new double[dim];
+            sumSqDevs = new double[dim];
+        }
+
+        void add(double logWeight, double[] x) {
+            count += 1;
+            if (!(logWeight > Double.NEGATIVE_INFINITY))
+                return;
+
+            if (logWeight > maxLogWeight) {
+                double scale = Math.exp(maxLogWeight - logWeight);
+                sumW *= scale;
+                sumW2 *= scale*scale;
+                for (int k=0; k<sumSqDevs.length; k++)
+                    sumSqDevs[k] *= scale;
+                maxLogWeight = logWeight;
+            }
+
+            double w = Math.exp(logWeight - maxLogWeight);
+            sumW += w;
+            sumW2 += w*w;
+            for (int k=0; k<means.length; k++) {
+                double delta = x[k] - means[k];
+                means[k] += w/sumW*delta;
+                sumSqDevs[k] += w*delta*(x[k] - means[k]);
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return effective sample size of weights
+         */
+        double getESS() {
+            return sumW > 0.0 ? sumW*sumW/sumW2 : 0.0;
+        }
+
+        /**
+         * @return largest normalised weight
+         */
+        double getMaxWeight() {
+            return sumW > 0.0 ? 1.0/sumW : Double.NaN;
+        }
+
+        double getMean(int k) {
+            return sumW > 0.0 ? means[k] : Double.NaN;
+        }
+
+        double getSD(int k) {
+            return sumW > 0.0 ? Math.sqrt(sumSqDevs[k]/sumW) : Double.NaN;
+        }
+    }
+}
@@ -20,7 +20,7 @@ import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Tree;
-import multitypetree.evolution.tree.MigrationModel;
+import multitypetree.evolution.tree.CompactMultiTypeTree;
 import multitypetree.evolution.tree.MultiTypeTree;
 
 import java.io.PrintStream;
@@ -28,10 +28,35 @@ import java.io.PrintStream;
 /**
  * Used to log running estimate of MAP MultiTypeTree.
  *
+ * By default the current MAP tree is written at every logging step.  In
+ * the onChange and atEnd modes the MAP tree is instead held as a compact
+ * array snapshot and written only when it changes or only when the run
+ * finishes (optionally with periodic checkpoints), respectively.
+ *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
 public class MAPTreeLogger extends Tree {
 
+    /**
+     * Policies determining when the MAP tree is written.
+     */
+    public enum LogMode {
+        EVERY_SAMPLE("everySample"),
+        ON_CHANGE("onChange"),
+        AT_END("atEnd");
+
+        private final String label;
+
+        LogMode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
         "multiTypeTree",
         "Multi-type tree state to maximize posterior wrt.",
@@ -42,36 +67,139 @@ public class MAPTreeLogger extends Tree {
         "Posterior used to identify MAP tree",
         Validate.REQUIRED);
 
+    public Input<LogMode> logModeInput = new Input<>("logMode",
+        "When to write the MAP tree: at every logging step (everySample), "
+        + "only when it changes (onChange) or only at the end of the run "
+        + "(atEnd).  (Default everySample.)",
+        LogMode.EVERY_SAMPLE, LogMode.values());
+
+    public Input<Long> checkpointEveryInput = new Input<>("checkpointEvery",
+        "In atEnd mode, also write the MAP tree at sample numbers which are "
+        + "multiples of this value if it has changed since last written. "
+        + "(Default 0, meaning no checkpoints.)", 0L);
+
     MultiTypeTree currentMAPTree;
     double maxPosterior;
 
+    LogMode logMode;
+
+    // Newick string of currentMAPTree, or null if not yet generated:
+    String currentMAPNewick;
+
+    // Snapshot of MAP tree used in onChange and atEnd modes:
+    CompactMultiTypeTree mapSnapshot;
+    long mapSample;
+    boolean mapWritten;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
 
-        currentMAPTree = multiTypeTreeInput.get().copy();
-        currentMAPTree.setTypeTrait(multiTypeTreeInput.get().getTypeTrait());
-        currentMAPTree.initAndValidate();
+        logMode = logModeInput.get();
+        if (checkpointEveryInput.get() < 0)
+            throw new IllegalArgumentException("MAPTreeLogger "
+                    + "checkpointEvery must be non-negative.");
+
+        if (logMode == LogMode.EVERY_SAMPLE) {
+            currentMAPTree = multiTypeTreeInput.get().copy();
+            currentMAPTree.setTypeTrait(multiTypeTreeInput.get().getTypeTrait());
+            currentMAPTree.initAndValidate();
+        } else
+            mapSnapshot = new CompactMultiTypeTree();
+
         maxPosterior = Double.NEGATIVE_INFINITY;
+        currentMAPNewick = null;
+        mapWritten = true;
     }
 
     @Override
     public void init(PrintStream out) {
-        currentMAPTree.init(out);
+        if (logMode == LogMode.EVERY_SAMPLE)
+            currentMAPTree.init(out);
+        else
+            multiTypeTreeInput.get().init(out);
     }
 
     @Override
     public void log(long nSample, PrintStream out) {
-        if (posteriorInput.get().getCurrentLogP()>maxPosterior) {
+        boolean improved = posteriorInput.get().getCurrentLogP()>maxPosterior;
+        if (improved)
             maxPosterior = posteriorInput.get().getCurrentLogP();
-            currentMAPTree.assignFrom(multiTypeTreeInput.get());
+
+        switch (logMode) {
+            case EVERY_SAMPLE:
+                if (improved) {
+                    currentMAPTree.assignFrom(multiTypeTreeInput.get());
+                    currentMAPNewick = null;
+                }
+
+                // Only regenerate string when MAP tree has changed:
+                if (currentMAPNewick == null)
+                    currentMAPNewick = currentMAPTree.toString();
+
+                out.print("tree STATE_" + nSample + " = ");
+                out.print(currentMAPNewick);
+                out.print(";");
+                break;
+
+            case ON_CHANGE:
+                if (improved) {
+                    takeSnapshot(nSample);
+                    out.print(getSnapshotString());
+                    mapWritten = true;
+                }
+                break;
+
+            case AT_END:
+                if (improved)
+                    takeSnapshot(nSample);
+
+                long checkpointEvery = checkpointEveryInput.get();
+                if (!mapWritten && checkpointEvery > 0
+                        && nSample % checkpointEvery == 0) {
+                    out.print(getSnapshotString());
+                    mapWritten = true;
+                }
+                break;
         }
-        currentMAPTree.log(nSample, out);
+    }
+
+    /**
+     * Record current tree as MAP tree.
+     *
+     * @param nSample current sample number
+     */
+    private void takeSnapshot(long nSample) {
+        mapSnapshot.assignFrom(multiTypeTreeInput.get());
+        mapSample = nSample;
+        mapWritten = false;
+    }
+
+    /**
+     * @return NEXUS tree line describing MAP tree snapshot
+     */
+    private String getSnapshotString() {
+        MultiTypeTree mtTree = multiTypeTreeInput.get();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("tree STATE_").append(mapSample).append(" = ");
+        mapSnapshot.toNewick(sb, mtTree.getTypeSet(), mtTree.getTypeLabel());
+        sb.append(";");
+
+        return sb.toString();
     }
 
     @Override
     public void close(PrintStream out) {
-        currentMAPTree.close(out);
+        if (logMode == LogMode.EVERY_SAMPLE) {
+            currentMAPTree.close(out);
+            return;
+        }
+
+        if (!mapWritten)
+            out.println(getSnapshotString());
+
+        multiTypeTreeInput.get().close(out);
     }
     
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary columnar file format for numeric logs such as those produced by
+ * MigrationModelLogger.  A file consists of a header giving the column
+ * names, followed by any number of blocks.  Each block holds the sample
+ * numbers of its rows followed by the values of each column in turn.
+ * Columns whose values are constant within a block are stored as a
+ * single value.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class MigrationLogFile {
+
+    /**
+     * Bytes "MTML" identifying the format.
+     */
+    public static final int MAGIC = 0x4D544D4C;
+    public static final int VERSION = 1;
+
+    private static final byte COLUMN_VALUES = 0;
+    private static final byte COLUMN_CONSTANT = 1;
+
+    /**
+     * Write file header.
+     *
+     * @param out destination of header
+     * @param columnNames names of columns
+     * @throws IOException on write error
+     */
+    public static void writeHeader(DataOutput out, List<String> columnNames)
+            throws IOException {
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(columnNames.size());
+        for (String name : columnNames)
+            out.writeUTF(name);
+    }
+
+    /**
+     * Write block of rows.
+     *
+     * @param out destination of block
+     * @param nRows number of rows in block
+     * @param samples sample number of each row
+     * @param values values indexed by column then row
+     * @throws IOException on write error
+     */
+    public static void writeBlock(DataOutput out, int nRows, long[] samples,
+            double[][] values) throws IOException {
+
+        out.writeInt(nRows);
+        for (int row=0; row<nRows; row++)
+            out.writeLong(samples[row]);
+
+        for (double[] column : values) {
+            boolean constant = true;
+            for (int row=1; row<nRows && constant; row++) {
+                if (Double.doubleToLongBits(column[row])
+                        != Double.doubleToLongBits(column[0]))
+                    constant = false;
+            }
+
+            if (constant) {
+                out.writeByte(COLUMN_CONSTANT);
+                out.writeDouble(column[0]);
+            } else {
+                out.writeByte(COLUMN_VALUES);
+                for (int row=0; row<nRows; row++)
+                    out.writeDouble(column[row]);
+            }
+        }
+    }
+
+    /**
+     * Prepare an existing file for further blocks to be appended, as when
+     * resuming an interrupted run.  The file must have the given columns.
+     * Any incomplete final block, left when the run was interrupted part
+     * way through writing it, is removed.
+     *
+     * @param fileName name of file
+     * @param columnNames names of columns expected in file
+     * @throws IOException on read or write error, or if the file's columns
+     * differ from those expected
+     */
+    public static void prepareForAppend(String fileName, List<String> columnNames)
+            throws IOException {
+
+        long length;
+        try (Reader reader = new Reader(fileName)) {
+            if (!reader.getColumnNames().equals(columnNames))
+                throw new IOException("Columns of existing file '" + fileName
+                        + "' do not match those being logged.");
+
+            try {
+                while (reader.hasNext())
+                    reader.nextRow = reader.nRows;
+            } catch (EOFException e) {
+                // Incomplete final block
+            }
+
+            length = reader.getLength();
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            if (file.length() > length)
+                file.setLength(length);
+        }
+    }
+
+    /**
+     * Sequential reader for log files.  Rows are read one at a time into
+     * a caller-supplied array.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> columnNames;
+
+        private long[] samples = new long[0];
+        private double[][] values;
+        private int nRows, nextRow;
+        private boolean finished;
+
+        // Number of bytes occupied by the header and the blocks read:
+        private long length;
+
+        public Reader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(fileName)));
+
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("File '" + fileName
+                            + "' is not a binary migration log file.");
+
+                int version = in.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported migration log file "
+                            + "version " + version + ".");
+
+                int n = in.readInt();
+                List<String> names = new ArrayList<>(n);
+                for (int i=0; i<n; i++)
+                    names.add(in.readUTF());
+                columnNames = Collections.unmodifiableList(names);
+
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                writeHeader(new DataOutputStream(header), columnNames);
+                length = header.size();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+
+            values = new double[columnNames.size()][0];
+        }
+
+        public List<String> getColumnNames() {
+            return columnNames;
+        }
+
+        /**
+         * @param name column name
+         * @return index of column, or -1 if absent
+         */
+        public int getColumnIndex(String name) {
+            return columnNames.indexOf(name);
+        }
+
+        /**
+         * @return number of bytes occupied by the header and every
+         * complete block read so far
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return true if further rows remain to be read
+         * @throws IOException on read error
+         */
+        public boolean hasNext() throws IOException {
+            if (nextRow < nRows)
+                return true;
+
+            if (!finished)
+                readBlock();
+
+            return nextRow < nRows;
+        }
+
+        /**
+         * Read the next row.
+         *
+         * @param row array of length getColumnNames().size() to read
+         * values into
+         * @return sample number of row
+         * @throws IOException on read error
+         */
+        public long next(double[] row) throws IOException {
+            if (!hasNext())
+                throw new IOException("No rows remain in file.");
+
+            for (int col=0; col<values.length; col++)
+                row[col] = values[col][nextRow];
+
+            return samples[nextRow++];
+        }
+
+        private void readBlock() throws IOException {
+            nRows = 0;
+            nextRow = 0;
+
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                finished = true;
+                return;
+            }
+
+            if (samples.length < n) {
+                samples = new long[n];
+                for (int col=0; col<values.length; col++)
+                    values[col] = new double[n];
+            }
+
+            for (int row=0; row<n; row++)
+                samples[row] = in.readLong();
+            long blockLength = 4 + 8L*n;
+
+            for (int col=0; col<values.length; col++) {
+                byte mode = in.readByte();
+                if (mode == COLUMN_CONSTANT) {
+                    double value = in.readDouble();
+                    for (int row=0; row<n; row++)
+                        values[col][row] = value;
+                    blockLength += 1 + 8;
+                } else {
+                    for (int row=0; row<n; row++)
+                        values[col][row] = in.readDouble();
+                    blockLength += 1 + 8L*n;
+                }
+            }
+
+            nRows = n;
+            length += blockLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -19,14 +19,35 @@ package multitypetree.util;
 import beast.base.core.BEASTObject;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.SCMigrationModel;
 import multitypetree.evolution.tree.TypeSet;
 import beast.base.core.Loggable;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
+ * Logs the parameters of a structured coalescent migration model.  The
+ * set of columns is fixed in init(), and each column remembers the last
+ * value it logged together with its formatted representation so that
+ * unchanged values are not reformatted.  Columns may alternatively be
+ * written to a binary file readable using MigrationLogFile.Reader.  When
+ * a run is resumed, blocks are appended to an existing binary file,
+ * which must have the same columns.
  *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
@@ -38,17 +59,138 @@ public class MigrationModelLogger extends BEASTObject implements Loggable {
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
         "multiTypeTree", "Tree from which to acquire type names.");
 
+    public Input<String> columnsInput = new Input<>("columns",
+        "Comma-separated list of column groups to log, chosen from "
+        + "scaleFactors, popSizes, backwardRates, forwardRates and "
+        + "rateFlags, or \"all\". (Default all.)", "all");
+
+    public Input<String> columnPatternInput = new Input<>("columnPattern",
+        "Regular expression which the name of each logged column must match.");
+
+    public Input<Integer> significantDigitsInput = new Input<>(
+        "significantDigits",
+        "Number of significant digits to log.  Full precision if absent.");
+
+    public Input<String> binaryFileInput = new Input<>("binaryFile",
+        "Name of file to which columns are written in binary form instead "
+        + "of to the log.");
+
+    public Input<Integer> binaryBlockSizeInput = new Input<>("binaryBlockSize",
+        "Number of samples per block of binary file. (Default 100.)", 100);
+
+    private static final List<String> COLUMN_GROUPS = Arrays.asList(
+        "scaleFactors", "popSizes", "backwardRates", "forwardRates",
+        "rateFlags");
+
+    private enum ColumnKind {
+        POP_SIZE_SCALE_FACTOR, POP_SIZE, RATE_SCALE_FACTOR,
+        BACKWARD_RATE, FORWARD_RATE, RATE_FLAG
+    }
+
+    /**
+     * Logged quantity together with its most recently formatted value.
+     */
+    private class Column {
+        final ColumnKind kind;
+        final int i, j;
+        final String name;
+
+        long lastBits;
+        String lastString;
+
+        Column(ColumnKind kind, int i, int j, String name) {
+            this.kind = kind;
+            this.i = i;
+            this.j = j;
+            this.name = name;
+        }
+
+        double getValue() {
+            switch (kind) {
+                case POP_SIZE_SCALE_FACTOR:
+                    return migModel.getPopSizeScaleFactor();
+                case POP_SIZE:
+                    return migModel.getPopSizeForLog(i);
+                case RATE_SCALE_FACTOR:
+                    return migModel.getRateScaleFactor();
+                case BACKWARD_RATE:
+                    return migModel.getBackwardRate(i, j);
+                case FORWARD_RATE:
+                    return migModel.getForwardRate(i, j);
+                default:
+                    return migModel.getRateFlag(i, j) ? 1.0 : 0.0;
+            }
+        }
+
+        String format(double value) {
+            long bits = Double.doubleToLongBits(value);
+            if (lastString == null || bits != lastBits) {
+                lastBits = bits;
+                if (kind == ColumnKind.RATE_FLAG)
+                    lastString = value > 0.0 ? "1" : "0";
+                else
+                    lastString = formatValue(value);
+            }
+
+            return lastString;
+        }
+    }
+
     private SCMigrationModel migModel;
     private MultiTypeTree mtTree;
 
+    private Set<String> groups;
+    private Pattern columnPattern;
+    private MathContext mathContext;
+
+    private final List<Column> columns = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+
+    private DataOutputStream binaryOut;
+    private long[] blockSamples;
+    private double[][] blockValues;
+    private int blockRows;
+
     @Override
     public void initAndValidate() {
         migModel = migModelInput.get();
         mtTree = multiTypeTreeInput.get();
+
+        groups = new HashSet<>();
+        for (String group : columnsInput.get().split(",")) {
+            group = group.trim();
+            if (group.equals("all"))
+                groups.addAll(COLUMN_GROUPS);
+            else if (COLUMN_GROUPS.contains(group))
+                groups.add(group);
+            else if (!group.isEmpty())
+                throw new IllegalArgumentException("Unknown column group '"
+                        + group + "'.  Expected one of " + COLUMN_GROUPS
+                        + " or all.");
+        }
+
+        columnPattern = columnPatternInput.get() != null
+                ? Pattern.compile(columnPatternInput.get())
+                : null;
+
+        if (significantDigitsInput.get() != null) {
+            if (significantDigitsInput.get() < 1)
+                throw new IllegalArgumentException("significantDigits must "
+                        + "be positive.");
+            mathContext = new MathContext(significantDigitsInput.get());
+        } else
+            mathContext = null;
+
+        if (binaryBlockSizeInput.get() < 1)
+            throw new IllegalArgumentException("binaryBlockSize must be "
+                    + "positive.");
     }
 
-    @Override
-    public void init(PrintStream out) {
+    /**
+     * Assemble the list of logged columns in the order they appear in the
+     * log.
+     */
+    private void initColumns() {
         String outName;
         TypeSet typeSet = migModel.getTypeSet();
 
@@ -57,99 +199,162 @@ public class MigrationModelLogger extends BEASTObject implements Loggable {
         else
             outName = migModel.getID();
 
-        out.print(outName + ".popSizeScaleFactor\t");
+        columns.clear();
+        int nTypes = migModel.getNTypes();
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            if (mtTree != null)
-                out.print(outName + ".popSize_" + typeSet.getTypeName(i) + "\t");
-            else
-                out.print(outName + ".popSize_" + i + "\t");
+        if (groups.contains("scaleFactors"))
+            addColumn(ColumnKind.POP_SIZE_SCALE_FACTOR, 0, 0,
+                    outName + ".popSizeScaleFactor");
+
+        if (groups.contains("popSizes")) {
+            for (int i=0; i<nTypes; i++)
+                addColumn(ColumnKind.POP_SIZE, i, 0,
+                        outName + ".popSize_" + typeName(typeSet, i));
         }
 
-        out.print(outName + ".rateMatrixScaleFactor\t");
+        if (groups.contains("scaleFactors"))
+            addColumn(ColumnKind.RATE_SCALE_FACTOR, 0, 0,
+                    outName + ".rateMatrixScaleFactor");
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            for (int j=0; j<migModel.getNTypes(); j++) {
-                if (i==j)
-                    continue;
-                if (mtTree != null)
-                    out.format("%s.rateMatrix_backward_%s_%s\t", outName,
-                        typeSet.getTypeName(i), typeSet.getTypeName(j));
-                else
-                    out.format("%s.rateMatrix_backward_%d_%d\t", outName, i, j);
-            }
-        }
+        if (groups.contains("backwardRates"))
+            addRateColumns(ColumnKind.BACKWARD_RATE,
+                    outName + ".rateMatrix_backward_", typeSet);
+
+        if (groups.contains("forwardRates"))
+            addRateColumns(ColumnKind.FORWARD_RATE,
+                    outName + ".rateMatrix_forward_", typeSet);
 
+        if (groups.contains("rateFlags")
+                && migModel.rateMatrixFlagsInput.get() != null)
+            addRateColumns(ColumnKind.RATE_FLAG,
+                    outName + ".rateMatrixFlag_", typeSet);
+    }
+
+    private void addRateColumns(ColumnKind kind, String prefix, TypeSet typeSet) {
         for (int i=0; i<migModel.getNTypes(); i++) {
             for (int j=0; j<migModel.getNTypes(); j++) {
                 if (i==j)
                     continue;
-                if (mtTree != null)
-                    out.format("%s.rateMatrix_forward_%s_%s\t", outName,
-                            typeSet.getTypeName(i), typeSet.getTypeName(j));
-                else
-                    out.format("%s.rateMatrix_forward_%d_%d\t", outName, i, j);
+                addColumn(kind, i, j, prefix + typeName(typeSet, i)
+                        + "_" + typeName(typeSet, j));
             }
         }
-        
-        if (migModel.rateMatrixFlagsInput.get() != null) {
-            for (int i=0; i<migModel.getNTypes(); i++) {
-                for (int j=0; j<migModel.getNTypes(); j++) {
-                    if (i==j)
-                        continue;
-                    if (mtTree != null)
-                        out.format("%s.rateMatrixFlag_%s_%s\t", outName,
-                            typeSet.getTypeName(i), typeSet.getTypeName(j));
-                    else
-                        out.format("%s.rateMatrixFlag_%d_%d\t", outName, i, j);
-                }
+    }
+
+    private void addColumn(ColumnKind kind, int i, int j, String name) {
+        if (columnPattern == null || columnPattern.matcher(name).matches())
+            columns.add(new Column(kind, i, j, name));
+    }
+
+    private String typeName(TypeSet typeSet, int type) {
+        return mtTree != null
+                ? typeSet.getTypeName(type)
+                : String.valueOf(type);
+    }
+
+    /**
+     * Format a value to the requested number of significant digits.
+     *
+     * @param value value to format
+     * @return string representation of value
+     */
+    private String formatValue(double value) {
+        if (mathContext == null || Double.isNaN(value) || Double.isInfinite(value))
+            return String.valueOf(value);
+
+        return String.valueOf(new BigDecimal(value).round(mathContext).doubleValue());
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        initColumns();
+
+        if (binaryFileInput.get() != null) {
+            int blockSize = binaryBlockSizeInput.get();
+            blockSamples = new long[blockSize];
+            blockValues = new double[columns.size()][blockSize];
+            blockRows = 0;
+
+            List<String> names = new ArrayList<>();
+            for (Column column : columns)
+                names.add(column.name);
+
+            String fileName = binaryFileInput.get();
+            boolean append = Logger.FILE_MODE == Logger.LogFileMode.resume
+                    && new File(fileName).exists();
+
+            try {
+                if (append)
+                    MigrationLogFile.prepareForAppend(fileName, names);
+
+                binaryOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(fileName, append)));
+                if (!append)
+                    MigrationLogFile.writeHeader(binaryOut, names);
+            } catch (IOException e) {
+                throw new RuntimeException("Error opening binary migration "
+                        + "log file: " + e.getMessage());
             }
+
+            return;
         }
+
+        line.setLength(0);
+        for (Column column : columns)
+            line.append(column.name).append("\t");
+        out.print(line);
     }
 
     @Override
     public void log(long nSample, PrintStream out) {
 
-        out.print(migModel.getPopSizeScaleFactor() + "\t");
+        if (binaryOut != null) {
+            for (int c=0; c<columns.size(); c++)
+                blockValues[c][blockRows] = columns.get(c).getValue();
+            blockSamples[blockRows++] = nSample;
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            out.print(migModel.getPopSizeForLog(i) + "\t");
+            if (blockRows == blockSamples.length)
+                writeBlock();
+
+            return;
         }
 
-        out.print(migModel.getRateScaleFactor() + "\t");
+        line.setLength(0);
+        for (Column column : columns)
+            line.append(column.format(column.getValue())).append("\t");
+        out.print(line);
+    }
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            for (int j=0; j<migModel.getNTypes(); j++) {
-                if (i==j)
-                    continue;
-                out.print(migModel.getBackwardRate(i, j) + "\t");
-            }
+    /**
+     * Write buffered rows to binary file.
+     */
+    private void writeBlock() {
+        try {
+            MigrationLogFile.writeBlock(binaryOut, blockRows, blockSamples,
+                    blockValues);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing binary migration "
+                    + "log file: " + e.getMessage());
         }
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            for (int j=0; j<migModel.getNTypes(); j++) {
-                if (i==j)
-                    continue;
-                out.print(migModel.getForwardRate(i, j) + "\t");
-            }
-        }
-        
-        if (migModel.rateMatrixFlagsInput.get() != null) {
-            for (int i=0; i<migModel.getNTypes(); i++) {
-                for (int j=0; j<migModel.getNTypes(); j++) {
-                    if (i==j)
-                        continue;
-                    if (migModel.getRateFlag(i,j))
-                        out.format("1\t");
-                    else
-                        out.format("0\t");
-                }
-            }
-        }
+        blockRows = 0;
     }
 
     @Override
     public void close(PrintStream out) {
+        if (binaryOut == null)
+            return;
+
+        if (blockRows > 0)
+            writeBlock();
+
+        try {
+            binaryOut.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error closing binary migration "
+                    + "log file: " + e.getMessage());
+        }
+        binaryOut = null;
     }
     
 }
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.inference.Evaluator;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.inference.Runnable;
+import beast.base.inference.State;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLProducer;
+import beast.base.util.Randomizer;
+import multitypetree.operators.CostAwareOperatorSchedule;
+import multitypetree.operators.MultiTypeTreeOperator;
+import multitypetree.operators.TypedWilsonBaldingMTM;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Metropolis-coupled MCMC (parallel tempering) runner.  Each chain is an
+ * independent copy of the model described by the supplied MCMC, obtained
+ * by serialising it to XML and parsing the result, so that every chain
+ * has its own MultiTypeTree, migration model and operators.  Chain i
+ * targets the posterior raised to the power 1/(1 + i*deltaTemperature).
+ *
+ * Chains are advanced in parallel for swapInterval steps at a time.
+ * Between these blocks a swap of temperatures between a randomly chosen
+ * pair of adjacent temperatures is proposed.  Swaps exchange only the
+ * temperatures, never the states themselves.  Steps are numbered from
+ * zero as in MCMC, and whenever a logger of the supplied MCMC is due to
+ * log, the state of whichever chain is currently cold is copied into the
+ * original model before the loggers are called, so these loggers record
+ * the cold chain.
+ *
+ * Raising the structured coalescent density to a power below one weights
+ * each migration event by m^beta rather than m, which exceeds m when the
+ * migration rate m is below one.  Where the data do not constrain the
+ * tree, heated chains may then drift towards ever taller trees carrying
+ * ever more migrations, and rarely swap with the cold chain.  Small
+ * temperature increments avoid this.
+ *
+ * Each chain, and each MultiTypeTreeOperator belonging to it, draws from
+ * its own random number stream split from a single seed.  Each chain also
+ * selects its operators using its own stream: a CostAwareOperatorSchedule
+ * is switched to the chain's stream, while other schedules are bypassed
+ * and operators are selected in proportion to their weights.  Operators
+ * from outside this package, such as parameter scalers, still draw from
+ * the shared BEAST Randomizer from several threads at once, so a run with
+ * more than one chain is reproducible from its seed only if every
+ * operator is a MultiTypeTreeOperator.  A single chain instead uses the
+ * BEAST Randomizer and the MCMC's operator schedule, seeded with the given
+ * seed, throughout, and so reproduces the corresponding MCMC run.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Metropolis-coupled MCMC runner which advances heated copies "
+        + "of a multi-type tree analysis on separate threads, swapping "
+        + "temperatures between them.")
+@Citation("Geyer, Computing Science and Statistics: Proceedings of the "
+        + "23rd Symposium on the Interface, 156 (1991).")
+public class MultiTypeTreeMC3 extends Runnable {
+
+    public Input<MCMC> mcmcInput = new Input<>("mcmc",
+            "MCMC analysis describing the cold chain.  Its loggers record "
+            + "the cold chain.", Validate.REQUIRED);
+
+    public Input<Integer> nChainsInput = new Input<>("nChains",
+            "Number of chains, including the cold chain. (Default 4.)", 4);
+
+    public Input<Double> deltaTemperatureInput = new Input<>(
+            "deltaTemperature",
+            "Temperature increment between successive chains. "
+            + "(Default 0.1.)", 0.1);
+
+    public Input<Integer> swapIntervalInput = new Input<>("swapInterval",
+            "Number of steps each chain takes between swap proposals.  "
+            + "Must divide the logEvery of each logger. (Default 100.)", 100);
+
+    public Input<Integer> nThreadsInput = new Input<>("nThreads",
+            "Number of threads used to advance chains. (Default is the "
+            + "smaller of the number of chains and the number of "
+            + "available processors.)");
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed from which all chain random number streams are derived. "
+            + "(Default is drawn from the BEAST Randomizer.)");
+
+    private MCMC mcmc;
+    private int nChains, nThreads, swapInterval;
+
+    private Chain[] chains;
+
+    // Index of chain currently holding each temperature, coldest first:
+    private int[] chainAtTemp;
+    private double[] betas;
+
+    private long[] swapAttempts, swapAccepts;
+
+    @Override
+    public void initAndValidate() {
+        mcmc = mcmcInput.get();
+
+        nChains = nChainsInput.get();
+        if (nChains < 1)
+            throw new IllegalArgumentException("nChains must be positive.");
+
+        if (deltaTemperatureInput.get() <= 0.0)
+            throw new IllegalArgumentException("deltaTemperature must be "
+                    + "positive.");
+
+        swapInterval = swapIntervalInput.get();
+        if (swapInterval < 1)
+            throw new IllegalArgumentException("swapInterval must be "
+                    + "positive.");
+
+        for (Logger logger : mcmc.loggersInput.get()) {
+            if (logger.everyInput.get() % swapInterval != 0)
+                throw new IllegalArgumentException("swapInterval must divide "
+                        + "the logEvery of each logger.");
+        }
+
+        nThreads = nThreadsInput.get() != null
+                ? nThreadsInput.get()
+                : Math.min(nChains, Runtime.getRuntime().availableProcessors());
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be positive.");
+
+        betas = new double[nChains];
+        for (int i=0; i<nChains; i++)
+            betas[i] = 1.0/(1.0 + i*deltaTemperatureInput.get());
+    }
+
+    /**
+     * A single heated chain.
+     */
+    private static class Chain {
+        State state;
+        Distribution posterior;
+        OperatorSchedule operatorSchedule;
+        RandomSource random;
+
+        // Cumulative operator weights, or null if operators are selected
+        // by the operator schedule:
+        double[] cumulativeWeights;
+
+        double beta, logP;
+
+        /**
+         * Select the operator for the next step.
+         *
+         * @return operator
+         */
+        Operator selectOperator() {
+            if (cumulativeWeights == null)
+                return operatorSchedule.selectOperator();
+
+            List<Operator> operators = operatorSchedule.getOperators();
+            double u = random.nextDouble()*cumulativeWeights[cumulativeWeights.length-1];
+            for (int i=0; i<cumulativeWeights.length; i++) {
+                if (u < cumulativeWeights[i])
+                    return operators.get(i);
+            }
+
+            return operators.get(operators.size()-1);
+        }
+
+        /**
+         * Advance chain by a number of Metropolis-Hastings steps, using
+         * the same sequence of store, propose, evaluate and accept or
+         * restore operations as the standard MCMC.
+         *
+         * @param nSteps number of steps
+         */
+        void advance(int nSteps) {
+            for (int step=0; step<nSteps; step++) {
+                state.store(-1);
+
+                Operator operator = selectOperator();
+                Evaluator evaluator = getEvaluator(operator);
+
+                double logHR = operator.proposal(evaluator);
+
+                if (logHR != Double.NEGATIVE_INFINITY) {
+                    if (operator.requiresStateInitialisation()) {
+                        state.storeCalculationNodes();
+                        state.checkCalculationNodesDirtiness();
+                    }
+
+                    double newLogP = posterior.calculateLogP();
+                    double logAlpha = beta*(newLogP - logP) + logHR;
+
+                    if (logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha)) {
+                        logP = newLogP;
+                        state.acceptCalculationNodes();
+                        operator.accept();
+                    } else {
+                        operator.reject(newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+                        state.restore();
+                        state.restoreCalculationNodes();
+                    }
+                    state.setEverythingDirty(false);
+
+                    operator.optimize(logAlpha);
+                } else {
+                    operator.reject(-2);
+                    state.restore();
+                    if (!operator.requiresStateInitialisation()) {
+                        state.setEverythingDirty(false);
+                        state.restoreCalculationNodes();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param operator operator
+         * @return evaluator for operator's evaluator distribution, or null
+         * if operator does not use one
+         */
+        private Evaluator getEvaluator(Operator operator) {
+            Distribution distribution = operator.getEvaluatorDistribution();
+            if (distribution == null)
+                return null;
+
+            return () -> {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+                double logP = distribution.calculateLogP();
+                state.restore();
+                state.restoreCalculationNodes();
+                state.setEverythingDirty(false);
+                return logP;
+            };
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        long seed = seedInput.get() != null
+                ? seedInput.get()
+                : Randomizer.nextLong();
+        RandomSource master = new RandomStream(seed);
+        if (nChains == 1 && seedInput.get() != null)
+            Randomizer.setSeed(seed);
+        RandomSource swapRandom = master.split();
+
+        // Step 1: create and initialise chains
+
+        String xml = new XMLProducer().toXML(mcmc);
+        chains = new Chain[nChains];
+        chainAtTemp = new int[nChains];
+        for (int i=0; i<nChains; i++) {
+            MCMC chainMCMC = (MCMC)new XMLParser().parseFragment(xml, true);
+
+            Chain chain = new Chain();
+            chain.state = chainMCMC.startStateInput.get();
+            chain.posterior = chainMCMC.posteriorInput.get();
+            chain.operatorSchedule = chainMCMC.getOperatorSchedule();
+            chain.random = nChains > 1 ? master.split() : RandomSource.RANDOMIZER;
+            chain.beta = betas[i];
+
+            if (nChains > 1) {
+                List<Operator> operators = chain.operatorSchedule.getOperators();
+                for (Operator operator : operators) {
+                    if (operator instanceof MultiTypeTreeOperator)
+                        ((MultiTypeTreeOperator)operator).setRandomSource(master.split());
+                }
+
+                if (chain.operatorSchedule instanceof CostAwareOperatorSchedule) {
+                    ((CostAwareOperatorSchedule)chain.operatorSchedule)
+                            .setRandomSource(master.split());
+                } else {
+                    chain.cumulativeWeights = new double[operators.size()];
+                    double sum = 0.0;
+                    for (int j=0; j<operators.size(); j++) {
+                        sum += operators.get(j).getWeight();
+                        chain.cumulativeWeights[j] = sum;
+                    }
+                }
+            }
+
+            for (StateNodeInitialiser initialiser : chainMCMC.initialisersInput.get())
+                initialiser.initStateNodes();
+
+            chain.state.storeCalculationNodes();
+            chain.logP = chain.state.robustlyCalcPosterior(chain.posterior);
+
+            chains[i] = chain;
+            chainAtTemp[i] = i;
+        }
+
+        swapAttempts = new long[nChains];
+        swapAccepts = new long[nChains];
+
+        // Step 2: alternate between advancing chains in parallel and
+        // proposing temperature swaps.  As in MCMC, steps 0 to chainLength
+        // are taken and the state logged at sample s is that reached by
+        // step s, so step 0 forms a block of its own.
+
+        List<Logger> loggers = mcmc.loggersInput.get();
+        for (Logger logger : loggers)
+            logger.init();
+
+        long chainLength = mcmc.chainLengthInput.get();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (long sample=-1; sample<chainLength; ) {
+                int nSteps = sample < 0
+                        ? 1
+                        : (int)Math.min(swapInterval, chainLength - sample);
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (Chain chain : chains)
+                    futures.add(executor.submit(() -> chain.advance(nSteps)));
+
+                for (Future<?> future : futures)
+                    future.get();
+
+                if (nChains > 1)
+                    proposeSwap(swapRandom);
+
+                sample += nSteps;
+                logColdChain(loggers, sample);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("MC3 run interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error while advancing chains: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+
+            // Release threads used by operators to score candidates:
+            for (Chain chain : chains) {
+                for (Operator operator : chain.operatorSchedule.getOperators()) {
+                    if (operator instanceof TypedWilsonBaldingMTM)
+                        ((TypedWilsonBaldingMTM)operator).shutdown();
+                }
+            }
+        }
+
+        for (Logger logger : loggers)
+            logger.close();
+
+        reportSwapRates();
+    }
+
+    /**
+     * Propose exchanging the temperatures of the chains holding a randomly
+     * selected pair of adjacent temperatures.
+     *
+     * @param random source of random numbers
+     */
+    private void proposeSwap(RandomSource random) {
+        int k = random.nextInt(nChains-1);
+        Chain colder = chains[chainAtTemp[k]];
+        Chain hotter = chains[chainAtTemp[k+1]];
+
+        swapAttempts[k] += 1;
+
+        double logAlpha = (colder.beta - hotter.beta)*(hotter.logP - colder.logP);
+        if (logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha)) {
+            double beta = colder.beta;
+            colder.beta = hotter.beta;
+            hotter.beta = beta;
+
+            int chainIdx = chainAtTemp[k];
+            chainAtTemp[k] = chainAtTemp[k+1];
+            chainAtTemp[k+1] = chainIdx;
+
+            swapAccepts[k] += 1;
+        }
+    }
+
+    /**
+     * Copy the state of the cold chain into the original model and call
+     * its loggers, provided at least one of them logs this sample.
+     *
+     * @param loggers loggers to call
+     * @param sample sample number
+     */
+    private void logColdChain(List<Logger> loggers, long sample) {
+        boolean logging = false;
+        for (Logger logger : loggers) {
+            if (sample % logger.everyInput.get() == 0)
+                logging = true;
+        }
+
+        if (!logging)
+            return;
+
+        State coldState = chains[chainAtTemp[0]].state;
+        State logState = mcmc.startStateInput.get();
+
+        for (int i=0; i<logState.getNrOfStateNodes(); i++)
+            logState.getStateNode(i).assignFromFragile(coldState.getStateNode(i));
+
+        logState.robustlyCalcPosterior(mcmc.posteriorInput.get());
+
+        for (Logger logger : loggers)
+            logger.log(sample);
+    }
+
+    /**
+     * @param k index of colder of two adjacent temperatures
+     * @return number of swaps proposed between these temperatures
+     */
+    public long getSwapAttempts(int k) {
+        return swapAttempts[k];
+    }
+
+    /**
+     * @param k index of colder of two adjacent temperatures
+     * @return number of swaps accepted between these temperatures
+     */
+    public long getSwapAccepts(int k) {
+        return swapAccepts[k];
+    }
+
+    /**
+     * Write acceptance rates of swaps between adjacent temperatures.
+     */
+    private void reportSwapRates() {
+        Log.info.println("\nMC3 temperature swap acceptance rates:");
+        for (int k=0; k<nChains-1; k++) {
+            Log.info.format("  %.4f <-> %.4f: %d/%d (%.4f)%n",
+                    betas[k], betas[k+1], swapAccepts[k], swapAttempts[k],
+                    swapAttempts[k] > 0 ? swapAccepts[k]/(double)swapAttempts[k] : Double.NaN);
+        }
+    }
+}
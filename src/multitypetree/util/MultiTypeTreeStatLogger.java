@@ -21,9 +21,9 @@ import beast.base.core.Input.Validate;
 import beast.base.inference.Logger;
 import beast.base.inference.util.ESS;
 import beast.base.util.DiscreteStatistics;
+import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
 
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,6 +31,11 @@ import java.util.List;
  * Special logger for constructing unit tests on multi type tree operator
  * combinations.
  *
+ * In addition to (or, in streaming mode, instead of) recording the trace
+ * of root heights, the logger maintains constant-memory running
+ * statistics of the root height, tree length, total number of type
+ * changes and root type.  These may be queried while the chain is running.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class MultiTypeTreeStatLogger extends Logger {
@@ -41,15 +46,34 @@ public class MultiTypeTreeStatLogger extends Logger {
             Validate.REQUIRED);
     
     public Input<Double> burninFracInput = new Input<Double>("burninFrac",
-            "Fraction of trace to discard.  Default 0.1.", 0.1);
+            "Fraction of trace to discard.  Default 0.1.  Not used in "
+            + "streaming mode.", 0.1);
+
+    public Input<Boolean> streamingInput = new Input<>("streaming",
+            "Don't record the root height trace: compute all statistics "
+            + "online in constant memory. Default false.", false);
+
+    public Input<Long> burninInput = new Input<>("burnin",
+            "Number of states to discard before accumulating running "
+            + "statistics.  Default 0.", 0L);
+
+    /**
+     * Probabilities of quantiles estimated by the running statistics.
+     */
+    public static final double[] QUANTILE_PROBS = {0.025, 0.5, 0.975};
     
     MultiTypeTree multiTypeTree;
     double burninFrac, logEvery;
+    boolean streaming;
+    long burnin;
     
     List<Double> heights = new ArrayList();
     double [] heightsArray;
     double heightMean, heightVar, heightESS;
 
+    OnlineStatistic heightStat, lengthStat, changeCountStat;
+    OnlineStatistic[] rootTypeStats;
+
     public MultiTypeTreeStatLogger () {
         loggersInput.setRule(Validate.OPTIONAL);
     }
@@ -59,11 +83,29 @@ public class MultiTypeTreeStatLogger extends Logger {
         multiTypeTree = multiTypeTreeInput.get();
         burninFrac = burninFracInput.get();
         logEvery = everyInput.get();
+        streaming = streamingInput.get();
+        burnin = burninInput.get();
+
+        heightStat = new OnlineStatistic(QUANTILE_PROBS);
+        lengthStat = new OnlineStatistic(QUANTILE_PROBS);
+        changeCountStat = new OnlineStatistic(QUANTILE_PROBS);
+        rootTypeStats = new OnlineStatistic[0];
     };
 
     @Override
     public void init() {
         heights.clear();
+
+        heightStat.reset();
+        lengthStat.reset();
+        changeCountStat.reset();
+
+        int nTypes = multiTypeTree.getTypeSet() != null
+                ? multiTypeTree.getTypeSet().getNTypes()
+                : 0;
+        rootTypeStats = new OnlineStatistic[nTypes];
+        for (int type=0; type<nTypes; type++)
+            rootTypeStats[type] = new OnlineStatistic();
     }
 
     @Override
@@ -72,7 +114,19 @@ public class MultiTypeTreeStatLogger extends Logger {
         if ((nSample < 0) || (nSample % logEvery > 0))
             return;
         
-        heights.add(multiTypeTree.getRoot().getHeight());
+        if (!streaming)
+            heights.add(multiTypeTree.getRoot().getHeight());
+
+        if (nSample < burnin)
+            return;
+
+        heightStat.add(multiTypeTree.getRoot().getHeight());
+        lengthStat.add(multiTypeTree.getTotalLength());
+        changeCountStat.add(multiTypeTree.getTotalNumberOfChanges());
+
+        int rootType = ((MultiTypeNode)multiTypeTree.getRoot()).getNodeType();
+        for (int type=0; type<rootTypeStats.length; type++)
+            rootTypeStats[type].add(type == rootType ? 1.0 : 0.0);
     }
 
     @Override
@@ -81,23 +135,31 @@ public class MultiTypeTreeStatLogger extends Logger {
     }
 
     /**
-     * Compute statistics from completed traces.
+     * Compute statistics from completed traces.  In streaming mode, the
+     * statistics are simply those of the running root height summary.
      */
     public void computeStatistics() {
+
+        if (streaming) {
+            heightMean = heightStat.getMean();
+            heightVar = heightStat.getVariance();
+            heightESS = heightStat.getESS();
+            return;
+        }
         
         // Truncate burnin
-        heights = heights.subList((int)(burninFrac*heights.size()),
-                heights.size()-1);
+        List<Double> trace = heights.subList((int)(burninFrac*heights.size()),
+                heights.size());
         
         // Transfer to array for DiscreteStatistics methods:
-        heightsArray = new double[heights.size()];
-        for (int i=0; i<heights.size(); i++)
-            heightsArray[i] = heights.get(i);
+        heightsArray = new double[trace.size()];
+        for (int i=0; i<trace.size(); i++)
+            heightsArray[i] = trace.get(i);
         
         // Compute height statistics:
         heightMean = DiscreteStatistics.mean(heightsArray);
         heightVar = DiscreteStatistics.variance(heightsArray);
-        heightESS = ESS.calcESS(heights);
+        heightESS = ESS.calcESS(trace);
     }
     
     public double getHeightMean() {
@@ -111,5 +173,35 @@ public class MultiTypeTreeStatLogger extends Logger {
     public double getHeightESS() {
         return heightESS;
     }
+
+    /**
+     * @return running statistics of root height
+     */
+    public OnlineStatistic getHeightStatistic() {
+        return heightStat;
+    }
+
+    /**
+     * @return running statistics of total tree length
+     */
+    public OnlineStatistic getTreeLengthStatistic() {
+        return lengthStat;
+    }
+
+    /**
+     * @return running statistics of total number of type changes
+     */
+    public OnlineStatistic getChangeCountStatistic() {
+        return changeCountStat;
+    }
+
+    /**
+     * @param type type index
+     * @return running statistics of indicator that root has given type,
+     * the mean of which is the posterior probability of the root type.
+     */
+    public OnlineStatistic getRootTypeStatistic(int type) {
+        return rootTypeStats[type];
+    }
     
 }
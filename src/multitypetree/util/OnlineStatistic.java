@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a stream of values computed in constant memory.
+ * The mean and variance are maintained using Welford's algorithm, the
+ * effective sample size is estimated using batch means over a bounded
+ * number of batches whose size doubles as the stream grows, and selected
+ * quantiles are estimated using the P-squared algorithm of Jain and
+ * Chlamtac (1985).  The per-batch means and variances also allow the
+ * split-R-hat diagnostic to be computed from the two halves of the
+ * stream.
+ *
+ * All methods are synchronized so that statistics may be queried from
+ * other threads while values are being added.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OnlineStatistic {
+
+    private static final int MAX_BATCHES = 128;
+
+    private long count;
+    private double mean, sumSqDev, min, max;
+
+    // Means and sums of squared deviations of completed batches:
+    private final double[] batchMeans = new double[MAX_BATCHES];
+    private final double[] batchSumSqDevs = new double[MAX_BATCHES];
+    private int nBatches;
+    private long batchSize;
+    private double currentBatchMean, currentBatchSumSqDev;
+    private long currentBatchCount;
+
+    private final double[] probs;
+    private final P2Quantile[] quantiles;
+
+    /**
+     * Create a new statistic.
+     *
+     * @param probs probabilities of quantiles to estimate
+     */
+    public OnlineStatistic(double... probs) {
+        this.probs = probs.clone();
+        quantiles = new P2Quantile[probs.length];
+        for (int i=0; i<probs.length; i++) {
+            if (!(probs[i] > 0.0 && probs[i] < 1.0))
+                throw new IllegalArgumentException("Quantile probabilities "
+                        + "must lie strictly between 0 and 1.");
+            quantiles[i] = new P2Quantile(probs[i]);
+        }
+
+        reset();
+    }
+
+    /**
+     * Discard all values added so far.
+     */
+    public synchronized void reset() {
+        count = 0;
+        mean = 0.0;
+        sumSqDev = 0.0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+
+        nBatches = 0;
+        batchSize = 1;
+        currentBatchMean = 0.0;
+        currentBatchSumSqDev = 0.0;
+        currentBatchCount = 0;
+
+        for (P2Quantile quantile : quantiles)
+            quantile.reset();
+    }
+
+    /**
+     * Add a value to the stream.
+     *
+     * @param x value
+     */
+    public synchronized void add(double x) {
+        count += 1;
+        double delta = x - mean;
+        mean += delta/count;
+        sumSqDev += delta*(x - mean);
+
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+
+        currentBatchCount += 1;
+        double batchDelta = x - currentBatchMean;
+        currentBatchMean += batchDelta/currentBatchCount;
+        currentBatchSumSqDev += batchDelta*(x - currentBatchMean);
+        if (currentBatchCount == batchSize) {
+            batchMeans[nBatches] = currentBatchMean;
+            batchSumSqDevs[nBatches] = currentBatchSumSqDev;
+            nBatches += 1;
+
+            currentBatchMean = 0.0;
+            currentBatchSumSqDev = 0.0;
+            currentBatchCount = 0;
+
+            // Merge only once all stored batches share the current size,
+            // so that the next batch accumulates at the doubled size:
+            if (nBatches == MAX_BATCHES)
+                mergeBatches();
+        }
+
+        for (P2Quantile quantile : quantiles)
+            quantile.add(x);
+    }
+
+    /**
+     * Halve the number of completed batches by combining neighbouring
+     * pairs, doubling the batch size.
+     */
+    private void mergeBatches() {
+        for (int i=0; i<nBatches/2; i++) {
+            double delta = batchMeans[2*i+1] - batchMeans[2*i];
+            batchSumSqDevs[i] = batchSumSqDevs[2*i] + batchSumSqDevs[2*i+1]
+                    + 0.5*delta*delta*batchSize;
+            batchMeans[i] = batchMeans[2*i] + 0.5*delta;
+        }
+        nBatches /= 2;
+        batchSize *= 2;
+    }
+
+    /**
+     * @return number of values added
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean of values, or NaN if none have been added
+     */
+    public synchronized double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return sample variance of values, or NaN if fewer than two have
+     * been added
+     */
+    public synchronized double getVariance() {
+        return count > 1 ? sumSqDev/(count-1) : Double.NaN;
+    }
+
+    /**
+     * @return smallest value added
+     */
+    public synchronized double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * @return largest value added
+     */
+    public synchronized double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Estimate effective sample size from the variance of the batch
+     * means.  Values in the incomplete final batch are not used.
+     *
+     * @return effective sample size, zero if no variation has been seen,
+     * or NaN if too few batches have been completed
+     */
+    public synchronized double getESS() {
+        if (nBatches < 2)
+            return Double.NaN;
+
+        double batchMean = 0.0;
+        for (int i=0; i<nBatches; i++)
+            batchMean += batchMeans[i];
+        batchMean /= nBatches;
+
+        double batchVar = 0.0;
+        for (int i=0; i<nBatches; i++) {
+            double dev = batchMeans[i] - batchMean;
+            batchVar += dev*dev;
+        }
+        batchVar /= nBatches - 1;
+
+        double var = getVariance();
+        if (batchVar == 0.0)
+            return var == 0.0 ? 0.0 : Double.POSITIVE_INFINITY;
+
+        // n*var/(batchSize*batchVar), with n = nBatches*batchSize:
+        return nBatches*var/batchVar;
+    }
+
+    /**
+     * Compute the split-R-hat convergence diagnostic of Gelman et al.
+     * (2013) by treating the first and last halves of the completed
+     * batches as separate chains.  The middle batch is discarded if the
+     * number of batches is odd.
+     *
+     * @return split-R-hat, or NaN if fewer than four batches have been
+     * completed or the values within each half are constant
+     */
+    public synchronized double getSplitRHat() {
+        if (nBatches < 4)
+            return Double.NaN;
+
+        int h = nBatches/2;
+        double n = h*batchSize;
+
+        double[] first = combineBatches(0, h);
+        double[] second = combineBatches(nBatches-h, nBatches);
+
+        double W = 0.5*(first[1] + second[1])/(n-1);
+        if (!(W > 0.0))
+            return Double.NaN;
+
+        double delta = first[0] - second[0];
+        double varPlus = (n-1)/n*W + 0.5*delta*delta;
+
+        return Math.sqrt(varPlus/W);
+    }
+
+    /**
+     * Combine a range of completed batches.
+     *
+     * @param from index of first batch
+     * @param to index one past last batch
+     * @return mean and sum of squared deviations of combined batches
+     */
+    private double[] combineBatches(int from, int to) {
+        double mean = 0.0, sumSqDev = 0.0;
+        for (int i=from; i<to; i++) {
+            double k = i - from;
+            double delta = batchMeans[i] - mean;
+            mean += delta/(k+1);
+            sumSqDev += batchSumSqDevs[i] + delta*delta*batchSize*k/(k+1);
+        }
+
+        return new double[] {mean, sumSqDev};
+    }
+
+    /**
+     * @return Monte Carlo standard error of the mean
+     */
+    public synchronized double getStandardError() {
+        return Math.sqrt(getVariance()/getESS());
+    }
+
+    /**
+     * @return probabilities of estimated quantiles
+     */
+    public double[] getQuantileProbabilities() {
+        return probs.clone();
+    }
+
+    /**
+     * @param prob probability of quantile, which must be one of those
+     * supplied to the constructor
+     * @return estimated quantile, or NaN if no values have been added
+     */
+    public synchronized double getQuantile(double prob) {
+        for (int i=0; i<probs.length; i++) {
+            if (probs[i] == prob)
+                return quantiles[i].get();
+        }
+
+        throw new IllegalArgumentException("Quantile " + prob
+                + " is not being estimated.");
+    }
+
+    /**
+     * Estimator of a single quantile using the five markers of the
+     * P-squared algorithm.
+     */
+    private static final class P2Quantile {
+        private final double p;
+        private final double[] heights = new double[5];
+        private final double[] positions = new double[5];
+        private final double[] desired = new double[5];
+        private final double[] increments;
+        private int n;
+
+        P2Quantile(double p) {
+            this.p = p;
+            increments = new double[] {0.0, p/2.0, p, (1.0+p)/2.0, 1.0};
+        }
+
+        void reset() {
+            n = 0;
+        }
+
+        void add(double x) {
+
+            // Step 1: collect first five values
+
+            if (n < 5) {
+                heights[n++] = x;
+                if (n == 5) {
+                    Arrays.sort(heights);
+                    for (int i=0; i<5; i++)
+                        positions[i] = i + 1;
+                    desired[0] = 1.0;
+                    desired[1] = 1.0 + 2.0*p;
+                    desired[2] = 1.0 + 4.0*p;
+                    desired[3] = 3.0 + 2.0*p;
+                    desired[4] = 5.0;
+                }
+                return;
+            }
+            n += 1;
+
+            // Step 2: locate cell containing x and shift marker positions
+
+            int k;
+            if (x < heights[0]) {
+                heights[0] = x;
+                k = 0;
+            } else if (x >= heights[4]) {
+                heights[4] = x;
+                k = 3;
+            } else {
+                k = 0;
+                while (k < 3 && x >= heights[k+1])
+                    k += 1;
+            }
+
+            for (int i=k+1; i<5; i++)
+                positions[i] += 1;
+            for (int i=0; i<5; i++)
+                desired[i] += increments[i];
+
+            // Step 3: adjust heights of central markers
+
+            for (int i=1; i<=3; i++) {
+                double d = desired[i] - positions[i];
+                if ((d >= 1.0 && positions[i+1] - positions[i] > 1.0)
+                        || (d <= -1.0 && positions[i-1] - positions[i] < -1.0)) {
+                    int s = d >= 0.0 ? 1 : -1;
+
+                    double h = parabolic(i, s);
+                    if (heights[i-1] < h && h < heights[i+1])
+                        heights[i] = h;
+                    else
+                        heights[i] += s*(heights[i+s] - heights[i])
+                                /(positions[i+s] - positions[i]);
+
+                    positions[i] += s;
+                }
+            }
+        }
+
+        private double parabolic(int i, int s) {
+            return heights[i] + s/(positions[i+1] - positions[i-1])
+                    *((positions[i] - positions[i-1] + s)
+                    *(heights[i+1] - heights[i])/(positions[i+1] - positions[i])
+                    + (positions[i+1] - positions[i] - s)
+                    *(heights[i] - heights[i-1])/(positions[i] - positions[i-1]));
+        }
+
+        double get() {
+            if (n == 0)
+                return Double.NaN;
+
+            if (n < 5) {
+                double[] sorted = Arrays.copyOf(heights, n);
+                Arrays.sort(sorted);
+                int idx = (int)Math.ceil(p*n) - 1;
+                return sorted[Math.max(0, Math.min(n-1, idx))];
+            }
+
+            return heights[2];
+        }
+    }
+}
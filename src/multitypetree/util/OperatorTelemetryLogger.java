@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import multitypetree.operators.MultiTypeTreeOperator;
+import multitypetree.operators.OperatorTelemetry;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs running timing and acceptance statistics for multi-type tree
+ * operators.  Times are reported in microseconds.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Logs proposal and evaluation timings, acceptance rates and "
+        + "early rejection counts of multi-type tree operators.")
+public class OperatorTelemetryLogger extends BEASTObject implements Loggable {
+
+    public Input<List<MultiTypeTreeOperator>> operatorInput = new Input<>(
+            "operator", "Operator to report statistics for.",
+            new ArrayList<>());
+
+    public Input<Boolean> reportInput = new Input<>("report",
+            "Write a summary for each operator to the BEAST log at the "
+            + "end of the run. (Default true.)", true);
+
+    @Override
+    public void initAndValidate() {
+        if (operatorInput.get().isEmpty())
+            throw new IllegalArgumentException("OperatorTelemetryLogger "
+                    + "requires at least one operator.");
+    }
+
+    /**
+     * @param operator operator
+     * @return name used to label operator's columns
+     */
+    private String getName(MultiTypeTreeOperator operator) {
+        if (operator.getID() == null || operator.getID().matches("\\s*"))
+            return operator.getClass().getSimpleName();
+        else
+            return operator.getID();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (MultiTypeTreeOperator operator : operatorInput.get()) {
+            String name = getName(operator);
+            out.print(name + ".acceptRate\t"
+                    + name + ".proposalTime\t"
+                    + name + ".evalTime\t"
+                    + name + ".costPerAccept\t"
+                    + name + ".earlyRejects\t"
+                    + name + ".meanPathLength\t"
+                    + name + ".changesAdded\t"
+                    + name + ".changesRemoved\t");
+        }
+    }
+
+    @Override
+    public void log(long nSample, PrintStream out) {
+        for (MultiTypeTreeOperator operator : operatorInput.get()) {
+            OperatorTelemetry telemetry = operator.getTelemetry();
+            out.print(telemetry.getAcceptanceRate() + "\t"
+                    + telemetry.getMeanProposalNanos()/1e3 + "\t"
+                    + telemetry.getMeanEvaluationNanos()/1e3 + "\t"
+                    + telemetry.getNanosPerAccept()/1e3 + "\t"
+                    + telemetry.getEarlyRejectCount() + "\t"
+                    + telemetry.getMeanRetypePathLength() + "\t"
+                    + telemetry.getChangesAdded() + "\t"
+                    + telemetry.getChangesRemoved() + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (!reportInput.get())
+            return;
+
+        Log.info.println("\nMulti-type tree operator telemetry:");
+        for (MultiTypeTreeOperator operator : operatorInput.get())
+            operator.getTelemetry().report(getName(operator), Log.info);
+    }
+}
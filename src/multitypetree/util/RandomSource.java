@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+/**
+ * Source of random numbers used by the operators, densities and
+ * simulators in this package.  Components draw from RANDOMIZER, which
+ * simply forwards to the global BEAST Randomizer, unless they are given
+ * a RandomStream.  Independent streams for use by parallel workers are
+ * obtained using split().
+ *
+ * Implementations need not be thread-safe: each thread should use its
+ * own stream.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public interface RandomSource {
+
+    /**
+     * Source which forwards all calls to the BEAST Randomizer.
+     */
+    RandomSource RANDOMIZER = new RandomizerSource();
+
+    /**
+     * @return uniform variate on [0,1)
+     */
+    double nextDouble();
+
+    /**
+     * @param n upper bound (exclusive)
+     * @return uniform integer on [0,n)
+     */
+    int nextInt(int n);
+
+    /**
+     * @return uniformly distributed long
+     */
+    long nextLong();
+
+    /**
+     * @return true or false with equal probability
+     */
+    boolean nextBoolean();
+
+    /**
+     * @param rate rate of distribution
+     * @return exponential variate with given rate
+     */
+    double nextExponential(double rate);
+
+    /**
+     * @param mean mean of distribution
+     * @return Poisson variate with given mean
+     */
+    int nextPoisson(double mean);
+
+    /**
+     * @param n number of elements
+     * @return random permutation of the integers 0 to n-1
+     */
+    int[] shuffled(int n);
+
+    /**
+     * Create a new stream which is statistically independent of this one.
+     * Splitting advances the state of this stream, so a fixed sequence of
+     * splits from a seeded stream always yields the same child streams.
+     *
+     * @return new stream
+     */
+    RandomSource split();
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.util.Randomizer;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded, splittable stream of random numbers based on the SplitMix64
+ * generator (java.util.SplittableRandom).  Streams obtained by split()
+ * are statistically independent of their parent, allowing work to be
+ * distributed across threads reproducibly and without contention on a
+ * shared generator.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Seeded, splittable stream of random numbers.")
+public class RandomStream extends BEASTObject implements RandomSource {
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed for stream. (Default is drawn from the BEAST Randomizer, "
+                    + "so runs remain reproducible given the BEAST seed.)");
+
+    private SplittableRandom generator;
+
+    public RandomStream() { }
+
+    /**
+     * Create a new stream with the given seed.
+     *
+     * @param seed seed for stream
+     */
+    public RandomStream(long seed) {
+        generator = new SplittableRandom(seed);
+    }
+
+    private RandomStream(SplittableRandom generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public void initAndValidate() {
+        generator = new SplittableRandom(seedInput.get() != null
+                ? seedInput.get()
+                : Randomizer.nextLong());
+    }
+
+    @Override
+    public double nextDouble() {
+        return generator.nextDouble();
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return generator.nextInt(n);
+    }
+
+    @Override
+    public long nextLong() {
+        return generator.nextLong();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return generator.nextBoolean();
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return -Math.log(1.0 - generator.nextDouble())/rate;
+    }
+
+    /**
+     * Draw a Poisson variate.  Small means use sequential inversion, larger
+     * means the transformed rejection method of Hormann (Insurance: Math.
+     * Econ. 12:39, 1993).
+     *
+     * @param mean mean of distribution
+     * @return Poisson variate
+     */
+    @Override
+    public int nextPoisson(double mean) {
+        if (mean < 10.0) {
+            double u = generator.nextDouble();
+            double p = Math.exp(-mean);
+            double cdf = p;
+            int k = 0;
+            while (u > cdf && p > 0.0) {
+                k += 1;
+                p *= mean/k;
+                cdf += p;
+            }
+            return k;
+        }
+
+        double sqrtMean = Math.sqrt(mean);
+        double logMean = Math.log(mean);
+        double b = 0.931 + 2.53*sqrtMean;
+        double a = -0.059 + 0.02483*b;
+        double logInvAlpha = Math.log(1.1239 + 1.1328/(b - 3.4));
+        double vr = 0.9277 - 3.6224/(b - 2.0);
+
+        while (true) {
+            double u = generator.nextDouble() - 0.5;
+            double v = generator.nextDouble();
+            double us = 0.5 - Math.abs(u);
+            long k = (long)Math.floor((2.0*a/us + b)*u + mean + 0.43);
+
+            if (us >= 0.07 && v <= vr)
+                return (int)k;
+
+            if (k < 0 || (us < 0.013 && v > us))
+                continue;
+
+            if (Math.log(v) + logInvAlpha - Math.log(a/(us*us) + b)
+                    <= -mean + k*logMean - logFactorial(k))
+                return (int)k;
+        }
+    }
+
+    /**
+     * @return log(k!), exact for small k and from Stirling's series otherwise
+     */
+    private static double logFactorial(long k) {
+        if (k < 10) {
+            double res = 0.0;
+            for (int i=2; i<=k; i++)
+                res += Math.log(i);
+            return res;
+        }
+
+        double x = k + 1.0;
+        double x2 = x*x;
+        return (x - 0.5)*Math.log(x) - x + 0.5*Math.log(2.0*Math.PI)
+                + (1.0/12.0 - (1.0/360.0 - 1.0/(1260.0*x2))/x2)/x;
+    }
+
+    @Override
+    public int[] shuffled(int n) {
+        int[] res = new int[n];
+        for (int i=0; i<n; i++)
+            res[i] = i;
+
+        for (int i=n-1; i>0; i--) {
+            int j = generator.nextInt(i + 1);
+            int tmp = res[i];
+            res[i] = res[j];
+            res[j] = tmp;
+        }
+
+        return res;
+    }
+
+    @Override
+    public RandomStream split() {
+        return new RandomStream(generator.split());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.util.Randomizer;
+
+/**
+ * Random source which forwards to the global BEAST Randomizer, so that
+ * components which are not given a stream behave exactly as before.
+ * Use RandomSource.RANDOMIZER rather than creating instances.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class RandomizerSource implements RandomSource {
+
+    @Override
+    public double nextDouble() {
+        return Randomizer.nextDouble();
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return Randomizer.nextInt(n);
+    }
+
+    @Override
+    public long nextLong() {
+        return Randomizer.nextLong();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return Randomizer.nextBoolean();
+    }
+
+    @Override
+    public double nextExponential(double rate) {
+        return Randomizer.nextExponential(rate);
+    }
+
+    @Override
+    public int nextPoisson(double mean) {
+        return (int) Randomizer.nextPoisson(mean);
+    }
+
+    @Override
+    public int[] shuffled(int n) {
+        return Randomizer.shuffled(n);
+    }
+
+    /**
+     * @return new stream seeded from the Randomizer
+     */
+    @Override
+    public RandomSource split() {
+        return new RandomStream(Randomizer.nextLong());
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.inference.Runnable;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+import multitypetree.evolution.tree.CompactMultiTypeTree;
+import multitypetree.evolution.tree.MigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentSimulator;
+import multitypetree.evolution.tree.TypeSet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Simulates a large number of trees under the structured coalescent and
+ * streams them to disk.  Replicates are simulated in blocks by a pool of
+ * worker threads, each block using its own random number stream split
+ * from a single seed.  Completed blocks are written strictly in order,
+ * and only a bounded number of serialised blocks are held in memory at
+ * any time.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Simulates trees under the structured coalescent, streaming "
+        + "them to a NEXUS or binary file together with per-tree summary "
+        + "statistics.")
+public class StructuredCoalescentTreeStreamer extends Runnable {
+
+    public enum Format { NEXUS, BINARY }
+
+    public Input<MigrationModel> migrationModelInput = new Input<>(
+            "migrationModel",
+            "Migration model to use in simulator.",
+            Validate.REQUIRED);
+
+    public Input<IntegerParameter> leafTypesInput = new Input<>(
+            "leafTypes",
+            "Types of leaf nodes.");
+
+    public Input<TraitSet> typeTraitInput = new Input<>(
+            "typeTrait",
+            "Trait set specifying leaf types.  Alternative to leafTypes.");
+
+    public Input<TraitSet> timeTraitInput = new Input<>(
+            "timeTrait",
+            "Trait set specifying leaf ages.  Leaves are contemporaneous "
+                    + "if omitted.");
+
+    public Input<Integer> nTreesInput = new Input<>(
+            "nTrees",
+            "Number of trees to simulate.",
+            Validate.REQUIRED);
+
+    public Input<Boolean> typedInput = new Input<>(
+            "typed",
+            "If false, type changes are omitted from the written trees. "
+                    + "(Default true.)", true);
+
+    public Input<Format> formatInput = new Input<>(
+            "format",
+            "Format of tree output file. (Default NEXUS.)",
+            Format.NEXUS, Format.values());
+
+    public Input<String> typeLabelInput = new Input<>(
+            "typeLabel",
+            "Label used for type annotations in NEXUS output. "
+                    + "(Default 'type'.)", "type");
+
+    public Input<String> outputFileNameInput = new Input<>(
+            "outputFileName",
+            "Name of file to write trees to.",
+            Validate.REQUIRED);
+
+    public Input<String> statsFileNameInput = new Input<>(
+            "statsFileName",
+            "Optional name of file to write tab-delimited per-tree "
+                    + "summary statistics to.");
+
+    public Input<StructuredCoalescentSimulator.Method> simulationMethodInput = new Input<>(
+            "simulationMethod",
+            "Algorithm used to simulate trees. (Default DIRECT.)",
+            StructuredCoalescentSimulator.Method.DIRECT,
+            StructuredCoalescentSimulator.Method.values());
+
+    public Input<Integer> nThreadsInput = new Input<>(
+            "nThreads",
+            "Number of simulation threads. (Default is number of "
+                    + "available processors.)");
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed from which all random number streams are derived. "
+                    + "(Default is drawn from the BEAST Randomizer.)");
+
+    /**
+     * Number of trees simulated by each task.
+     */
+    private static final int BLOCK_SIZE = 100;
+
+    private MigrationModel migModel;
+    private TypeSet typeSet;
+    private int[] leafTypes;
+    private double[] leafTimes;
+    private List<String> leafNames;
+    private int nTrees, nThreads;
+    private boolean typed;
+
+    @Override
+    public void initAndValidate() {
+        migModel = migrationModelInput.get();
+        typeSet = migModel.getTypeSet();
+        typed = typedInput.get();
+
+        nTrees = nTreesInput.get();
+        if (nTrees < 1)
+            throw new IllegalArgumentException("nTrees must be positive.");
+
+        nThreads = nThreadsInput.get() != null
+                ? nThreadsInput.get()
+                : Runtime.getRuntime().availableProcessors();
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be positive.");
+
+        // Obtain leaf types from explicit input or trait set:
+        leafNames = new ArrayList<>();
+        if (leafTypesInput.get() != null) {
+            IntegerParameter leafTypesParam = leafTypesInput.get();
+            leafTypes = new int[leafTypesParam.getDimension()];
+            for (int i=0; i<leafTypes.length; i++) {
+                leafTypes[i] = leafTypesParam.getValue(i);
+                leafNames.add(String.valueOf(i));
+            }
+        } else if (typeTraitInput.get() != null) {
+            TraitSet typeTrait = typeTraitInput.get();
+            leafNames.addAll(typeTrait.taxaInput.get().asStringList());
+            leafTypes = new int[leafNames.size()];
+            for (int i=0; i<leafTypes.length; i++)
+                leafTypes[i] = typeSet.getTypeIndex(typeTrait.getStringValue(i));
+        } else {
+            throw new IllegalArgumentException("Either leafTypes or "
+                    + "typeTrait must be provided.");
+        }
+
+        leafTimes = new double[leafTypes.length];
+        if (timeTraitInput.get() != null) {
+            TraitSet timeTrait = timeTraitInput.get();
+            if (timeTrait.taxaInput.get().asStringList().size() != leafTypes.length)
+                throw new IllegalArgumentException("Number of time traits "
+                        + "doesn't match number of leaf types supplied.");
+
+            for (int i=0; i<leafTimes.length; i++)
+                leafTimes[i] = timeTrait.getValue(i);
+        }
+
+        // Check sampling configuration before any output is produced:
+        new StructuredCoalescentSimulator(migModel, leafTypes, leafTimes);
+    }
+
+    /**
+     * Serialised trees and statistics produced by one task.
+     */
+    private static class Block {
+        byte[] trees;
+        String stats;
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        long seed = seedInput.get() != null
+                ? seedInput.get()
+                : Randomizer.nextLong();
+        boolean binary = formatInput.get() == Format.BINARY;
+        boolean writeStats = statsFileNameInput.get() != null;
+
+        ThreadLocal<StructuredCoalescentSimulator> simulators =
+                ThreadLocal.withInitial(() -> new StructuredCoalescentSimulator(
+                        migModel, leafTypes, leafTimes));
+        ThreadLocal<CompactMultiTypeTree> compactTrees =
+                ThreadLocal.withInitial(CompactMultiTypeTree::new);
+
+        // Streams are split from the master in block order so that output
+        // depends only on the seed.
+        RandomSource master = new RandomStream(seed);
+
+        // Bound on number of blocks submitted but not yet written:
+        int window = 2*nThreads;
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try (OutputStream treeOut = new BufferedOutputStream(
+                new FileOutputStream(outputFileNameInput.get()));
+             PrintStream statsOut = writeStats
+                     ? new PrintStream(statsFileNameInput.get())
+                     : null) {
+
+            writeHeader(treeOut, binary);
+            if (statsOut != null)
+                statsOut.println("tree\trootHeight\trootType\tmigrationCount\ttreeLength");
+
+            Deque<Future<Block>> pending = new ArrayDeque<>();
+            for (int start=0; start<nTrees; start += BLOCK_SIZE) {
+                int blockStart = start;
+                int blockEnd = Math.min(start + BLOCK_SIZE, nTrees);
+                RandomSource blockRandom = master.split();
+
+                if (pending.size() >= window)
+                    writeBlock(pending.poll().get(), treeOut, statsOut);
+
+                pending.add(executor.submit(() -> {
+                    StructuredCoalescentSimulator simulator = simulators.get();
+                    simulator.setRandom(blockRandom);
+                    simulator.setMethod(simulationMethodInput.get());
+                    return simulateBlock(simulator, compactTrees.get(),
+                            blockStart, blockEnd, binary, writeStats);
+                }));
+            }
+
+            while (!pending.isEmpty())
+                writeBlock(pending.poll().get(), treeOut, statsOut);
+
+            if (!binary)
+                treeOut.write("End;\n".getBytes(StandardCharsets.UTF_8));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Tree simulation interrupted.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error during tree simulation: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Log.info.println("Wrote " + nTrees + " simulated trees to '"
+                + outputFileNameInput.get() + "'.");
+    }
+
+    /**
+     * Simulate and serialise a block of trees.
+     *
+     * @param simulator simulator to use
+     * @param tree compact tree used to hold each simulated tree in turn
+     * @param blockStart index of first tree in block
+     * @param blockEnd one more than index of last tree in block
+     * @param binary whether to produce binary rather than NEXUS records
+     * @param writeStats whether to produce summary statistics
+     * @return serialised block
+     * @throws IOException on serialisation error
+     */
+    private Block simulateBlock(StructuredCoalescentSimulator simulator,
+            CompactMultiTypeTree tree, int blockStart, int blockEnd,
+            boolean binary, boolean writeStats) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(bytes);
+        StringBuilder newick = new StringBuilder();
+        StringBuilder stats = new StringBuilder();
+
+        for (int i=blockStart; i<blockEnd; i++) {
+            simulator.simulate();
+            simulator.getCompactTree(tree);
+
+            if (binary) {
+                tree.writeTo(dataOut, typed);
+            } else {
+                newick.append("tree TREE_").append(i).append(" = ");
+                tree.toNewick(newick, typed ? typeSet : null, typeLabelInput.get());
+                newick.append(";\n");
+            }
+
+            if (writeStats) {
+                stats.append(i)
+                        .append("\t").append(tree.getRootHeight())
+                        .append("\t").append(typeSet.getTypeName(tree.getRootType()))
+                        .append("\t").append(tree.getTotalChangeCount())
+                        .append("\t").append(tree.getTreeLength())
+                        .append("\n");
+            }
+        }
+
+        Block block = new Block();
+        if (binary) {
+            dataOut.flush();
+            block.trees = bytes.toByteArray();
+        } else {
+            block.trees = newick.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        block.stats = writeStats ? stats.toString() : null;
+
+        return block;
+    }
+
+    /**
+     * Write file header, including taxon and translate blocks for NEXUS
+     * output.
+     */
+    private void writeHeader(OutputStream treeOut, boolean binary) throws IOException {
+        if (binary) {
+            DataOutputStream dataOut = new DataOutputStream(treeOut);
+            CompactTreeFile.writeHeader(dataOut, nTrees, typed,
+                    leafNames, typeSet.getTypesAsList());
+            dataOut.flush();
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("#NEXUS\n\n");
+        sb.append("Begin taxa;\n");
+        sb.append("\tDimensions ntax=").append(leafNames.size()).append(";\n");
+        sb.append("\t\tTaxlabels\n");
+        for (String name : leafNames)
+            sb.append("\t\t\t").append(name).append("\n");
+        sb.append("\t\t\t;\n");
+        sb.append("End;\n");
+
+        sb.append("Begin trees;\n");
+        sb.append("\tTranslate\n");
+        for (int i=0; i<leafNames.size(); i++) {
+            sb.append("\t\t\t").append(i + 1).append(" ").append(leafNames.get(i));
+            if (i < leafNames.size() - 1)
+                sb.append(",");
+            sb.append("\n");
+        }
+        sb.append("\t\t\t;\n");
+
+        treeOut.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBlock(Block block, OutputStream treeOut,
+            PrintStream statsOut) throws IOException {
+        treeOut.write(block.trees);
+        if (statsOut != null)
+            statsOut.print(block.stats);
+    }
+}
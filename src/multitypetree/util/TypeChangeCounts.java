@@ -22,8 +22,6 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
 import beast.base.core.Function;
-import beast.base.evolution.tree.Node;
-import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.SCMigrationModel;
 
@@ -47,77 +45,36 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
         Validate.REQUIRED);
     
     public Input<Boolean> useCacheInput = new Input<>(
-            "useCache", "Cache counts, updating only when tree changes. "
-            + "Warning: this will cause problems if this TypeChangeCounts "
-            + "is not used in the target distribution.", false);
+            "useCache", "Ignored: counts are now maintained incrementally "
+            + "by the multi-type tree.  Retained for compatibility with "
+            + "existing XML.", false);
     
     private MultiTypeTree mtTree;
     
     private int nTypes;
     
-    private int[] typeChanges;
-    private boolean useCache, dirty;
-    
     public TypeChangeCounts() { };
     
     @Override
     public void initAndValidate() {
         mtTree = multiTypeTreeInput.get();
         nTypes = migrationModelInput.get().getNTypes();
-        
-        typeChanges = new int[nTypes*(nTypes-1)];
-        
-        useCache = useCacheInput.get();
-        dirty = true;
-        update();
     }
     
     /**
-     * Update type change count array as necessary.
-     */
-    private void update() {
-        if (!dirty)
-            return;
-        
-        // Zero type change count array
-        for (int i=0; i<typeChanges.length; i++)
-            typeChanges[i] = 0;
-        
-        // Recalculate array elements
-        for (Node node : mtTree.getNodesAsArray()) {
-            if (node.isRoot()) {
-                continue;
-            }
-
-            MultiTypeNode mtNode = (MultiTypeNode)node;
-            int lastType = mtNode.getNodeType();
-            for (int i = 0; i < mtNode.getChangeCount(); i++) {
-                int nextType = mtNode.getChangeType(i);
-                typeChanges[getOffset(lastType, nextType)] += 1;
-                lastType = nextType;
-            }
-        }
-        
-        if (useCache)
-            dirty = false;
-    }
-    
-    /**
-     * Retrieve offset into type change count array
+     * Retrieve number of changes corresponding to an element of the
+     * flattened off-diagonal type change count matrix.
      * 
-     * @param i from type
-     * @param j to type
-     * @return offset
+     * @param iDim element index
+     * @return type change count
      */
-    private int getOffset(int i, int j) {
-        if (i==j)
-            throw new RuntimeException("Programmer error: requested type "
-                    + "change count array offset for diagonal element of "
-                    + "type change count matrix.");
-        
-        if (j>i)
-            j -= 1;
-        return i*(nTypes-1)+j;
+    private int getCount(int iDim) {
+        int i = iDim/(nTypes-1);
+        int j = iDim%(nTypes-1);
+        if (j>=i)
+            j += 1;
+
+        return mtTree.getTypeChangeCount(i, j);
     }
     
     @Override
@@ -127,16 +84,14 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
 
     @Override
     public double getArrayValue() {
-        update();
-        return typeChanges[0];
+        return getCount(0);
     }
 
     @Override
     public double getArrayValue(int iDim) {
-        if (iDim<getDimension()) {
-            update();
-            return typeChanges[iDim];
-        } else
+        if (iDim<getDimension())
+            return getCount(iDim);
+        else
             return Double.NaN;
     }
 
@@ -158,14 +113,12 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
 
     @Override
     public void log(long nSample, PrintStream out) {
-        update();
-        
         for (int type = 0; type < nTypes; type++) {
             for (int typeP = 0; typeP < nTypes; typeP++) {
                 if (type == typeP) {
                     continue;
                 }
-                out.print(typeChanges[getOffset(type, typeP)] + "\t");
+                out.print(mtTree.getTypeChangeCount(type, typeP) + "\t");
             }
         }
     }
@@ -175,7 +128,6 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
     
     @Override
     public boolean requiresRecalculation() {
-        dirty = true;
         return true;
     }
     
@@ -21,10 +21,8 @@ import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
-import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 import multitypetree.evolution.tree.MigrationModel;
-import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.SCMigrationModel;
 
@@ -50,67 +48,29 @@ public class TypeLengths extends CalculationNode implements Function, Loggable {
     private MultiTypeTree mtTree;
     private MigrationModel migModel;
 
-    private double[] typeLengths;
-
     public TypeLengths() { }
     
     @Override
     public void initAndValidate() {
         mtTree = multiTypeTreeInput.get();
         migModel = migrationModelInput.get();
-
-        typeLengths = new double[migModel.getNTypes()];
-        
-        update();
-    }
-    
-    /**
-     * Update type change count array as necessary.
-     */
-    private void update() {
-
-        // Zero type change count array
-        for (int i=0; i<typeLengths.length; i++)
-            typeLengths[i] = 0.0;
-        
-        // Recalculate array elements
-        for (Node node : mtTree.getNodesAsArray()) {
-            if (node.isRoot()) {
-                continue;
-            }
-
-            MultiTypeNode mtNode = (MultiTypeNode)node;
-            int thisType = mtNode.getNodeType();
-            double lastTime = mtNode.getHeight();
-            for (int i = 0; i < mtNode.getChangeCount(); i++) {
-                int nextType = mtNode.getChangeType(i);
-                double nextTime = mtNode.getChangeTime(i);
-                typeLengths[thisType] += (nextTime - lastTime);
-                thisType = nextType;
-                lastTime = nextTime;
-            }
-
-            typeLengths[thisType] += mtNode.getParent().getHeight() - lastTime;
-        }
     }
     
     @Override
     public int getDimension() {
-        return migModel.getNTypes()*(migModel.getNTypes()-1);
+        return migModel.getNTypes();
     }
 
     @Override
     public double getArrayValue() {
-        update();
-        return typeLengths[0];
+        return mtTree.getTypeLength(0);
     }
 
     @Override
     public double getArrayValue(int iDim) {
-        if (iDim<getDimension()) {
-            update();
-            return typeLengths[iDim];
-        } else
+        if (iDim<getDimension())
+            return mtTree.getTypeLength(iDim);
+        else
             return Double.NaN;
     }
 
@@ -125,10 +85,8 @@ public class TypeLengths extends CalculationNode implements Function, Loggable {
 
     @Override
     public void log(long nSample, PrintStream out) {
-        update();
-        
         for (int type = 0; type < migModel.getNTypes(); type++) {
-            out.print(typeLengths[type] + "\t");
+            out.print(mtTree.getTypeLength(type) + "\t");
         }
     }
 
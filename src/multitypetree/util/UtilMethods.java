@@ -18,7 +18,11 @@
 package multitypetree.util;
 
 import beast.base.inference.parameter.IntegerParameter;
-import multitypetree.evolution.tree.SCMigrationModel;
+import beast.base.util.Randomizer;
+import multitypetree.evolution.tree.MigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentEnsemble;
+
+import java.util.EnumSet;
 
 /**
  *
@@ -26,23 +30,40 @@ import multitypetree.evolution.tree.SCMigrationModel;
  */
 public class UtilMethods {
     
-    public static double [] getSimulatedHeights(SCMigrationModel migrationModel,
+    public static double [] getSimulatedHeights(MigrationModel migrationModel,
             IntegerParameter leafTypes) throws Exception {
 
+        return getSimulatedEnsemble(migrationModel, leafTypes,
+                EnumSet.of(StructuredCoalescentEnsemble.Statistic.ROOT_HEIGHT))
+                .getRootHeights();
+    }
+
+    /**
+     * Simulate an ensemble of trees with all leaves sampled at time zero,
+     * for comparison with the results of MCMC analyses.
+     *
+     * @param migrationModel migration model
+     * @param leafTypes types of leaves
+     * @param statistics summary statistics to record
+     * @return ensemble of 100000 replicates
+     * @throws Exception
+     */
+    public static StructuredCoalescentEnsemble.Result getSimulatedEnsemble(
+            MigrationModel migrationModel, IntegerParameter leafTypes,
+            EnumSet<StructuredCoalescentEnsemble.Statistic> statistics)
+            throws Exception {
+
         // Generate ensemble:
         int reps = 100000;
-        double[] heights = new double[reps];
 
-        for (int i = 0; i < reps; i++) {
-            multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree sctree;
-            sctree = new multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree();
-            sctree.initByName(
-                    "migrationModel", migrationModel,
-                    "leafTypes", leafTypes);
+        int[] leafTypeArray = new int[leafTypes.getDimension()];
+        for (int i = 0; i < leafTypeArray.length; i++)
+            leafTypeArray[i] = leafTypes.getValue(i);
 
-            heights[i] = sctree.getRoot().getHeight();
-        }
+        StructuredCoalescentEnsemble ensemble = new StructuredCoalescentEnsemble(
+                migrationModel, leafTypeArray, new double[leafTypeArray.length],
+                Runtime.getRuntime().availableProcessors());
 
-        return heights;
+        return ensemble.simulate(reps, Randomizer.nextLong(), statistics, false);
     }
 }
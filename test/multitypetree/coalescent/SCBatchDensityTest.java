@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentBatchDensity;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.CompactMultiTypeTree;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+/**
+ * Checks that batch density evaluation agrees with
+ * StructuredCoalescentTreeDensity.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SCBatchDensityTest extends TestCase {
+
+    private SCMigrationModel getMigrationModel(String rates, String sizes)
+            throws Exception {
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", rates);
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", sizes);
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        return migModel;
+    }
+
+    @Test
+    public void testBatchDensity() throws Exception {
+        System.out.println("SCBatchDensityTest");
+
+        SCMigrationModel[] migModels = {
+            getMigrationModel("0.5 1.0 0.5 1.0 0.5 1.0", "1.0 2.0 0.5"),
+            getMigrationModel("0.2 0.1 2.0 0.3 0.4 0.8", "3.0 0.7 1.5")
+        };
+
+        int nParams = StructuredCoalescentBatchDensity.getParameterCount(3);
+        double[][] params = new double[migModels.length][nParams];
+        for (int p=0; p<migModels.length; p++)
+            StructuredCoalescentBatchDensity.getParameters(migModels[p], params[p]);
+
+        int nTrees = 20;
+        double[][] expected = new double[nTrees][migModels.length];
+        StructuredCoalescentBatchDensity batch =
+                new StructuredCoalescentBatchDensity(3, 2);
+        CompactMultiTypeTree compactTree = new CompactMultiTypeTree();
+
+        for (int t=0; t<nTrees; t++) {
+            MultiTypeTree mtTree = new StructuredCoalescentMultiTypeTree();
+            mtTree.initByName(
+                    "typeLabel", "deme",
+                    "migrationModel", migModels[0],
+                    "leafTypes", "0 1 2 0 1 2 0 1 2 0");
+
+            // Trees pass through Newick form to exercise parsing:
+            compactTree.assignFrom(mtTree);
+            StringBuilder newick = new StringBuilder();
+            compactTree.toNewick(newick, migModels[0].getTypeSet(), "deme");
+            compactTree.parseNewick(newick.toString(),
+                    migModels[0].getTypeSet(), "deme");
+            batch.addTree(compactTree);
+
+            for (int p=0; p<migModels.length; p++) {
+                StructuredCoalescentTreeDensity density =
+                        new StructuredCoalescentTreeDensity();
+                density.initByName(
+                        "migrationModel", migModels[p],
+                        "multiTypeTree", mtTree);
+                expected[t][p] = density.calculateLogP();
+            }
+        }
+
+        assertEquals(nTrees, batch.getTreeCount());
+
+        double[][] result = batch.evaluate(params);
+        for (int t=0; t<nTrees; t++) {
+            for (int p=0; p<migModels.length; p++)
+                assertEquals(expected[t][p], result[t][p], 1e-8);
+        }
+
+        double[][] pairedParams = new double[nTrees][];
+        for (int t=0; t<nTrees; t++)
+            pairedParams[t] = params[t % migModels.length];
+        double[] pairedResult = new double[nTrees];
+        batch.evaluatePaired(pairedParams, pairedResult);
+        for (int t=0; t<nTrees; t++)
+            assertEquals(expected[t][t % migModels.length], pairedResult[t], 1e-8);
+    }
+
+    @Test
+    public void testMultithreadedBatchDensity() throws Exception {
+        System.out.println("SCBatchDensityTest (multithreaded)");
+
+        // The second model forbids migration between types A and C:
+        SCMigrationModel[] migModels = {
+            getMigrationModel("0.5 1.0 0.5 1.0 0.5 1.0", "1.0 2.0 0.5"),
+            getMigrationModel("0.5 0.0 0.5 1.0 0.0 1.0", "1.0 2.0 0.5")
+        };
+
+        int nParams = StructuredCoalescentBatchDensity.getParameterCount(3);
+        double[][] params = new double[migModels.length][nParams];
+        for (int p=0; p<migModels.length; p++)
+            StructuredCoalescentBatchDensity.getParameters(migModels[p], params[p]);
+
+        // Enough trees to span several blocks:
+        int nTrees = 600;
+        double[][] expected = new double[nTrees][migModels.length];
+        StructuredCoalescentBatchDensity batch =
+                new StructuredCoalescentBatchDensity(3, 4);
+        CompactMultiTypeTree compactTree = new CompactMultiTypeTree();
+
+        for (int t=0; t<nTrees; t++) {
+            MultiTypeTree mtTree = new StructuredCoalescentMultiTypeTree();
+            mtTree.initByName(
+                    "typeLabel", "deme",
+                    "migrationModel", migModels[0],
+                    "leafTypes", "0 1 2 0 1 2");
+
+            compactTree.assignFrom(mtTree);
+            batch.addTree(compactTree);
+
+            for (int p=0; p<migModels.length; p++) {
+                StructuredCoalescentTreeDensity density =
+                        new StructuredCoalescentTreeDensity();
+                density.initByName(
+                        "migrationModel", migModels[p],
+                        "multiTypeTree", mtTree);
+                expected[t][p] = density.calculateLogP();
+            }
+        }
+
+        double[][] result = batch.evaluate(params);
+        int nForbidden = 0;
+        for (int t=0; t<nTrees; t++) {
+            for (int p=0; p<migModels.length; p++)
+                assertEquals(expected[t][p], result[t][p], 1e-8);
+
+            if (result[t][1] == Double.NEGATIVE_INFINITY)
+                nForbidden += 1;
+        }
+
+        // Ensure both finite and zero densities were checked:
+        assertTrue(nForbidden > 0 && nForbidden < nTrees);
+    }
+}
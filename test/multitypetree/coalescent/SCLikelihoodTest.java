@@ -21,6 +21,7 @@ import org.junit.Test;
 import beast.base.inference.parameter.RealParameter;
 import junit.framework.TestCase;
 import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.EpochMigrationModel;
 import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
 import multitypetree.evolution.tree.SCMigrationModel;
 import multitypetree.evolution.tree.TypeSet;
@@ -76,4 +77,67 @@ public class SCLikelihoodTest extends TestCase {
 		
 	}
 
+	/**
+	 * Test of calculateLogP method using a migration model with two
+	 * epochs, the boundary between which falls within a coalescent
+	 * interval.
+	 */
+	@Test
+	public void testCalculateLogPEpochs() throws Exception {
+		System.out.println("SCLikelihoodTest (epochs)");
+
+		// Assemble test MultiTypeTree:
+		String newickStr =
+                        "(((A[&state=1]:0.25)[&state=0]:0.25,B[&state=0]:0.5)[&state=0]:1.5,"
+                        + "(C[&state=0]:1.0,D[&state=0]:1.0)[&state=0]:1.0)[&state=0]:0.0;";
+
+		MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+		mtTree.initByName(
+                        "value", newickStr,
+                        "typeLabel", "state");
+
+		// Assemble migration model:
+		TypeSet typeSet = new TypeSet("A", "B");
+
+		RealParameter rateMatrix1 = new RealParameter();
+		rateMatrix1.initByName("value","2.0 1.0");
+		RealParameter popSizes1 = new RealParameter();
+		popSizes1.initByName("value","5.0 10.0");
+		SCMigrationModel epoch1 = new SCMigrationModel();
+		epoch1.initByName(
+                        "rateMatrix", rateMatrix1,
+                        "popSizes", popSizes1,
+				"typeSet", typeSet);
+
+		RealParameter rateMatrix2 = new RealParameter();
+		rateMatrix2.initByName("value","1.0 0.5");
+		RealParameter popSizes2 = new RealParameter();
+		popSizes2.initByName("value","2.0 4.0");
+		SCMigrationModel epoch2 = new SCMigrationModel();
+		epoch2.initByName(
+                        "rateMatrix", rateMatrix2,
+                        "popSizes", popSizes2,
+				"typeSet", typeSet);
+
+		RealParameter epochTimes = new RealParameter();
+		epochTimes.initByName("value", "0.75");
+		EpochMigrationModel migrationModel = new EpochMigrationModel();
+		migrationModel.initByName(
+                        "epoch", epoch1,
+                        "epoch", epoch2,
+                        "epochTimes", epochTimes);
+
+		// Set up likelihood instance:
+		StructuredCoalescentTreeDensity likelihood = new StructuredCoalescentTreeDensity();
+		likelihood.initByName(
+                        "migrationModel", migrationModel,
+                        "multiTypeTree", mtTree);
+
+		double expResult = -12.47073; // Calculated by hand
+		double result = likelihood.calculateLogP();
+
+		System.out.println(result);
+		assertEquals(expResult, result, 1e-5);
+	}
+
 }
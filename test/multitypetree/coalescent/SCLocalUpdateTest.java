@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.operators.MultiTypeTreeOperator;
+import multitypetree.operators.MultiTypeUniform;
+import multitypetree.operators.TypeMergeSplit;
+import multitypetree.operators.TypePairBirthDeath;
+import multitypetree.util.RandomStream;
+import org.junit.Test;
+
+/**
+ * Checks that densities recalculated only within the region affected by
+ * each proposal agree with densities recalculated from scratch.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SCLocalUpdateTest extends TestCase {
+
+    @Test
+    public void testLocalUpdates() throws Exception {
+        System.out.println("SCLocalUpdateTest");
+
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 1.0 0.5 1.0 0.5 1.0");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0 2.0 0.5");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        MultiTypeTree mtTree = new StructuredCoalescentMultiTypeTree();
+        mtTree.initByName(
+                "typeLabel", "deme",
+                "migrationModel", migModel,
+                "leafTypes", "0 1 2 0 1 2 0 1 2 0");
+
+        StructuredCoalescentTreeDensity localDensity =
+                new StructuredCoalescentTreeDensity();
+        localDensity.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        StructuredCoalescentTreeDensity fullDensity =
+                new StructuredCoalescentTreeDensity();
+        fullDensity.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree,
+                "localUpdates", false);
+
+        MultiTypeTreeOperator[] operators = {
+            new MultiTypeUniform(), new TypePairBirthDeath(), new TypeMergeSplit()
+        };
+        for (int i=0; i<operators.length; i++) {
+            operators[i].initByName(
+                    "weight", 1.0,
+                    "multiTypeTree", mtTree,
+                    "migrationModel", migModel,
+                    "randomStream", new RandomStream(10 + i));
+        }
+
+        RandomStream random = new RandomStream(53);
+        MultiTypeTree currentTree = mtTree.copy();
+        double currentLogP = fullDensity.calculateLogP();
+        assertEquals(currentLogP, localDensity.calculateLogP(), 1e-8);
+
+        for (int step=0; step<20000; step++) {
+            MultiTypeTreeOperator operator = operators[random.nextInt(operators.length)];
+
+            double logHR = operator.proposal(null);
+            if (logHR == Double.NEGATIVE_INFINITY || !mtTree.isValid()) {
+                mtTree.assignFrom(currentTree);
+                continue;
+            }
+
+            double logP = fullDensity.calculateLogP();
+            assertEquals(logP, localDensity.calculateLogP(), 1e-8);
+
+            if (Math.log(random.nextDouble()) < logP - currentLogP + logHR) {
+                currentTree = mtTree.copy();
+                currentLogP = logP;
+            } else
+                mtTree.assignFrom(currentTree);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.DiscreteStatistics;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentEnsemble;
+import multitypetree.evolution.tree.StructuredCoalescentEnsemble.Statistic;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Tests for batch structured coalescent simulation.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class StructuredCoalescentEnsembleTest extends TestCase {
+
+    @Test
+    public void testRootHeights() throws Exception {
+        System.out.println("StructuredCoalescentEnsembleTest");
+
+        // Migration is switched off, so three samples from the same deme
+        // follow the Kingman coalescent with E[T] = 2N(1-1/n).
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.0 0.0");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "2.0 2.0");
+        SCMigrationModel migrationModel = new SCMigrationModel();
+        migrationModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+
+        int[] leafTypes = {0, 0, 0};
+        double[] leafTimes = {0.0, 0.0, 0.0};
+        EnumSet<Statistic> stats = EnumSet.of(
+                Statistic.ROOT_HEIGHT, Statistic.MIGRATION_COUNT);
+
+        StructuredCoalescentEnsemble.Result result =
+                new StructuredCoalescentEnsemble(migrationModel,
+                        leafTypes, leafTimes, 4).simulate(100000, 53, stats, false);
+
+        double meanHeight = DiscreteStatistics.mean(result.getRootHeights());
+        System.out.println("E[T] = " + meanHeight);
+        assertEquals(2.0*2.0*(1.0 - 1.0/3.0), meanHeight, 0.03);
+
+        for (int count : result.getMigrationCounts())
+            assertEquals(0, count);
+
+        assertNull(result.getTreeLengths());
+
+        // Results depend only on the seed, not the number of threads:
+        StructuredCoalescentEnsemble.Result singleThreadResult =
+                new StructuredCoalescentEnsemble(migrationModel,
+                        leafTypes, leafTimes, 1).simulate(100000, 53, stats, false);
+        assertTrue(Arrays.equals(result.getRootHeights(),
+                singleThreadResult.getRootHeights()));
+    }
+}
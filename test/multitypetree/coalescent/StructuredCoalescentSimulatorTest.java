@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.EpochMigrationModel;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentSimulator;
+import multitypetree.evolution.tree.StructuredCoalescentSimulator.Method;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.util.RandomStream;
+import org.junit.Test;
+
+/**
+ * Checks that the alternative simulation algorithms agree with the
+ * direct method, for constant and for epoch migration models.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class StructuredCoalescentSimulatorTest extends TestCase {
+
+    @Test
+    public void testMethodsAgree() throws Exception {
+        System.out.println("StructuredCoalescentSimulatorTest");
+
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 1.0 0.5 1.0 0.5 1.0");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0 2.0 0.5");
+        SCMigrationModel migrationModel = new SCMigrationModel();
+        migrationModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        int[] leafTypes = {0, 1, 2, 0, 1};
+        double[] leafTimes = {0.0, 0.5, 1.0, 0.0, 2.0};
+
+        int nReps = 100000;
+        double[] meanHeights = new double[Method.values().length];
+        double[] meanChanges = new double[Method.values().length];
+
+        for (Method method : Method.values()) {
+            StructuredCoalescentSimulator simulator =
+                    new StructuredCoalescentSimulator(migrationModel,
+                            leafTypes, leafTimes);
+            simulator.setMethod(method);
+            simulator.setRandom(new RandomStream(42));
+
+            for (int i=0; i<nReps; i++) {
+                simulator.simulate();
+                meanHeights[method.ordinal()] += simulator.getRootHeight()/nReps;
+                meanChanges[method.ordinal()] += simulator.getChangeCount()/(double)nReps;
+            }
+
+            System.out.println(method + ": E[T] = " + meanHeights[method.ordinal()]
+                    + ", E[changes] = " + meanChanges[method.ordinal()]);
+        }
+
+        for (Method method : Method.values()) {
+            assertEquals(meanHeights[Method.DIRECT.ordinal()],
+                    meanHeights[method.ordinal()], 0.1);
+            assertEquals(meanChanges[Method.DIRECT.ordinal()],
+                    meanChanges[method.ordinal()], 0.25);
+        }
+    }
+
+    /**
+     * With an epoch migration model, the first two moments of the root
+     * height and of the number of type changes must agree between
+     * methods.  Leaves are sampled in several epochs, and the middle epoch
+     * has strongly asymmetric rates, so that lineages cross boundaries in
+     * every state.
+     */
+    @Test
+    public void testMethodsAgreeEpochs() throws Exception {
+        System.out.println("StructuredCoalescentSimulatorTest (epochs)");
+
+        TypeSet typeSet = new TypeSet("A", "B");
+
+        RealParameter rateMatrix1 = new RealParameter();
+        rateMatrix1.initByName("value", "0.5 1.0");
+        RealParameter popSizes1 = new RealParameter();
+        popSizes1.initByName("value", "1.0 2.0");
+        SCMigrationModel epoch1 = new SCMigrationModel();
+        epoch1.initByName(
+                "rateMatrix", rateMatrix1,
+                "popSizes", popSizes1,
+                "typeSet", typeSet);
+
+        RealParameter rateMatrix2 = new RealParameter();
+        rateMatrix2.initByName("value", "2.0 0.2");
+        RealParameter popSizes2 = new RealParameter();
+        popSizes2.initByName("value", "0.5 4.0");
+        SCMigrationModel epoch2 = new SCMigrationModel();
+        epoch2.initByName(
+                "rateMatrix", rateMatrix2,
+                "popSizes", popSizes2,
+                "typeSet", typeSet);
+
+        RealParameter rateMatrix3 = new RealParameter();
+        rateMatrix3.initByName("value", "0.1 0.3");
+        RealParameter popSizes3 = new RealParameter();
+        popSizes3.initByName("value", "3.0 1.0");
+        SCMigrationModel epoch3 = new SCMigrationModel();
+        epoch3.initByName(
+                "rateMatrix", rateMatrix3,
+                "popSizes", popSizes3,
+                "typeSet", typeSet);
+
+        RealParameter epochTimes = new RealParameter();
+        epochTimes.initByName("value", "0.5 1.5");
+        EpochMigrationModel migrationModel = new EpochMigrationModel();
+        migrationModel.initByName(
+                "epoch", epoch1,
+                "epoch", epoch2,
+                "epoch", epoch3,
+                "epochTimes", epochTimes);
+
+        int[] leafTypes = {0, 1, 0, 1, 0};
+        double[] leafTimes = {0.0, 0.25, 0.75, 0.0, 2.0};
+
+        int nReps = 100000;
+        int nMethods = Method.values().length;
+        double[] meanHeights = new double[nMethods];
+        double[] varHeights = new double[nMethods];
+        double[] meanChanges = new double[nMethods];
+        double[] varChanges = new double[nMethods];
+
+        for (Method method : Method.values()) {
+            StructuredCoalescentSimulator simulator =
+                    new StructuredCoalescentSimulator(migrationModel,
+                            leafTypes, leafTimes);
+            simulator.setMethod(method);
+            simulator.setRandom(new RandomStream(42));
+
+            int m = method.ordinal();
+            for (int i=0; i<nReps; i++) {
+                simulator.simulate();
+                double height = simulator.getRootHeight();
+                double changes = simulator.getChangeCount();
+                meanHeights[m] += height/nReps;
+                varHeights[m] += height*height/nReps;
+                meanChanges[m] += changes/nReps;
+                varChanges[m] += changes*changes/nReps;
+            }
+            varHeights[m] -= meanHeights[m]*meanHeights[m];
+            varChanges[m] -= meanChanges[m]*meanChanges[m];
+
+            System.out.println(method + ": E[T] = " + meanHeights[m]
+                    + ", Var[T] = " + varHeights[m]
+                    + ", E[changes] = " + meanChanges[m]
+                    + ", Var[changes] = " + varChanges[m]);
+        }
+
+        int d = Method.DIRECT.ordinal();
+        for (Method method : Method.values()) {
+            int m = method.ordinal();
+            assertEquals(meanHeights[d], meanHeights[m], 0.1);
+            assertEquals(varHeights[d], varHeights[m], 1.5);
+            assertEquals(meanChanges[d], meanChanges[m], 0.05);
+            assertEquals(varChanges[d], varChanges[m], 0.3);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.distributions.TypeChangeTimeCondition;
+import multitypetree.operators.MultiTypeTreeOperator;
+import multitypetree.operators.MultiTypeTreeScale;
+import multitypetree.operators.MultiTypeUniform;
+import multitypetree.operators.NodeShiftRetype;
+import multitypetree.operators.TypeMergeSplit;
+import multitypetree.operators.TypePairBirthDeath;
+import multitypetree.operators.TypedWilsonBalding;
+import multitypetree.util.RandomStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that the time-indexed type change counts and locations reported
+ * by MultiTypeTree, and the TypeChangeTimeCondition built on them, agree
+ * with a direct scan of the tree as random proposals are stored, accepted
+ * and restored.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ChangeTimeIndexTest extends TestCase {
+
+    private static final int N_TYPES = 3;
+
+    private MultiTypeTree mtTree;
+    private StructuredCoalescentTreeDensity density;
+    private MultiTypeTreeOperator[] operators;
+    private RandomStream random;
+
+    /**
+     * Simulate a tree under the structured coalescent and set up the
+     * density and operators used to sample from it.
+     */
+    private void initTree() throws Exception {
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 1.0 0.5 1.0 0.5 1.0");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0 2.0 0.5");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        mtTree = new StructuredCoalescentMultiTypeTree();
+        mtTree.initByName(
+                "typeLabel", "deme",
+                "migrationModel", migModel,
+                "leafTypes", "0 1 2 0 1 2 0 1 2 0");
+
+        density = new StructuredCoalescentTreeDensity();
+        density.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree,
+                "localUpdates", false);
+
+        operators = new MultiTypeTreeOperator[] {
+            new MultiTypeUniform(), new TypePairBirthDeath(),
+            new TypeMergeSplit(), new NodeShiftRetype(),
+            new TypedWilsonBalding(), new MultiTypeTreeScale()
+        };
+        for (int i=0; i<operators.length; i++) {
+            List<Object> args = new ArrayList<>();
+            args.add("weight"); args.add(1.0);
+            args.add("multiTypeTree"); args.add(mtTree);
+            args.add("migrationModel"); args.add(migModel);
+            args.add("randomStream"); args.add(new RandomStream(10 + i));
+            if (operators[i] instanceof TypedWilsonBalding) {
+                args.add("alpha"); args.add(0.2);
+            } else if (operators[i] instanceof MultiTypeTreeScale) {
+                args.add("scaleFactor"); args.add(0.8);
+                args.add("useOldTreeScaler"); args.add(false);
+            }
+            operators[i].initByName(args.toArray());
+        }
+
+        random = new RandomStream(53);
+    }
+
+    /**
+     * Count changes strictly inside a time window by scanning every branch
+     * other than the one above the root.
+     *
+     * @return array holding the number of matching changes and the number
+     * of the node below the earliest of them, or -1 if there is none
+     */
+    private int[] scanChanges(int fromType, int toType, double t1, double t2) {
+        int count = 0, earliestNr = -1;
+        double earliestTime = Double.POSITIVE_INFINITY;
+
+        for (Node node : mtTree.getNodesAsArray()) {
+            if (node.isRoot())
+                continue;
+
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            int lastType = mtNode.getNodeType();
+            for (int i=0; i<mtNode.getChangeCount(); i++) {
+                int nextType = mtNode.getChangeType(i);
+                double time = mtNode.getChangeTime(i);
+                if (lastType == fromType && nextType == toType
+                        && time > t1 && time < t2) {
+                    count += 1;
+                    if (time < earliestTime) {
+                        earliestTime = time;
+                        earliestNr = mtNode.getNr();
+                    }
+                }
+                lastType = nextType;
+            }
+        }
+
+        return new int[] {count, earliestNr};
+    }
+
+    /**
+     * Per-branch scan used by TypeChangeTimeCondition before changes were
+     * indexed by time.
+     */
+    private boolean isViolatedByScan(Set<Integer> fromTypes,
+            Set<Integer> toTypes, double h1, double h2) {
+        for (Node node : mtTree.getNodesAsArray()) {
+            if (node.isRoot())
+                continue;
+
+            if (node.getHeight() > h2 || node.getParent().getHeight() < h1)
+                continue;
+
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            int lastType = mtNode.getNodeType();
+            for (int i=0; i<mtNode.getChangeCount(); i++) {
+                double changeTime = mtNode.getChangeTime(i);
+                int changeType = mtNode.getChangeType(i);
+                if (changeTime > h1 && changeTime < h2
+                        && toTypes.contains(lastType)
+                        && fromTypes.contains(changeType))
+                    return true;
+
+                lastType = changeType;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return a time in the range spanned by the tree, which is sometimes
+     * exactly the time of an existing change so that the strictness of
+     * window bounds is exercised
+     */
+    private double drawTime() {
+        if (random.nextDouble() < 0.25) {
+            Node node = mtTree.getNode(random.nextInt(mtTree.getNodeCount()));
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            if (mtNode.getChangeCount() > 0)
+                return mtNode.getChangeTime(random.nextInt(mtNode.getChangeCount()));
+        }
+
+        return 1.1*mtTree.getRoot().getHeight()*random.nextDouble();
+    }
+
+    private Set<Integer> drawTypes() {
+        Set<Integer> types = new HashSet<>();
+        types.add(random.nextInt(N_TYPES));
+        for (int type=0; type<N_TYPES; type++) {
+            if (random.nextDouble() < 0.3)
+                types.add(type);
+        }
+
+        return types;
+    }
+
+    private static IntegerParameter toParameter(Set<Integer> types) {
+        StringBuilder sb = new StringBuilder();
+        for (int type : types)
+            sb.append(type).append(" ");
+
+        IntegerParameter param = new IntegerParameter();
+        param.initByName("value", sb.toString().trim());
+        return param;
+    }
+
+    /**
+     * Compare indexed queries with direct scans of the current tree.
+     */
+    private void checkIndex() {
+        for (int w=0; w<5; w++) {
+            double t1 = drawTime();
+            double t2 = drawTime();
+            if (w == 0) {
+                t1 = 0.0;
+                t2 = Double.POSITIVE_INFINITY;
+            } else if (t2 < t1) {
+                double tmp = t1;
+                t1 = t2;
+                t2 = tmp;
+            }
+
+            for (int fromType=0; fromType<N_TYPES; fromType++) {
+                for (int toType=0; toType<N_TYPES; toType++) {
+                    int[] expected = scanChanges(fromType, toType, t1, t2);
+
+                    assertEquals(expected[0],
+                            mtTree.getTypeChangeCount(fromType, toType, t1, t2));
+
+                    MultiTypeNode node = mtTree.getTypeChangeNode(
+                            fromType, toType, t1, t2);
+                    if (expected[1] < 0)
+                        assertNull(node);
+                    else
+                        assertSame(mtTree.getNode(expected[1]), node);
+                }
+            }
+        }
+
+        Set<Integer> fromTypes = drawTypes();
+        Set<Integer> toTypes = drawTypes();
+        double h1 = drawTime();
+        double h2 = h1 + drawTime();
+
+        TypeChangeTimeCondition condition = new TypeChangeTimeCondition();
+        condition.initByName(
+                "multiTypeTree", mtTree,
+                "h1", new RealParameter(new Double[] {h1}),
+                "h2", new RealParameter(new Double[] {h2}),
+                "fromTypes", toParameter(fromTypes),
+                "toTypes", toParameter(toTypes));
+
+        assertEquals(isViolatedByScan(fromTypes, toTypes, h1, h2),
+                condition.isViolated());
+    }
+
+    /**
+     * Make a proposal using a randomly chosen operator.
+     *
+     * @return log Hastings ratio, or negative infinity if the proposal
+     * did not produce a valid tree
+     */
+    private double propose() {
+        MultiTypeTreeOperator operator = operators[random.nextInt(operators.length)];
+        double logHR = operator.proposal(null);
+        return mtTree.isValid() ? logHR : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * The root always carries the last node number, so moves which place
+     * a different node at the root are detected through its children.
+     *
+     * @return numbers of the children of the root
+     */
+    private Set<Integer> getRootChildren() {
+        Set<Integer> children = new HashSet<>();
+        for (Node child : mtTree.getRoot().getChildren())
+            children.add(child.getNr());
+
+        return children;
+    }
+
+    /**
+     * Run a Metropolis-Hastings chain targeting the structured coalescent,
+     * storing the tree before each proposal and restoring it on rejection,
+     * and compare the index with direct scans along the way.
+     *
+     * @param nSteps number of steps
+     * @param rootChangeProb probability of adding a type change to the
+     * branch above the root before each step, which must remain excluded
+     * @return number of accepted moves placing a different node at the root
+     */
+    private int runChain(int nSteps, double rootChangeProb) {
+        double currentLogP = density.calculateLogP();
+        int rootChanges = 0, restores = 0;
+        for (int step=0; step<nSteps; step++) {
+            if (random.nextDouble() < rootChangeProb) {
+                MultiTypeNode root = (MultiTypeNode)mtTree.getRoot();
+                root.addChange((root.getFinalType() + 1) % N_TYPES,
+                        root.getHeight() + root.getChangeCount() + 1.0);
+            }
+
+            mtTree.store();
+            Set<Integer> rootChildren = getRootChildren();
+
+            double logHR = propose();
+            boolean valid = logHR > Double.NEGATIVE_INFINITY;
+
+            // Query the index during only some proposals, so that it is
+            // variously updated from dirty branches before and after
+            // the next store:
+            if (valid && random.nextDouble() < 0.5)
+                checkIndex();
+
+            double logP = valid ? density.calculateLogP() : Double.NEGATIVE_INFINITY;
+            if (valid && Math.log(random.nextDouble()) < logP - currentLogP + logHR) {
+                currentLogP = logP;
+                if (!getRootChildren().equals(rootChildren))
+                    rootChanges += 1;
+            } else {
+                mtTree.restore();
+                restores += 1;
+            }
+
+            if (random.nextDouble() < 0.5)
+                checkIndex();
+        }
+
+        assertTrue(restores > 0);
+
+        return rootChanges;
+    }
+
+    @Test
+    public void testRandomProposals() throws Exception {
+        System.out.println("ChangeTimeIndexTest: random proposals");
+
+        initTree();
+        assertTrue(runChain(20000, 0.0) > 0);
+    }
+
+    @Test
+    public void testRootBranchExcluded() throws Exception {
+        System.out.println("ChangeTimeIndexTest: root branch");
+
+        initTree();
+        checkIndex();
+
+        // Changes above the root are never counted, including those left
+        // on a node which the root is moved away from:
+        MultiTypeNode root = (MultiTypeNode)mtTree.getRoot();
+        root.addChange((root.getNodeType() + 1) % N_TYPES, root.getHeight() + 1.0);
+        checkIndex();
+
+        assertTrue(runChain(20000, 0.01) > 0);
+    }
+
+    @Test
+    public void testRestoreAfterFirstUse() throws Exception {
+        System.out.println("ChangeTimeIndexTest: restore after first use");
+
+        initTree();
+
+        for (int trial=0; trial<200; trial++) {
+
+            // Index is first built from a proposed tree, so that restoring
+            // the proposal must discard it:
+            mtTree.store();
+            if (propose() > Double.NEGATIVE_INFINITY)
+                checkIndex();
+            mtTree.restore();
+            checkIndex();
+
+            // Subsequent proposals are accepted, which must leave the index
+            // consistent with the stored tree for the next restore:
+            mtTree.store();
+            if (propose() > Double.NEGATIVE_INFINITY) {
+                checkIndex();
+                mtTree.store();
+                if (propose() > Double.NEGATIVE_INFINITY)
+                    checkIndex();
+            }
+            mtTree.restore();
+            checkIndex();
+
+            initTree();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.operators.MultiTypeTreeOperator;
+import multitypetree.operators.MultiTypeTreeScale;
+import multitypetree.operators.MultiTypeUniform;
+import multitypetree.operators.NodeShiftRetype;
+import multitypetree.operators.TypeMergeSplit;
+import multitypetree.operators.TypePairBirthDeath;
+import multitypetree.operators.TypedWilsonBalding;
+import multitypetree.util.RandomStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the incrementally maintained type change counts and type
+ * lengths reported by MultiTypeTree agree with totals recomputed from
+ * the tree as random proposals are stored, accepted and restored, and
+ * that length totals are periodically re-summed from scratch.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TypeSummaryTest extends TestCase {
+
+    private static final int N_TYPES = 3;
+
+    private MultiTypeTree mtTree;
+    private StructuredCoalescentTreeDensity density;
+    private MultiTypeTreeOperator[] operators;
+    private RandomStream random;
+
+    /**
+     * Simulate a tree under the structured coalescent and set up the
+     * density and operators used to sample from it.
+     */
+    private void initTree() throws Exception {
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 1.0 0.5 1.0 0.5 1.0");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0 2.0 0.5");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        mtTree = new StructuredCoalescentMultiTypeTree();
+        mtTree.initByName(
+                "typeLabel", "deme",
+                "migrationModel", migModel,
+                "leafTypes", "0 1 2 0 1 2 0 1 2 0");
+
+        density = new StructuredCoalescentTreeDensity();
+        density.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree,
+                "localUpdates", false);
+
+        operators = new MultiTypeTreeOperator[] {
+            new MultiTypeUniform(), new TypePairBirthDeath(),
+            new TypeMergeSplit(), new NodeShiftRetype(),
+            new TypedWilsonBalding(), new MultiTypeTreeScale()
+        };
+        for (int i=0; i<operators.length; i++) {
+            List<Object> args = new ArrayList<>();
+            args.add("weight"); args.add(1.0);
+            args.add("multiTypeTree"); args.add(mtTree);
+            args.add("migrationModel"); args.add(migModel);
+            args.add("randomStream"); args.add(new RandomStream(10 + i));
+            if (operators[i] instanceof TypedWilsonBalding) {
+                args.add("alpha"); args.add(0.2);
+            } else if (operators[i] instanceof MultiTypeTreeScale) {
+                args.add("scaleFactor"); args.add(0.8);
+                args.add("useOldTreeScaler"); args.add(false);
+            }
+            operators[i].initByName(args.toArray());
+        }
+
+        random = new RandomStream(53);
+    }
+
+    /**
+     * Add the length of the branch above a node spent in each type to the
+     * given totals, accumulating in the same order as TypeSummary.
+     *
+     * @param node node
+     * @param lengths totals to add to
+     */
+    private static void addBranchLengths(MultiTypeNode node, double[] lengths) {
+        double[] branchLengths = new double[lengths.length];
+        if (!node.isRoot()) {
+            int lastType = node.getNodeType();
+            double lastTime = node.getHeight();
+            for (int i=0; i<node.getChangeCount(); i++) {
+                branchLengths[lastType] += node.getChangeTime(i) - lastTime;
+                lastType = node.getChangeType(i);
+                lastTime = node.getChangeTime(i);
+            }
+            branchLengths[lastType] += node.getParent().getHeight() - lastTime;
+        }
+
+        for (int type=0; type<lengths.length; type++)
+            lengths[type] += branchLengths[type];
+    }
+
+    /**
+     * Compare maintained totals with totals recomputed from every branch
+     * other than the one above the root.
+     */
+    private void checkSummary() {
+        int[][] counts = new int[N_TYPES][N_TYPES];
+        double[] lengths = new double[N_TYPES];
+        for (Node node : mtTree.getNodesAsArray()) {
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            addBranchLengths(mtNode, lengths);
+
+            if (node.isRoot())
+                continue;
+
+            int lastType = mtNode.getNodeType();
+            for (int i=0; i<mtNode.getChangeCount(); i++) {
+                counts[lastType][mtNode.getChangeType(i)] += 1;
+                lastType = mtNode.getChangeType(i);
+            }
+        }
+
+        double totalLength = 0.0;
+        for (int type=0; type<N_TYPES; type++)
+            totalLength += lengths[type];
+
+        for (int fromType=0; fromType<N_TYPES; fromType++) {
+            for (int toType=0; toType<N_TYPES; toType++)
+                assertEquals(counts[fromType][toType],
+                        mtTree.getTypeChangeCount(fromType, toType));
+        }
+
+        for (int type=0; type<N_TYPES; type++)
+            assertEquals(lengths[type], mtTree.getTypeLength(type),
+                    1e-10*totalLength);
+        assertEquals(totalLength, mtTree.getTotalLength(), 1e-10*totalLength);
+    }
+
+    /**
+     * Make a proposal using a randomly chosen operator.
+     *
+     * @return log Hastings ratio, or negative infinity if the proposal
+     * did not produce a valid tree
+     */
+    private double propose() {
+        MultiTypeTreeOperator operator = operators[random.nextInt(operators.length)];
+        double logHR = operator.proposal(null);
+        return mtTree.isValid() ? logHR : Double.NEGATIVE_INFINITY;
+    }
+
+    @Test
+    public void testRandomProposals() throws Exception {
+        System.out.println("TypeSummaryTest: random proposals");
+
+        initTree();
+        checkSummary();
+
+        double currentLogP = density.calculateLogP();
+        int accepts = 0, restores = 0;
+        for (int step=0; step<50000; step++) {
+
+            // Changes above the root are never counted:
+            if (random.nextDouble() < 0.01) {
+                MultiTypeNode root = (MultiTypeNode)mtTree.getRoot();
+                root.addChange((root.getFinalType() + 1) % N_TYPES,
+                        root.getHeight() + root.getChangeCount() + 1.0);
+            }
+
+            mtTree.store();
+
+            double logHR = propose();
+            boolean valid = logHR > Double.NEGATIVE_INFINITY;
+
+            // Read totals during only some proposals, so that they are
+            // variously brought up to date before and after the next
+            // store:
+            if (valid && random.nextDouble() < 0.5)
+                checkSummary();
+
+            double logP = valid ? density.calculateLogP() : Double.NEGATIVE_INFINITY;
+            if (valid && Math.log(random.nextDouble()) < logP - currentLogP + logHR) {
+                currentLogP = logP;
+                accepts += 1;
+            } else {
+                mtTree.restore();
+                restores += 1;
+            }
+
+            checkSummary();
+        }
+
+        assertTrue(accepts > 0);
+        assertTrue(restores > 0);
+    }
+
+    @Test
+    public void testLengthsResummed() throws Exception {
+        System.out.println("TypeSummaryTest: length re-summing");
+
+        initTree();
+
+        MultiTypeNode[] nodes = (MultiTypeNode[])mtTree.getNodesAsArray();
+        TypeSummary summary = new TypeSummary();
+        summary.rebuild(nodes, N_TYPES);
+
+        // Totals accumulated by adding and subtracting contributions drift
+        // from a sum over the branches, but must be replaced by that sum
+        // at least once in every size()+1 single-branch updates:
+        int updatesSinceExact = 0;
+        for (int step=0; step<100000; step++) {
+            MultiTypeNode node;
+            do {
+                node = nodes[random.nextInt(nodes.length)];
+            } while (node.isRoot() || node.getChangeCount() == 0);
+
+            int idx = random.nextInt(node.getChangeCount());
+            double lower = idx > 0
+                    ? node.getChangeTime(idx-1)
+                    : node.getHeight();
+            double upper = idx < node.getChangeCount()-1
+                    ? node.getChangeTime(idx+1)
+                    : node.getParent().getHeight();
+            node.setChangeTime(idx, lower + (upper - lower)*random.nextDouble());
+
+            summary.markDirty(node.getNr());
+            assertTrue(summary.update(nodes));
+
+            double[] lengths = new double[N_TYPES];
+            for (MultiTypeNode other : nodes)
+                addBranchLengths(other, lengths);
+
+            boolean exact = true;
+            for (int type=0; type<N_TYPES; type++) {
+                assertEquals(lengths[type], summary.getLength(type), 1e-10);
+                if (summary.getLength(type) != lengths[type])
+                    exact = false;
+            }
+
+            updatesSinceExact = exact ? 0 : updatesSinceExact + 1;
+            assertTrue(updatesSinceExact <= summary.size());
+        }
+    }
+}
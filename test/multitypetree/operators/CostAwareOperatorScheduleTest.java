@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that CostAwareOperatorSchedule keeps adapted weights within
+ * their bounds, freezes them once the adaptation period is over and
+ * restores its adaptation state from the state file.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class CostAwareOperatorScheduleTest extends TestCase {
+
+    private static final long ADAPTATION_LENGTH = 20000;
+    private static final double MIN_FACTOR = 0.5, MAX_FACTOR = 2.0;
+
+    private List<Operator> operators;
+
+    /**
+     * Logger recording the adapted weights at every sample.
+     */
+    private static class WeightLogger extends Logger {
+        CostAwareOperatorSchedule schedule;
+        List<Long> samples = new ArrayList<>();
+        List<double[]> weights = new ArrayList<>();
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public void init() { }
+
+        @Override
+        public void log(long sample) {
+            double[] sampleWeights = new double[schedule.getOperators().size()];
+            for (int i=0; i<sampleWeights.length; i++)
+                sampleWeights[i] = schedule.getAdaptedWeight(i);
+
+            samples.add(sample);
+            weights.add(sampleWeights);
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    /**
+     * Run a structured coalescent analysis using the given schedule.
+     *
+     * @param schedule operator schedule
+     * @param chainLength chain length
+     * @return logger holding adapted weights at each sample
+     */
+    private WeightLogger runAnalysis(CostAwareOperatorSchedule schedule,
+            long chainLength) throws Exception {
+        String newickStr =
+                "((1[&deme=1]:1,2[&deme=0]:1)[&deme=0]:1,"
+                + "3[&deme=0]:2)[&deme=0]:0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "deme");
+
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", new RealParameter("0.1 0.1"),
+                "popSizes", new RealParameter("7.0 7.0"),
+                "typeSet", new TypeSet("A", "B"));
+
+        StructuredCoalescentTreeDensity distribution =
+                new StructuredCoalescentTreeDensity();
+        distribution.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        State state = new State();
+        state.initByName("stateNode", mtTree);
+
+        Operator operatorTWB = new TypedWilsonBalding();
+        operatorTWB.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "alpha", 0.2);
+        operatorTWB.setID("TWB");
+
+        Operator operatorNR = new NodeRetype();
+        operatorNR.initByName(
+                "weight", 2.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+        operatorNR.setID("NR");
+
+        Operator operatorMTTS = new MultiTypeTreeScale();
+        operatorMTTS.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "scaleFactor", 0.8,
+                "useOldTreeScaler", false);
+        operatorMTTS.setID("MTTS");
+
+        operators = new ArrayList<>();
+        operators.add(operatorTWB);
+        operators.add(operatorNR);
+        operators.add(operatorMTTS);
+
+        WeightLogger logger = new WeightLogger();
+        logger.schedule = schedule;
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", String.valueOf(chainLength),
+                "state", state,
+                "distribution", distribution,
+                "operator", operatorTWB,
+                "operator", operatorNR,
+                "operator", operatorMTTS,
+                "operatorschedule", schedule,
+                "logger", logger);
+        mcmc.run();
+
+        return logger;
+    }
+
+    private CostAwareOperatorSchedule getSchedule() {
+        CostAwareOperatorSchedule schedule = new CostAwareOperatorSchedule();
+        schedule.initByName(
+                "adaptationLength", ADAPTATION_LENGTH,
+                "updateInterval", 500,
+                "minWeightFactor", MIN_FACTOR,
+                "maxWeightFactor", MAX_FACTOR);
+        return schedule;
+    }
+
+    @Test
+    public void testAdaptation() throws Exception {
+        System.out.println("CostAwareOperatorScheduleTest: adaptation");
+
+        Randomizer.setSeed(42);
+
+        CostAwareOperatorSchedule schedule = getSchedule();
+        WeightLogger logger = runAnalysis(schedule, 2*ADAPTATION_LENGTH);
+
+        assertTrue(schedule.isFrozen());
+        assertEquals(2*ADAPTATION_LENGTH + 1, schedule.getSelectionCount());
+
+        boolean adapted = false;
+        double[] frozenWeights = null;
+        for (int s=0; s<logger.samples.size(); s++) {
+            long sample = logger.samples.get(s);
+            double[] weights = logger.weights.get(s);
+
+            for (int i=0; i<weights.length; i++) {
+                double original = operators.get(i).getWeight();
+                assertTrue(weights[i] >= MIN_FACTOR*original*(1.0 - 1e-12));
+                assertTrue(weights[i] <= MAX_FACTOR*original*(1.0 + 1e-12));
+                if (weights[i] != original)
+                    adapted = true;
+            }
+
+            // Weights are frozen before the operator for step
+            // ADAPTATION_LENGTH is selected:
+            if (sample == ADAPTATION_LENGTH)
+                frozenWeights = weights;
+            else if (sample > ADAPTATION_LENGTH) {
+                for (int i=0; i<weights.length; i++)
+                    assertEquals(frozenWeights[i], weights[i], 0.0);
+            }
+        }
+
+        assertTrue(adapted);
+        assertNotNull(frozenWeights);
+    }
+
+    /**
+     * Check that the selection count, frozen flag and weights written to
+     * the state file are restored by a fresh schedule with the same
+     * operators.
+     */
+    private void checkRoundTrip(CostAwareOperatorSchedule schedule)
+            throws Exception {
+        File stateFile = File.createTempFile("costAwareSchedule", ".state");
+        stateFile.deleteOnExit();
+
+        schedule.setStateFileName(stateFile.getPath());
+        schedule.storeToFile();
+
+        CostAwareOperatorSchedule restored = getSchedule();
+        for (Operator operator : operators)
+            restored.addOperator(operator);
+        restored.setStateFileName(stateFile.getPath());
+        restored.restoreFromFile();
+
+        assertEquals(schedule.getSelectionCount(), restored.getSelectionCount());
+        assertEquals(schedule.isFrozen(), restored.isFrozen());
+        for (int i=0; i<operators.size(); i++)
+            assertEquals(schedule.getAdaptedWeight(i),
+                    restored.getAdaptedWeight(i), 0.0);
+    }
+
+    @Test
+    public void testStateFileRoundTrip() throws Exception {
+        System.out.println("CostAwareOperatorScheduleTest: state file");
+
+        Randomizer.setSeed(53);
+
+        // Part way through adaptation:
+        CostAwareOperatorSchedule schedule = getSchedule();
+        runAnalysis(schedule, ADAPTATION_LENGTH/2);
+        assertFalse(schedule.isFrozen());
+        checkRoundTrip(schedule);
+
+        // After adaptation:
+        schedule = getSchedule();
+        runAnalysis(schedule, 2*ADAPTATION_LENGTH);
+        assertTrue(schedule.isFrozen());
+        checkRoundTrip(schedule);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.DiscreteStatistics;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentEnsemble;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.util.MultiTypeTreeStatLogger;
+import multitypetree.util.OnlineStatistic;
+import multitypetree.util.UtilMethods;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+/**
+ * Checks that RootTypeRetype, combined with TypedWilsonBalding and
+ * MultiTypeTreeScale to move node heights, samples the structured
+ * coalescent prior, by comparing root height and type change count
+ * moments with those of directly simulated trees.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RootTypeRetype_TS_Test extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("RootTypeRetype_TS test");
+
+        // Fix seed.
+        Randomizer.setSeed(42);
+
+        // Assemble initial MultiTypeTree
+        String newickStr =
+                "(((1[&deme=1]:0.4)[&deme=0]:0.6,2[&deme=0]:1.0)[&deme=0]:1.0,"
+                + "3[&deme=0]:2.0)[&deme=0]:0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "deme");
+
+        // Assemble migration model:
+        RealParameter rateMatrix = new RealParameter("0.1 0.1");
+        RealParameter popSizes = new RealParameter("7.0 7.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+
+        // Assemble distribution:
+        StructuredCoalescentTreeDensity distribution =
+                new StructuredCoalescentTreeDensity();
+        distribution.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        // Set up state:
+        State state = new State();
+        state.initByName("stateNode", mtTree);
+
+        // Set up operators:
+        Operator operatorRootTR = new RootTypeRetype();
+        operatorRootTR.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorTWB = new TypedWilsonBalding();
+        operatorTWB.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "alpha", 0.2);
+
+        Operator operatorMTTS = new MultiTypeTreeScale();
+        operatorMTTS.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "scaleFactor", 0.8,
+                "useOldTreeScaler", false);
+
+        // Set up stat analysis logger:
+        MultiTypeTreeStatLogger logger = new MultiTypeTreeStatLogger();
+        logger.initByName(
+                "multiTypeTree", mtTree,
+                "streaming", true,
+                "burnin", 200000L,
+                "logEvery", 500);
+
+        // Set up MCMC:
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", "2000000",
+                "state", state,
+                "distribution", distribution,
+                "operator", operatorRootTR,
+                "operator", operatorTWB,
+                "operator", operatorMTTS,
+                "logger", logger);
+
+        // Run MCMC:
+        mcmc.run();
+
+        OnlineStatistic heightStat = logger.getHeightStatistic();
+        OnlineStatistic changeStat = logger.getChangeCountStatistic();
+        System.out.format("height mean = %s\n", heightStat.getMean());
+        System.out.format("height var = %s\n", heightStat.getVariance());
+        System.out.format("height ESS = %s\n", heightStat.getESS());
+        System.out.format("change count mean = %s\n", changeStat.getMean());
+        System.out.format("change count var = %s\n", changeStat.getVariance());
+
+        // Direct simulation:
+        StructuredCoalescentEnsemble.Result sim = UtilMethods.getSimulatedEnsemble(
+                migModel, new IntegerParameter("1 0 0"),
+                EnumSet.of(StructuredCoalescentEnsemble.Statistic.ROOT_HEIGHT,
+                        StructuredCoalescentEnsemble.Statistic.MIGRATION_COUNT));
+        double[] simCounts = new double[sim.getMigrationCounts().length];
+        for (int i=0; i<simCounts.length; i++)
+            simCounts[i] = sim.getMigrationCounts()[i];
+
+        double simHeightMean = DiscreteStatistics.mean(sim.getRootHeights());
+        double simHeightVar = DiscreteStatistics.variance(sim.getRootHeights());
+        double simCountMean = DiscreteStatistics.mean(simCounts);
+        double simCountVar = DiscreteStatistics.variance(simCounts);
+
+        System.out.format("sim height mean = %s\n", simHeightMean);
+        System.out.format("sim height var = %s\n", simHeightVar);
+        System.out.format("sim change count mean = %s\n", simCountMean);
+        System.out.format("sim change count var = %s\n", simCountVar);
+
+        // Compare analysis results with simulation results:
+        boolean withinTol = (heightStat.getESS()>400)
+                && (Math.abs(heightStat.getMean()-simHeightMean)<2.0)
+                && (Math.abs(heightStat.getVariance()-simHeightVar)<60)
+                && (Math.abs(changeStat.getMean()-simCountMean)<0.5)
+                && (Math.abs(changeStat.getVariance()-simCountVar)<4.0);
+
+        Assert.assertTrue(withinTol);
+    }
+}
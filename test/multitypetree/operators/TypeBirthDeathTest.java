@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.MultiTypeNode;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks the illegal change types found by TypeBirthDeath against the
+ * original recursive implementation on random trees.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TypeBirthDeathTest extends TestCase {
+
+    @Test
+    public void testIllegalTypes() throws Exception {
+        System.out.println("TypeBirthDeathTest");
+
+        Randomizer.setSeed(7);
+
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 0.5 0.5 0.5 0.5 0.5 0.5 0.5 0.5 0.5 0.5 0.5");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0 1.0 1.0 1.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C", "D"));
+
+        int nCompared = 0, nLeafRegions = 0;
+        for (int rep=0; rep<200; rep++) {
+            MultiTypeTree mtTree = new StructuredCoalescentMultiTypeTree();
+            mtTree.initByName(
+                    "typeLabel", "deme",
+                    "migrationModel", migModel,
+                    "leafTypes", "0 1 2 3 0 1 2 3 0 1 2 3");
+
+            TypeBirthDeath operator = new TypeBirthDeath();
+            operator.initByName(
+                    "weight", 1.0,
+                    "multiTypeTree", mtTree,
+                    "migrationModel", migModel);
+
+            for (Node node : mtTree.getNodesAsArray()) {
+                MultiTypeNode mtNode = (MultiTypeNode)node;
+                int firstIdx = mtNode.isLeaf() ? 0 : -1;
+
+                for (int changeIdx=firstIdx; changeIdx<mtNode.getChangeCount(); changeIdx++) {
+                    Set<Integer> expected = getIllegalTypesRecursive(changeIdx, mtNode);
+                    boolean legal = operator.getIllegalTypes(changeIdx, mtNode);
+
+                    assertEquals(expected != null, legal);
+                    if (!legal) {
+                        nLeafRegions += 1;
+                        continue;
+                    }
+
+                    BitSet actual = operator.getIllegalTypeSet();
+                    assertEquals(expected.size(), actual.cardinality());
+                    for (int type : expected)
+                        assertTrue(actual.get(type));
+
+                    nCompared += 1;
+                }
+            }
+        }
+
+        // Ensure both outcomes were exercised:
+        assertTrue(nCompared > 1000);
+        assertTrue(nLeafRegions > 100);
+    }
+
+    /**
+     * Original recursive computation of the illegal types.
+     *
+     * @param changeIdx position of event
+     * @param node node on which event sits
+     * @return set of illegal types, or null if region contains a leaf
+     */
+    private Set<Integer> getIllegalTypesRecursive(int changeIdx, MultiTypeNode node) {
+        Set<Integer> illegalTypes = new HashSet<>();
+
+        if (changeIdx<0) {
+            MultiTypeNode startNode = (MultiTypeNode)node.getLeft();
+            while (!startNode.isLeaf() && startNode.getChangeCount()==0)
+                startNode = (MultiTypeNode)startNode.getLeft();
+
+            if (startNode.getChangeCount()==0)
+                return null;
+
+            if (startNode.getChangeCount()==1)
+                illegalTypes.add(startNode.getNodeType());
+            else
+                illegalTypes.add(startNode.getChangeType(startNode.getChangeCount()-2));
+
+            if (!recurse(illegalTypes, (MultiTypeNode)startNode.getParent(), startNode))
+                return null;
+        } else {
+            if (changeIdx==0)
+                illegalTypes.add(node.getNodeType());
+            else
+                illegalTypes.add(node.getChangeType(changeIdx-1));
+
+            if (changeIdx+1<node.getChangeCount())
+                illegalTypes.add(node.getChangeType(changeIdx+1));
+            else if (!recurse(illegalTypes, (MultiTypeNode)node.getParent(), node))
+                return null;
+        }
+
+        return illegalTypes;
+    }
+
+    private boolean recurse(Set<Integer> illegalTypes,
+            MultiTypeNode node, MultiTypeNode prevNode) {
+
+        if (node.isLeaf())
+            return false;
+
+        if (prevNode == node.getParent()) {
+            return addBelow(illegalTypes, (MultiTypeNode)node.getLeft(), node)
+                    && addBelow(illegalTypes, (MultiTypeNode)node.getRight(), node);
+        } else {
+            MultiTypeNode sister = (MultiTypeNode)(node.getLeft() == prevNode
+                    ? node.getRight() : node.getLeft());
+
+            if (!node.isRoot()) {
+                if (node.getChangeCount()>0)
+                    illegalTypes.add(node.getChangeType(0));
+                else if (!recurse(illegalTypes, (MultiTypeNode)node.getParent(), node))
+                    return false;
+            }
+
+            return addBelow(illegalTypes, sister, node);
+        }
+    }
+
+    private boolean addBelow(Set<Integer> illegalTypes,
+            MultiTypeNode child, MultiTypeNode node) {
+        if (child.getChangeCount()>1)
+            illegalTypes.add(child.getChangeType(child.getChangeCount()-2));
+        else if (child.getChangeCount()==1)
+            illegalTypes.add(child.getNodeType());
+        else
+            return recurse(illegalTypes, child, node);
+
+        return true;
+    }
+}
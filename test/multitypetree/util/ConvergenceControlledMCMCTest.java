@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.operators.CostAwareOperatorSchedule;
+import multitypetree.operators.MultiTypeTreeScale;
+import multitypetree.operators.TypedWilsonBalding;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that ConvergenceControlledMCMC stops, and writes its final
+ * checkpoint, once the monitored quantities of a small structured
+ * coalescent analysis converge, and that it otherwise runs to the full
+ * chain length.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ConvergenceControlledMCMCTest extends TestCase {
+
+    private static final long SAMPLE_EVERY = 10;
+    private static final long CHECK_EVERY = 10000;
+
+    /**
+     * Assemble a structured coalescent analysis monitoring the tree, its
+     * type change counts and a parameter which never changes.
+     *
+     * @param chainLength maximum chain length
+     * @param minESS ESS target
+     * @param exclude quantities to exclude, or null
+     * @return analysis
+     */
+    private ConvergenceControlledMCMC getMCMC(long chainLength, double minESS,
+            String exclude) throws Exception {
+        String newickStr =
+                "((1[&deme=1]:1,2[&deme=0]:1)[&deme=0]:1,"
+                + "3[&deme=0]:2)[&deme=0]:0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "deme");
+        mtTree.setID("tree");
+
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", new RealParameter("0.1 0.1"),
+                "popSizes", new RealParameter("7.0 7.0"),
+                "typeSet", new TypeSet("A", "B"));
+
+        StructuredCoalescentTreeDensity distribution =
+                new StructuredCoalescentTreeDensity();
+        distribution.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        State state = new State();
+        state.initByName("stateNode", mtTree);
+
+        Operator operatorTWB = new TypedWilsonBalding();
+        operatorTWB.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "alpha", 0.2);
+        operatorTWB.setID("TWB");
+
+        Operator operatorMTTS = new MultiTypeTreeScale();
+        operatorMTTS.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "scaleFactor", 0.8,
+                "useOldTreeScaler", false);
+        operatorMTTS.setID("MTTS");
+
+        // Weights are never adapted, but the schedule records the number
+        // of operator selections in the state file:
+        CostAwareOperatorSchedule schedule = new CostAwareOperatorSchedule();
+        schedule.initByName("adaptationLength", 0L);
+
+        TypeChangeCounts changeCounts = new TypeChangeCounts();
+        changeCounts.initByName(
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+        changeCounts.setID("changeCounts");
+
+        RealParameter constant = new RealParameter("1.0");
+        constant.setID("constant");
+
+        List<Object> args = new ArrayList<>(Arrays.asList(
+                "chainLength", String.valueOf(chainLength),
+                "state", state,
+                "distribution", distribution,
+                "operator", operatorTWB,
+                "operator", operatorMTTS,
+                "operatorschedule", schedule,
+                "multiTypeTree", mtTree,
+                "function", changeCounts,
+                "function", constant,
+                "minESS", minESS,
+                "maxRHat", 1.05,
+                "sampleEvery", (int)SAMPLE_EVERY,
+                "checkEvery", CHECK_EVERY));
+        if (exclude != null)
+            args.addAll(Arrays.asList("exclude", exclude));
+
+        ConvergenceControlledMCMC mcmc = new ConvergenceControlledMCMC();
+        mcmc.initByName(args.toArray());
+
+        return mcmc;
+    }
+
+    /**
+     * @return contents of state file
+     */
+    private String readStateFile(File stateFile) throws Exception {
+        return new String(Files.readAllBytes(stateFile.toPath()), "UTF-8");
+    }
+
+    @Test
+    public void testEarlyTermination() throws Exception {
+        System.out.println("ConvergenceControlledMCMCTest: early termination");
+
+        Randomizer.setSeed(42);
+
+        File stateFile = File.createTempFile("convergence", ".state");
+        stateFile.deleteOnExit();
+
+        long maxChainLength = 2000000;
+        ConvergenceControlledMCMC mcmc = getMCMC(maxChainLength, 200.0,
+                "constant[0]");
+        mcmc.setStateFile(stateFile.getPath(), false);
+        mcmc.run();
+
+        assertTrue(mcmc.hasConverged());
+
+        // State file records the sample at which the run stopped:
+        String stateStr = readStateFile(stateFile);
+        Matcher matcher = Pattern.compile("sample='(\\d+)'").matcher(stateStr);
+        assertTrue(matcher.find());
+        long stopSample = Long.parseLong(matcher.group(1));
+        System.out.println("Stopped after " + stopSample + " steps.");
+
+        assertTrue(stopSample > 0 && stopSample < maxChainLength);
+        assertEquals(0, stopSample % CHECK_EVERY);
+
+        // No steps are taken after the final check:
+        assertEquals(stopSample/SAMPLE_EVERY + 1,
+                mcmc.getStatistic("tree.rootHeight").getCount());
+
+        // Operator schedule state is written after the state itself:
+        int scheduleIdx = stateStr.indexOf("<!--CostAwareOperatorSchedule");
+        assertTrue(scheduleIdx > matcher.start());
+        String[] fields = stateStr.substring(scheduleIdx).split("\n")[1]
+                .trim().split("\t");
+        assertEquals(stopSample + 1, Long.parseLong(fields[0]));
+
+        // Every quantity which is not excluded meets the targets:
+        for (String name : mcmc.getStatisticNames()) {
+            if (name.equals("constant[0]"))
+                continue;
+
+            OnlineStatistic statistic = mcmc.getStatistic(name);
+            assertTrue(statistic.getESS() >= 200.0);
+            assertTrue(statistic.getSplitRHat() <= 1.05);
+        }
+    }
+
+    @Test
+    public void testNoConvergence() throws Exception {
+        System.out.println("ConvergenceControlledMCMCTest: no convergence");
+
+        Randomizer.setSeed(42);
+
+        // Unreachable ESS target:
+        long chainLength = 50000;
+        ConvergenceControlledMCMC mcmc = getMCMC(chainLength, 1e6,
+                "constant[0]");
+        mcmc.run();
+
+        assertFalse(mcmc.hasConverged());
+        assertEquals(chainLength/SAMPLE_EVERY + 1,
+                mcmc.getStatistic("tree.rootHeight").getCount());
+    }
+
+    @Test
+    public void testConstantQuantityNotExcluded() throws Exception {
+        System.out.println("ConvergenceControlledMCMCTest: constant quantity");
+
+        Randomizer.setSeed(42);
+
+        // The unexcluded constant parameter prevents convergence:
+        long chainLength = 200000;
+        ConvergenceControlledMCMC mcmc = getMCMC(chainLength, 100.0, null);
+        mcmc.run();
+
+        assertFalse(mcmc.hasConverged());
+        assertEquals(chainLength/SAMPLE_EVERY + 1,
+                mcmc.getStatistic("tree.rootHeight").getCount());
+        assertEquals(0.0, mcmc.getStatistic("constant[0]").getESS(), 0.0);
+    }
+
+    @Test
+    public void testUnknownExclusion() throws Exception {
+        try {
+            getMCMC(1000, 100.0, "tree.rootHeight, noSuchQuantity");
+            fail("Exclusion of unmonitored quantity was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
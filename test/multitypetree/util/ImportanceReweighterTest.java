@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the log weights computed by ImportanceReweighter from a small
+ * NEXUS tree log and trace log against differences of densities computed
+ * directly by StructuredCoalescentTreeDensity.  The trace logs population
+ * sizes relative to a population size scale factor, as written by
+ * MigrationModelLogger.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ImportanceReweighterTest extends TestCase {
+
+    private static final String[] NEWICKS = {
+        "(((1[&deme=1]:0.4)[&deme=0]:0.6,2[&deme=0]:1.0)[&deme=0]:1.0,3[&deme=0]:2.0)[&deme=0]:0.0",
+        "(((1[&deme=1]:0.5)[&deme=0]:1.0,2[&deme=0]:1.5)[&deme=0]:0.5,3[&deme=0]:2.0)[&deme=0]:0.0",
+        "(((1[&deme=1]:2.5,(2[&deme=0]:0.3)[&deme=1]:2.2)[&deme=1]:0.2)[&deme=0]:0.3,3[&deme=0]:3.0)[&deme=0]:0.0"
+    };
+
+    private static final String[] COLUMNS = {
+        "migModel.popSizeScaleFactor",
+        "migModel.popSize_A", "migModel.popSize_B",
+        "migModel.rateMatrix_backward_A_B", "migModel.rateMatrix_backward_B_A"
+    };
+
+    private SCMigrationModel getModel(String id, String popSizes,
+            String popSizesScaleFactor, String rateMatrix) {
+        SCMigrationModel migModel = new SCMigrationModel();
+        if (popSizesScaleFactor != null)
+            migModel.initByName(
+                    "rateMatrix", new RealParameter(rateMatrix),
+                    "popSizes", new RealParameter(popSizes),
+                    "popSizesScaleFactor", new RealParameter(popSizesScaleFactor),
+                    "typeSet", new TypeSet("A", "B"));
+        else
+            migModel.initByName(
+                    "rateMatrix", new RealParameter(rateMatrix),
+                    "popSizes", new RealParameter(popSizes),
+                    "typeSet", new TypeSet("A", "B"));
+        migModel.setID(id);
+
+        return migModel;
+    }
+
+    private double getLogDensity(String newick, SCMigrationModel migModel) {
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newick,
+                "typeLabel", "deme");
+
+        StructuredCoalescentTreeDensity density = new StructuredCoalescentTreeDensity();
+        density.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        return density.calculateLogP();
+    }
+
+    private File writeTreeLog() throws IOException {
+        File file = File.createTempFile("reweighterTrees", ".trees");
+        file.deleteOnExit();
+
+        try (PrintStream out = new PrintStream(file)) {
+            out.println("#NEXUS\n");
+            out.println("Begin trees;");
+            for (int i=0; i<NEWICKS.length; i++)
+                out.println("tree STATE_" + 1000*i + " = " + NEWICKS[i] + ";");
+            out.println("End;");
+        }
+
+        return file;
+    }
+
+    /**
+     * Write a trace log holding the parameters of the given models, one
+     * row per tree.
+     */
+    private File writeTraceLog(SCMigrationModel[] rowModels) throws IOException {
+        File file = File.createTempFile("reweighterTrace", ".log");
+        file.deleteOnExit();
+
+        try (PrintStream out = new PrintStream(file)) {
+            out.println("# Parameter log");
+            out.println("Sample\t" + String.join("\t", COLUMNS));
+            for (int i=0; i<rowModels.length; i++) {
+                SCMigrationModel migModel = rowModels[i];
+                out.println(1000*i
+                        + "\t" + migModel.getPopSizeScaleFactor()
+                        + "\t" + migModel.getPopSizeForLog(0)
+                        + "\t" + migModel.getPopSizeForLog(1)
+                        + "\t" + migModel.getBackwardRate(0, 1)
+                        + "\t" + migModel.getBackwardRate(1, 0));
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Run the reweighter and read back the weights file.
+     *
+     * @return log weights, one row per sample and one column per
+     * alternative model
+     */
+    private List<double[]> runReweighter(File treeFile, File traceFile,
+            File summaryFile, SCMigrationModel... altModels) throws Exception {
+        File weightsFile = File.createTempFile("reweighterWeights", ".txt");
+        weightsFile.deleteOnExit();
+
+        ImportanceReweighter reweighter = new ImportanceReweighter();
+        reweighter.initByName(
+                "treeFile", treeFile.getPath(),
+                "logFile", traceFile.getPath(),
+                "migrationModel", getModel("migModel", "1.0 1.0", "1.0", "0.1 0.2"),
+                "alternativeModel", Arrays.asList(altModels),
+                "typeLabel", "deme",
+                "burnin", 0,
+                "nThreads", 2,
+                "outputFileName", summaryFile.getPath(),
+                "weightsFileName", weightsFile.getPath());
+        reweighter.run();
+
+        List<double[]> weights = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(weightsFile))) {
+            String[] header = reader.readLine().split("\t");
+            assertEquals(altModels.length + 1, header.length);
+            for (int i=0; i<altModels.length; i++)
+                assertEquals(altModels[i].getID(), header[i+1]);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                assertEquals(1000*weights.size(), Long.parseLong(fields[0]));
+                double[] row = new double[altModels.length];
+                for (int i=0; i<row.length; i++)
+                    row[i] = Double.parseDouble(fields[i+1]);
+                weights.add(row);
+            }
+        }
+
+        return weights;
+    }
+
+    /**
+     * @return value of named column in the given row of a summary file
+     */
+    private double getSummaryValue(File summaryFile, String scenario,
+            String column) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(summaryFile))) {
+            int col = Arrays.asList(reader.readLine().split("\t")).indexOf(column);
+            assertTrue(col >= 0);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals(scenario))
+                    return Double.parseDouble(fields[col]);
+            }
+        }
+
+        fail("Summary file has no scenario '" + scenario + "'.");
+        return Double.NaN;
+    }
+
+    /**
+     * An alternative model equal to the logged one, with the population
+     * size scale factor absorbed into the population sizes, must leave
+     * every sample with a log weight of zero.
+     */
+    @Test
+    public void testUnchangedModel() throws Exception {
+        System.out.println("ImportanceReweighterTest: unchanged model");
+
+        SCMigrationModel[] rowModels = new SCMigrationModel[NEWICKS.length];
+        for (int i=0; i<rowModels.length; i++)
+            rowModels[i] = getModel("migModel", "1.0 2.0", "3.0", "0.1 0.2");
+
+        File summaryFile = File.createTempFile("reweighterSummary", ".txt");
+        summaryFile.deleteOnExit();
+
+        List<double[]> weights = runReweighter(writeTreeLog(),
+                writeTraceLog(rowModels), summaryFile,
+                getModel("unchanged", "3.0 6.0", null, "0.1 0.2"));
+
+        assertEquals(NEWICKS.length, weights.size());
+        for (double[] row : weights)
+            assertEquals(0.0, row[0], 1e-10);
+
+        assertEquals(3.0, getSummaryValue(summaryFile, "original", "popSize_A.mean"), 1e-10);
+        assertEquals(6.0, getSummaryValue(summaryFile, "original", "popSize_B.mean"), 1e-10);
+        assertEquals((double)NEWICKS.length,
+                getSummaryValue(summaryFile, "unchanged", "ESS"), 1e-10);
+    }
+
+    /**
+     * Log weights under an alternative model must match the difference
+     * between the densities of each tree under that model and under the
+     * parameters logged with it.
+     */
+    @Test
+    public void testAlternativeModel() throws Exception {
+        System.out.println("ImportanceReweighterTest: alternative model");
+
+        SCMigrationModel[] rowModels = {
+            getModel("migModel", "1.0 2.0", "2.0", "0.1 0.2"),
+            getModel("migModel", "1.5 0.5", "3.0", "0.2 0.1"),
+            getModel("migModel", "0.8 1.2", "4.0", "0.3 0.3")
+        };
+
+        SCMigrationModel altModel = getModel("alternative", "2.0 5.0", null, "0.3 0.05");
+
+        File summaryFile = File.createTempFile("reweighterSummary", ".txt");
+        summaryFile.deleteOnExit();
+
+        List<double[]> weights = runReweighter(writeTreeLog(),
+                writeTraceLog(rowModels), summaryFile, altModel);
+
+        assertEquals(NEWICKS.length, weights.size());
+        for (int i=0; i<NEWICKS.length; i++) {
+            double expected = getLogDensity(NEWICKS[i], altModel)
+                    - getLogDensity(NEWICKS[i], rowModels[i]);
+            assertEquals(expected, weights.get(i)[0], 1e-8);
+        }
+    }
+}
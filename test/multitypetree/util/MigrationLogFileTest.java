@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that values written by MigrationModelLogger to a binary file,
+ * including values appended when a run is resumed, are read back intact
+ * by MigrationLogFile.Reader.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class MigrationLogFileTest extends TestCase {
+
+    private RealParameter popSizes, rateMatrix;
+    private SCMigrationModel migModel;
+
+    private final List<Long> expectedSamples = new ArrayList<>();
+    private final List<double[]> expectedRows = new ArrayList<>();
+
+    private void initMigrationModel() {
+        rateMatrix = new RealParameter("0.1 0.2");
+        popSizes = new RealParameter("1.0 2.0");
+        migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+    }
+
+    private MigrationModelLogger getLogger(File file, String columns) {
+        MigrationModelLogger logger = new MigrationModelLogger();
+        logger.initByName(
+                "migrationModel", migModel,
+                "columns", columns,
+                "binaryFile", file.getPath(),
+                "binaryBlockSize", 100);
+        return logger;
+    }
+
+    /**
+     * Log samples from, to but excluding, the given sample numbers.  The
+     * first population size varies from sample to sample while the
+     * remaining columns are constant, so that both block column encodings
+     * are used.
+     */
+    private void logSamples(MigrationModelLogger logger, long from, long to) {
+        for (long sample=from; sample<to; sample++) {
+            popSizes.setValue(0, 1.0 + 0.01*sample);
+            logger.log(sample, null);
+
+            expectedSamples.add(sample);
+            expectedRows.add(new double[] {
+                migModel.getPopSizeForLog(0), migModel.getPopSizeForLog(1),
+                migModel.getBackwardRate(0, 1), migModel.getBackwardRate(1, 0)
+            });
+        }
+    }
+
+    private void checkFile(File file) throws IOException {
+        try (MigrationLogFile.Reader reader = new MigrationLogFile.Reader(file.getPath())) {
+            assertEquals(Arrays.asList(
+                    "migModel.popSize_0", "migModel.popSize_1",
+                    "migModel.rateMatrix_backward_0_1",
+                    "migModel.rateMatrix_backward_1_0"),
+                    reader.getColumnNames());
+
+            double[] row = new double[reader.getColumnNames().size()];
+            for (int i=0; i<expectedSamples.size(); i++) {
+                assertTrue(reader.hasNext());
+                assertEquals((long)expectedSamples.get(i), reader.next(row));
+                for (int col=0; col<row.length; col++)
+                    assertEquals(expectedRows.get(i)[col], row[col], 0.0);
+            }
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        initMigrationModel();
+
+        File file = File.createTempFile("migLog", ".bin");
+        file.deleteOnExit();
+
+        Logger.LogFileMode fileMode = Logger.FILE_MODE;
+        try {
+            // New run, ending part way through a block:
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+            MigrationModelLogger logger = getLogger(file, "popSizes,backwardRates");
+            logger.init(null);
+            logSamples(logger, 0, 250);
+            logger.close(null);
+            checkFile(file);
+
+            // Simulate a run interrupted while writing a block:
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[] {0, 0, 0, 100, 0, 0, 0});
+            }
+
+            // Resumed run appends to existing file:
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            logger = getLogger(file, "popSizes,backwardRates");
+            logger.init(null);
+            logSamples(logger, 250, 420);
+            logger.close(null);
+            checkFile(file);
+
+            // Resuming with different columns is an error:
+            logger = getLogger(file, "popSizes");
+            try {
+                logger.init(null);
+                fail("Resuming with different columns was accepted.");
+            } catch (RuntimeException e) {
+                // Expected
+            }
+            checkFile(file);
+        } finally {
+            Logger.FILE_MODE = fileMode;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.DiscreteStatistics;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentEnsemble;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.operators.MultiTypeTreeScale;
+import multitypetree.operators.MultiTypeUniform;
+import multitypetree.operators.NodeRetype;
+import multitypetree.operators.TypePairBirthDeath;
+import multitypetree.operators.TypedWilsonBalding;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+/**
+ * Checks that MultiTypeTreeMC3 with a single chain reproduces the
+ * corresponding MCMC run, and that with several chains the cold chain
+ * samples the structured coalescent prior and runs are reproducible.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class MultiTypeTreeMC3Test extends TestCase {
+
+    private MultiTypeTreeStatLogger logger;
+    private SCMigrationModel migModel;
+
+    /**
+     * Assemble a fresh structured coalescent analysis.
+     *
+     * @return MCMC describing analysis
+     */
+    private MCMC getMCMC() throws Exception {
+        return getMCMC(20000, 0, 100, false);
+    }
+
+    /**
+     * Assemble a fresh structured coalescent analysis.
+     *
+     * @param chainLength chain length
+     * @param burnin number of steps before the logger accumulates statistics
+     * @param logEvery steps between logged samples
+     * @param wilsonBalding if true, use only TypedWilsonBalding and
+     * MultiTypeTreeScale operators
+     * @return MCMC describing analysis
+     */
+    private MCMC getMCMC(long chainLength, long burnin, int logEvery,
+            boolean wilsonBalding) throws Exception {
+        String newickStr =
+                "((1[&deme=1]:1,2[&deme=0]:1)[&deme=0]:1,"
+                + "3[&deme=0]:2)[&deme=0]:0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "deme");
+
+        RealParameter rateMatrix = new RealParameter("0.1 0.1");
+        RealParameter popSizes = new RealParameter("7.0 7.0");
+        migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+
+        StructuredCoalescentTreeDensity distribution =
+                new StructuredCoalescentTreeDensity();
+        distribution.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        State state = new State();
+        state.initByName("stateNode", mtTree);
+
+        Operator operatorMTU = new MultiTypeUniform();
+        operatorMTU.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorTPBD = new TypePairBirthDeath();
+        operatorTPBD.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorNR = new NodeRetype();
+        operatorNR.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorMTTS = new MultiTypeTreeScale();
+        operatorMTTS.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "scaleFactor", 0.8,
+                "useOldTreeScaler", false);
+
+        Operator operatorTWB = new TypedWilsonBalding();
+        operatorTWB.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "alpha", 0.2);
+
+        logger = new MultiTypeTreeStatLogger();
+        logger.initByName(
+                "multiTypeTree", mtTree,
+                "streaming", true,
+                "burnin", burnin,
+                "logEvery", logEvery);
+
+        MCMC mcmc = new MCMC();
+        if (wilsonBalding)
+            mcmc.initByName(
+                    "chainLength", String.valueOf(chainLength),
+                    "state", state,
+                    "distribution", distribution,
+                    "operator", operatorTWB,
+                    "operator", operatorMTTS,
+                    "logger", logger);
+        else
+            mcmc.initByName(
+                    "chainLength", String.valueOf(chainLength),
+                    "state", state,
+                    "distribution", distribution,
+                    "operator", operatorMTU,
+                    "operator", operatorTPBD,
+                    "operator", operatorNR,
+                    "operator", operatorMTTS,
+                    "logger", logger);
+
+        return mcmc;
+    }
+
+    @Test
+    public void testSingleChain() throws Exception {
+        System.out.println("MultiTypeTreeMC3Test");
+
+        // Plain MCMC:
+        Randomizer.setSeed(53);
+        getMCMC().run();
+        OnlineStatistic mcmcHeights = logger.getHeightStatistic();
+        OnlineStatistic mcmcChanges = logger.getChangeCountStatistic();
+
+        // MC3 with a single chain:
+        MultiTypeTreeMC3 mc3 = new MultiTypeTreeMC3();
+        mc3.initByName(
+                "mcmc", getMCMC(),
+                "nChains", 1,
+                "swapInterval", 100,
+                "seed", 53L);
+        mc3.run();
+        OnlineStatistic mc3Heights = logger.getHeightStatistic();
+        OnlineStatistic mc3Changes = logger.getChangeCountStatistic();
+
+        assertEquals(mcmcHeights.getCount(), mc3Heights.getCount());
+        assertEquals(mcmcHeights.getMean(), mc3Heights.getMean(), 0.0);
+        assertEquals(mcmcHeights.getVariance(), mc3Heights.getVariance(), 0.0);
+        assertEquals(mcmcChanges.getMean(), mc3Changes.getMean(), 0.0);
+        assertEquals(mcmcChanges.getVariance(), mc3Changes.getVariance(), 0.0);
+    }
+
+    /**
+     * The cold chain of a two-chain run must sample the structured
+     * coalescent prior, as in the *_TS_Test operator tests, while swaps
+     * between the chains are both proposed and accepted.
+     */
+    @Test
+    public void testMultipleChains() throws Exception {
+        System.out.println("MultiTypeTreeMC3Test: two chains");
+
+        Randomizer.setSeed(42);
+
+        MultiTypeTreeMC3 mc3 = new MultiTypeTreeMC3();
+        mc3.initByName(
+                "mcmc", getMCMC(2000000, 200000, 500, true),
+                "nChains", 2,
+                "swapInterval", 100,
+                "seed", 42L);
+        mc3.run();
+
+        System.out.format("swaps accepted = %d/%d\n",
+                mc3.getSwapAccepts(0), mc3.getSwapAttempts(0));
+        assertEquals(20001, mc3.getSwapAttempts(0));
+        assertTrue(mc3.getSwapAccepts(0) > 0);
+        assertTrue(mc3.getSwapAccepts(0) < mc3.getSwapAttempts(0));
+
+        OnlineStatistic heightStat = logger.getHeightStatistic();
+        OnlineStatistic changeStat = logger.getChangeCountStatistic();
+        System.out.format("height mean = %s\n", heightStat.getMean());
+        System.out.format("height var = %s\n", heightStat.getVariance());
+        System.out.format("height ESS = %s\n", heightStat.getESS());
+        System.out.format("change count mean = %s\n", changeStat.getMean());
+        System.out.format("change count var = %s\n", changeStat.getVariance());
+
+        // Direct simulation:
+        StructuredCoalescentEnsemble.Result sim = UtilMethods.getSimulatedEnsemble(
+                migModel, new IntegerParameter("1 0 0"),
+                EnumSet.of(StructuredCoalescentEnsemble.Statistic.ROOT_HEIGHT,
+                        StructuredCoalescentEnsemble.Statistic.MIGRATION_COUNT));
+        double[] simCounts = new double[sim.getMigrationCounts().length];
+        for (int i=0; i<simCounts.length; i++)
+            simCounts[i] = sim.getMigrationCounts()[i];
+
+        double simHeightMean = DiscreteStatistics.mean(sim.getRootHeights());
+        double simHeightVar = DiscreteStatistics.variance(sim.getRootHeights());
+        double simCountMean = DiscreteStatistics.mean(simCounts);
+        double simCountVar = DiscreteStatistics.variance(simCounts);
+
+        System.out.format("sim height mean = %s\n", simHeightMean);
+        System.out.format("sim height var = %s\n", simHeightVar);
+        System.out.format("sim change count mean = %s\n", simCountMean);
+        System.out.format("sim change count var = %s\n", simCountVar);
+
+        assertTrue(heightStat.getESS() > 400);
+        assertEquals(simHeightMean, heightStat.getMean(), 2.0);
+        assertEquals(simHeightVar, heightStat.getVariance(), 60);
+        assertEquals(simCountMean, changeStat.getMean(), 0.5);
+        assertEquals(simCountVar, changeStat.getVariance(), 4.0);
+    }
+
+    /**
+     * Runs with several chains advanced on several threads must be
+     * reproducible from the seed when every operator is a
+     * MultiTypeTreeOperator.
+     */
+    @Test
+    public void testMultipleChainsReproducible() throws Exception {
+        System.out.println("MultiTypeTreeMC3Test: reproducibility");
+
+        double[] heightMeans = new double[2];
+        double[] changeMeans = new double[2];
+        long[] swapAccepts = new long[2];
+        for (int run=0; run<2; run++) {
+            MultiTypeTreeMC3 mc3 = new MultiTypeTreeMC3();
+            mc3.initByName(
+                    "mcmc", getMCMC(),
+                    "nChains", 3,
+                    "nThreads", 3,
+                    "swapInterval", 100,
+                    "seed", 53L);
+            mc3.run();
+
+            heightMeans[run] = logger.getHeightStatistic().getMean();
+            changeMeans[run] = logger.getChangeCountStatistic().getMean();
+            swapAccepts[run] = mc3.getSwapAccepts(0) + mc3.getSwapAccepts(1);
+        }
+
+        assertEquals(heightMeans[0], heightMeans[1], 0.0);
+        assertEquals(changeMeans[0], changeMeans[1], 0.0);
+        assertEquals(swapAccepts[0], swapAccepts[1]);
+    }
+
+    @Test
+    public void testLogEveryValidation() throws Exception {
+        MultiTypeTreeMC3 mc3 = new MultiTypeTreeMC3();
+        try {
+            mc3.initByName(
+                    "mcmc", getMCMC(),
+                    "nChains", 2,
+                    "swapInterval", 30);
+            fail("swapInterval not dividing logEvery was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
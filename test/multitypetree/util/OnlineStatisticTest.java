@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Checks the statistics maintained by OnlineStatistic against values
+ * computed directly from the complete stream, using an AR(1) trace long
+ * enough for the batches to be merged many times.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OnlineStatisticTest extends TestCase {
+
+    private static final double PHI = 0.9;
+
+    /**
+     * Generate an AR(1) trace with unit innovation variance.
+     */
+    private double[] getTrace(int n) {
+        double[] trace = new double[n];
+        double x = Randomizer.nextGaussian()/Math.sqrt(1.0 - PHI*PHI);
+        for (int i=0; i<n; i++) {
+            x = PHI*x + Randomizer.nextGaussian();
+            trace[i] = 3.0 + x;
+        }
+        return trace;
+    }
+
+    /**
+     * @return mean and sample variance of trace[from] to trace[to-1]
+     */
+    private double[] getMoments(double[] trace, int from, int to) {
+        double mean = 0.0;
+        for (int i=from; i<to; i++)
+            mean += trace[i];
+        mean /= to - from;
+
+        double var = 0.0;
+        for (int i=from; i<to; i++)
+            var += (trace[i] - mean)*(trace[i] - mean);
+        var /= to - from - 1;
+
+        return new double[] {mean, var};
+    }
+
+    /**
+     * Batch size expected after n values have been added: the stored
+     * batches always share a single size and number between 64 and 127
+     * once the first merge has occurred.
+     */
+    private int getBatchSize(int n) {
+        int batchSize = 1;
+        while (n/(2*batchSize) >= 64)
+            batchSize *= 2;
+        return batchSize;
+    }
+
+    private double getExpectedESS(double[] trace, int n) {
+        int batchSize = getBatchSize(n);
+        int nBatches = n/batchSize;
+
+        double[] batchMeans = new double[nBatches];
+        for (int b=0; b<nBatches; b++)
+            batchMeans[b] = getMoments(trace, b*batchSize, (b+1)*batchSize)[0];
+
+        double mean = 0.0;
+        for (double batchMean : batchMeans)
+            mean += batchMean;
+        mean /= nBatches;
+
+        double batchVar = 0.0;
+        for (double batchMean : batchMeans)
+            batchVar += (batchMean - mean)*(batchMean - mean);
+        batchVar /= nBatches - 1;
+
+        return nBatches*getMoments(trace, 0, n)[1]/batchVar;
+    }
+
+    private double getExpectedSplitRHat(double[] trace, int n) {
+        int batchSize = getBatchSize(n);
+        int nBatches = n/batchSize;
+        int h = (nBatches/2)*batchSize;
+
+        double[] first = getMoments(trace, 0, h);
+        double[] second = getMoments(trace, nBatches*batchSize - h,
+                nBatches*batchSize);
+
+        double W = 0.5*(first[1] + second[1]);
+        double delta = first[0] - second[0];
+        double varPlus = (h-1.0)/h*W + 0.5*delta*delta;
+
+        return Math.sqrt(varPlus/W);
+    }
+
+    @Test
+    public void testAgainstTrace() throws Exception {
+        System.out.println("OnlineStatisticTest");
+
+        Randomizer.setSeed(42);
+
+        int n = 200037;
+        double[] trace = getTrace(n);
+
+        double[] probs = {0.025, 0.5, 0.975};
+        OnlineStatistic stat = new OnlineStatistic(probs);
+
+        // Check points straddle the first merges as well as later ones:
+        int[] checkPoints = {127, 128, 129, 255, 256, 257, 1000, 65536,
+            65537, 100000, n};
+
+        int added = 0;
+        for (int checkPoint : checkPoints) {
+            while (added < checkPoint)
+                stat.add(trace[added++]);
+
+            double[] moments = getMoments(trace, 0, checkPoint);
+            assertEquals(checkPoint, stat.getCount());
+            assertEquals(moments[0], stat.getMean(), 1e-10);
+            assertEquals(moments[1], stat.getVariance(), 1e-8);
+
+            double ESS = getExpectedESS(trace, checkPoint);
+            assertEquals(ESS, stat.getESS(), 1e-8*ESS);
+
+            double RHat = getExpectedSplitRHat(trace, checkPoint);
+            assertEquals(RHat, stat.getSplitRHat(), 1e-10);
+        }
+
+        // ESS of a long trace should be near the AR(1) value:
+        double arESS = n*(1.0 - PHI)/(1.0 + PHI);
+        System.out.format("ESS = %g (AR(1) value %g)\n", stat.getESS(), arESS);
+        assertTrue(stat.getESS() > 0.6*arESS && stat.getESS() < 1.4*arESS);
+        assertEquals(1.0, stat.getSplitRHat(), 0.05);
+
+        double[] sorted = trace.clone();
+        Arrays.sort(sorted);
+        for (double p : probs) {
+            double quantile = sorted[(int)Math.ceil(p*n) - 1];
+            assertEquals(quantile, stat.getQuantile(p), 0.05);
+        }
+    }
+
+    @Test
+    public void testConstantStream() throws Exception {
+        OnlineStatistic stat = new OnlineStatistic(0.5);
+        for (int i=0; i<1000; i++)
+            stat.add(2.0);
+
+        assertEquals(2.0, stat.getMean(), 0.0);
+        assertEquals(0.0, stat.getVariance(), 0.0);
+        assertEquals(0.0, stat.getESS(), 0.0);
+        assertTrue(Double.isNaN(stat.getSplitRHat()));
+        assertEquals(2.0, stat.getQuantile(0.5), 0.0);
+    }
+}